@@ -27,11 +27,14 @@ import com.gooddata.Constants;
 import com.gooddata.exception.GdcIntegrationErrorException;
 import com.gooddata.exception.GdcProjectAccessException;
 import com.gooddata.exception.HttpMethodException;
+import com.gooddata.exception.HttpMethodNotFinishedYetException;
 import com.gooddata.exception.InvalidParameterException;
 import com.gooddata.exception.ProcessingException;
+import com.gooddata.integration.datatransfer.DataPackageWriter;
 import com.gooddata.integration.model.Column;
 import com.gooddata.integration.model.SLI;
 import com.gooddata.integration.rest.GdcRESTApiWrapper;
+import com.gooddata.integration.rest.TaskPoller;
 import com.gooddata.modeling.generator.MaqlGenerator;
 import com.gooddata.modeling.model.SourceColumn;
 import com.gooddata.modeling.model.SourceSchema;
@@ -40,18 +43,26 @@ import com.gooddata.processor.CliParams;
 import com.gooddata.processor.Command;
 import com.gooddata.processor.ProcessingContext;
 import com.gooddata.transform.Transformer;
-import com.gooddata.util.CSVReader;
 import com.gooddata.util.CSVWriter;
+import com.gooddata.util.CsvRecordSource;
 import com.gooddata.util.FileUtil;
+import com.gooddata.util.ParallelZipOutputStream;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.zip.Deflater;
 
 /**
  * GoodData abstract connector implements functionality that can be reused in several connectors.
@@ -77,8 +88,35 @@ public abstract class AbstractConnector implements Connector {
 
     private Map<String, String> result = null;
 
+    /**
+     * Compression level of the data package (0 stores the data, -1 is the default level)
+     */
+    protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Number of threads compressing the data package
+     */
+    protected int compressionThreads = 1;
+
+    /**
+     * The high-watermark of the incremental loads, null if the schema doesn't declare the watermark column
+     */
+    protected Watermark watermark = null;
+
+    /**
+     * The row-level change detection of the running TransferData, null if it isn't used
+     */
+    protected ChangeDetector changeDetector = null;
+
     public static final int DATE_LENGTH_UNRESTRICTED = -1;
 
+    /**
+     * The name of the data file in the data package
+     */
+    public static final String DATA_FILE_NAME = "data.csv";
+
+    protected static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Default constructor
      */
@@ -104,10 +142,35 @@ public abstract class AbstractConnector implements Connector {
      * {@inheritDoc}
      */
     public void extract(String dir) throws IOException {
-        File dataFile = new File(dir + System.getProperty("file.separator") + "data.csv");
+        File dataFile = new File(dir + System.getProperty("file.separator") + DATA_FILE_NAME);
         extract(dataFile.getAbsolutePath(), true);
     }
 
+    /**
+     * {@inheritDoc}
+     * The data are extracted to a temporary directory and copied to the stream. The connectors that can
+     * write the data directly override this method.
+     */
+    public void extract(OutputStream os) throws IOException {
+        File tmpDir = FileUtil.createTempDir();
+        try {
+            extract(tmpDir.getAbsolutePath());
+            InputStream is = new FileInputStream(new File(tmpDir, DATA_FILE_NAME));
+            try {
+                byte[] buf = new byte[STREAM_BUFFER_SIZE];
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    os.write(buf, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+        } finally {
+            os.close();
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -126,10 +189,50 @@ public abstract class AbstractConnector implements Connector {
      * @return number of extracted rows
      * @throws IOException
      */
-    protected int copyAndTransform(CSVReader cr, CSVWriter cw, boolean transform, int dateLength) throws IOException {
+    protected int copyAndTransform(CsvRecordSource cr, CSVWriter cw, boolean transform, int dateLength) throws IOException {
         Transformer t = Transformer.create(schema);
         String[] header = t.getHeader(transform);
         cw.writeNext(header);
+        int rowCnt = transformRows(cr, cw, t, transform, dateLength, watermark, (transform) ? (changeDetector) : (null));
+        cw.close();
+        cr.close();
+        return rowCnt;
+    }
+
+    /**
+     * Copies the rows from the reader to the writer and transforms them. Empty rows are skipped.
+     * Neither the reader nor the writer is closed.
+     *
+     * @param cr         - reader
+     * @param cw         - writer
+     * @param t          - transformer
+     * @param transform  - perform transformations?
+     * @param dateLength - cuts the fate to first dateLength chars
+     * @return number of read rows
+     * @throws IOException
+     */
+    protected static int transformRows(CsvRecordSource cr, CSVWriter cw, Transformer t, boolean transform, int dateLength)
+            throws IOException {
+        return transformRows(cr, cw, t, transform, dateLength, null, null);
+    }
+
+    /**
+     * Copies the rows that are newer than the watermark from the reader to the writer and transforms them.
+     * Only the new and changed transformed rows are written when the change detection is used.
+     * Empty rows are skipped. Neither the reader nor the writer is closed.
+     *
+     * @param cr         - reader
+     * @param cw         - writer
+     * @param t          - transformer
+     * @param transform  - perform transformations?
+     * @param dateLength - cuts the fate to first dateLength chars
+     * @param wm         - watermark filter (null copies all rows)
+     * @param cd         - change detection of the transformed rows (null copies all rows)
+     * @return number of read rows
+     * @throws IOException
+     */
+    protected static int transformRows(CsvRecordSource cr, CSVWriter cw, Transformer t, boolean transform, int dateLength,
+                                       Watermark wm, ChangeDetector cd) throws IOException {
         String[] row = cr.readNext();
         int rowCnt = 0;
         while (row != null) {
@@ -138,19 +241,24 @@ public abstract class AbstractConnector implements Connector {
                 row = cr.readNext();
                 continue;
             }
+            if (wm != null && !wm.accept(row)) {
+                row = cr.readNext();
+                continue;
+            }
             if (transform) {
                 try {
                     row = t.transformRow(row, dateLength);
                 } catch (InvalidParameterException e) {
                     throw new InvalidParameterException(e.getMessage() + " Error occured at row " + rowCnt);
                 }
+                if (cd != null && !cd.accept(row)) {
+                    row = cr.readNext();
+                    continue;
+                }
             }
             cw.writeNext(row);
-            cw.flush();
             row = cr.readNext();
         }
-        cw.close();
-        cr.close();
         return rowCnt;
     }
 
@@ -173,7 +281,65 @@ public abstract class AbstractConnector implements Connector {
         String cn = sli.getSLIManifest(columns);
         FileUtil.writeStringToFile(cn, fn);
         l.debug("Manifest file written to file '" + fn + "'. Content: " + cn);
-        FileUtil.compressDir(dir, archiveName);
+        FileUtil.compressDir(dir, archiveName, compressionLevel, compressionThreads);
+    }
+
+    /**
+     * Writes the GoodData data package (the manifest followed by the extracted data) as a ZIP stream
+     *
+     * @param os      target stream, it isn't closed
+     * @param cc      the connector that extracts the data
+     * @param sli     the SLI interface
+     * @param columns the SLI columns
+     * @param level   compression level
+     * @param threads number of compressing threads
+     * @throws IOException IO issues
+     */
+    protected static void writeDataPackage(OutputStream os, Connector cc, SLI sli, List<Column> columns, int level,
+                                           int threads) throws IOException {
+        ParallelZipOutputStream zos = new ParallelZipOutputStream(new BufferedOutputStream(os, STREAM_BUFFER_SIZE),
+                level, threads);
+        try {
+            String cn = sli.getSLIManifest(columns);
+            zos.putNextEntry(GdcRESTApiWrapper.DLI_MANIFEST_FILENAME);
+            zos.write(cn.getBytes("utf8"));
+            l.debug("Manifest written to the data package. Content: " + cn);
+            zos.putNextEntry(DATA_FILE_NAME);
+            cc.extract(new EntryOutputStream(zos));
+        } finally {
+            zos.finish();
+        }
+    }
+
+    /**
+     * Stream of a ZIP entry, closing it doesn't close the ZIP stream
+     */
+    private static class EntryOutputStream extends FilterOutputStream {
+
+        EntryOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Sets the data package compression
+     *
+     * @param level   compression level (0 stores the data, 1-9 or -1 for the default level)
+     * @param threads number of compressing threads
+     */
+    public void setCompression(int level, int threads) {
+        this.compressionLevel = level;
+        this.compressionThreads = threads;
     }
 
     /**
@@ -187,6 +353,30 @@ public abstract class AbstractConnector implements Connector {
         AbstractConnector.expandDates(getSchema());
     }
 
+    /**
+     * Initializes the watermark of the incremental loads. Must be called after the schema is initialized.
+     *
+     * @param configFileName the config file
+     * @param stateFileName  the watermark state file, null for the config file with the .watermark suffix
+     * @throws IOException in case the state file can't be read
+     */
+    protected void initWatermark(String configFileName, String stateFileName) throws IOException {
+        File stateFile = (stateFileName != null && stateFileName.length() > 0) ? (new File(stateFileName)) :
+                (new File(configFileName + Watermark.STATE_FILE_SUFFIX));
+        watermark = Watermark.create(schema, stateFile);
+    }
+
+    /**
+     * Returns true if the connector filters the extracted rows by the {@link #changeDetector}. The connectors
+     * that don't extract their rows through the {@link #copyAndTransform} or {@link #transformRows} must
+     * check the change detector themselves.
+     *
+     * @return false, the connectors that support the change detection override it
+     */
+    protected boolean isChangeDetectionSupported() {
+        return false;
+    }
+
     public static void expandDates(SourceSchema s) {
         List<SourceColumn> dates = s.getDates();
         if (dates != null && dates.size() > 0) {
@@ -436,48 +626,143 @@ public abstract class AbstractConnector implements Connector {
         // connector's schema name
         String ssn = cc.getSchema().getName();
         l.debug("Extracting data.");
-        File tmpDir = FileUtil.createTempDir();
-        File tmpZipDir = FileUtil.createTempDir();
-        String archiveName = tmpDir.getName();
-        MDC.put("GdcDataPackageDir", (Object)archiveName);
-        String archivePath = tmpZipDir.getAbsolutePath() + System.getProperty("file.separator") +
-                archiveName + ".zip";
 
         // get information about the data loading package
-        SLI sli = ctx.getRestApi(p).getSLIById("dataset." + ssn, pid);
+        final SLI sli = ctx.getRestApi(p).getSLIById("dataset." + ssn, pid);
         List<Column> sliColumns = ctx.getRestApi(p).getSLIColumns(sli.getUri());
-        List<Column> columns = populateColumnsFromSchema(cc.getSchema());
+        final List<Column> columns = populateColumnsFromSchema(cc.getSchema());
 
         if (sliColumns.size() > columns.size())
             throw new InvalidParameterException("The GoodData data loading interface (SLI) expects more columns.");
 
 
         String incremental = c.getParam("incremental");
+        boolean keepFiles = "true".equalsIgnoreCase(c.getParam("keepFiles"));
+        final int level = getIntParam(c, "compressionLevel", Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_COMPRESSION,
+                Deflater.BEST_COMPRESSION);
+        final int threads = getIntParam(c, "compressionThreads", 1, 1, Integer.MAX_VALUE);
+        // the archive is uploaded in parts of this size (MB) when set
+        final int partSize = getIntParam(c, "uploadPartSize", 0, 1, Integer.MAX_VALUE / 1024 / 1024);
+        final int uploadThreads = getIntParam(c, "uploadThreads", 1, 1, Integer.MAX_VALUE);
+        String fingerprintFile = c.getParam("fingerprintFile");
         c.paramsProcessed();
 
-        if (incremental != null && incremental.length() > 0 &&
-                incremental.equalsIgnoreCase("true")) {
-            l.debug("Using incremental mode.");
-            setIncremental(columns);
+        if (fingerprintFile != null && fingerprintFile.length() > 0) {
+            if (!isChangeDetectionSupported())
+                throw new InvalidParameterException("TransferData: The fingerprintFile isn't supported by the " +
+                        getClass().getSimpleName() + ", only the CSV, JDBC, Chargify, SugarCRM and MS Dynamics " +
+                        "connectors detect the changed rows.");
+            changeDetector = ChangeDetector.open(cc.getSchema(), new File(fingerprintFile));
         }
+        try {
+            if (incremental != null && incremental.length() > 0 &&
+                    incremental.equalsIgnoreCase("true")) {
+                l.debug("Using incremental mode.");
+                setIncremental(columns);
+            } else if (watermark != null && watermark.hasLast()) {
+                // a full load of the rows newer than the watermark would drop the previously loaded rows
+                l.info("Using incremental mode, only the rows newer than the watermark " + watermark.getLast() + " are loaded.");
+                setIncremental(columns);
+            } else if (changeDetector != null && changeDetector.hasPreviousLoad()) {
+                l.info("Using incremental mode, only the new and changed rows are loaded.");
+                setIncremental(columns);
+            }
 
-        // extract the data to the CSV that is going to be transferred to the server
-        cc.extract(tmpDir.getAbsolutePath());
+            File tmpDir = null;
+            File tmpZipDir = null;
+            String archiveName;
+            if (keepFiles || partSize > 0) {
+                // the chunked upload needs the local data package to resend the failed parts
+                tmpDir = FileUtil.createTempDir();
+                tmpZipDir = FileUtil.createTempDir();
+                archiveName = tmpDir.getName();
+                MDC.put("GdcDataPackageDir", (Object) archiveName);
+                String archivePath = tmpZipDir.getAbsolutePath() + System.getProperty("file.separator") +
+                        archiveName + ".zip";
+                // extract the data to the CSV that is going to be transferred to the server
+                cc.extract(tmpDir.getAbsolutePath());
+                setCompression(level, threads);
+                cc.deploy(sli, columns, tmpDir.getAbsolutePath(), archivePath);
+                if (keepFiles)
+                    l.info("The data package is kept in " + archivePath);
+                // transfer the data package to the GoodData server
+                if (partSize > 0)
+                    ctx.getFtpApi(p).transferDir(archivePath, partSize * 1024L * 1024L, uploadThreads);
+                else
+                    ctx.getFtpApi(p).transferDir(archivePath);
+            } else {
+                // the data are extracted, compressed and uploaded in a single pass without any local files
+                archiveName = UUID.randomUUID().toString();
+                MDC.put("GdcDataPackageDir", (Object) archiveName);
+                final Connector connector = cc;
+                ctx.getFtpApi(p).transferStream(archiveName, new DataPackageWriter() {
+                    public void write(OutputStream os) throws IOException {
+                        writeDataPackage(os, connector, sli, columns, level, threads);
+                    }
+                });
+            }
+            // kick the GooDData server to load the data package to the project
+            String taskUri = ctx.getRestApi(p).startLoading(pid, archiveName);
+            if (changeDetector != null)
+                l.info("The change detection extracted " + changeDetector.getSummary() + ".");
+            if (waitForFinish) {
+                String status = checkLoadingStatus(taskUri, archiveName, p, ctx);
+                if ("OK".equalsIgnoreCase(status)) {
+                    if (watermark != null)
+                        watermark.save();
+                    if (changeDetector != null) {
+                        changeDetector.commit();
+                        changeDetector = null;
+                    }
+                } else if (watermark != null || changeDetector != null) {
+                    l.warn("The watermark and fingerprints aren't saved as the data were loaded with warnings, the rows are sent again next time.");
+                }
+            } else if (watermark != null || changeDetector != null) {
+                l.warn("The watermark and fingerprints aren't saved when the TransferData doesn't wait for the data load to finish.");
+            }
+            //cleanup
+            if (tmpDir != null) {
+                if (keepFiles) {
+                    l.debug("The temporary files are kept in " + tmpDir.getAbsolutePath() + " and " + tmpZipDir.getAbsolutePath());
+                } else {
+                    FileUtil.recursiveDelete(tmpDir);
+                    FileUtil.recursiveDelete(tmpZipDir);
+                }
+            }
+            MDC.remove("GdcDataPackageDir");
+            l.debug("Data extract finished.");
+        } finally {
+            if (changeDetector != null) {
+                // not committed, the rows are extracted again next time
+                changeDetector.rollback();
+                changeDetector = null;
+            }
+        }
+    }
 
-        cc.deploy(sli, columns, tmpDir.getAbsolutePath(), archivePath);
-        // transfer the data package to the GoodData server
-        ctx.getFtpApi(p).transferDir(archivePath);
-        // kick the GooDData server to load the data package to the project
-        String taskUri = ctx.getRestApi(p).startLoading(pid, archiveName);
-        if (waitForFinish) {
-            checkLoadingStatus(taskUri, tmpDir.getName(), p, ctx);
+    /**
+     * Parses an optional integer command parameter
+     *
+     * @param c            command
+     * @param name         parameter name
+     * @param defaultValue value used when the parameter is missing
+     * @param min          minimal value
+     * @param max          maximal value
+     * @return the parameter value
+     * @throws InvalidParameterException if the value isn't an integer in the range
+     */
+    protected static int getIntParam(Command c, String name, int defaultValue, int min, int max) {
+        String v = c.getParam(name);
+        if (v == null || v.length() <= 0)
+            return defaultValue;
+        try {
+            int i = Integer.parseInt(v.trim());
+            if (i < min || i > max)
+                throw new InvalidParameterException("The " + name + " parameter must be between " + min + " and " + max + ".");
+            return i;
+        } catch (NumberFormatException e) {
+            throw new InvalidParameterException("The " + name + " parameter must be an integer.");
         }
-        //cleanup
-        l.debug("Cleaning the temporary files.");
-        FileUtil.recursiveDelete(tmpDir);
-        FileUtil.recursiveDelete(tmpZipDir);
-        MDC.remove("GdcDataPackageDir");
-        l.debug("Data extract finished.");
     }
 
     /**
@@ -499,33 +784,39 @@ public abstract class AbstractConnector implements Connector {
      * @param tmpDir  temporary dir where the temporary data reside. This directory will be deleted.
      * @param p       cli parameters
      * @param ctx     current context
+     * @return the loading status (OK or WARNING)
      * @throws IOException          IO issues
      * @throws InterruptedException internal problem with making file writable
      */
-    protected void checkLoadingStatus(String taskUri, String tmpDir, CliParams p, ProcessingContext ctx) throws InterruptedException, IOException {
+    protected String checkLoadingStatus(final String taskUri, String tmpDir, CliParams p, ProcessingContext ctx) throws InterruptedException, IOException {
         l.debug("Checking data transfer status.");
-        String status = "";
-        int retryCount = 0;
-        long startTime = System.currentTimeMillis();
-        while (!"OK".equalsIgnoreCase(status) && !"ERROR".equalsIgnoreCase(status) && !"WARNING".equalsIgnoreCase(status)) {
-            try {
+        final GdcRESTApiWrapper rest = ctx.getRestApi(p);
+        final long startTime = System.currentTimeMillis();
+        String status = rest.getTaskPoller().await(new TaskPoller.Task<String>() {
+            private int retryCount = 0;
+
+            public String poll() {
                 long elapsedTime = (System.currentTimeMillis() - startTime);
                 if (elapsedTime > Constants.LOADING_STATUS_RETRY_TIMEOUT) {
                     throw new GdcIntegrationErrorException("Loading status check exceeded the timeout threshold (" + Constants.LOADING_STATUS_RETRY_TIMEOUT + ")");
                 }
-
-                status = ctx.getRestApi(p).getLoadingStatus(taskUri);
-                l.debug("Loading status = " + status);
-                Thread.sleep(Constants.POLL_INTERVAL);
-            }
-            catch (HttpMethodException e) {
-                retryCount++;
-                l.debug("Loading status call failed with: '" + e.getMessage()+"' Retry #"+retryCount+".");
-                Thread.sleep(retryCount*Constants.RETRY_INTERVAL);
-                if(retryCount > Constants.MAX_RETRY)
-                    throw e;
+                try {
+                    String status = rest.getLoadingStatus(taskUri);
+                    l.debug("Loading status = " + status);
+                    if ("OK".equalsIgnoreCase(status) || "ERROR".equalsIgnoreCase(status) || "WARNING".equalsIgnoreCase(status))
+                        return status;
+                    return null;
+                } catch (HttpMethodNotFinishedYetException e) {
+                    return null;
+                } catch (HttpMethodException e) {
+                    retryCount++;
+                    l.debug("Loading status call failed with: '" + e.getMessage() + "' Retry #" + retryCount + ".");
+                    if (retryCount > Constants.MAX_RETRY)
+                        throw e;
+                    return null;
+                }
             }
-        }
+        });
         l.debug("Data transfer finished with status " + status);
         if ("OK".equalsIgnoreCase(status)) {
             l.info("Data successfully loaded.");
@@ -554,6 +845,7 @@ public abstract class AbstractConnector implements Connector {
             throw new GdcIntegrationErrorException("Data successfully transferred but failed to load to the analytical project. " +
                     "This is usually due to issues with data integrity (rows with different number of columns etc.).");
         }
+        return status;
 
     }
 
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import com.gooddata.util.FingerprintStore;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Row-level change detection. Fingerprints each transformed row by its CONNECTION_POINT and compares it with
+ * the fingerprint loaded last time, only the inserted and changed rows are extracted. The new fingerprints
+ * are journaled to a temporary file and written to the store only when the load succeeds ({@link #commit()}).
+ * Deleted rows aren't detected.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class ChangeDetector {
+
+    private static Logger l = Logger.getLogger(ChangeDetector.class);
+
+    private final FingerprintStore store;
+    private final String name;
+    // the connection point index in the transformed row
+    private final int keyIndex;
+
+    private final File journalFile;
+    private final DataOutputStream journal;
+
+    private int inserted = 0;
+    private int changed = 0;
+    private int unchanged = 0;
+
+    private ChangeDetector(String name, int keyIndex, FingerprintStore store) throws IOException {
+        this.name = name;
+        this.keyIndex = keyIndex;
+        this.store = store;
+        this.journalFile = File.createTempFile("gdc-changes", ".journal");
+        this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)));
+    }
+
+    /**
+     * Opens the change detection of the schema
+     *
+     * @param schema    the source schema, must contain a CONNECTION_POINT column
+     * @param storeFile the fingerprint store file
+     * @return the change detector
+     * @throws IOException               if the store can't be opened
+     * @throws InvalidParameterException if the schema doesn't have a CONNECTION_POINT
+     */
+    public static ChangeDetector open(SourceSchema schema, File storeFile) throws IOException {
+        int keyIndex = -1;
+        int idx = 0;
+        // the transformed row doesn't contain the IGNORE columns
+        for (SourceColumn c : schema.getColumns()) {
+            if (SourceColumn.LDM_TYPE_CONNECTION_POINT.equals(c.getLdmType()))
+                keyIndex = idx;
+            if (!SourceColumn.LDM_TYPE_IGNORE.equalsIgnoreCase(c.getLdmType()))
+                idx++;
+        }
+        if (keyIndex < 0)
+            throw new InvalidParameterException("The change detection requires a CONNECTION_POINT column in the schema " +
+                    schema.getName() + ".");
+        return new ChangeDetector(schema.getName(), keyIndex, FingerprintStore.open(storeFile));
+    }
+
+    /**
+     * Returns true if the store contains the fingerprints of a previous load
+     *
+     * @return true if only the changed rows are extracted
+     */
+    public boolean hasPreviousLoad() {
+        return store.size() > 0;
+    }
+
+    /**
+     * Returns true if the transformed row is new or changed since the last load. Thread safe.
+     *
+     * @param row the transformed row
+     * @return true if the row should be extracted
+     * @throws IOException if the journal can't be written
+     */
+    public boolean accept(String[] row) throws IOException {
+        long key = FingerprintStore.hash(row[keyIndex]);
+        long value = FingerprintStore.hash(row);
+        long previous = store.get(key);
+        synchronized (this) {
+            if (previous == value || (previous == 1 && value == 0)) {
+                unchanged++;
+                return false;
+            }
+            if (previous == 0)
+                inserted++;
+            else
+                changed++;
+            journal.writeLong(key);
+            journal.writeLong(value);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the fingerprints of the extracted rows to the store. Should be called once the data are loaded.
+     *
+     * @throws IOException in case of an IO issue
+     */
+    public synchronized void commit() throws IOException {
+        journal.close();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while (true) {
+                long key;
+                try {
+                    key = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                store.put(key, in.readLong());
+            }
+        } finally {
+            in.close();
+            store.close();
+            journalFile.delete();
+        }
+        l.info("Saved the " + name + " fingerprints (" + inserted + " inserted, " + changed + " changed rows, " +
+                store.size() + " rows total).");
+    }
+
+    /**
+     * Discards the fingerprints of the extracted rows, the rows are extracted again next time
+     *
+     * @throws IOException in case of an IO issue
+     */
+    public synchronized void rollback() throws IOException {
+        try {
+            journal.close();
+            store.close();
+        } finally {
+            journalFile.delete();
+        }
+    }
+
+    /**
+     * Returns the extraction summary
+     *
+     * @return the numbers of the inserted, changed and unchanged rows
+     */
+    public synchronized String getSummary() {
+        return inserted + " inserted, " + changed + " changed, " + unchanged + " unchanged rows";
+    }
+
+}
@@ -32,6 +32,7 @@ import com.gooddata.processor.Executor;
 import com.gooddata.processor.ProcessingContext;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
@@ -65,6 +66,14 @@ public interface Connector extends Executor {
      */
     public void extract(String dir) throws IOException;
 
+    /**
+     * Extracts the transformed data CSV to a stream
+     *
+     * @param os target stream, it is closed when the data are extracted
+     * @throws IOException in case of IO issues
+     */
+    public void extract(OutputStream os) throws IOException;
+
     /**
      * Dumps the source data CSV to a file
      *
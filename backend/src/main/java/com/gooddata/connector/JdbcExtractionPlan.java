@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.Constants;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import com.gooddata.transform.Transformer;
+import com.gooddata.util.DateUtil;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The typed extraction of the JDBC rows resolved once from the {@link ResultSetMetaData}. Every result column
+ * gets a reader that calls the typed getter (getLong, getBigDecimal, getTimestamp ...) and the values are
+ * read to a reused buffer.
+ * <p/>
+ * When the schema doesn't contain any transformation, the rows aren't passed to the {@link Transformer} at
+ * all. The dates are formatted directly by the column formatters and the ignored columns are skipped.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class JdbcExtractionPlan {
+
+    private static Logger l = Logger.getLogger(JdbcExtractionPlan.class);
+
+    // the column readers
+    private static final int READ_STRING = 0;
+    private static final int READ_LONG = 1;
+    private static final int READ_DECIMAL = 2;
+    private static final int READ_DOUBLE = 3;
+    private static final int READ_FLOAT = 4;
+    private static final int READ_TIMESTAMP = 5;
+    private static final int READ_OBJECT = 6;
+
+    private final Transformer transformer;
+    private final boolean transform;
+    private final int[] readers;
+
+    // the source values of the current row (strings and dates)
+    private final Object[] values;
+    // the row passed to the transformer, the transformer changes it
+    private final Object[] transformed;
+
+    // the result columns written to the output and their date formatters (null for non-date columns),
+    // resolved only when the transformer is skipped
+    private final int[] outputColumns;
+    private final DateTimeFormatter[] formatters;
+    // true for the output columns whose fractional seconds are appended (null when none is)
+    private final boolean[] fractions;
+    private final String[] output;
+
+    private JdbcExtractionPlan(Transformer t, boolean transform, int[] readers, int[] outputColumns,
+                               DateTimeFormatter[] formatters, boolean[] fractions) {
+        this.transformer = t;
+        this.transform = transform;
+        this.readers = readers;
+        this.values = new Object[readers.length];
+        this.transformed = new Object[readers.length];
+        this.outputColumns = outputColumns;
+        this.formatters = formatters;
+        this.fractions = fractions;
+        this.output = new String[(outputColumns != null) ? (outputColumns.length) : (readers.length)];
+    }
+
+    /**
+     * Resolves the extraction plan of the query result
+     *
+     * @param md        the result set metadata
+     * @param t         the schema transformer
+     * @param transform false if the rows are dumped without transformations
+     * @return the extraction plan
+     * @throws SQLException in case of a metadata issue
+     */
+    public static JdbcExtractionPlan create(ResultSetMetaData md, Transformer t, boolean transform) throws SQLException {
+        final int cnt = md.getColumnCount();
+        int[] readers = new int[cnt];
+        for (int i = 0; i < cnt; i++) {
+            readers[i] = getReader(md.getColumnType(i + 1));
+        }
+        if (!transform)
+            return new JdbcExtractionPlan(t, false, readers, null, null, null);
+
+        SourceSchema schema = t.getSchema();
+        List<SourceColumn> columns = schema.getColumns();
+        int[] outputColumns = new int[columns.size()];
+        DateTimeFormatter[] formatters = new DateTimeFormatter[columns.size()];
+        int n = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            SourceColumn c = columns.get(i);
+            if (c.getTransformation() != null || i >= cnt) {
+                // the transformer computes the column or reports the missing result column
+                l.debug("The " + schema.getName() + " rows are extracted by the transformer.");
+                return new JdbcExtractionPlan(t, true, readers, null, null, null);
+            }
+            boolean isDate = SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(c.getLdmType());
+            if (isDate && readers[i] != READ_TIMESTAMP && (Constants.UNIX_DATE_FORMAT.equalsIgnoreCase(c.getFormat())
+                    || Constants.GOODDATA_DATE_FORMAT.equalsIgnoreCase(c.getFormat()))) {
+                // the numeric dates are converted by the transformer
+                l.debug("The " + schema.getName() + " rows are extracted by the transformer.");
+                return new JdbcExtractionPlan(t, true, readers, null, null, null);
+            }
+            if (SourceColumn.LDM_TYPE_IGNORE.equalsIgnoreCase(c.getLdmType()))
+                continue;
+            outputColumns[n] = i;
+            if (isDate && readers[i] == READ_TIMESTAMP)
+                formatters[n] = DateUtil.getDateFormatter(c.getFormat(), c.isDatetime());
+            n++;
+        }
+        int[] oc = new int[n];
+        System.arraycopy(outputColumns, 0, oc, 0, n);
+        DateTimeFormatter[] f = new DateTimeFormatter[n];
+        System.arraycopy(formatters, 0, f, 0, n);
+        l.debug("The " + schema.getName() + " rows are extracted without the transformer.");
+        return new JdbcExtractionPlan(t, true, readers, oc, f, null);
+    }
+
+    /**
+     * Resolves the plan of a table export, all columns are written as they are. The dates are written
+     * in the default date and datetime formats, the timestamps keep their fractional seconds without
+     * the trailing zeros.
+     *
+     * @param md the result set metadata
+     * @return the extraction plan
+     * @throws SQLException in case of a metadata issue
+     */
+    public static JdbcExtractionPlan createExport(ResultSetMetaData md) throws SQLException {
+        final int cnt = md.getColumnCount();
+        int[] readers = new int[cnt];
+        int[] outputColumns = new int[cnt];
+        DateTimeFormatter[] formatters = new DateTimeFormatter[cnt];
+        boolean[] fractions = new boolean[cnt];
+        for (int i = 0; i < cnt; i++) {
+            int type = md.getColumnType(i + 1);
+            readers[i] = getReader(type);
+            outputColumns[i] = i;
+            if (type == Types.DATE)
+                formatters[i] = Constants.DEFAULT_DATE_FMT;
+            else if (type == Types.TIMESTAMP) {
+                formatters[i] = Constants.DEFAULT_DATETIME_FMT;
+                fractions[i] = true;
+            }
+        }
+        return new JdbcExtractionPlan(null, false, readers, outputColumns, formatters, fractions);
+    }
+
+    /**
+     * Determines the column reader from the JDBC data type
+     *
+     * @param sqlType jdbc data type id (java.sql.Types)
+     * @return the reader
+     */
+    private static int getReader(int sqlType) {
+        switch (sqlType) {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+                return READ_STRING;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return READ_LONG;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return READ_DECIMAL;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return READ_DOUBLE;
+            case Types.REAL:
+                return READ_FLOAT;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return READ_TIMESTAMP;
+            default:
+                return READ_OBJECT;
+        }
+    }
+
+    /**
+     * Returns true if the rows are written without the transformer
+     *
+     * @return true if the transformer is skipped
+     */
+    public boolean isDirect() {
+        return outputColumns != null;
+    }
+
+    /**
+     * Reads the current row of the result set. The returned buffer is reused for the next row.
+     *
+     * @param rs the result set positioned at the row
+     * @return the source values (strings, dates or empty strings for NULLs)
+     * @throws SQLException in case of a DB issue
+     */
+    public Object[] read(ResultSet rs) throws SQLException {
+        final Object[] v = values;
+        for (int i = 0; i < v.length; i++) {
+            final int c = i + 1;
+            Object value;
+            switch (readers[i]) {
+                case READ_STRING:
+                    value = rs.getString(c);
+                    break;
+                case READ_LONG:
+                    long lv = rs.getLong(c);
+                    value = (rs.wasNull()) ? (null) : (Long.toString(lv));
+                    break;
+                case READ_DECIMAL:
+                    BigDecimal bd = rs.getBigDecimal(c);
+                    value = (bd != null) ? (bd.toString()) : (null);
+                    break;
+                case READ_DOUBLE:
+                    double dv = rs.getDouble(c);
+                    value = (rs.wasNull()) ? (null) : (Double.toString(dv));
+                    break;
+                case READ_FLOAT:
+                    float fv = rs.getFloat(c);
+                    value = (rs.wasNull()) ? (null) : (Float.toString(fv));
+                    break;
+                case READ_TIMESTAMP:
+                    value = rs.getTimestamp(c);
+                    break;
+                default:
+                    Object o = rs.getObject(c);
+                    value = (o != null) ? (o.toString()) : (null);
+            }
+            v[i] = (value != null) ? (value) : ("");
+        }
+        return v;
+    }
+
+    /**
+     * Converts the last read row to the output row. The returned buffer is reused for the next row
+     * unless the transformer is used.
+     *
+     * @return the output row
+     */
+    public String[] toRow() {
+        final Object[] v = values;
+        final String[] r = output;
+        if (outputColumns != null) {
+            for (int i = 0; i < outputColumns.length; i++) {
+                Object value = v[outputColumns[i]];
+                if (value instanceof Date) {
+                    long millis = ((Date) value).getTime();
+                    r[i] = (formatters[i] != null) ? (formatters[i].print(millis)) : (new DateTime(millis).toString());
+                    if (fractions != null && fractions[i] && value instanceof Timestamp)
+                        r[i] = appendFraction(r[i], ((Timestamp) value).getNanos());
+                } else {
+                    r[i] = (String) value;
+                }
+            }
+            return r;
+        }
+        if (transform) {
+            for (int i = 0; i < v.length; i++) {
+                transformed[i] = (v[i] instanceof Date) ? (new DateTime(v[i])) : (v[i]);
+            }
+            return transformer.transformRow(transformed, AbstractConnector.DATE_LENGTH_UNRESTRICTED);
+        }
+        for (int i = 0; i < v.length; i++) {
+            r[i] = (v[i] instanceof Date) ? (new DateTime(v[i]).toString()) : ((String) v[i]);
+        }
+        return r;
+    }
+
+    /**
+     * Appends the fractional seconds to the formatted timestamp, the trailing zeros are stripped
+     *
+     * @param formatted the timestamp formatted to whole seconds
+     * @param nanos     the fractional seconds in nanoseconds
+     * @return the timestamp with the fraction, unchanged for whole seconds
+     */
+    static String appendFraction(String formatted, int nanos) {
+        if (nanos == 0)
+            return formatted;
+        String digits = Integer.toString(nanos + 1000000000).substring(1);
+        int end = digits.length();
+        while (digits.charAt(end - 1) == '0')
+            end--;
+        return formatted + "." + digits.substring(0, end);
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.Constants;
+import com.gooddata.exception.InvalidParameterException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a JDBC query to partitions by the value ranges of a numeric or date column. The partitions cover
+ * all rows: the first partition also contains the rows below the lower bound and the NULLs, the last one the
+ * rows above the upper bound.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class JdbcPartitions {
+
+    /**
+     * The alias of the partitioned query
+     */
+    public static final String ALIAS = "gdc_partition";
+
+    /**
+     * Splits the query to partitions
+     *
+     * @param query  the SQL query
+     * @param column the partition column of the query result
+     * @param lower  the lower bound (number or date in the yyyy-MM-dd [HH:mm:ss] format)
+     * @param upper  the upper bound (number or date)
+     * @param count  the number of partitions
+     * @return the partition queries, less than count if the range can't be split to count distinct parts
+     * @throws InvalidParameterException if the bounds are invalid
+     */
+    public static List<String> split(String query, String column, String lower, String upper, int count) {
+        List<String> queries = new ArrayList<String>();
+        if (count <= 1) {
+            queries.add(query);
+            return queries;
+        }
+        if (column == null || column.trim().length() <= 0)
+            throw new InvalidParameterException("The partitioned JDBC extraction requires the partitionColumn.");
+        if (lower == null || upper == null)
+            throw new InvalidParameterException("The partitioned JDBC extraction requires the lowerBound and upperBound.");
+        List<String> bounds = getBounds(lower.trim(), upper.trim(), count);
+        String q = query.trim();
+        while (q.endsWith(";"))
+            q = q.substring(0, q.length() - 1).trim();
+        String prefix = "SELECT * FROM (" + q + ") " + ALIAS + " WHERE ";
+        String c = column.trim();
+        if (bounds.isEmpty()) {
+            queries.add(query);
+            return queries;
+        }
+        queries.add(prefix + c + " < " + bounds.get(0) + " OR " + c + " IS NULL");
+        for (int i = 1; i < bounds.size(); i++) {
+            queries.add(prefix + c + " >= " + bounds.get(i - 1) + " AND " + c + " < " + bounds.get(i));
+        }
+        queries.add(prefix + c + " >= " + bounds.get(bounds.size() - 1));
+        return queries;
+    }
+
+    /**
+     * Computes the SQL literals of the inner partition bounds
+     *
+     * @param lower the lower bound
+     * @param upper the upper bound
+     * @param count the number of partitions
+     * @return the distinct inner bounds in ascending order
+     */
+    private static List<String> getBounds(String lower, String upper, int count) {
+        List<String> bounds = new ArrayList<String>();
+        BigDecimal lo = parseNumber(lower);
+        BigDecimal hi = parseNumber(upper);
+        if (lo != null && hi != null) {
+            if (hi.compareTo(lo) <= 0)
+                throw new InvalidParameterException("The upperBound must be greater than the lowerBound.");
+            int scale = Math.max(0, Math.max(lo.scale(), hi.scale()));
+            BigDecimal range = hi.subtract(lo);
+            for (int i = 1; i < count; i++) {
+                BigDecimal b = lo.add(range.multiply(BigDecimal.valueOf(i)).divide(BigDecimal.valueOf(count), scale,
+                        BigDecimal.ROUND_FLOOR));
+                String literal = b.toPlainString();
+                if (b.compareTo(lo) > 0 && (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(literal)))
+                    bounds.add(literal);
+            }
+            return bounds;
+        }
+        long from = parseDate(lower);
+        long to = parseDate(upper);
+        if (to <= from)
+            throw new InvalidParameterException("The upperBound must be greater than the lowerBound.");
+        for (int i = 1; i < count; i++) {
+            String literal = "'" + Constants.DEFAULT_DATETIME_FMT.print(from + (to - from) / count * i) + "'";
+            if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(literal))
+                bounds.add(literal);
+        }
+        return bounds;
+    }
+
+    private static BigDecimal parseNumber(String value) {
+        try {
+            return new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseDate(String value) {
+        try {
+            if (value.length() > Constants.DEFAULT_DATE_FMT_STRING.length())
+                return Constants.DEFAULT_DATETIME_FMT.parseDateTime(value).getMillis();
+            return Constants.DEFAULT_DATE_FMT.parseDateTime(value).getMillis();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException("The partition bound '" + value + "' must be a number or a date in the " +
+                    Constants.DEFAULT_DATETIME_FMT_STRING + " format.");
+        }
+    }
+
+}
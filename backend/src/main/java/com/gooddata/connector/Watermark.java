@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.connector;
+
+import com.gooddata.Constants;
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import com.gooddata.util.DateUtil;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * High-watermark of the incremental loads. The watermark column is declared in the schema XML config. Only the
+ * rows with the watermark value greater than the last loaded watermark are extracted. The greatest extracted
+ * value is saved to the state file once the data are successfully loaded.
+ *
+ * The DATE columns are compared as dates, the other columns as numbers (or strings when they aren't numbers).
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class Watermark {
+
+    private static Logger l = Logger.getLogger(Watermark.class);
+
+    /**
+     * The query placeholder replaced by the SQL literal of the last watermark (NULL before the first load)
+     */
+    public static final String PLACEHOLDER = "%WATERMARK%";
+
+    /**
+     * The default state file is the config file with this suffix
+     */
+    public static final String STATE_FILE_SUFFIX = ".watermark";
+
+    private final File stateFile;
+    private final String key;
+    private final String columnName;
+    // the column index in the source row
+    private final int index;
+    // null for non DATE columns
+    private final DateTimeFormatter dateFormatter;
+    private final boolean unixTime;
+
+    // the last loaded watermark
+    private Object last;
+    // the greatest extracted watermark
+    private Object max = null;
+
+    private Watermark(SourceSchema schema, SourceColumn column, File stateFile) {
+        this.stateFile = stateFile;
+        this.key = schema.getName();
+        this.columnName = column.getName();
+        this.index = schema.getColumnIndex(column);
+        if (SourceColumn.LDM_TYPE_DATE.equals(column.getLdmType())) {
+            String fmt = column.getFormat();
+            unixTime = Constants.UNIX_DATE_FORMAT.equalsIgnoreCase(fmt);
+            dateFormatter = (Constants.GOODDATA_DATE_FORMAT.equalsIgnoreCase(fmt)) ? (null) :
+                    (DateUtil.getDateFormatter(fmt, column.isDatetime()));
+        } else {
+            unixTime = false;
+            dateFormatter = null;
+        }
+    }
+
+    /**
+     * Creates the watermark of the schema and reads the last watermark from the state file
+     *
+     * @param schema    the source schema
+     * @param stateFile the state file
+     * @return the watermark, null if the schema doesn't declare a watermark column
+     * @throws IOException               if the state file can't be read
+     * @throws InvalidParameterException if the watermark column doesn't exist
+     */
+    public static Watermark create(SourceSchema schema, File stateFile) throws IOException {
+        String name = schema.getWatermark();
+        if (name == null || name.length() <= 0)
+            return null;
+        SourceColumn column = null;
+        for (SourceColumn c : schema.getColumns()) {
+            if (c.getName().equals(name))
+                column = c;
+        }
+        if (column == null)
+            throw new InvalidParameterException("The watermark column '" + name + "' doesn't exist in the schema " +
+                    schema.getName() + ".");
+        Watermark w = new Watermark(schema, column, stateFile);
+        w.last = w.read();
+        if (w.last != null)
+            l.info("Extracting the " + schema.getName() + " rows with " + name + " greater than " + w.getLast() + ".");
+        else
+            l.info("No watermark of the " + schema.getName() + " found in " + stateFile + ", extracting all rows.");
+        return w;
+    }
+
+    /**
+     * Returns true if the row is newer than the last watermark and records its watermark value. The rows without
+     * a watermark value are accepted only before the first load. Thread safe.
+     *
+     * @param row the source row (strings or the JDBC values)
+     * @return true if the row should be extracted
+     */
+    public boolean accept(Object[] row) {
+        if (index >= row.length)
+            return last == null;
+        Object v = parse(row[index]);
+        if (v == null)
+            return last == null;
+        if (last != null && compare(v, last) <= 0)
+            return false;
+        synchronized (this) {
+            if (max == null || compare(v, max) > 0)
+                max = v;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if there is a watermark from a previous load
+     *
+     * @return true if only the newer rows are extracted
+     */
+    public boolean hasLast() {
+        return last != null;
+    }
+
+    /**
+     * Last watermark getter
+     *
+     * @return the last loaded watermark, null before the first load
+     */
+    public String getLast() {
+        return format(last);
+    }
+
+    /**
+     * Returns the greatest extracted watermark
+     *
+     * @return the greatest extracted watermark, null if no row was extracted
+     */
+    public synchronized String getMax() {
+        return format(max);
+    }
+
+    /**
+     * Replaces the {@link #PLACEHOLDER} in the query by the SQL literal of the last watermark
+     *
+     * @param query the SQL query
+     * @return the query with the watermark
+     */
+    public String apply(String query) {
+        if (query == null || query.indexOf(PLACEHOLDER) < 0)
+            return query;
+        String literal;
+        if (last == null)
+            literal = "NULL";
+        else if (last instanceof BigDecimal)
+            literal = format(last);
+        else
+            literal = "'" + format(last).replace("'", "''") + "'";
+        return query.replace(PLACEHOLDER, literal);
+    }
+
+    /**
+     * Saves the greatest extracted watermark to the state file. Should be called once the data are loaded.
+     *
+     * @throws IOException if the state file can't be written
+     */
+    public synchronized void save() throws IOException {
+        if (max == null) {
+            l.debug("No new " + key + " rows, the watermark stays " + getLast() + ".");
+            return;
+        }
+        Properties state = new Properties();
+        if (stateFile.exists())
+            load(state);
+        state.setProperty(key, format(max));
+        OutputStream os = new FileOutputStream(stateFile);
+        try {
+            state.store(os, "GoodData CL watermarks");
+        } finally {
+            os.close();
+        }
+        last = max;
+        max = null;
+        l.info("Saved the " + key + " watermark " + getLast() + " to " + stateFile + ".");
+    }
+
+    private Object read() throws IOException {
+        if (!stateFile.exists())
+            return null;
+        Properties state = new Properties();
+        load(state);
+        String v = state.getProperty(key);
+        if (v == null || v.length() <= 0)
+            return null;
+        if (dateFormatter != null) {
+            try {
+                return Constants.DEFAULT_DATETIME_FMT.parseDateTime(v).getMillis();
+            } catch (IllegalArgumentException e) {
+                throw new InvalidParameterException("Invalid " + key + " watermark '" + v + "' in " + stateFile + ".");
+            }
+        }
+        return parseValue(v);
+    }
+
+    private void load(Properties state) throws IOException {
+        InputStream is = new FileInputStream(stateFile);
+        try {
+            state.load(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Parses the watermark value
+     *
+     * @param value the source value
+     * @return the epoch millis (Long) for dates, BigDecimal for numbers or the String, null for empty
+     *         or invalid values
+     */
+    private Object parse(Object value) {
+        if (value == null)
+            return null;
+        if (dateFormatter != null) {
+            if (value instanceof DateTime)
+                return ((DateTime) value).getMillis();
+            if (value instanceof Date)
+                return ((Date) value).getTime();
+            String s = value.toString().trim();
+            if (s.length() <= 0)
+                return null;
+            try {
+                if (unixTime)
+                    return Long.parseLong(s) * 1000;
+                return dateFormatter.parseDateTime(s).getMillis();
+            } catch (IllegalArgumentException e) {
+                l.debug("Invalid " + columnName + " watermark value '" + s + "'.");
+                return null;
+            }
+        }
+        String s = value.toString().trim();
+        if (s.length() <= 0)
+            return null;
+        return parseValue(s);
+    }
+
+    private static Object parseValue(String s) {
+        try {
+            return new BigDecimal(s);
+        } catch (NumberFormatException e) {
+            return s;
+        }
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long)
+            return ((Long) a).compareTo((Long) b);
+        if (a instanceof BigDecimal && b instanceof BigDecimal)
+            return ((BigDecimal) a).compareTo((BigDecimal) b);
+        return a.toString().compareTo(b.toString());
+    }
+
+    private String format(Object v) {
+        if (v == null)
+            return null;
+        if (v instanceof Long && dateFormatter != null)
+            return Constants.DEFAULT_DATETIME_FMT.print((Long) v);
+        if (v instanceof BigDecimal)
+            return ((BigDecimal) v).toPlainString();
+        return v.toString();
+    }
+
+}
@@ -43,6 +43,27 @@ public interface GdcDataTransferAPI {
      */
     public void transferDir(String archiveName) throws IOException;
 
+    /**
+     * Transfers a local directory to the remote GDC server in parts that are uploaded in parallel.
+     * The parts that fail are retried and the transferred data are verified.
+     *
+     * @param archiveName the name of the ZIP archive that is going to be transferred
+     * @param partSize    size of a part in bytes
+     * @param threads     number of parts uploaded in parallel
+     * @throws IOException in case of IO issues
+     */
+    public void transferDir(String archiveName, long partSize, int threads) throws IOException;
+
+    /**
+     * Transfers a data package to the remote GDC server as it is written, the package doesn't need to be
+     * stored locally
+     *
+     * @param dir    the remote directory (the data package name)
+     * @param writer writes the ZIP data package
+     * @throws IOException in case of IO issues
+     */
+    public void transferStream(String dir, DataPackageWriter writer) throws IOException;
+
     /**
      * GET the transfer logs from the server
      *
@@ -51,4 +72,9 @@ public interface GdcDataTransferAPI {
      * @throws IOException in case of IO issues
      */
     public Map<String, String> getTransferLogs(String remoteDir) throws IOException;
+
+    /**
+     * Releases the connections of the wrapper, the wrapper can't be used afterwards
+     */
+    public void shutdown();
 }
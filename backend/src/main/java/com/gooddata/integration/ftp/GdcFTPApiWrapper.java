@@ -24,6 +24,7 @@
 package com.gooddata.integration.ftp;
 
 import com.gooddata.exception.GdcUploadErrorException;
+import com.gooddata.integration.datatransfer.DataPackageWriter;
 import com.gooddata.integration.datatransfer.GdcDataTransferAPI;
 import com.gooddata.integration.rest.configuration.NamePasswordConfiguration;
 import com.gooddata.util.FileUtil;
@@ -156,6 +157,43 @@ public class GdcFTPApiWrapper implements GdcDataTransferAPI {
         l.debug("Transferred archive " + archiveName);
     }
 
+    /**
+     * FTP transfers a local directory to the remote GDC FTP server. The FTP upload isn't split into parts,
+     * the archive is sent in a single transfer.
+     *
+     * @param archiveName the name of the ZIP archive that is going to be transferred
+     * @param partSize    ignored
+     * @param threads     ignored
+     * @throws java.io.IOException in case of IO issues
+     */
+    public void transferDir(String archiveName, long partSize, int threads) throws IOException {
+        transferDir(archiveName);
+    }
+
+    /**
+     * FTP transfers a data package to the remote GDC FTP server. The FTP upload isn't streamed, the package
+     * is written to a temporary file first.
+     *
+     * @param dir    the remote directory (the data package name)
+     * @param writer writes the ZIP data package
+     * @throws IOException in case of IO issues
+     */
+    public void transferStream(String dir, DataPackageWriter writer) throws IOException {
+        File tmpDir = FileUtil.createTempDir();
+        try {
+            File archive = new File(tmpDir, dir + ".zip");
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(archive));
+            try {
+                writer.write(os);
+            } finally {
+                os.close();
+            }
+            transferDir(archive.getAbsolutePath());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
     /**
      * GET the transfer logs from the FTP server
      *
@@ -237,4 +275,10 @@ public class GdcFTPApiWrapper implements GdcDataTransferAPI {
     private String clientReply(FTPClient client) {
         return client.getReplyString() + " (code: " + client.getReplyCode() + ")";
     }
+
+    /**
+     * Does nothing, the FTP connection is closed after every transfer
+     */
+    public void shutdown() {
+    }
 }
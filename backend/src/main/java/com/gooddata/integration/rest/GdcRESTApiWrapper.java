@@ -36,9 +36,11 @@ import net.sf.json.JSON;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -53,6 +55,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -110,10 +114,20 @@ public class GdcRESTApiWrapper {
     public static final String QUERY_DIMENSIONS = "dimensions";
     public static final String QUERY_PREFIX = "/query/";
 
-    protected HttpClient client;
+    // shared by all calls, the pooled connection manager makes it thread safe
+    protected final HttpClient client;
+    // the connection manager created by the wrapper, null when it was passed in
+    private final MultiThreadedHttpConnectionManager ownConnectionManager;
     protected NamePasswordConfiguration config;
-    private JSONObject userLogin = null;
-    private JSONObject profile;
+    private volatile JSONObject userLogin = null;
+    private volatile JSONObject profile;
+
+    // polls the asynchronous server tasks
+    protected TaskPoller poller = TaskPoller.getDefault();
+
+    // serializes the temporary token refreshes of concurrent calls
+    private final Object tokenLock = new Object();
+    private volatile long tokenGeneration = 0;
 
     private static HashMap<String, String> ROLES = new HashMap<String, String>();
 
@@ -134,11 +148,53 @@ public class GdcRESTApiWrapper {
      * @param config NamePasswordConfiguration object with the GDC name and password configuration
      */
     public GdcRESTApiWrapper(NamePasswordConfiguration config) {
+        this(config, NetUtil.createConnectionManager(), true);
+    }
+
+    /**
+     * Constructs the GoodData REST API Java wrapper
+     *
+     * @param config            NamePasswordConfiguration object with the GDC name and password configuration
+     * @param connectionManager HTTP connection manager, must be thread safe when the wrapper is used concurrently
+     */
+    public GdcRESTApiWrapper(NamePasswordConfiguration config, HttpConnectionManager connectionManager) {
+        this(config, connectionManager, false);
+    }
+
+    private GdcRESTApiWrapper(NamePasswordConfiguration config, HttpConnectionManager connectionManager, boolean own) {
         this.config = config;
-        client = new HttpClient();
+        client = new HttpClient(connectionManager);
+        ownConnectionManager = (own) ? ((MultiThreadedHttpConnectionManager) connectionManager) : (null);
         NetUtil.configureHttpProxy(client);
     }
 
+    /**
+     * Stops the connection manager created by the wrapper and closes its connections. The connection manager
+     * passed to the constructor is left to its owner.
+     */
+    public void shutdown() {
+        if (ownConnectionManager != null)
+            NetUtil.shutdownConnectionManager(ownConnectionManager);
+    }
+
+    /**
+     * Sets the poller of the asynchronous server tasks (the shared default poller is used otherwise)
+     *
+     * @param poller the task poller
+     */
+    public void setTaskPoller(TaskPoller poller) {
+        this.poller = poller;
+    }
+
+    /**
+     * Returns the poller of the asynchronous server tasks
+     *
+     * @return the task poller
+     */
+    public TaskPoller getTaskPoller() {
+        return poller;
+    }
+
     /**
      * GDC login - obtain GDC SSToken
      *
@@ -232,11 +288,28 @@ public class GdcRESTApiWrapper {
 
         try {
             executeMethodOk(secutityTokenGet);
+            synchronized (tokenLock) {
+                tokenGeneration++;
+            }
         } finally {
             secutityTokenGet.releaseConnection();
         }
     }
 
+    /**
+     * Refreshes the SS token after a call was rejected. Concurrent calls rejected with the same token
+     * wait for a single refresh.
+     *
+     * @param generation the token generation the rejected call was sent with
+     * @throws HttpMethodException
+     */
+    private void refreshTokenCookie(long generation) throws HttpMethodException {
+        synchronized (tokenLock) {
+            if (tokenGeneration == generation)
+                setTokenCookie();
+        }
+    }
+
 
     /**
      * GDC logout - remove active session, if any exists
@@ -256,8 +329,8 @@ public class GdcRESTApiWrapper {
         } finally {
             logoutDelete.releaseConnection();
         }
-        this.client = new HttpClient();
-        NetUtil.configureHttpProxy( client );
+        // drop the session cookies, the pooled connections are kept
+        client.getState().clearCookies();
     }
 
     /**
@@ -947,39 +1020,29 @@ public class GdcRESTApiWrapper {
         obj.put("reportDefinition", reportDefinition);
         MetadataObject resp = new MetadataObject(createMetadataObject(projectId, obj));
 
-        int retryCnt = Constants.MAX_RETRY;
-        boolean hasFinished = false;
-        while (retryCnt-- > 0 && !hasFinished) {
-            try {
-                String dataResultUri = executeReportDefinition(resp.getUri());
-                JSONObject result = getObjectByUri(dataResultUri);
-                hasFinished = true;
-                if (result != null && !result.isEmpty() && !result.isNullObject()) {
-                    JSONObject xtabData = result.getJSONObject("xtab_data");
-                    if (xtabData != null && !xtabData.isEmpty() && !xtabData.isNullObject()) {
-                        JSONArray data = xtabData.getJSONArray("data");
-                        if (data != null && !data.isEmpty()) {
-                            retVal = data.getJSONArray(0).getDouble(0);
-                        } else {
-                            l.debug("Can't compute the metric. No data structure in result.");
-                            throw new InvalidParameterException("Can't compute the metric. No data structure in result.");
-                        }
-                    } else {
-                        l.debug("Can't compute the metric. No xtab_data structure in result.");
-                        throw new InvalidParameterException("Can't compute the metric. No xtab_data structure in result.");
-                    }
+        final String reportDefinitionUri = resp.getUri();
+        JSONObject result = awaitDataResult("computeMetric", new Callable<String>() {
+            public String call() {
+                return executeReportDefinition(reportDefinitionUri);
+            }
+        });
+        if (result != null && !result.isEmpty() && !result.isNullObject()) {
+            JSONObject xtabData = result.getJSONObject("xtab_data");
+            if (xtabData != null && !xtabData.isEmpty() && !xtabData.isNullObject()) {
+                JSONArray data = xtabData.getJSONArray("data");
+                if (data != null && !data.isEmpty()) {
+                    retVal = data.getJSONArray(0).getDouble(0);
                 } else {
-                    l.debug("Can't compute the metric. No result from XTAB.");
-                    throw new InvalidParameterException("Can't compute the metric. No result from XTAB.");
-                }
-            } catch (HttpMethodNotFinishedYetException e) {
-                l.debug("computeMetric: Waiting for DataResult");
-                try {
-                    Thread.sleep(Constants.POLL_INTERVAL);
-                } catch (InterruptedException ex) {
-                    // do nothing
+                    l.debug("Can't compute the metric. No data structure in result.");
+                    throw new InvalidParameterException("Can't compute the metric. No data structure in result.");
                 }
+            } else {
+                l.debug("Can't compute the metric. No xtab_data structure in result.");
+                throw new InvalidParameterException("Can't compute the metric. No xtab_data structure in result.");
             }
+        } else {
+            l.debug("Can't compute the metric. No result from XTAB.");
+            throw new InvalidParameterException("Can't compute the metric. No result from XTAB.");
         }
         l.debug("Metric uri=" + metricUri + " computed. Result is " + retVal);
         return retVal;
@@ -995,6 +1058,7 @@ public class GdcRESTApiWrapper {
         l.debug("Computing report uri=" + reportUri);
         String retVal = "";
         int retryCnt = Constants.MAX_RETRY;
+        int attempt = 0;
         boolean hasFinished = false;
         while (retryCnt-- > 0 && !hasFinished) {
             try {
@@ -1092,7 +1156,8 @@ public class GdcRESTApiWrapper {
             } catch (HttpMethodNotFinishedYetException e) {
                 l.debug("computeReport: Waiting for DataResult");
                 try {
-                    Thread.sleep(Constants.POLL_INTERVAL);
+                    // the same growing intervals as the polled tasks
+                    Thread.sleep(poller.getDelay(attempt++));
                 } catch (InterruptedException ex) {
                     // do nothing
                 }
@@ -1103,6 +1168,32 @@ public class GdcRESTApiWrapper {
     }
 
 
+    /**
+     * Executes a report until its data result is computed
+     *
+     * @param caller  caller name for the log
+     * @param execute executes the report and returns the data result URI
+     * @return the data result or a null JSON object when the result isn't computed after MAX_RETRY checks
+     */
+    private JSONObject awaitDataResult(final String caller, final Callable<String> execute) {
+        return poller.await(new TaskPoller.Task<JSONObject>() {
+            private int polls = 0;
+
+            public JSONObject poll() throws Exception {
+                try {
+                    JSONObject result = getObjectByUri(execute.call());
+                    return (result != null) ? (result) : (new JSONObject(true));
+                } catch (HttpMethodNotFinishedYetException e) {
+                    if (++polls >= Constants.MAX_RETRY)
+                        return new JSONObject(true);
+                    l.debug(caller + ": Waiting for DataResult");
+                    return null;
+                }
+            }
+        });
+    }
+
+
     /**
      * Report definition to execute
      *
@@ -1258,31 +1349,40 @@ public class GdcRESTApiWrapper {
      * @return attribute object
      */
     public byte[] getReportResult(String uri) {
+        return poller.await(getReportResultTask(uri));
+    }
+
+    /**
+     * Retrieves the report export result asynchronously
+     *
+     * @param uri the export result
+     * @return the future of the export result
+     */
+    public Future<byte[]> getReportResultAsync(String uri) {
+        return poller.submit(getReportResultTask(uri));
+    }
+
+    private TaskPoller.Task<byte[]> getReportResultTask(String uri) {
         l.debug("Retrieving export result uri=" + uri);
-        byte[] buf = null;
-        String qUri = getServerUrl() + uri;
-        boolean finished = false;
-        do {
-            HttpMethod qGet = createGetMethod(qUri);
-            try {
-                executeMethodOkOnly(qGet);
-                finished = true;
-                buf = qGet.getResponseBody();
-            } catch (HttpMethodNotFinishedYetException e) {
-                l.debug("Waiting for exporter to finish.");
+        final String qUri = getServerUrl() + uri;
+        return new TaskPoller.Task<byte[]>() {
+            public byte[] poll() {
+                HttpMethod qGet = createGetMethod(qUri);
                 try {
-                    Thread.currentThread().sleep(Constants.POLL_INTERVAL);
-                } catch (InterruptedException ex) {
-                    // do nothing
+                    executeMethodOkOnly(qGet);
+                    byte[] buf = qGet.getResponseBody();
+                    return (buf != null) ? (buf) : (new byte[0]);
+                } catch (HttpMethodNotFinishedYetException e) {
+                    l.debug("Waiting for exporter to finish.");
+                    return null;
+                } catch (IOException e) {
+                    l.debug("Network error during the report result export.", e);
+                    throw new GdcRestApiException("Network error during the report result export.", e);
+                } finally {
+                    qGet.releaseConnection();
                 }
-            } catch (IOException e) {
-                l.debug("Network error during the report result export.", e);
-                throw new GdcRestApiException("Network error during the report result export.", e);
-            } finally {
-                qGet.releaseConnection();
             }
-        } while (!finished);
-        return buf;
+        };
     }
 
     /**
@@ -1515,13 +1615,7 @@ public class GdcRESTApiWrapper {
             }
             if(taskmanUri != null && taskmanUri.length()>0) {
                 l.debug("Checking async MAQL DDL execution status.");
-                TaskmanStatus status = new TaskmanStatus("",new String[]{});
-                while (!"OK".equalsIgnoreCase(status.getStatus()) && !"ERROR".equalsIgnoreCase(status.getStatus()) &&
-                        !"WARNING".equalsIgnoreCase(status.getStatus())) {
-                    status = getDetailedTaskManStatus(taskmanUri);
-                    l.debug("Async MAQL DDL status = " + status.getStatus());
-                    Thread.sleep(Constants.POLL_INTERVAL);
-                }
+                TaskmanStatus status = poller.await(getFinishedTaskManStatusTask(taskmanUri));
                 l.info("Async MAQL DDL finished with status " + status.getStatus());
                 if (!("OK".equalsIgnoreCase(status.getStatus()) || "WARNING".equalsIgnoreCase(status.getStatus()))) {
                     String[] messages = status.getMessage();
@@ -1537,8 +1631,6 @@ public class GdcRESTApiWrapper {
         } catch (HttpMethodException ex) {
             l.debug("MAQL execution: ", ex);
             throw new GdcRestApiException("MAQL execution: " + ex.getMessage(), ex);
-        }  catch (InterruptedException e) {
-            throw new InternalErrorException(e);
         } finally {
             maqlPost.releaseConnection();
         }
@@ -2566,6 +2658,7 @@ public class GdcRESTApiWrapper {
      */
     private void executeMethodOkOnly(HttpMethod method, boolean reloginOn401, int retries) throws HttpMethodException, IOException {
         try {
+            final long generation = tokenGeneration;
             client.executeMethod(method);
 
             /* HttpClient is rather unsupportive when it comes to robust interpreting
@@ -2587,7 +2680,7 @@ public class GdcRESTApiWrapper {
             * 5xx backend trouble */
             } else if (method.getStatusCode() == HttpStatus.SC_UNAUTHORIZED && reloginOn401) {
                 // refresh the temporary token
-                setTokenCookie();
+                refreshTokenCookie(generation);
                 executeMethodOkOnly(method, false, retries);
                 return;
             } else if (method.getStatusCode() == HttpStatus.SC_SERVICE_UNAVAILABLE && retries-- > 0
@@ -3127,36 +3220,40 @@ public class GdcRESTApiWrapper {
      */
     public String getTaskManStatus(String link) throws HttpMethodException {
         l.debug("Getting TaskMan status uri=" + link);
-        HttpMethod ptm = createGetMethod(getServerUrl() + link);
-        try {
-            String response = "";
-            boolean isFinished = false;
-            while (!isFinished) {
+        String response = poller.await(getTaskManResponseTask(link));
+        JSONObject task = JSONObject.fromObject(response);
+        JSONObject state = task.getJSONObject("wTaskStatus");
+        if (state != null && !state.isNullObject() && !state.isEmpty()) {
+            String status = state.getString("status");
+            l.debug("TaskMan status=" + status);
+            return status;
+        } else {
+            l.debug("No wTaskStatus structure in the taskman status!");
+            throw new GdcRestApiException("No wTaskStatus structure in the taskman status!");
+        }
+    }
+
+    /**
+     * Reads the TaskMan status, the server responds with 202 until the status is available
+     *
+     * @param link the TaskMan status link
+     * @return the status response
+     */
+    private TaskPoller.Task<String> getTaskManResponseTask(final String link) {
+        return new TaskPoller.Task<String>() {
+            public String poll() {
+                HttpMethod ptm = createGetMethod(getServerUrl() + link);
                 try {
-                    response = executeMethodOk(ptm);
-                    isFinished = true;
+                    String response = executeMethodOk(ptm);
+                    return (response != null) ? (response) : ("");
                 } catch (HttpMethodNotFinishedYetException e) {
                     l.debug("getTaskManStatus: Waiting for status");
-                    try {
-                        Thread.sleep(Constants.POLL_INTERVAL);
-                    } catch (InterruptedException ex) {
-                        // do nothing
-                    }
+                    return null;
+                } finally {
+                    ptm.releaseConnection();
                 }
             }
-            JSONObject task = JSONObject.fromObject(response);
-            JSONObject state = task.getJSONObject("wTaskStatus");
-            if (state != null && !state.isNullObject() && !state.isEmpty()) {
-                String status = state.getString("status");
-                l.debug("TaskMan status=" + status);
-                return status;
-            } else {
-                l.debug("No wTaskStatus structure in the taskman status!");
-                throw new GdcRestApiException("No wTaskStatus structure in the taskman status!");
-            }
-        } finally {
-            ptm.releaseConnection();
-        }
+        };
     }
 
     public static class TaskmanStatus {
@@ -3189,55 +3286,72 @@ public class GdcRESTApiWrapper {
 
     public TaskmanStatus getDetailedTaskManStatus(String link) throws HttpMethodException {
         l.debug("Getting TaskMan status uri=" + link);
-        HttpMethod ptm = createGetMethod(getServerUrl() + link);
-        try {
-            String response = "";
-            boolean isFinished = false;
-            while (!isFinished) {
-                try {
-                    response = executeMethodOk(ptm);
-                    isFinished = true;
-                } catch (HttpMethodNotFinishedYetException e) {
-                    l.debug("getTaskManStatus: Waiting for status");
-                    try {
-                        Thread.sleep(Constants.POLL_INTERVAL);
-                    } catch (InterruptedException ex) {
-                        // do nothing
-                    }
-                }
+        return parseDetailedTaskManStatus(poller.await(getTaskManResponseTask(link)));
+    }
+
+    /**
+     * Waits asynchronously until the TaskMan task finishes (its status is OK, WARNING or ERROR)
+     *
+     * @param link the TaskMan status link
+     * @return the future of the final status
+     */
+    public Future<TaskmanStatus> getFinishedTaskManStatusAsync(String link) {
+        return poller.submit(getFinishedTaskManStatusTask(link));
+    }
+
+    private TaskPoller.Task<TaskmanStatus> getFinishedTaskManStatusTask(final String link) {
+        final TaskPoller.Task<String> response = getTaskManResponseTask(link);
+        return new TaskPoller.Task<TaskmanStatus>() {
+            public TaskmanStatus poll() throws Exception {
+                String r = response.poll();
+                if (r == null)
+                    return null;
+                TaskmanStatus status = parseDetailedTaskManStatus(r);
+                return (isTaskFinished(status.getStatus())) ? (status) : (null);
             }
-            JSONObject task = JSONObject.fromObject(response);
-            JSONObject state = task.getJSONObject("wTaskStatus");
-            if (state != null && !state.isNullObject() && !state.isEmpty()) {
-                String status = state.getString("status");
-                ArrayList<String> messages = new ArrayList<String>();
-                l.debug("TaskMan status=" + status);
-                if(state.containsKey("messages")) {
-                    JSONArray msgs = state.getJSONArray("messages");
-                    if(msgs != null && !msgs.isEmpty()) {
-                        for (Object msgo : msgs) {
-                            JSONObject msg = (JSONObject)msgo;
-                            String root = (String)msg.keys().next();
-                            JSONObject inner = msg.getJSONObject(root);
-                            JSONArray prms = inner.getJSONArray("parameters");
-                            String message = inner.getString("message");
-                            if(prms != null && !prms.isEmpty()) {
-                                for(Object prmo : prms) {
-                                    String prm = (String)prmo;
-                                    message = message.replaceFirst("\\%s",prm);
-                                }
+        };
+    }
+
+    /**
+     * Returns true for the final TaskMan statuses
+     *
+     * @param status the status
+     * @return true when the task finished
+     */
+    private static boolean isTaskFinished(String status) {
+        return "OK".equalsIgnoreCase(status) || "ERROR".equalsIgnoreCase(status) || "WARNING".equalsIgnoreCase(status);
+    }
+
+    private static TaskmanStatus parseDetailedTaskManStatus(String response) {
+        JSONObject task = JSONObject.fromObject(response);
+        JSONObject state = task.getJSONObject("wTaskStatus");
+        if (state != null && !state.isNullObject() && !state.isEmpty()) {
+            String status = state.getString("status");
+            ArrayList<String> messages = new ArrayList<String>();
+            l.debug("TaskMan status=" + status);
+            if(state.containsKey("messages")) {
+                JSONArray msgs = state.getJSONArray("messages");
+                if(msgs != null && !msgs.isEmpty()) {
+                    for (Object msgo : msgs) {
+                        JSONObject msg = (JSONObject)msgo;
+                        String root = (String)msg.keys().next();
+                        JSONObject inner = msg.getJSONObject(root);
+                        JSONArray prms = inner.getJSONArray("parameters");
+                        String message = inner.getString("message");
+                        if(prms != null && !prms.isEmpty()) {
+                            for(Object prmo : prms) {
+                                String prm = (String)prmo;
+                                message = message.replaceFirst("\\%s",prm);
                             }
-                            messages.add(message);
                         }
+                        messages.add(message);
                     }
                 }
-                return new TaskmanStatus(status, (String[])messages.toArray(new String[]{}));
-            } else {
-                l.debug("No wTaskStatus structure in the taskman status!");
-                throw new GdcRestApiException("No wTaskStatus structure in the taskman status!");
             }
-        } finally {
-            ptm.releaseConnection();
+            return new TaskmanStatus(status, (String[])messages.toArray(new String[]{}));
+        } else {
+            l.debug("No wTaskStatus structure in the taskman status!");
+            throw new GdcRestApiException("No wTaskStatus structure in the taskman status!");
         }
     }
 
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.integration.rest;
+
+import com.gooddata.Constants;
+import com.gooddata.exception.HttpMethodNotFinishedYetException;
+import com.gooddata.exception.InternalErrorException;
+import org.apache.log4j.Logger;
+
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Polls the asynchronous GoodData server tasks. A single scheduler thread times the checks, the blocking checks
+ * run on a small pool of polling threads. The first polls are fast, the interval grows exponentially with
+ * a random jitter up to a cap.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class TaskPoller {
+
+    private static Logger l = Logger.getLogger(TaskPoller.class);
+
+    public static final double DEFAULT_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.2;
+    public static final int DEFAULT_POLLING_THREADS = 4;
+
+    private static TaskPoller defaultPoller = null;
+
+    /**
+     * A server task status check
+     *
+     * @param <T> the task result
+     */
+    public interface Task<T> {
+
+        /**
+         * Checks the task once. The checks of all tasks share a small pool of threads.
+         *
+         * @return the task result when the task finished, null when it is still running. Throwing the
+         *         {@link HttpMethodNotFinishedYetException} means that the task is still running too.
+         * @throws Exception the task failed, the polling stops
+         */
+        T poll() throws Exception;
+    }
+
+    /**
+     * Task completion callback, it is called from a polling thread
+     *
+     * @param <T> the task result
+     */
+    public interface Callback<T> {
+
+        void completed(T result);
+
+        void failed(Throwable cause);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService pollers;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final Random random = new Random();
+
+    /**
+     * Constructor
+     *
+     * @param initialDelay the first polling interval in milliseconds
+     * @param maxDelay     the maximal polling interval in milliseconds
+     * @param multiplier   the interval growth factor
+     * @param jitter       the random interval deviation (0.2 is +-20%)
+     */
+    public TaskPoller(long initialDelay, long maxDelay, double multiplier, double jitter) {
+        this(initialDelay, maxDelay, multiplier, jitter, DEFAULT_POLLING_THREADS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param initialDelay the first polling interval in milliseconds
+     * @param maxDelay     the maximal polling interval in milliseconds
+     * @param multiplier   the interval growth factor
+     * @param jitter       the random interval deviation (0.2 is +-20%)
+     * @param threads      number of the threads that run the checks
+     */
+    public TaskPoller(long initialDelay, long maxDelay, double multiplier, double jitter, int threads) {
+        if (initialDelay <= 0 || maxDelay < initialDelay || multiplier < 1 || jitter < 0 || jitter >= 1)
+            throw new IllegalArgumentException("Invalid task polling intervals.");
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid number of task polling threads.");
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gdc-task-scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pollers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gdc-task-poller");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns the shared poller with the default intervals
+     *
+     * @return the shared poller
+     */
+    public static synchronized TaskPoller getDefault() {
+        if (defaultPoller == null)
+            defaultPoller = new TaskPoller(Constants.POLL_INITIAL_INTERVAL, Constants.POLL_INTERVAL,
+                    DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+        return defaultPoller;
+    }
+
+    /**
+     * Starts polling a task, the first check runs immediately
+     *
+     * @param task the task
+     * @return the future of the task result
+     */
+    public <T> Future<T> submit(Task<T> task) {
+        return submit(task, null);
+    }
+
+    /**
+     * Starts polling a task, the first check runs immediately
+     *
+     * @param task     the task
+     * @param callback called when the task finishes, fails or is cancelled (can be null)
+     * @return the future of the task result
+     */
+    public <T> Future<T> submit(Task<T> task, Callback<T> callback) {
+        PollingFuture<T> f = new PollingFuture<T>(task, callback);
+        f.schedule(0);
+        return f;
+    }
+
+    /**
+     * Polls a task and waits for its result
+     *
+     * @param task the task
+     * @return the task result
+     * @throws RuntimeException the exception that failed the task
+     */
+    public <T> T await(Task<T> task) {
+        Future<T> f = submit(task);
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new InternalErrorException(cause);
+        }
+    }
+
+    /**
+     * Stops the poller, the pending tasks aren't polled anymore
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        pollers.shutdownNow();
+    }
+
+    /**
+     * Returns the interval before the next check
+     *
+     * @param attempt number of the checks that haven't finished the task
+     * @return the interval in milliseconds
+     */
+    long getDelay(int attempt) {
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        synchronized (random) {
+            delay *= 1 + jitter * (2 * random.nextDouble() - 1);
+        }
+        return Math.max(1, Math.min(maxDelay, Math.round(delay)));
+    }
+
+    /**
+     * Future of a polled task
+     */
+    private class PollingFuture<V> implements Future<V>, Runnable {
+
+        private final Task<V> task;
+        private final Callback<V> callback;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // the checks of a task run one after another, the next one is scheduled when the previous finishes
+        private int attempt = 0;
+        private ScheduledFuture<?> scheduled;
+        private V result;
+        private Throwable failure;
+        private boolean cancelled = false;
+
+        PollingFuture(Task<V> task, Callback<V> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        synchronized void schedule(long delay) {
+            if (isDone())
+                return;
+            try {
+                scheduled = scheduler.schedule(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                finish(null, e);
+            }
+        }
+
+        /**
+         * Hands the check over to the polling threads, the scheduler thread never blocks
+         */
+        private void poll() {
+            try {
+                pollers.execute(this);
+            } catch (RejectedExecutionException e) {
+                finish(null, e);
+            }
+        }
+
+        public void run() {
+            if (isDone())
+                return;
+            V r;
+            try {
+                r = task.poll();
+            } catch (HttpMethodNotFinishedYetException e) {
+                r = null;
+            } catch (Throwable e) {
+                finish(null, e);
+                return;
+            }
+            if (r != null)
+                finish(r, null);
+            else
+                schedule(getDelay(attempt++));
+        }
+
+        private void finish(V r, Throwable e) {
+            synchronized (this) {
+                if (isDone())
+                    return;
+                result = r;
+                failure = e;
+                done.countDown();
+            }
+            notifyCallback();
+        }
+
+        private void notifyCallback() {
+            if (callback == null)
+                return;
+            try {
+                if (cancelled)
+                    callback.failed(new CancellationException());
+                else if (failure != null)
+                    callback.failed(failure);
+                else
+                    callback.completed(result);
+            } catch (RuntimeException e) {
+                l.debug("Task polling callback failed.", e);
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (isDone())
+                    return false;
+                cancelled = true;
+                done.countDown();
+                if (scheduled != null)
+                    scheduled.cancel(false);
+            }
+            notifyCallback();
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public V get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return report();
+        }
+
+        private synchronized V report() throws ExecutionException {
+            if (cancelled)
+                throw new CancellationException();
+            if (failure != null)
+                throw new ExecutionException(failure);
+            return result;
+        }
+    }
+
+}
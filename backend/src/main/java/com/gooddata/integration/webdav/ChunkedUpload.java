@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.integration.webdav;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of a chunked archive upload. The archive is split into parts of a fixed size, every part
+ * goes through MISSING -> LANDED (uploaded) -> VERIFIED (checksum matches), a part that fails either
+ * step returns to MISSING so that a retry sends only the parts that haven't landed yet.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+class ChunkedUpload {
+
+    static final int MISSING = 0;
+    static final int LANDED = 1;
+    static final int VERIFIED = 2;
+
+    private final File file;
+    private final long length;
+    private final long partSize;
+    private final int[] states;
+    private final byte[][] digests;
+
+    /**
+     * Constructor
+     *
+     * @param file     the uploaded archive
+     * @param partSize size of a part in bytes
+     */
+    ChunkedUpload(File file, long partSize) {
+        if (partSize <= 0)
+            throw new IllegalArgumentException("The part size must be positive.");
+        this.file = file;
+        this.length = file.length();
+        this.partSize = partSize;
+        long count = (length + partSize - 1) / partSize;
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The part size is too small for the archive " + file + ".");
+        states = new int[(int) count];
+        digests = new byte[(int) count][];
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getPartCount() {
+        return states.length;
+    }
+
+    long getOffset(int part) {
+        return part * partSize;
+    }
+
+    long getLength(int part) {
+        return Math.min(partSize, length - getOffset(part));
+    }
+
+    /**
+     * Returns the Content-Range header value of the part
+     *
+     * @param part the part index
+     * @return the header value
+     */
+    String getContentRange(int part) {
+        long offset = getOffset(part);
+        return "bytes " + offset + "-" + (offset + getLength(part) - 1) + "/" + length;
+    }
+
+    /**
+     * Returns the Range header value of the part
+     *
+     * @param part the part index
+     * @return the header value
+     */
+    String getRange(int part) {
+        long offset = getOffset(part);
+        return "bytes=" + offset + "-" + (offset + getLength(part) - 1);
+    }
+
+    /**
+     * Marks a part uploaded
+     *
+     * @param part   the part index
+     * @param digest MD5 of the sent part
+     */
+    synchronized void landed(int part, byte[] digest) {
+        digests[part] = digest;
+        states[part] = LANDED;
+    }
+
+    /**
+     * Marks a part verified
+     *
+     * @param part the part index
+     */
+    synchronized void verified(int part) {
+        states[part] = VERIFIED;
+    }
+
+    /**
+     * Marks a part missing, it is going to be uploaded again
+     *
+     * @param part the part index
+     */
+    synchronized void missing(int part) {
+        digests[part] = null;
+        states[part] = MISSING;
+    }
+
+    synchronized byte[] getDigest(int part) {
+        return digests[part];
+    }
+
+    /**
+     * Returns the parts in the state
+     *
+     * @param state MISSING, LANDED or VERIFIED
+     * @return list of the part indexes
+     */
+    synchronized List<Integer> getParts(int state) {
+        List<Integer> parts = new ArrayList<Integer>();
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == state)
+                parts.add(i);
+        }
+        return parts;
+    }
+
+    /**
+     * Returns true when all parts are verified
+     *
+     * @return true when the upload is complete
+     */
+    synchronized boolean isComplete() {
+        for (int state : states) {
+            if (state != VERIFIED)
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -23,8 +23,11 @@
 
 package com.gooddata.integration.webdav;
 
+import com.gooddata.Constants;
+import com.gooddata.exception.GdcUploadErrorException;
 import com.gooddata.exception.HttpMethodException;
 import com.gooddata.exception.HttpMethodNotFinishedYetException;
+import com.gooddata.integration.datatransfer.DataPackageWriter;
 import com.gooddata.integration.datatransfer.GdcDataTransferAPI;
 import com.gooddata.util.NetUtil;
 
@@ -37,6 +40,8 @@ import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.jackrabbit.webdav.DavConstants;
 import org.apache.jackrabbit.webdav.DavException;
 import org.apache.jackrabbit.webdav.MultiStatus;
@@ -48,9 +53,22 @@ import org.apache.log4j.Logger;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * GoodData Webdav API Java wrapper
@@ -64,7 +82,13 @@ public class GdcWebDavApiWrapper implements GdcDataTransferAPI {
 
     protected static final String DEFAULT_ARCHIVE_NAME = "upload.zip";
 
+    // how many times the chunked upload retries the parts that didn't land
+    protected static final int MAX_PART_RETRY = 10;
+
+    private static final int PART_BUFFER_SIZE = 64 * 1024;
+
     protected HttpClient client;
+    private final MultiThreadedHttpConnectionManager connectionManager;
     private URL webdavURL;
 
     /**
@@ -76,13 +100,17 @@ public class GdcWebDavApiWrapper implements GdcDataTransferAPI {
      */
     public GdcWebDavApiWrapper(String username, String password, URL webdavURL) {
 
-        client = new HttpClient();
+        // the pooled connection manager is thread safe, the chunked upload sends the parts in parallel
+        connectionManager = NetUtil.createConnectionManager();
+        client = new HttpClient(connectionManager);
 
         NetUtil.configureHttpProxy(client);
 
         Credentials creds = new UsernamePasswordCredentials(username, password);
         this.webdavURL = webdavURL;
         client.getState().setCredentials(AuthScope.ANY, creds);
+        // the streamed data package can't be resent after an authentication challenge
+        client.getParams().setAuthenticationPreemptive(true);
     }
 
     /**
@@ -97,13 +125,260 @@ public class GdcWebDavApiWrapper implements GdcDataTransferAPI {
         String dir = file.getName().split("\\.")[0];
         MkColMethod mkdir = new MkColMethod(webdavURL.toString() + "/" + dir);
         executeMethodOk(mkdir);
-        PutMethod put = new PutMethod(webdavURL.toString() + "/" + dir + "/" + DEFAULT_ARCHIVE_NAME);
+        putArchive(file, webdavURL.toString() + "/" + dir + "/" + DEFAULT_ARCHIVE_NAME);
+        l.debug("Transferred archive " + archiveName);
+    }
+
+    /**
+     * Uploads the whole archive in a single PUT request
+     *
+     * @param file the archive
+     * @param url  the remote archive URL
+     * @throws IOException in case of IO issues
+     */
+    private void putArchive(File file, String url) throws IOException {
+        PutMethod put = new PutMethod(url);
         FileInputStream fis = new FileInputStream(file);
-        RequestEntity requestEntity = new InputStreamRequestEntity(fis);
-        put.setRequestEntity(requestEntity);
+        try {
+            RequestEntity requestEntity = new InputStreamRequestEntity(fis);
+            put.setRequestEntity(requestEntity);
+            executeMethodOk(put);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * WebDav transfers a local archive to the remote GDC WebDav server in parts. Each part is sent in its own PUT
+     * request with the Content-Range header. The parts that fail are retried, only the parts that haven't landed
+     * are sent again. The landed parts are read back and verified against the MD5 checksums of the sent data.
+     * <p/>
+     * The last part is sent and verified first. When the server rejects the Content-Range (400, 501) or ignores
+     * it, the archive is sent in a single PUT request instead. The part states are kept in memory only, a new
+     * process sends all parts again.
+     *
+     * @param archiveName the name of the ZIP archive that is going to be transferred
+     * @param partSize    size of a part in bytes
+     * @param threads     number of parts uploaded in parallel
+     * @throws java.io.IOException in case of IO issues
+     */
+    public void transferDir(String archiveName, long partSize, int threads) throws IOException {
+        File file = new File(archiveName);
+        if (file.length() <= 0) {
+            transferDir(archiveName);
+            return;
+        }
+        l.debug("Transfering archive " + archiveName + " in parts of " + partSize + " bytes");
+        String dir = file.getName().split("\\.")[0];
+        MkColMethod mkdir = new MkColMethod(webdavURL.toString() + "/" + dir);
+        executeMethodOk(mkdir);
+        final String url = webdavURL.toString() + "/" + dir + "/" + DEFAULT_ARCHIVE_NAME;
+        final ChunkedUpload upload = new ChunkedUpload(file, partSize);
+        HttpConnectionManagerParams params = client.getHttpConnectionManager().getParams();
+        if (params.getDefaultMaxConnectionsPerHost() < threads)
+            params.setDefaultMaxConnectionsPerHost(threads);
+        if (params.getMaxTotalConnections() < threads)
+            params.setMaxTotalConnections(threads);
+        if (upload.getPartCount() == 1 || !isRangedPutSupported(url, upload)) {
+            l.info("The data stage doesn't support the upload in parts, the archive " + archiveName +
+                    " is sent in a single request.");
+            putArchive(file, url);
+            l.debug("Transferred archive " + archiveName);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int attempt = 0; ; attempt++) {
+                List<Callable<Boolean>> puts = new ArrayList<Callable<Boolean>>();
+                for (final int part : upload.getParts(ChunkedUpload.MISSING)) {
+                    puts.add(new Callable<Boolean>() {
+                        public Boolean call() throws IOException {
+                            putPart(url, upload, part);
+                            return Boolean.TRUE;
+                        }
+                    });
+                }
+                invokeParts(pool, puts, "upload");
+                // the server received all the parts, check what it stored
+                if (upload.getParts(ChunkedUpload.MISSING).isEmpty()) {
+                    List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
+                    for (final int part : upload.getParts(ChunkedUpload.LANDED)) {
+                        checks.add(new Callable<Boolean>() {
+                            public Boolean call() throws IOException {
+                                verifyPart(url, upload, part);
+                                return Boolean.TRUE;
+                            }
+                        });
+                    }
+                    invokeParts(pool, checks, "verification");
+                }
+                if (upload.isComplete())
+                    break;
+                int missing = upload.getParts(ChunkedUpload.MISSING).size();
+                if (attempt >= MAX_PART_RETRY)
+                    throw new GdcUploadErrorException("Can't upload " + missing + " of " + upload.getPartCount() +
+                            " parts of the archive " + archiveName + ".");
+                l.info("Retrying the upload of " + missing + " of " + upload.getPartCount() + " parts of the archive " +
+                        archiveName + ".");
+                try {
+                    Thread.sleep(Constants.RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("The upload of the archive " + archiveName + " was interrupted.");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        l.debug("Transferred archive " + archiveName + " in " + upload.getPartCount() + " parts");
+    }
+
+    /**
+     * Runs the part tasks and waits for them. A failed task is logged, its part stays missing.
+     *
+     * @param pool  executor
+     * @param tasks part tasks
+     * @param what  task description for the log
+     * @throws InterruptedIOException when the waiting thread is interrupted
+     */
+    private static void invokeParts(ExecutorService pool, List<Callable<Boolean>> tasks, String what)
+            throws InterruptedIOException {
+        if (tasks.isEmpty())
+            return;
+        try {
+            for (Future<Boolean> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    l.debug("The part " + what + " failed.", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("The part " + what + " was interrupted.");
+        }
+    }
+
+    /**
+     * Uploads a part of the archive and marks it landed
+     *
+     * @param url    the remote archive URL
+     * @param upload the upload state
+     * @param part   the part index
+     * @throws IOException in case of IO issues
+     */
+    private void putPart(String url, ChunkedUpload upload, int part) throws IOException {
+        PutMethod put = new PutMethod(url);
+        put.setRequestHeader("Content-Range", upload.getContentRange(part));
+        PartRequestEntity entity = new PartRequestEntity(upload.getFile(), upload.getOffset(part), upload.getLength(part));
+        put.setRequestEntity(entity);
         executeMethodOk(put);
-        fis.close();
-        l.debug("Transferred archive " + archiveName);
+        upload.landed(part, entity.getDigest());
+        l.debug("Uploaded part " + part + " (" + upload.getContentRange(part) + ")");
+    }
+
+    /**
+     * Sends the last part of the archive and reads it back. A server that ignores the Content-Range stores
+     * the part at the start of the archive, so the read back part doesn't match.
+     *
+     * @param url    the remote archive URL
+     * @param upload the upload state
+     * @return true when the server stored the part at its offset
+     * @throws IOException when the part can't be sent
+     */
+    private boolean isRangedPutSupported(String url, ChunkedUpload upload) throws IOException {
+        int part = upload.getPartCount() - 1;
+        PutMethod put = new PutMethod(url);
+        put.setRequestHeader("Content-Range", upload.getContentRange(part));
+        PartRequestEntity entity = new PartRequestEntity(upload.getFile(), upload.getOffset(part), upload.getLength(part));
+        put.setRequestEntity(entity);
+        try {
+            client.executeMethod(put);
+            int status = put.getStatusCode();
+            if (status == HttpStatus.SC_BAD_REQUEST || status == HttpStatus.SC_NOT_IMPLEMENTED) {
+                l.debug("The ranged PUT of " + url + " was rejected: " + status + " " + put.getStatusText());
+                return false;
+            }
+            if (status < 200 || status >= 300)
+                throw new HttpMethodException("Can't upload the part " + part + " of " + url + ": " + status + " " +
+                        put.getStatusText());
+        } finally {
+            put.releaseConnection();
+        }
+        upload.landed(part, entity.getDigest());
+        try {
+            verifyPart(url, upload, part);
+        } catch (HttpMethodException e) {
+            l.debug("The ranged PUT of " + url + " can't be verified.", e);
+            return false;
+        }
+        return upload.getParts(ChunkedUpload.VERIFIED).contains(part);
+    }
+
+    /**
+     * Reads a landed part back and compares its MD5 with the sent data. The part is marked verified or missing.
+     *
+     * @param url    the remote archive URL
+     * @param upload the upload state
+     * @param part   the part index
+     * @throws IOException in case of IO issues
+     */
+    private void verifyPart(String url, ChunkedUpload upload, int part) throws IOException {
+        GetMethod get = new GetMethod(url);
+        get.setRequestHeader("Range", upload.getRange(part));
+        try {
+            client.executeMethod(get);
+            int status = get.getStatusCode();
+            if (status != HttpStatus.SC_PARTIAL_CONTENT)
+                throw new HttpMethodException("Can't read back the part " + part + " of " + url + ": " + status + " " +
+                        get.getStatusText());
+            MessageDigest md = newDigest();
+            long count = 0;
+            InputStream is = get.getResponseBodyAsStream();
+            if (is != null) {
+                byte[] buf = new byte[PART_BUFFER_SIZE];
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                    count += n;
+                }
+            }
+            if (count == upload.getLength(part) && MessageDigest.isEqual(md.digest(), upload.getDigest(part))) {
+                upload.verified(part);
+            } else {
+                l.debug("The checksum of the part " + part + " (" + upload.getContentRange(part) + ") doesn't match.");
+                upload.missing(part);
+            }
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 isn't supported.", e);
+        }
+    }
+
+    /**
+     * WebDav transfers a data package to the remote GDC WebDav server. The package is sent in a chunked PUT
+     * request as it is written.
+     *
+     * @param dir    the remote directory (the data package name)
+     * @param writer writes the ZIP data package
+     * @throws java.io.IOException in case of IO issues
+     */
+    public void transferStream(String dir, DataPackageWriter writer) throws IOException {
+        l.debug("Streaming data package " + dir);
+        MkColMethod mkdir = new MkColMethod(webdavURL.toString() + "/" + dir);
+        executeMethodOk(mkdir);
+        PutMethod put = new PutMethod(webdavURL.toString() + "/" + dir + "/" + DEFAULT_ARCHIVE_NAME);
+        // the streamed body can't be repeated, the credentials are sent preemptively and the server must
+        // accept the request before the body is sent
+        put.getParams().setBooleanParameter(HttpMethodParams.USE_EXPECT_CONTINUE, true);
+        put.setRequestEntity(new StreamingRequestEntity(writer));
+        executeMethodOk(put);
+        l.debug("Streamed data package " + dir);
     }
 
     /**
@@ -131,6 +406,13 @@ public class GdcWebDavApiWrapper implements GdcDataTransferAPI {
         return result;
     }
 
+    /**
+     * Stops the pooled connection manager of the wrapper and closes its connections
+     */
+    public void shutdown() {
+        NetUtil.shutdownConnectionManager(connectionManager);
+    }
+
     /**
      * Executes HttpMethod and test if the response if 200(OK)
      *
@@ -190,6 +472,97 @@ public class GdcWebDavApiWrapper implements GdcDataTransferAPI {
         } catch (DavException e) {
             l.debug("Error invoking GoodData REST API.", e);
             throw new HttpMethodException("Error invoking GoodData WebDav API.", e);
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Request entity of unknown length (sent chunked) that is written by a {@link DataPackageWriter}
+     */
+    private static class StreamingRequestEntity implements RequestEntity {
+
+        private final DataPackageWriter writer;
+
+        StreamingRequestEntity(DataPackageWriter writer) {
+            this.writer = writer;
+        }
+
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        public void writeRequest(OutputStream os) throws IOException {
+            writer.write(os);
+            os.flush();
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public String getContentType() {
+            return "application/zip";
+        }
+    }
+
+    /**
+     * Repeatable request entity that sends a part of a file and computes its MD5
+     */
+    private static class PartRequestEntity implements RequestEntity {
+
+        private final File file;
+        private final long offset;
+        private final long length;
+        private volatile byte[] digest;
+
+        PartRequestEntity(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public void writeRequest(OutputStream os) throws IOException {
+            MessageDigest md = newDigest();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(offset);
+                byte[] buf = new byte[PART_BUFFER_SIZE];
+                long remaining = length;
+                while (remaining > 0) {
+                    int n = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n < 0)
+                        throw new IOException("The archive " + file + " is shorter than expected.");
+                    md.update(buf, 0, n);
+                    os.write(buf, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                raf.close();
+            }
+            os.flush();
+            digest = md.digest();
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return "application/zip";
+        }
+
+        /**
+         * Returns the MD5 of the last sent content
+         *
+         * @return the digest
+         */
+        byte[] getDigest() {
+            return digest;
         }
     }
 
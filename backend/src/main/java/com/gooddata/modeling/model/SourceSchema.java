@@ -23,8 +23,10 @@
 
 package com.gooddata.modeling.model;
 
+import com.gooddata.Constants;
 import com.gooddata.exception.InvalidParameterException;
 import com.gooddata.exception.ModelException;
+import com.gooddata.util.DateUtil;
 import com.gooddata.util.StringUtil;
 import com.thoughtworks.xstream.XStream;
 import org.apache.log4j.Logger;
@@ -64,6 +66,11 @@ public class SourceSchema {
      */
     private List<SourceColumn> columns;
 
+    /**
+     * The name of the column that drives the incremental loads (optional)
+     */
+    private String watermark;
+
     /**
      * Constructor
      *
@@ -168,6 +175,8 @@ public class SourceSchema {
         // normalize names
         // for some reason the XML Stream doesn't use setters
         schema.setName(schema.getName());
+        if (schema.getWatermark() != null)
+            schema.setWatermark(schema.getWatermark());
         for (SourceColumn c : schema.getColumns()) {
             c.setName(c.getName());
             c.setTitle(c.getTitle());
@@ -175,6 +184,7 @@ public class SourceSchema {
             c.setReference(c.getReference());
             c.setSchemaReference(c.getSchemaReference());
         }
+        schema.precompileDateFormats();
         return schema;
     }
 
@@ -256,6 +266,24 @@ public class SourceSchema {
         this.name = StringUtil.toIdentifier(name);
     }
 
+    /**
+     * Watermark column getter
+     *
+     * @return the name of the column that drives the incremental loads, null if there is none
+     */
+    public String getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Watermark column setter
+     *
+     * @param watermark the name of the column that drives the incremental loads
+     */
+    public void setWatermark(String watermark) {
+        this.watermark = (watermark != null) ? (StringUtil.toIdentifier(watermark)) : (null);
+    }
+
     /**
      * Returns a column by it's name
      *
@@ -357,6 +385,28 @@ public class SourceSchema {
         return new StringBuffer(getName()).append(" [").append(getColumns()).append("]").toString();
     }
 
+    /**
+     * Creates the formatters of all DATE column formats, so they are cached before the data are transformed
+     */
+    public void precompileDateFormats() {
+        for (SourceColumn c : getDates()) {
+            String fmt = c.getFormat();
+            try {
+                DateUtil.getDateFormatter(fmt, c.isDatetime());
+                // the formats of the date and time facts
+                if (fmt == null || fmt.length() <= 0) {
+                    fmt = (c.isDatetime()) ? (Constants.DEFAULT_DATETIME_FMT_STRING) : (Constants.DEFAULT_DATE_FMT_STRING);
+                }
+                DateUtil.getDateFormatter(fmt, false);
+                if (c.isDatetime()) {
+                    DateUtil.getDateFormatter(fmt, true);
+                }
+            } catch (IllegalArgumentException e) {
+                l.debug("Invalid format " + fmt + " of the date column " + c.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Validates the source schema
      *
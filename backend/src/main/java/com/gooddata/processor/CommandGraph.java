@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.processor;
+
+import com.gooddata.exception.InternalErrorException;
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.exception.ParallelExecutionException;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Dependency graph (DAG) of the script commands. The script is split to steps. A step is either a connector
+ * chain (a Use/Load connector command followed by the commands that work with the connector, e.g. GenerateMaql,
+ * ExecuteMaql and TransferData) or a single command that changes the shared context (e.g. OpenProject).
+ * Independent steps can be executed concurrently.
+ *
+ * The dependencies are inferred:
+ * <ul>
+ * <li>the project commands (and the commands outside any connector chain) run after all previous steps
+ * and before all following steps</li>
+ * <li>the chains that load the same dataset (or date dimension) run in the script order</li>
+ * <li>a chain runs after the date dimensions and datasets that its DATE and REFERENCE columns refer to</li>
+ * <li>a chain whose XML config can't be read runs after all previous date dimensions</li>
+ * </ul>
+ * Any command can also name its step (step="...") and list the previous steps it depends on (after="...,...").
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class CommandGraph {
+
+    private static Logger l = Logger.getLogger(CommandGraph.class);
+
+    // the step name and the explicit dependencies, accepted by all commands
+    public static final String PARAM_STEP = "step";
+    public static final String PARAM_AFTER = "after";
+
+    // commands that change the shared context
+    private static final String[] BARRIER_COMMANDS = {"CreateProject", "DropProject", "DeleteProject", "OpenProject",
+            "RetrieveProject", "UseProject", "StoreProject", "RememberProject", "Lock"};
+
+    private static final String[] CHAIN_PREFIXES = {"Use", "Load"};
+
+    private static final String[] DATE_DIMENSION_COMMANDS = {"UseDateDimension", "LoadDateDimension"};
+
+    /**
+     * Executes a step
+     */
+    public interface StepRunner {
+
+        /**
+         * Executes the commands of the step
+         *
+         * @param step the step
+         * @throws Exception the step failed
+         */
+        void run(Step step) throws Exception;
+    }
+
+    /**
+     * A sequence of commands that is executed as a unit
+     */
+    public static class Step {
+
+        private final int number;
+        private String name;
+        private final boolean barrier;
+        private final List<Command> commands = new ArrayList<Command>();
+        private final Set<Step> dependencies = new LinkedHashSet<Step>();
+
+        // the loaded dataset (schema name or the config file if the schema can't be read)
+        private String dataset;
+        // the loaded date dimension
+        private String dateDimension;
+        // the date dimensions and datasets referenced by the loaded dataset
+        private final Set<String> dateReferences = new HashSet<String>();
+        private final Set<String> datasetReferences = new HashSet<String>();
+        // the references are unknown
+        private boolean unresolved = false;
+
+        // written by the worker thread, the scheduling reads only the main thread sets in execute
+        private volatile long startTime = -1;
+        private volatile long endTime = -1;
+        private volatile Throwable error = null;
+        private volatile boolean skipped = false;
+
+        private Step(int number, String name, boolean barrier) {
+            this.number = number;
+            this.name = name;
+            this.barrier = barrier;
+        }
+
+        /**
+         * Step number getter
+         *
+         * @return the step number (starting with 1)
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Step name getter
+         *
+         * @return the step name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns true if the step changes the shared context (no other step runs concurrently)
+         *
+         * @return true for the project commands
+         */
+        public boolean isBarrier() {
+            return barrier;
+        }
+
+        /**
+         * Commands getter
+         *
+         * @return the step commands
+         */
+        public List<Command> getCommands() {
+            return Collections.unmodifiableList(commands);
+        }
+
+        /**
+         * Dependencies getter
+         *
+         * @return the steps that must finish before this step starts
+         */
+        public Set<Step> getDependencies() {
+            return Collections.unmodifiableSet(dependencies);
+        }
+
+        /**
+         * Returns the step execution time
+         *
+         * @return the duration in milliseconds, -1 if the step hasn't finished
+         */
+        public long getDuration() {
+            return (endTime >= 0) ? (endTime - startTime) : (-1);
+        }
+
+        /**
+         * Returns true if the step wasn't executed because one of its dependencies failed
+         *
+         * @return true for the skipped steps
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Error getter
+         *
+         * @return the step error, null if the step didn't fail
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        private boolean isReady(Set<Step> finished) {
+            return finished.containsAll(dependencies);
+        }
+
+        private boolean isBlocked(Set<Step> failed) {
+            for (Step d : dependencies) {
+                if (failed.contains(d))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads the loaded dataset and its references from the connector command
+         *
+         * @param c the connector command
+         */
+        private void resolve(Command c) {
+            Properties p = c.getParameters();
+            for (String dd : DATE_DIMENSION_COMMANDS) {
+                if (c.match(dd)) {
+                    dateDimension = p.getProperty("name", "");
+                    return;
+                }
+            }
+            String configFile = p.getProperty("configFile");
+            if (configFile == null || configFile.length() <= 0) {
+                unresolved = true;
+                return;
+            }
+            dataset = configFile;
+            try {
+                SourceSchema schema = SourceSchema.createSchema(new File(configFile));
+                dataset = schema.getName();
+                for (SourceColumn sc : schema.getDates()) {
+                    if (sc.getSchemaReference() != null)
+                        dateReferences.add(sc.getSchemaReference());
+                }
+                for (SourceColumn sc : schema.getReferences()) {
+                    if (sc.getSchemaReference() != null)
+                        datasetReferences.add(sc.getSchemaReference());
+                }
+            } catch (IOException e) {
+                l.debug("Can't read the config file " + configFile + ", the step " + this +
+                        " runs after all previous date dimensions.", e);
+                unresolved = true;
+            } catch (RuntimeException e) {
+                l.debug("Can't parse the config file " + configFile + ", the step " + this +
+                        " runs after all previous date dimensions.", e);
+                unresolved = true;
+            }
+        }
+
+        /**
+         * Returns true if this step must run after the previous step
+         *
+         * @param p the previous step
+         * @return true if this step depends on the previous step
+         */
+        private boolean dependsOn(Step p) {
+            if (p.dataset != null && (p.dataset.equals(dataset) || datasetReferences.contains(p.dataset)))
+                return true;
+            if (p.dateDimension != null)
+                return p.dateDimension.equals(dateDimension) || dateReferences.contains(p.dateDimension) ||
+                        (unresolved && dateDimension == null);
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number + " " + name;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<Step>();
+    private long startTime = -1;
+    private long endTime = -1;
+
+    private CommandGraph() {
+    }
+
+    /**
+     * Splits the commands to steps and infers the step dependencies. Removes the step and after parameters
+     * from the commands.
+     *
+     * @param commands the script commands
+     * @return the command graph
+     * @throws InvalidParameterException in case of a duplicate step name or an unknown step in the after parameter
+     */
+    public static CommandGraph build(List<Command> commands) {
+        CommandGraph g = new CommandGraph();
+        Map<String, Step> named = new HashMap<String, Step>();
+        Step chain = null;
+        for (Command c : commands) {
+            String stepName = c.getParam(PARAM_STEP);
+            String after = c.getParam(PARAM_AFTER);
+            Step step;
+            if (isBarrier(c) || (chain == null && !isChainStart(c))) {
+                step = g.add(c, true);
+                chain = null;
+            } else if (isChainStart(c)) {
+                step = g.add(c, false);
+                step.resolve(c);
+                chain = step;
+            } else {
+                step = chain;
+            }
+            step.commands.add(c);
+            if (stepName != null && stepName.length() > 0) {
+                if (named.containsKey(stepName))
+                    throw new InvalidParameterException(c.getCommand() + ": Duplicate step name '" + stepName + "'.");
+                named.put(stepName, step);
+                step.name = stepName;
+            }
+            if (after != null && after.length() > 0) {
+                for (String dn : after.split(",")) {
+                    Step d = named.get(dn.trim());
+                    if (d == null)
+                        throw new InvalidParameterException(c.getCommand() + ": Unknown step '" + dn.trim() +
+                                "' in the " + PARAM_AFTER + " parameter. The step must be named before.");
+                    if (d != step)
+                        step.dependencies.add(d);
+                }
+            }
+        }
+        g.inferDependencies();
+        return g;
+    }
+
+    /**
+     * Removes the step and after parameters from the command (they are used only for the DAG execution)
+     *
+     * @param c the command
+     */
+    public static void removeStepParams(Command c) {
+        if (c.getParameters() != null) {
+            c.getParameters().remove(PARAM_STEP);
+            c.getParameters().remove(PARAM_AFTER);
+        }
+    }
+
+    private static boolean isBarrier(Command c) {
+        if (c instanceof ParallelCommand)
+            return true;
+        for (String b : BARRIER_COMMANDS) {
+            if (c.match(b))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isChainStart(Command c) {
+        for (String p : CHAIN_PREFIXES) {
+            if (c.getCommand().toLowerCase().startsWith(p.toLowerCase()))
+                return true;
+        }
+        return false;
+    }
+
+    private Step add(Command c, boolean barrier) {
+        Properties p = c.getParameters();
+        String key = (p != null) ? (p.getProperty("configFile", p.getProperty("name", ""))) : ("");
+        Step s = new Step(steps.size() + 1, c.getCommand() + ((key.length() > 0) ? ("(" + key + ")") : ("")), barrier);
+        steps.add(s);
+        return s;
+    }
+
+    private void inferDependencies() {
+        int lastBarrier = -1;
+        for (int i = 0; i < steps.size(); i++) {
+            Step s = steps.get(i);
+            // the steps before the last barrier are its dependencies already
+            for (int j = Math.max(lastBarrier, 0); j < i; j++) {
+                Step p = steps.get(j);
+                if (s.barrier || j == lastBarrier || s.dependsOn(p))
+                    s.dependencies.add(p);
+            }
+            if (s.barrier)
+                lastBarrier = i;
+        }
+        for (Step s : steps) {
+            l.debug("Step " + s + " commands=" + s.commands + " depends on " + s.dependencies);
+        }
+    }
+
+    /**
+     * Steps getter
+     *
+     * @return the steps in the script order
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Executes the steps. A step starts as soon as all its dependencies finish. When a step fails,
+     * the steps that depend on it are skipped, the independent steps still run.
+     *
+     * @param threads maximal number of concurrently executed steps
+     * @param runner  executes the step commands
+     * @throws ParallelExecutionException if any of the steps fails
+     */
+    public void execute(int threads, final StepRunner runner) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Step> completion = new ExecutorCompletionService<Step>(executor);
+        Map<Integer, Throwable> errors = new TreeMap<Integer, Throwable>();
+        Set<Step> pending = new LinkedHashSet<Step>(steps);
+        // the finished and the failed (or skipped) steps, used only by this thread
+        Set<Step> finished = new HashSet<Step>();
+        Set<Step> failed = new HashSet<Step>();
+        int running = 0;
+        startTime = System.currentTimeMillis();
+        try {
+            while (true) {
+                // the pending steps are in the script order, the dependencies are always before the dependents
+                for (Iterator<Step> it = pending.iterator(); it.hasNext(); ) {
+                    final Step s = it.next();
+                    if (s.isBlocked(failed)) {
+                        l.info("Skipping the step " + s + ", its dependency failed.");
+                        s.skipped = true;
+                        failed.add(s);
+                        it.remove();
+                    } else if (s.isReady(finished)) {
+                        it.remove();
+                        running++;
+                        completion.submit(new Callable<Step>() {
+                            public Step call() {
+                                l.debug("Starting the step " + s);
+                                s.startTime = System.currentTimeMillis();
+                                try {
+                                    runner.run(s);
+                                } catch (Throwable e) {
+                                    l.debug("The step " + s + " failed.", e);
+                                    s.error = e;
+                                } finally {
+                                    s.endTime = System.currentTimeMillis();
+                                }
+                                l.debug("Finished the step " + s + " in " + s.getDuration() + " ms.");
+                                return s;
+                            }
+                        });
+                    }
+                }
+                if (running <= 0)
+                    break;
+                Step s = completion.take().get();
+                running--;
+                if (s.error != null) {
+                    errors.put(s.number, s.error);
+                    failed.add(s);
+                } else {
+                    finished.add(s);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("Interrupted while executing the script steps.", e);
+        } catch (ExecutionException e) {
+            throw new InternalErrorException("Error executing the script steps.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            endTime = System.currentTimeMillis();
+        }
+        if (!errors.isEmpty())
+            throw new ParallelExecutionException("step", errors);
+    }
+
+    /**
+     * Returns the critical path of the last execution: the last finished step and the chain of the dependencies
+     * that finished last (the steps that it actually waited for).
+     *
+     * @return the critical path steps from the first to the last
+     */
+    public List<Step> getCriticalPath() {
+        LinkedList<Step> path = new LinkedList<Step>();
+        Step last = null;
+        for (Step s : steps) {
+            if (s.endTime >= 0 && (last == null || s.endTime > last.endTime))
+                last = s;
+        }
+        while (last != null) {
+            path.addFirst(last);
+            Step gate = null;
+            for (Step d : last.dependencies) {
+                if (d.endTime >= 0 && (gate == null || d.endTime > gate.endTime))
+                    gate = d;
+            }
+            last = gate;
+        }
+        return path;
+    }
+
+    /**
+     * Returns the execution report with the critical path
+     *
+     * @return the report
+     */
+    public String getReport() {
+        long work = 0;
+        int executed = 0;
+        for (Step s : steps) {
+            if (s.endTime >= 0) {
+                work += s.getDuration();
+                executed++;
+            }
+        }
+        long wall = (endTime >= 0) ? (endTime - startTime) : (0);
+        StringBuilder r = new StringBuilder();
+        r.append("Executed ").append(executed).append(" of ").append(steps.size()).append(" steps in ").append(wall)
+                .append(" ms (").append(work).append(" ms of step time");
+        if (wall > 0)
+            r.append(", ").append(String.format("%.1f", (double) work / wall)).append("x parallelism");
+        r.append(").\nCritical path:");
+        for (Step s : getCriticalPath()) {
+            r.append("\n  ").append(s).append(": started at ").append(s.startTime - startTime).append(" ms, took ")
+                    .append(s.getDuration()).append(" ms");
+            if (s.error != null)
+                r.append(" (failed)");
+        }
+        return r.toString();
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.gooddata.processor;
+
+import com.gooddata.exception.InternalErrorException;
+import com.gooddata.exception.ParallelExecutionException;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Script block that executes its branches concurrently. Each branch is a sequence of commands.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class ParallelCommand extends Command {
+
+    private static Logger l = Logger.getLogger(ParallelCommand.class);
+
+    /**
+     * Executes the commands of a branch
+     */
+    public interface BranchRunner {
+
+        /**
+         * Executes the branch commands. Called from a worker thread.
+         *
+         * @param branch   the branch index (starting with 0)
+         * @param commands the branch commands
+         * @throws Exception on any failure, the failure is reported with the branch
+         */
+        public void run(int branch, List<Command> commands) throws Exception;
+    }
+
+    // Command branches
+    private final List<List<Command>> branches = new ArrayList<List<Command>>();
+
+    /**
+     * Constructor
+     *
+     * @param command command name
+     * @param params  parameters
+     */
+    public ParallelCommand(String command, Properties params) {
+        super(command, params);
+    }
+
+    /**
+     * Adds a branch
+     *
+     * @param commands the branch commands
+     */
+    public void addBranch(List<Command> commands) {
+        branches.add(commands);
+    }
+
+    /**
+     * Branches getter
+     *
+     * @return the branches
+     */
+    public List<List<Command>> getBranches() {
+        return Collections.unmodifiableList(branches);
+    }
+
+    /**
+     * Executes the branches concurrently. All branches run to the end, the failures are reported together.
+     *
+     * @param threads maximal number of concurrently executed branches
+     * @param runner  executes the branch commands
+     * @throws ParallelExecutionException if any of the branches fails, the errors are keyed by the branch
+     *                                    number (starting with 1)
+     */
+    public void execute(int threads, final BranchRunner runner) {
+        if (branches.size() <= 0)
+            return;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, branches.size())));
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        Map<Integer, Throwable> errors = new TreeMap<Integer, Throwable>();
+        try {
+            for (int i = 0; i < branches.size(); i++) {
+                final int branch = i;
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        runner.run(branch, branches.get(branch));
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                    l.debug("Parallel branch " + (i + 1) + " finished.");
+                } catch (ExecutionException e) {
+                    Throwable cause = (e.getCause() != null) ? (e.getCause()) : (e);
+                    l.debug("Parallel branch " + (i + 1) + " failed.", cause);
+                    errors.put(i + 1, cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("Interrupted while waiting for the parallel branches.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!errors.isEmpty())
+            throw new ParallelExecutionException(errors);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuffer(super.toString()).append(branches).toString();
+    }
+
+}
@@ -25,6 +25,7 @@ package com.gooddata.processor;
 
 import com.gooddata.connector.Connector;
 import com.gooddata.exception.HttpMethodException;
+import com.gooddata.exception.InternalErrorException;
 import com.gooddata.exception.InvalidArgumentException;
 import com.gooddata.exception.InvalidCommandException;
 import com.gooddata.exception.InvalidParameterException;
@@ -32,10 +33,15 @@ import com.gooddata.integration.datatransfer.GdcDataTransferAPI;
 import com.gooddata.integration.rest.GdcRESTApiWrapper;
 import com.gooddata.integration.rest.configuration.NamePasswordConfiguration;
 import com.gooddata.integration.webdav.GdcWebDavApiWrapper;
+import com.gooddata.util.JdbcConnectionPool;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * GoodData
@@ -49,8 +55,40 @@ public class ProcessingContext {
 
     private String projectId;
     private Connector connector;
-    private GdcRESTApiWrapper _restApi = null;
-    private GdcDataTransferAPI webDAVApiWrapper = null;
+    // the logged in APIs, shared with the forked contexts
+    private final Session session;
+
+    /**
+     * The GoodData APIs of the context and its forks
+     */
+    private static class Session {
+        private GdcRESTApiWrapper restApi = null;
+        private GdcDataTransferAPI webDAVApiWrapper = null;
+        // the JDBC connections shared by all JDBC commands of the script
+        private final JdbcConnectionPool jdbcPool = new JdbcConnectionPool();
+        // the connector specific resources (e.g. the SFDC sessions) by their class
+        private final Map<Class<?>, Object> resources = new HashMap<Class<?>, Object>();
+    }
+
+    public ProcessingContext() {
+        this(new Session());
+    }
+
+    private ProcessingContext(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Creates a context for a concurrently executed branch. The fork shares the logged in GoodData APIs and
+     * starts with the current project and no connector.
+     *
+     * @return the forked context
+     */
+    public ProcessingContext fork() {
+        ProcessingContext ctx = new ProcessingContext(session);
+        ctx.projectId = projectId;
+        return ctx;
+    }
 
 
     public String getProjectId() throws InvalidParameterException {
@@ -98,26 +136,92 @@ public class ProcessingContext {
 
 
     public GdcRESTApiWrapper getRestApi(CliParams cliParams) throws HttpMethodException {
-        if (_restApi == null) {
-            NamePasswordConfiguration httpConfig = cliParams.getHttpConfig();
-            checkConfig(httpConfig);
-            l.debug("Using the GoodData HTTP host '" + httpConfig.getGdcHost() + "'.");
-            _restApi = new GdcRESTApiWrapper(httpConfig);
-            _restApi.login();
+        synchronized (session) {
+            if (session.restApi == null) {
+                NamePasswordConfiguration httpConfig = cliParams.getHttpConfig();
+                checkConfig(httpConfig);
+                l.debug("Using the GoodData HTTP host '" + httpConfig.getGdcHost() + "'.");
+                GdcRESTApiWrapper restApi = new GdcRESTApiWrapper(httpConfig);
+                restApi.login();
+                session.restApi = restApi;
+            }
+            return session.restApi;
         }
-        return _restApi;
     }
 
     public GdcDataTransferAPI getFtpApi(CliParams cliParams) {
-        if (webDAVApiWrapper == null) {
-            GdcRESTApiWrapper rest = getRestApi(cliParams);
-            URL url = rest.getWebDavURL();
-            NamePasswordConfiguration httpConfig = cliParams.getHttpConfig();
-            checkConfig(httpConfig);
-            l.debug("Using the GoodData data stage host '" + url + "'.");
-            webDAVApiWrapper = new GdcWebDavApiWrapper(httpConfig.getUsername(), httpConfig.getPassword(), url);
+        synchronized (session) {
+            if (session.webDAVApiWrapper == null) {
+                GdcRESTApiWrapper rest = getRestApi(cliParams);
+                URL url = rest.getWebDavURL();
+                NamePasswordConfiguration httpConfig = cliParams.getHttpConfig();
+                checkConfig(httpConfig);
+                l.debug("Using the GoodData data stage host '" + url + "'.");
+                session.webDAVApiWrapper = new GdcWebDavApiWrapper(httpConfig.getUsername(), httpConfig.getPassword(), url);
+            }
+            return session.webDAVApiWrapper;
+        }
+    }
+
+    /**
+     * Returns the JDBC connection pool shared by the context and its forks
+     *
+     * @return the JDBC connection pool
+     */
+    public JdbcConnectionPool getJdbcPool() {
+        return session.jdbcPool;
+    }
+
+    /**
+     * Returns the resource shared by the context and its forks. The resource is created by its public no-arg
+     * constructor on the first request.
+     *
+     * @param type the resource class
+     * @return the shared resource
+     */
+    public <T> T getSharedResource(Class<T> type) {
+        synchronized (session) {
+            Object r = session.resources.get(type);
+            if (r == null) {
+                try {
+                    r = type.newInstance();
+                } catch (InstantiationException e) {
+                    throw new InternalErrorException("Can't create the " + type.getName() + " resource.", e);
+                } catch (IllegalAccessException e) {
+                    throw new InternalErrorException("Can't create the " + type.getName() + " resource.", e);
+                }
+                session.resources.put(type, r);
+            }
+            return type.cast(r);
+        }
+    }
+
+    /**
+     * Releases the resources of the context and its forks (the HTTP connections of the GoodData APIs, the pooled
+     * JDBC connections and the closeable shared resources)
+     */
+    public void close() {
+        session.jdbcPool.close();
+        synchronized (session) {
+            if (session.webDAVApiWrapper != null) {
+                session.webDAVApiWrapper.shutdown();
+                session.webDAVApiWrapper = null;
+            }
+            if (session.restApi != null) {
+                session.restApi.shutdown();
+                session.restApi = null;
+            }
+            for (Object r : session.resources.values()) {
+                if (r instanceof Closeable) {
+                    try {
+                        ((Closeable) r).close();
+                    } catch (IOException e) {
+                        l.debug("Error closing " + r.getClass().getName() + ".", e);
+                    }
+                }
+            }
+            session.resources.clear();
         }
-        return webDAVApiWrapper;
     }
 
     private static void checkConfig(NamePasswordConfiguration config) {
@@ -34,6 +34,9 @@ import org.joda.time.format.DateTimeFormatter;
 
 /**
  * GoodData DATE transformations
+ * <p/>
+ * The values in the default date and datetime formats are computed by the {@link FastDateParser}, Joda
+ * parses the other formats.
  *
  * @author zd <zd@gooddata.com>
  * @version 1.0
@@ -50,6 +53,10 @@ public class DateArithmetics {
     public String computeDateFact(String dateValue, String format) {
         String ret = "";
         if (dateValue != null && dateValue.trim().length() > 0) {
+            String fact = FastDateParser.dateFact(dateValue, DateUtil.getFormatPattern(format, false));
+            if (fact != null) {
+                return fact;
+            }
             try {
                 DateTimeFormatter formatter = DateUtil.getDateFormatter(format, false);
                 DateTime dt = formatter.parseDateTime(dateValue);
@@ -69,6 +76,10 @@ public class DateArithmetics {
     public String computeTimeFact(String dateValue, String format) {
         String ret = "";
         if (dateValue != null && dateValue.trim().length() > 0) {
+            int fast = FastDateParser.secondOfDay(dateValue, DateUtil.getFormatPattern(format, true));
+            if (fast != FastDateParser.INVALID) {
+                return Integer.toString(fast);
+            }
             try {
                 DateTimeFormatter formatter = DateUtil.getDateFormatter(format, true);
                 DateTime dt = formatter.parseDateTime(dateValue);
@@ -85,9 +96,12 @@ public class DateArithmetics {
         String ret = "00";
         if (dateValue != null && dateValue.trim().length() > 0) {
             try {
-                DateTimeFormatter formatter = DateUtil.getDateFormatter(format, true);
-                DateTime dt = formatter.parseDateTime(dateValue);
-                int ts = dt.getSecondOfDay();
+                int ts = FastDateParser.secondOfDay(dateValue, DateUtil.getFormatPattern(format, true));
+                if (ts == FastDateParser.INVALID) {
+                    DateTimeFormatter formatter = DateUtil.getDateFormatter(format, true);
+                    DateTime dt = formatter.parseDateTime(dateValue);
+                    ts = dt.getSecondOfDay();
+                }
                 String scs = Integer.toString(ts);
                 ret = (scs.length() > 1) ? (scs) : ("0" + scs);
             } catch (IllegalArgumentException e) {
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.transform;
+
+import org.apache.commons.jexl2.Expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles the transformation expressions to trees of specialized nodes, so the per-row evaluation
+ * doesn't interpret the JEXL AST and the variables are resolved to the {@link TransformContext} slots.
+ * Only a subset of JEXL is supported: variables, string literals and the GdcDateArithmetics calls.
+ * Other expressions aren't compiled and must be evaluated by JEXL.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+final class ExpressionCompiler {
+
+    static final String DATE_ARITHMETICS = "GdcDateArithmetics";
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "or", "and", "eq", "ne", "lt", "gt", "le", "ge", "div", "mod", "not", "null", "true", "false",
+            "new", "empty", "size", "if", "else", "for", "foreach", "while", "function", "return", "var", "in"));
+
+    private final Map<String, Integer> slots;
+    private final DateArithmetics da;
+
+    // parser status
+    private String text;
+    private int pos;
+
+    /**
+     * Creates the compiler
+     *
+     * @param slots the variable slots, new variables are added
+     * @param da    the date arithmetics used by the compiled expressions
+     */
+    ExpressionCompiler(Map<String, Integer> slots, DateArithmetics da) {
+        this.slots = slots;
+        this.da = da;
+    }
+
+    /**
+     * Returns the slot of a variable, the slot is created if it doesn't exist
+     *
+     * @param name variable name
+     * @return the slot index
+     */
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Compiles the expression
+     *
+     * @param expression the expression text
+     * @param fallback   the JEXL expression used for the values the compiled expression can't handle
+     * @return the compiled expression or null if the expression isn't supported
+     */
+    CompiledExpression compile(String expression, Expression fallback) {
+        text = expression;
+        pos = 0;
+        final CompiledExpression e = parseTerm(fallback);
+        skipWhitespace();
+        return (e != null && pos == text.length()) ? e : null;
+    }
+
+    private CompiledExpression parseTerm(Expression fallback) {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            return null;
+        }
+        final char c = text.charAt(pos);
+        if (c == '"' || c == '\'') {
+            final int end = text.indexOf(c, pos + 1);
+            if (end < 0) {
+                return null;
+            }
+            final String value = text.substring(pos + 1, end);
+            if (value.indexOf('\\') >= 0) {
+                return null;
+            }
+            pos = end + 1;
+            return new Constant(value);
+        }
+        final String identifier = parseIdentifier();
+        if (identifier == null || KEYWORDS.contains(identifier)) {
+            return null;
+        }
+        skipWhitespace();
+        if (pos < text.length() && text.charAt(pos) == '.') {
+            pos++;
+            skipWhitespace();
+            final String method = parseIdentifier();
+            if (!DATE_ARITHMETICS.equals(identifier) || method == null) {
+                return null;
+            }
+            final List<CompiledExpression> args = parseArguments(fallback);
+            if (args == null) {
+                return null;
+            }
+            return DateCall.create(da, method, args, fallback);
+        }
+        return new Variable(slot(identifier));
+    }
+
+    private List<CompiledExpression> parseArguments(Expression fallback) {
+        skipWhitespace();
+        if (pos >= text.length() || text.charAt(pos) != '(') {
+            return null;
+        }
+        pos++;
+        final List<CompiledExpression> args = new ArrayList<CompiledExpression>();
+        skipWhitespace();
+        if (pos < text.length() && text.charAt(pos) == ')') {
+            pos++;
+            return args;
+        }
+        for (;;) {
+            final CompiledExpression arg = parseTerm(fallback);
+            if (arg == null) {
+                return null;
+            }
+            args.add(arg);
+            skipWhitespace();
+            if (pos >= text.length()) {
+                return null;
+            }
+            final char c = text.charAt(pos++);
+            if (c == ')') {
+                return args;
+            }
+            if (c != ',') {
+                return null;
+            }
+        }
+    }
+
+    private String parseIdentifier() {
+        final int start = pos;
+        if (pos < text.length() && Character.isJavaIdentifierStart(text.charAt(pos))) {
+            pos++;
+            while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+        return null;
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * A literal
+     */
+    private static final class Constant implements CompiledExpression {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        public Object evaluate(TransformContext ctx) {
+            return value;
+        }
+    }
+
+    /**
+     * A variable reference
+     */
+    private static final class Variable implements CompiledExpression {
+        private final int slot;
+
+        Variable(int slot) {
+            this.slot = slot;
+        }
+
+        public Object evaluate(TransformContext ctx) {
+            return ctx.get(slot);
+        }
+    }
+
+    /**
+     * A GdcDateArithmetics method call. Arguments that aren't strings are passed to the JEXL fallback.
+     */
+    private static final class DateCall implements CompiledExpression {
+        private static final int TODAY = 0;
+        private static final int DATE_FACT = 1;
+        private static final int TIME_FACT = 2;
+        private static final int TIME_ATTRIBUTE = 3;
+
+        private final DateArithmetics da;
+        private final int method;
+        private final CompiledExpression value;
+        private final CompiledExpression format;
+        private final Expression fallback;
+
+        private DateCall(DateArithmetics da, int method, CompiledExpression value, CompiledExpression format,
+                         Expression fallback) {
+            this.da = da;
+            this.method = method;
+            this.value = value;
+            this.format = format;
+            this.fallback = fallback;
+        }
+
+        static DateCall create(DateArithmetics da, String method, List<CompiledExpression> args, Expression fallback) {
+            if ("today".equals(method) && args.size() == 0) {
+                return new DateCall(da, TODAY, null, null, fallback);
+            }
+            if (args.size() != 2) {
+                return null;
+            }
+            if ("computeDateFact".equals(method)) {
+                return new DateCall(da, DATE_FACT, args.get(0), args.get(1), fallback);
+            } else if ("computeTimeFact".equals(method)) {
+                return new DateCall(da, TIME_FACT, args.get(0), args.get(1), fallback);
+            } else if ("computeTimeAttribute".equals(method)) {
+                return new DateCall(da, TIME_ATTRIBUTE, args.get(0), args.get(1), fallback);
+            }
+            return null;
+        }
+
+        public Object evaluate(TransformContext ctx) {
+            if (method == TODAY) {
+                return da.today();
+            }
+            final Object v = value.evaluate(ctx);
+            final Object f = format.evaluate(ctx);
+            if ((v != null && !(v instanceof String)) || (f != null && !(f instanceof String))) {
+                return fallback.evaluate(ctx);
+            }
+            switch (method) {
+                case DATE_FACT:
+                    return da.computeDateFact((String) v, (String) f);
+                case TIME_FACT:
+                    return da.computeTimeFact((String) v, (String) f);
+                default:
+                    return da.computeTimeAttribute((String) v, (String) f);
+            }
+        }
+    }
+}
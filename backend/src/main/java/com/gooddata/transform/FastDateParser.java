@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.transform;
+
+import com.gooddata.Constants;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+
+/**
+ * Parses the default date (yyyy-MM-dd) and datetime (yyyy-MM-dd HH:mm:ss) formats without Joda. The day
+ * numbers are computed arithmetically (proleptic Gregorian calendar, the same as the Joda ISO chronology)
+ * and cached per thread, the date columns usually contain only a few distinct values. The values that
+ * don't have the exact default form and the dates close to a time zone offset transition (where Joda
+ * rejects the non-existent local times) aren't parsed, the caller has to use the Joda formatter for them.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+final class FastDateParser {
+
+    /**
+     * Returned for values that can't be parsed here
+     */
+    static final int INVALID = Integer.MIN_VALUE;
+
+    private static final int DATE_LENGTH = Constants.DEFAULT_DATE_FMT_STRING.length();
+    private static final int DATETIME_LENGTH = Constants.DEFAULT_DATETIME_FMT_STRING.length();
+
+    // number of cached dates per thread (power of 2)
+    private static final int CACHE_SIZE = 4096;
+
+    private static final long DAY_MILLIS = 86400000L;
+
+    // the day number of 1900-01-01 is 1
+    private static final int BASE = daysFromEpoch(1900, 1, 1) - 1;
+
+    private static final ThreadLocal<DayCache> caches = new ThreadLocal<DayCache>() {
+        protected DayCache initialValue() {
+            return new DayCache();
+        }
+    };
+
+    private FastDateParser() {
+    }
+
+    /**
+     * Computes the GoodData date fact (1900-01-01 is 1)
+     *
+     * @param value  the date value
+     * @param format the date pattern
+     * @return the date fact or null if the value must be parsed by Joda
+     */
+    static String dateFact(String value, String format) {
+        if (!hasFormat(value, format)) {
+            return null;
+        }
+        int ts = 0;
+        if (value.length() == DATETIME_LENGTH) {
+            ts = secondOfDay(value);
+            if (ts == INVALID) {
+                return null;
+            }
+        }
+        DayCache cache = caches.get();
+        int slot = lookup(cache, value);
+        if (slot < 0) {
+            return null;
+        }
+        if (ts > 0 && cache.days[slot] <= 0) {
+            // Joda truncates the negative day differences towards zero
+            return Integer.toString(cache.days[slot] + 1);
+        }
+        return cache.facts[slot];
+    }
+
+    /**
+     * Computes the second of day of a datetime value
+     *
+     * @param value  the datetime value
+     * @param format the date pattern
+     * @return the second of day or INVALID if the value must be parsed by Joda
+     */
+    static int secondOfDay(String value, String format) {
+        if (!Constants.DEFAULT_DATETIME_FMT_STRING.equals(format) || value.length() != DATETIME_LENGTH) {
+            return INVALID;
+        }
+        int ts = secondOfDay(value);
+        if (ts == INVALID || lookup(caches.get(), value) < 0) {
+            return INVALID;
+        }
+        return ts;
+    }
+
+    /**
+     * Computes the day number of a date
+     *
+     * @param year  year (0-9999)
+     * @param month month (1-12)
+     * @param day   day of month
+     * @return the GoodData day number (1900-01-01 is 1)
+     */
+    static int dayNumber(int year, int month, int day) {
+        return daysFromEpoch(year, month, day) - BASE;
+    }
+
+    private static boolean hasFormat(String value, String format) {
+        if (Constants.DEFAULT_DATE_FMT_STRING.equals(format)) {
+            return value.length() == DATE_LENGTH;
+        }
+        if (Constants.DEFAULT_DATETIME_FMT_STRING.equals(format)) {
+            return value.length() == DATETIME_LENGTH;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the cached date fact of the date part of the value, the value is parsed if it isn't cached
+     *
+     * @param cache the thread's cache
+     * @param value the value starting with yyyy-MM-dd
+     * @return the cache slot or -1 if the value must be parsed by Joda
+     */
+    private static int lookup(DayCache cache, String value) {
+        DateTimeZone zone = DateTimeZone.getDefault();
+        if (cache.zone != zone) {
+            cache.clear(zone);
+        }
+        int h = 0;
+        for (int i = 0; i < DATE_LENGTH; i++) {
+            h = 31 * h + value.charAt(i);
+        }
+        int slot = (h ^ (h >>> 16)) & (CACHE_SIZE - 1);
+        String key = cache.keys[slot];
+        if (key != null && value.regionMatches(0, key, 0, DATE_LENGTH)) {
+            return (cache.transition[slot]) ? (-1) : (slot);
+        }
+        int days = parseDate(value);
+        if (days == INVALID) {
+            return -1;
+        }
+        long local = (long) (days + BASE) * DAY_MILLIS;
+        cache.transition[slot] = !zone.isFixed() && zone.nextTransition(local - 2 * DAY_MILLIS) < local + 2 * DAY_MILLIS;
+        cache.keys[slot] = (value.length() == DATE_LENGTH) ? (value) : (value.substring(0, DATE_LENGTH));
+        cache.facts[slot] = Integer.toString(days);
+        cache.days[slot] = days;
+        return (cache.transition[slot]) ? (-1) : (slot);
+    }
+
+    private static int parseDate(String value) {
+        if (value.charAt(4) != '-' || value.charAt(7) != '-') {
+            return INVALID;
+        }
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID;
+        }
+        return dayNumber(year, month, day);
+    }
+
+    private static int secondOfDay(String value) {
+        if (value.charAt(10) != ' ' || value.charAt(13) != ':' || value.charAt(16) != ':') {
+            return INVALID;
+        }
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return INVALID;
+        }
+        return hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * Parses ASCII digits
+     *
+     * @return the number or -1 if there is a non-digit character
+     */
+    private static int digits(String value, int start, int length) {
+        int n = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar
+     */
+    private static int daysFromEpoch(int year, int month, int day) {
+        int y = (month <= 2) ? (year - 1) : (year);
+        int era = ((y >= 0) ? (y) : (y - 399)) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Direct mapped cache of the date facts
+     */
+    private static final class DayCache {
+        private final String[] keys = new String[CACHE_SIZE];
+        private final String[] facts = new String[CACHE_SIZE];
+        private final int[] days = new int[CACHE_SIZE];
+        private final boolean[] transition = new boolean[CACHE_SIZE];
+        private DateTimeZone zone;
+
+        private void clear(DateTimeZone zone) {
+            Arrays.fill(keys, null);
+            this.zone = zone;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.transform;
+
+import org.apache.commons.jexl2.JexlContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The variables of a transformed row. The variables known at the schema load time are stored in an array
+ * and accessed by their slot index, the context is reused for all rows.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+final class TransformContext implements JexlContext {
+
+    private final Map<String, Integer> slots;
+    private final Object[] values;
+    private final boolean[] defined;
+
+    // variables without a slot (e.g. assigned by a script)
+    private Map<String, Object> others;
+
+    /**
+     * Creates the context
+     *
+     * @param slots variable names and their slot indexes (0..n-1)
+     */
+    TransformContext(Map<String, Integer> slots) {
+        this.slots = slots;
+        this.values = new Object[slots.size()];
+        this.defined = new boolean[slots.size()];
+    }
+
+    /**
+     * Removes all variables
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(defined, false);
+        others = null;
+    }
+
+    Object get(int slot) {
+        return values[slot];
+    }
+
+    void set(int slot, Object value) {
+        values[slot] = value;
+        defined[slot] = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object get(String name) {
+        final Integer slot = slots.get(name);
+        if (slot != null) {
+            return values[slot];
+        }
+        return (others != null) ? others.get(name) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void set(String name, Object value) {
+        final Integer slot = slots.get(name);
+        if (slot != null) {
+            set(slot, value);
+        } else {
+            if (others == null) {
+                others = new HashMap<String, Object>();
+            }
+            others.put(name, value);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean has(String name) {
+        final Integer slot = slots.get(name);
+        if (slot != null) {
+            return defined[slot];
+        }
+        return others != null && others.containsKey(name);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.transform;
+
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+
+import java.util.List;
+
+/**
+ * The column roles of a schema resolved once when the {@link Transformer} schema is set, so that the row
+ * transformation doesn't walk the schema columns nor compare the LDM type strings for every row.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+final class TransformPlan {
+
+    /** the column value is formatted as a number */
+    static final int FACT = 1;
+    /** the column value is formatted and cut as a date */
+    static final int DATE = 2;
+    /** the column value is a part of the identity key */
+    static final int IDENTITY_KEY = 4;
+    /** the column is not sent to the output */
+    static final int IGNORE = 8;
+    /** the column value is computed by a transformation */
+    static final int COMPUTED = 16;
+
+    private final SourceColumn[] columns;
+    private final int[] roles;
+    private final int coreCount;
+    private final int outputCount;
+    private final boolean computeIdentity;
+
+    /**
+     * Builds the plan
+     *
+     * @param schema the transformed schema
+     */
+    TransformPlan(SourceSchema schema) {
+        List<SourceColumn> cols = schema.getColumns();
+        columns = cols.toArray(new SourceColumn[cols.size()]);
+        roles = new int[columns.length];
+        int core = 0;
+        int output = 0;
+        for (int i = 0; i < columns.length; i++) {
+            SourceColumn c = columns[i];
+            String type = c.getLdmType();
+            int r = 0;
+            if (c.getTransformation() != null) {
+                r |= COMPUTED;
+            } else {
+                core++;
+                if (SourceColumn.LDM_TYPE_FACT.equalsIgnoreCase(type))
+                    r |= FACT;
+                if (SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(type))
+                    r |= DATE;
+                if (SourceColumn.LDM_TYPE_ATTRIBUTE.equalsIgnoreCase(type) ||
+                        SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(type) ||
+                        SourceColumn.LDM_TYPE_REFERENCE.equalsIgnoreCase(type))
+                    r |= IDENTITY_KEY;
+            }
+            if (SourceColumn.LDM_TYPE_IGNORE.equalsIgnoreCase(type))
+                r |= IGNORE;
+            else
+                output++;
+            roles[i] = r;
+        }
+        coreCount = core;
+        outputCount = output;
+        computeIdentity = (schema.getIdentityColumn() >= 0);
+    }
+
+    /**
+     * Returns the number of schema columns
+     *
+     * @return number of columns
+     */
+    int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Returns the schema column
+     *
+     * @param i column index
+     * @return the column
+     */
+    SourceColumn getColumn(int i) {
+        return columns[i];
+    }
+
+    /**
+     * Tests the column role
+     *
+     * @param i    column index
+     * @param role one of the role constants
+     * @return true if the column has the role
+     */
+    boolean is(int i, int role) {
+        return (roles[i] & role) != 0;
+    }
+
+    /**
+     * Returns the number of core (non-transformed) columns, i.e. the expected length of the input row
+     *
+     * @return number of core columns
+     */
+    int getCoreCount() {
+        return coreCount;
+    }
+
+    /**
+     * Returns the number of columns that aren't ignored
+     *
+     * @return number of output columns
+     */
+    int getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * Returns true if the schema has an IDENTITY connection point
+     *
+     * @return true if the identity needs to be computed
+     */
+    boolean isComputeIdentity() {
+        return computeIdentity;
+    }
+}
@@ -30,9 +30,7 @@ import com.gooddata.modeling.model.SourceSchema;
 import com.gooddata.util.DateUtil;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.jexl2.Expression;
-import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
-import org.apache.commons.jexl2.MapContext;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
@@ -41,10 +39,17 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * GoodData transformation
+ * <p/>
+ * The transformation expressions are compiled once per schema (see {@link ExpressionCompiler}), JEXL
+ * evaluates only the expressions that can't be compiled. The row variables live in a reused
+ * {@link TransformContext} with the column names resolved to array slots. The column roles are resolved
+ * to a {@link TransformPlan} when the schema is set.
  *
  * @author zd <zd@gooddata.com>
  * @version 1.0
@@ -54,8 +59,19 @@ public class Transformer {
     private static Logger l = Logger.getLogger(Transformer.class);
 
     private Expression[] expressions;
+    private CompiledExpression[] compiled;
     private SourceSchema schema;
 
+    // the row variables
+    private TransformContext context;
+    private int[] columnSlots;
+    private int identitySlot;
+    private int dateArithmeticsSlot;
+    private final StringBuilder identityKey = new StringBuilder();
+
+    // the column roles
+    private TransformPlan plan;
+
     protected Transformer(SourceSchema schema) {
         setSchema(schema);
     }
@@ -101,31 +117,30 @@ public class Transformer {
     public String[] transformRow(Object[] row, int dateLength) {
         try {
             if (row != null) {
-                List<SourceColumn> columns = schema.getColumns();
-                boolean computeIdentity = (schema.getIdentityColumn() >= 0);
+                final TransformPlan p = plan;
+                final int cnt = p.getColumnCount();
+                final boolean computeIdentity = p.isComputeIdentity();
                 int idx = 0;
-                String key = "";
-                JexlContext jc = new MapContext();
-                for (int i = 0; i < columns.size(); i++) {
-                    SourceColumn c = columns.get(i);
-                    String t = c.getTransformation();
-                    if (t == null) {
+                StringBuilder key = identityKey;
+                key.setLength(0);
+                TransformContext jc = context;
+                jc.clear();
+                for (int i = 0; i < cnt; i++) {
+                    if (!p.is(i, TransformPlan.COMPUTED)) {
                         // this is core (non-transformed) column
                         if (idx < row.length) {
-                            if (SourceColumn.LDM_TYPE_FACT.equalsIgnoreCase(c.getLdmType())) {
+                            if (p.is(i, TransformPlan.FACT)) {
                                 row[idx] = handleFact(row[idx]);
                             }
-                            if (SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(c.getLdmType())) {
-                                row[idx] = handleDate(row[idx], c);
+                            if (p.is(i, TransformPlan.DATE)) {
+                                row[idx] = handleDate(row[idx], p.getColumn(i));
                                 row[idx] = cutStringDate(row[idx], dateLength);
                             }
                             // compute identity if required
-                            if (computeIdentity && SourceColumn.LDM_TYPE_ATTRIBUTE.equalsIgnoreCase(c.getLdmType()) ||
-                                    SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(c.getLdmType()) ||
-                                    SourceColumn.LDM_TYPE_REFERENCE.equalsIgnoreCase(c.getLdmType())) {
-                                key += row[idx] + "|";
+                            if (computeIdentity && p.is(i, TransformPlan.IDENTITY_KEY)) {
+                                key.append(row[idx]).append('|');
                             }
-                            jc.set(c.getName(), (row[idx] != null) ? (row[idx]) : (""));
+                            jc.set(columnSlots[i], (row[idx] != null) ? (row[idx]) : (""));
                             idx++;
                         } else {
                             throw new InvalidParameterException("Transform: The schema " + schema.getName() + " contains different" +
@@ -135,42 +150,38 @@ public class Transformer {
                 }
                 // insert identity var
                 if (computeIdentity) {
-                    String identity = DigestUtils.md5Hex(key);
-                    jc.set("IDENTITY", identity);
+                    String identity = DigestUtils.md5Hex(key.toString());
+                    jc.set(identitySlot, identity);
                 }
 
-                jc.set("GdcDateArithmetics", da);
+                jc.set(dateArithmeticsSlot, da);
 
-
-                idx = 0;
-                int cntWithoutIgnored = columns.size();
-                List<SourceColumn> ignored = schema.getIgnored();
-                if (ignored != null)
-                    cntWithoutIgnored -= ignored.size();
-                List<String> nrow = new ArrayList<String>(cntWithoutIgnored);
-                for (int i = 0; i < columns.size(); i++) {
-                    SourceColumn c = columns.get(i);
-                    String t = c.getTransformation();
-                    //System.err.println("Column "+c.getName()+" tx:"+c.getTransformation());
-                    String cid = c.getName();
-                    if (!SourceColumn.LDM_TYPE_IGNORE.equalsIgnoreCase(c.getLdmType())) {
-                        if (t == null) {
-                            Object value = jc.get(cid);
+                String[] nrow = new String[p.getOutputCount()];
+                int n = 0;
+                for (int i = 0; i < cnt; i++) {
+                    if (!p.is(i, TransformPlan.IGNORE)) {
+                        if (!p.is(i, TransformPlan.COMPUTED)) {
+                            Object value = jc.get(columnSlots[i]);
                             if (value != null) {
-                                nrow.add(value.toString());
+                                nrow[n++] = value.toString();
                             } else {
-                                l.debug("The column " + cid + " doesn't contain any value.");
+                                l.debug("The column " + p.getColumn(i).getName() + " doesn't contain any value.");
                             }
 
                         } else {
-                            Object result = expressions[i].evaluate(jc);
+                            Object result = (compiled[i] != null) ? compiled[i].evaluate(jc) : expressions[i].evaluate(jc);
                             String value = (result != null) ? (result.toString()) : ("");
-                            nrow.add(value);
-                            jc.set(cid, result);
+                            nrow[n++] = value;
+                            jc.set(columnSlots[i], result);
                         }
                     }
                 }
-                return nrow.toArray(fk);
+                if (n < nrow.length) {
+                    String[] r = new String[n];
+                    System.arraycopy(nrow, 0, r, 0, n);
+                    return r;
+                }
+                return nrow;
             } else {
                 throw new InvalidParameterException("The number of columns in the transformed row is different than in the schema.");
             }
@@ -255,17 +266,38 @@ public class Transformer {
             if (schema != null) {
                 List<SourceColumn> columns = schema.getColumns();
                 if (columns != null & columns.size() > 0) {
+                    Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+                    ExpressionCompiler compiler = new ExpressionCompiler(slots, da);
+                    int[] cs = new int[columns.size()];
+                    for (int i = 0; i < columns.size(); i++) {
+                        SourceColumn c = columns.get(i);
+                        if (c != null) {
+                            cs[i] = compiler.slot(c.getName());
+                        }
+                    }
+                    identitySlot = compiler.slot(SourceColumn.LDM_IDENTITY);
+                    dateArithmeticsSlot = compiler.slot(ExpressionCompiler.DATE_ARITHMETICS);
                     Expression[] es = new Expression[columns.size()];
+                    CompiledExpression[] ces = new CompiledExpression[columns.size()];
                     for (int i = 0; i < columns.size(); i++) {
                         SourceColumn c = columns.get(i);
                         if (c != null) {
                             String t = c.getTransformation();
                             if (t != null) {
                                 es[i] = jexl.createExpression(t);
+                                ces[i] = compiler.compile(t, es[i]);
+                                if (ces[i] == null) {
+                                    l.debug("The transformation " + t + " can't be compiled, JEXL is going to evaluate it.");
+                                }
                             }
                         }
                     }
                     setExpressions(es);
+                    compiled = ces;
+                    columnSlots = cs;
+                    context = new TransformContext(slots);
+                    plan = new TransformPlan(schema);
+                    schema.precompileDateFormats();
                     this.schema = schema;
                 } else {
                     throw new InvalidParameterException("The Transformer requires a non-empty schema to run.");
@@ -278,6 +310,20 @@ public class Transformer {
         }
     }
 
+    /**
+     * Returns the number of compiled transformations
+     *
+     * @return number of transformations that JEXL doesn't evaluate
+     */
+    int getCompiledCount() {
+        int cnt = 0;
+        for (CompiledExpression e : compiled) {
+            if (e != null)
+                cnt++;
+        }
+        return cnt;
+    }
+
     protected Expression[] getExpressions() {
         return expressions;
     }
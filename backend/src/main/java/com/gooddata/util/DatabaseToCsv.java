@@ -22,16 +22,36 @@
  */
 package com.gooddata.util;
 
+import com.gooddata.connector.JdbcExtractionPlan;
+import com.gooddata.exception.InternalErrorException;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Unloads all tables in a database to set of CSV files
+ * <p/>
+ * The tables are exported by a pool of threads, every thread reuses its connection. The largest tables
+ * (by the row count estimates from the database statistics) are exported first so that they don't
+ * finish last.
  *
  * @author zd@gooddata.com
  * @version: 1.0
@@ -42,11 +62,23 @@ public class DatabaseToCsv {
 
     private static final int FETCH_SIZE = 256;
 
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private String jdbcDriver;
     private String jdbcUrl;
     private String jdbcUsername;
     private String jdbcPassword;
 
+    private int parallelism = 1;
+    private int fetchSize = FETCH_SIZE;
+    private boolean compress = false;
+
+    // the idle connections, there is at most one connection per export thread
+    private final BlockingQueue<Connection> connections = new LinkedBlockingQueue<Connection>();
+
+    // the connections shared by the commands of a script (null means new connections)
+    private JdbcConnectionPool connectionPool;
+
 
     /**
      * Constructor
@@ -82,11 +114,50 @@ public class DatabaseToCsv {
      * @throws SQLException
      */
     public Connection connect() throws SQLException {
+        if (connectionPool != null)
+            return connectionPool.getConnection(getJdbcUrl(), getJdbcUsername(), getJdbcPassword());
         return DriverManager.getConnection(getJdbcUrl(), getJdbcUsername(), getJdbcPassword());
     }
 
-    private List<String> listSourceTables() throws SQLException {
-        List<String> r = new ArrayList<String>();
+    /**
+     * Returns an idle connection or opens a new one
+     *
+     * @return database connection
+     * @throws SQLException in case of a DB issue
+     */
+    private Connection borrowConnection() throws SQLException {
+        Connection con = connections.poll();
+        if (con == null) {
+            con = connect();
+            // e.g. the PostgreSQL driver fetches the rows in batches only outside of the auto-commit mode
+            con.setAutoCommit(false);
+        }
+        return con;
+    }
+
+    /**
+     * Returns the connection to the idle connections or closes it
+     *
+     * @param con   database connection
+     * @param reuse false closes the connection
+     */
+    private void releaseConnection(Connection con, boolean reuse) {
+        if (reuse) {
+            connections.add(con);
+            return;
+        }
+        try {
+            if (!con.isClosed()) {
+                con.rollback();
+                con.close();
+            }
+        } catch (SQLException e) {
+            l.debug("Error closing JDBC connection.", e);
+        }
+    }
+
+    private List<SourceTable> listSourceTables() throws SQLException {
+        List<SourceTable> r = new ArrayList<SourceTable>();
         Connection con = null;
         DatabaseMetaData md = null;
         ResultSet rs = null;
@@ -95,12 +166,18 @@ public class DatabaseToCsv {
             md = con.getMetaData();
             rs = md.getTables(null, null, "%", null);
             while (rs.next()) {
+                String tableSchema = rs.getString(2);
                 String tableName = rs.getString(3);
                 String tableType = rs.getString(4);
                 if (tableType.equalsIgnoreCase("table")) {
-                    r.add(tableName);
+                    r.add(new SourceTable(tableSchema, tableName));
                 }
             }
+            rs.close();
+            rs = null;
+            for (SourceTable t : r) {
+                t.estimatedRows = estimateRows(md, t);
+            }
         } finally {
             if (rs != null)
                 rs.close();
@@ -110,6 +187,34 @@ public class DatabaseToCsv {
         return r;
     }
 
+    /**
+     * Estimates the number of table rows from the database statistics
+     *
+     * @param md    database metadata
+     * @param table the table
+     * @return the estimated number of rows, -1 if the database doesn't provide the statistics
+     */
+    private static long estimateRows(DatabaseMetaData md, SourceTable table) {
+        ResultSet rs = null;
+        try {
+            rs = md.getIndexInfo(null, table.schema, table.name, false, true);
+            while (rs.next()) {
+                if (rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic)
+                    return rs.getLong("CARDINALITY");
+            }
+        } catch (SQLException e) {
+            l.debug("Can't estimate the size of the table " + table.name + ".", e);
+        } finally {
+            try {
+                if (rs != null)
+                    rs.close();
+            } catch (SQLException e) {
+                l.debug("Error closing the index info.", e);
+            }
+        }
+        return -1;
+    }
+
     /**
      * Export all DB tables to CSVs
      *
@@ -117,24 +222,75 @@ public class DatabaseToCsv {
      * @throws SQLException
      * @throws IOException
      */
-    public void export(String dir) throws SQLException, IOException {
-        List<String> tables = listSourceTables();
-        for (String table : tables) {
-            exportTable(table, dir + System.getProperty("file.separator") + table + ".csv");
+    public void export(final String dir) throws SQLException, IOException {
+        List<SourceTable> tables = listSourceTables();
+        // the largest tables first, the tables without the statistics last in the original order
+        Collections.sort(tables, new Comparator<SourceTable>() {
+            public int compare(SourceTable a, SourceTable b) {
+                return (a.estimatedRows > b.estimatedRows) ? (-1) : ((a.estimatedRows < b.estimatedRows) ? (1) : (0));
+            }
+        });
+        final int total = tables.size();
+        final AtomicInteger exported = new AtomicInteger();
+        l.info("Exporting " + total + " tables using " + parallelism + " connections.");
+        final long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final SourceTable table : tables) {
+                results.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        String csvName = dir + System.getProperty("file.separator") + table.name +
+                                ((compress) ? (".csv.gz") : (".csv"));
+                        long rows = exportTable(table, csvName);
+                        l.info("Exported " + exported.incrementAndGet() + " of " + total + " tables.");
+                        return rows;
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> f : results) {
+                rows += f.get();
+            }
+            l.info("Exported " + total + " tables (" + rows + " rows) in " +
+                    (System.currentTimeMillis() - start) / 1000 + " s.");
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The table export has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new InternalErrorException(cause);
+        } finally {
+            pool.shutdownNow();
+            Connection con;
+            while ((con = connections.poll()) != null) {
+                releaseConnection(con, false);
+            }
         }
     }
 
-    private void exportTable(String tableName, String csvName) throws SQLException, IOException {
-        l.info("Exporting table " + tableName + " to " + csvName);
-        Connection con = null;
+    private long exportTable(SourceTable table, String csvName) throws SQLException, IOException {
+        l.info("Exporting table " + table.name + " to " + csvName +
+                ((table.estimatedRows >= 0) ? (" (about " + table.estimatedRows + " rows)") : ("")));
+        final long start = System.currentTimeMillis();
+        Connection con = borrowConnection();
+        boolean reuse = false;
         Statement st = null;
         ResultSet rs = null;
-        CSVWriter cw = FileUtil.createUtf8CsvEscapingWriter(new File(csvName));
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(csvName)), STREAM_BUFFER_SIZE);
+        if (compress)
+            os = new GZIPOutputStream(os, STREAM_BUFFER_SIZE);
+        CSVWriter cw = FileUtil.createUtf8CsvEscapingWriter(os);
+        long rows = 0;
         try {
-            con = connect();
             st = con.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
-            st.setFetchSize(FETCH_SIZE);
-            rs = st.executeQuery("SELECT * FROM " + tableName);
+            st.setFetchSize(fetchSize);
+            rs = st.executeQuery("SELECT * FROM " + table.name);
             ResultSetMetaData md = rs.getMetaData();
             int cnt = md.getColumnCount();
             String[] row = new String[cnt];
@@ -142,22 +298,42 @@ public class DatabaseToCsv {
                 row[i - 1] = md.getColumnName(i);
             }
             cw.writeNext(row);
+            JdbcExtractionPlan plan = JdbcExtractionPlan.createExport(md);
             while (rs.next()) {
-                for (int i = 1; i <= cnt; i++) {
-                    row[i - 1] = rs.getString(i);
-                    if (row[i - 1] == null || rs.wasNull())
-                        row[i - 1] = "";
-                }
-                cw.writeNext(row);
+                plan.read(rs);
+                cw.writeNext(plan.toRow());
+                rows++;
             }
-            cw.flush();
-            cw.close();
-            l.info("Exported table " + tableName + " to " + csvName);
+            rs.close();
+            rs = null;
+            st.close();
+            st = null;
+            con.commit();
+            reuse = true;
         } finally {
+            cw.close();
             if (rs != null)
                 rs.close();
-            if (con != null)
-                con.close();
+            if (st != null)
+                st.close();
+            releaseConnection(con, reuse);
+        }
+        l.info("Exported table " + table.name + " to " + csvName + " (" + rows + " rows in " +
+                (System.currentTimeMillis() - start) / 1000 + " s)");
+        return rows;
+    }
+
+    /**
+     * The exported table
+     */
+    private static class SourceTable {
+        private final String schema;
+        private final String name;
+        private long estimatedRows = -1;
+
+        SourceTable(String schema, String name) {
+            this.schema = schema;
+            this.name = name;
         }
     }
 
@@ -194,5 +370,52 @@ public class DatabaseToCsv {
         this.jdbcPassword = jdbcPassword;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of tables exported at once
+     *
+     * @param parallelism number of export threads (and connections)
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Sets the gzip compression of the CSV files
+     *
+     * @param compress when true, the tables are exported to the .csv.gz files
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public JdbcConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Sets the connection pool
+     *
+     * @param connectionPool the pool that the closed connections return to (null for no pooling)
+     */
+    public void setConnectionPool(JdbcConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
 
 }
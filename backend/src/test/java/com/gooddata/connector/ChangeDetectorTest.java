@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Row-level change detection
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class ChangeDetectorTest {
+
+    private File storeFile;
+
+    @Before
+    public void setUp() throws IOException {
+        storeFile = File.createTempFile("gdc-fingerprints", ".store");
+        storeFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        storeFile.delete();
+    }
+
+    private static SourceSchema schema() {
+        SourceSchema s = SourceSchema.createSchema("orders");
+        s.addColumn(new SourceColumn("note", SourceColumn.LDM_TYPE_IGNORE, "Note"));
+        s.addColumn(new SourceColumn("amount", SourceColumn.LDM_TYPE_FACT, "Amount"));
+        s.addColumn(new SourceColumn("id", SourceColumn.LDM_TYPE_CONNECTION_POINT, "Id"));
+        return s;
+    }
+
+    @Test
+    public void testNoConnectionPoint() throws IOException {
+        SourceSchema s = SourceSchema.createSchema("orders");
+        s.addColumn(new SourceColumn("amount", SourceColumn.LDM_TYPE_FACT, "Amount"));
+        try {
+            ChangeDetector.open(s, storeFile);
+            fail("The change detection requires a connection point.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChangedRows() throws IOException {
+        ChangeDetector d = ChangeDetector.open(schema(), storeFile);
+        assertFalse(d.hasPreviousLoad());
+        assertTrue(d.accept(new String[]{"10", "1"}));
+        assertTrue(d.accept(new String[]{"20", "2"}));
+        d.commit();
+
+        d = ChangeDetector.open(schema(), storeFile);
+        assertTrue(d.hasPreviousLoad());
+        assertFalse(d.accept(new String[]{"10", "1"}));
+        assertTrue(d.accept(new String[]{"25", "2"}));
+        assertTrue(d.accept(new String[]{"30", "3"}));
+        // the failed load doesn't change the fingerprints
+        d.rollback();
+
+        d = ChangeDetector.open(schema(), storeFile);
+        assertFalse(d.accept(new String[]{"10", "1"}));
+        assertTrue(d.accept(new String[]{"25", "2"}));
+        assertTrue(d.accept(new String[]{"30", "3"}));
+        d.commit();
+
+        d = ChangeDetector.open(schema(), storeFile);
+        assertFalse(d.accept(new String[]{"25", "2"}));
+        assertFalse(d.accept(new String[]{"30", "3"}));
+        d.rollback();
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import com.gooddata.transform.Transformer;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Typed JDBC extraction
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class JdbcExtractionPlanTest {
+
+    private static final int[] TYPES = new int[]{Types.INTEGER, Types.VARCHAR, Types.DECIMAL, Types.TIMESTAMP, Types.DOUBLE};
+
+    private static final Timestamp TS = Timestamp.valueOf("2011-03-05 10:20:30");
+
+    /**
+     * Creates a single row result set with the values of the {@link #TYPES} columns
+     */
+    private static ResultSet resultSet(final Object[] row) {
+        final ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(),
+                new Class[]{ResultSetMetaData.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getColumnCount".equals(method.getName()))
+                            return TYPES.length;
+                        if ("getColumnType".equals(method.getName()))
+                            return TYPES[(Integer) args[0] - 1];
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[]{ResultSet.class},
+                new InvocationHandler() {
+                    private Object last;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String m = method.getName();
+                        if ("getMetaData".equals(m))
+                            return md;
+                        if ("wasNull".equals(m))
+                            return last == null;
+                        last = row[(Integer) args[0] - 1];
+                        if ("getLong".equals(m))
+                            return (last != null) ? (((Number) last).longValue()) : (0L);
+                        if ("getDouble".equals(m))
+                            return (last != null) ? (((Number) last).doubleValue()) : (0d);
+                        if ("getString".equals(m) || "getBigDecimal".equals(m) || "getTimestamp".equals(m))
+                            return last;
+                        throw new UnsupportedOperationException(m);
+                    }
+                });
+    }
+
+    private static SourceSchema schema(String transformation) {
+        SourceSchema s = SourceSchema.createSchema("orders");
+        s.addColumn(new SourceColumn("id", SourceColumn.LDM_TYPE_CONNECTION_POINT, "Id"));
+        s.addColumn(new SourceColumn("name", SourceColumn.LDM_TYPE_IGNORE, "Name"));
+        s.addColumn(new SourceColumn("amount", SourceColumn.LDM_TYPE_FACT, "Amount"));
+        SourceColumn created = new SourceColumn("created", SourceColumn.LDM_TYPE_DATE, "Created");
+        created.setFormat("yyyy-MM-dd");
+        s.addColumn(created);
+        s.addColumn(new SourceColumn("rate", SourceColumn.LDM_TYPE_FACT, "Rate"));
+        if (transformation != null) {
+            SourceColumn c = new SourceColumn("computed", SourceColumn.LDM_TYPE_ATTRIBUTE, "Computed");
+            c.setTransformation(transformation);
+            s.addColumn(c);
+        }
+        return s;
+    }
+
+    private static String[] extract(SourceSchema s, boolean transform, Object[] row, boolean direct) throws SQLException {
+        ResultSet rs = resultSet(row);
+        JdbcExtractionPlan plan = JdbcExtractionPlan.create(rs.getMetaData(), Transformer.create(s), transform);
+        if (direct)
+            assertTrue(plan.isDirect());
+        else
+            assertFalse(plan.isDirect());
+        plan.read(rs);
+        return plan.toRow();
+    }
+
+    @Test
+    public void testDirect() throws SQLException {
+        assertArrayEquals(new String[]{"1", "10.50", "2011-03-05", "0.25"},
+                extract(schema(null), true, new Object[]{1, "a", new BigDecimal("10.50"), TS, 0.25}, true));
+        assertArrayEquals(new String[]{"2", "", "", ""},
+                extract(schema(null), true, new Object[]{2L, null, null, null, null}, true));
+    }
+
+    @Test
+    public void testMatchesTransformer() throws SQLException {
+        Object[] row = new Object[]{1, "a", new BigDecimal("10.50"), TS, 0.25};
+        String[] direct = extract(schema(null), true, row, true);
+        String[] transformed = extract(schema("id"), true, row, false);
+        assertArrayEquals(new String[]{"1", "10.50", "2011-03-05", "0.25", "1"}, transformed);
+        String[] expected = new String[transformed.length - 1];
+        System.arraycopy(transformed, 0, expected, 0, expected.length);
+        assertArrayEquals(expected, direct);
+    }
+
+    @Test
+    public void testExport() throws SQLException {
+        ResultSet rs = resultSet(new Object[]{1, "a", new BigDecimal("10.50"), TS, null});
+        JdbcExtractionPlan plan = JdbcExtractionPlan.createExport(rs.getMetaData());
+        plan.read(rs);
+        assertArrayEquals(new String[]{"1", "a", "10.50", "2011-03-05 10:20:30", ""}, plan.toRow());
+    }
+
+    @Test
+    public void testExportFraction() throws SQLException {
+        ResultSet rs = resultSet(new Object[]{1, "a", null, Timestamp.valueOf("2011-03-05 10:20:30.1205"), null});
+        JdbcExtractionPlan plan = JdbcExtractionPlan.createExport(rs.getMetaData());
+        plan.read(rs);
+        assertArrayEquals(new String[]{"1", "a", "", "2011-03-05 10:20:30.1205", ""}, plan.toRow());
+        rs = resultSet(new Object[]{1, "a", null, Timestamp.valueOf("2011-03-05 10:20:30.000000007"), null});
+        plan.read(rs);
+        assertArrayEquals(new String[]{"1", "a", "", "2011-03-05 10:20:30.000000007", ""}, plan.toRow());
+    }
+
+    @Test
+    public void testDump() throws SQLException {
+        String[] dumped = extract(schema(null), false, new Object[]{1, "a", null, TS, 0.25}, false);
+        assertArrayEquals(new String[]{"1", "a", "", new org.joda.time.DateTime(TS).toString(), "0.25"}, dumped);
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.InvalidParameterException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * JDBC query partitioning
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class JdbcPartitionsTest {
+
+    private static final String PREFIX = "SELECT * FROM (SELECT id, created FROM orders) " + JdbcPartitions.ALIAS + " WHERE ";
+
+    @Test
+    public void testSinglePartition() {
+        List<String> q = JdbcPartitions.split("SELECT 1", null, null, null, 1);
+        assertEquals(1, q.size());
+        assertEquals("SELECT 1", q.get(0));
+    }
+
+    @Test
+    public void testNumericPartitions() {
+        List<String> q = JdbcPartitions.split("SELECT id, created FROM orders;", "id", "0", "100", 4);
+        assertEquals(4, q.size());
+        assertEquals(PREFIX + "id < 25 OR id IS NULL", q.get(0));
+        assertEquals(PREFIX + "id >= 25 AND id < 50", q.get(1));
+        assertEquals(PREFIX + "id >= 50 AND id < 75", q.get(2));
+        assertEquals(PREFIX + "id >= 75", q.get(3));
+        // the range is too small for the requested partitions
+        assertEquals(2, JdbcPartitions.split("SELECT id, created FROM orders", "id", "0", "2", 8).size());
+        q = JdbcPartitions.split("SELECT id, created FROM orders", "id", "0.5", "1.5", 2);
+        assertEquals(PREFIX + "id < 1.0 OR id IS NULL", q.get(0));
+    }
+
+    @Test
+    public void testDatePartitions() {
+        List<String> q = JdbcPartitions.split("SELECT id, created FROM orders", "created", "2011-01-01", "2011-01-03", 2);
+        assertEquals(2, q.size());
+        assertEquals(PREFIX + "created < '2011-01-02 00:00:00' OR created IS NULL", q.get(0));
+        assertEquals(PREFIX + "created >= '2011-01-02 00:00:00'", q.get(1));
+    }
+
+    @Test
+    public void testInvalidBounds() {
+        try {
+            JdbcPartitions.split("SELECT id FROM orders", "id", "10", "1", 2);
+            fail("The upper bound must be greater.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+        try {
+            JdbcPartitions.split("SELECT id FROM orders", "id", "abc", "2011-01-01", 2);
+            fail("The bounds must be numbers or dates.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+
+}
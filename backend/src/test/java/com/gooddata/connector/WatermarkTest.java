@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Incremental load watermark
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class WatermarkTest {
+
+    private File stateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        stateFile = File.createTempFile("gdc-watermark", ".watermark");
+        stateFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        stateFile.delete();
+    }
+
+    private static SourceSchema schema(String watermark) {
+        SourceSchema s = SourceSchema.createSchema("orders");
+        s.addColumn(new SourceColumn("id", SourceColumn.LDM_TYPE_CONNECTION_POINT, "Id"));
+        SourceColumn updated = new SourceColumn("updated", SourceColumn.LDM_TYPE_DATE, "Updated");
+        updated.setFormat("yyyy-MM-dd");
+        s.addColumn(updated);
+        s.addColumn(new SourceColumn("amount", SourceColumn.LDM_TYPE_FACT, "Amount"));
+        s.setWatermark(watermark);
+        return s;
+    }
+
+    @Test
+    public void testNoWatermark() throws IOException {
+        assertNull(Watermark.create(schema(null), stateFile));
+    }
+
+    @Test
+    public void testUnknownColumn() throws IOException {
+        try {
+            Watermark.create(schema("missing"), stateFile);
+            fail("The watermark column must exist.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDateWatermark() throws IOException {
+        Watermark w = Watermark.create(schema("updated"), stateFile);
+        assertFalse(w.hasLast());
+        assertEquals("SELECT * FROM t WHERE u > COALESCE(NULL, '1900-01-01')",
+                w.apply("SELECT * FROM t WHERE u > COALESCE(%WATERMARK%, '1900-01-01')"));
+        // everything is accepted before the first load
+        assertTrue(w.accept(new String[]{"1", "2011-03-01", "10"}));
+        assertTrue(w.accept(new String[]{"2", "2011-03-05", "10"}));
+        assertTrue(w.accept(new String[]{"3", "", "10"}));
+        assertEquals("2011-03-05 00:00:00", w.getMax());
+        w.save();
+
+        w = Watermark.create(schema("updated"), stateFile);
+        assertTrue(w.hasLast());
+        assertEquals("2011-03-05 00:00:00", w.getLast());
+        assertFalse(w.accept(new String[]{"1", "2011-03-01", "10"}));
+        assertFalse(w.accept(new String[]{"2", "2011-03-05", "10"}));
+        assertFalse(w.accept(new String[]{"3", "", "10"}));
+        assertTrue(w.accept(new Object[]{"4", new DateTime(2011, 3, 6, 0, 0, 0, 0), "10"}));
+        assertEquals("SELECT * FROM t WHERE u > '2011-03-05 00:00:00'", w.apply("SELECT * FROM t WHERE u > %WATERMARK%"));
+    }
+
+    @Test
+    public void testNumericWatermark() throws IOException {
+        Watermark w = Watermark.create(schema("id"), stateFile);
+        assertTrue(w.accept(new String[]{"9", "2011-03-01", "10"}));
+        assertTrue(w.accept(new String[]{"10", "2011-03-01", "10"}));
+        w.save();
+
+        // the state file keeps the watermarks of the other schemas
+        SourceSchema other = schema("id");
+        other.setName("customers");
+        w = Watermark.create(other, stateFile);
+        assertFalse(w.hasLast());
+        assertTrue(w.accept(new String[]{"5", "2011-03-01", "10"}));
+        w.save();
+
+        w = Watermark.create(schema("id"), stateFile);
+        assertEquals("10", w.getLast());
+        assertFalse(w.accept(new String[]{"9", "2011-03-01", "10"}));
+        assertTrue(w.accept(new String[]{"11", "2011-03-01", "10"}));
+        assertEquals("id > 10", w.apply("id > %WATERMARK%"));
+        // no new rows, the watermark stays
+        w = Watermark.create(schema("id"), stateFile);
+        w.save();
+        assertEquals("10", Watermark.create(schema("id"), stateFile).getLast());
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.integration.rest;
+
+import com.gooddata.exception.HttpMethodNotFinishedYetException;
+import com.gooddata.exception.InvalidParameterException;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Adaptive task polling
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class TaskPollerTest {
+
+    /**
+     * Task that finishes after the given number of checks
+     */
+    private static class CountingTask implements TaskPoller.Task<String> {
+
+        private final int checks;
+        final AtomicInteger polls = new AtomicInteger();
+
+        CountingTask(int checks) {
+            this.checks = checks;
+        }
+
+        public String poll() {
+            int n = polls.incrementAndGet();
+            if (n == 2)
+                throw new HttpMethodNotFinishedYetException("running");
+            return (n >= checks) ? ("OK") : (null);
+        }
+    }
+
+    @Test
+    public void testBackoff() {
+        TaskPoller poller = new TaskPoller(100, 1000, 2, 0.2);
+        try {
+            for (int i = 0; i < 100; i++) {
+                long first = poller.getDelay(0);
+                assertTrue(first >= 80 && first <= 120);
+                long third = poller.getDelay(2);
+                assertTrue(third >= 320 && third <= 480);
+                assertTrue(poller.getDelay(10) <= 1000);
+                assertTrue(poller.getDelay(10) >= 800);
+            }
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void testAwait() {
+        TaskPoller poller = new TaskPoller(1, 5, 2, 0.2);
+        try {
+            CountingTask task = new CountingTask(4);
+            assertEquals("OK", poller.await(task));
+            assertEquals(4, task.polls.get());
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentTasks() throws Exception {
+        TaskPoller poller = new TaskPoller(1, 5, 2, 0.2);
+        try {
+            final CountDownLatch latch = new CountDownLatch(20);
+            final AtomicInteger completed = new AtomicInteger();
+            Future[] futures = new Future[20];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = poller.submit(new CountingTask(3 + i % 5), new TaskPoller.Callback<String>() {
+                    public void completed(String result) {
+                        completed.incrementAndGet();
+                        latch.countDown();
+                    }
+
+                    public void failed(Throwable cause) {
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(20, completed.get());
+            for (Future f : futures)
+                assertEquals("OK", f.get());
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowCheck() throws Exception {
+        TaskPoller poller = new TaskPoller(1, 5, 2, 0.2, 2);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<String> slow = poller.submit(new TaskPoller.Task<String>() {
+                public String poll() throws InterruptedException {
+                    release.await();
+                    return "SLOW";
+                }
+            });
+            // the blocked check doesn't hold the other tasks back
+            CountingTask task = new CountingTask(4);
+            assertEquals("OK", poller.submit(task).get(5, TimeUnit.SECONDS));
+            assertTrue(!slow.isDone());
+            release.countDown();
+            assertEquals("SLOW", slow.get(5, TimeUnit.SECONDS));
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        TaskPoller poller = new TaskPoller(1, 5, 2, 0.2);
+        try {
+            poller.await(new TaskPoller.Task<String>() {
+                public String poll() {
+                    throw new InvalidParameterException("failed");
+                }
+            });
+            fail("The task failure must be thrown.");
+        } catch (InvalidParameterException e) {
+            assertEquals("failed", e.getMessage());
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        TaskPoller poller = new TaskPoller(10, 50, 2, 0.2);
+        try {
+            final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+            CountingTask task = new CountingTask(Integer.MAX_VALUE);
+            Future<String> f = poller.submit(task, new TaskPoller.Callback<String>() {
+                public void completed(String result) {
+                }
+
+                public void failed(Throwable t) {
+                    cause.set(t);
+                }
+            });
+            Thread.sleep(50);
+            assertTrue(f.cancel(false));
+            assertTrue(f.isCancelled() && f.isDone());
+            int polls = task.polls.get();
+            Thread.sleep(200);
+            assertTrue(task.polls.get() <= polls + 1);
+            assertTrue(cause.get() instanceof java.util.concurrent.CancellationException);
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+}
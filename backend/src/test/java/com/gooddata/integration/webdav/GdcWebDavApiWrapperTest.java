@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.integration.webdav;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Chunked upload against a local WebDav stand-in that supports MKCOL, ranged PUT and ranged GET
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class GdcWebDavApiWrapperTest {
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private HttpServer server;
+    private URL url;
+    private byte[] stored = new byte[0];
+    // PUT requests by the part offset
+    private final Map<Long, Integer> puts = new HashMap<Long, Integer>();
+    // offsets of the parts that fail or get corrupted on their first PUT
+    private final Map<Long, String> faults = new HashMap<Long, String>();
+    // the ranged PUT handling: "supported", "rejected" (501) or "ignored" (the part replaces the archive)
+    private String ranges = "supported";
+    // PUT requests of the whole archive
+    private int plainPuts = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/uploads", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    String method = ex.getRequestMethod();
+                    if ("MKCOL".equals(method)) {
+                        ex.sendResponseHeaders(201, -1);
+                    } else if ("PUT".equals(method)) {
+                        put(ex);
+                    } else if ("GET".equals(method)) {
+                        get(ex);
+                    } else {
+                        ex.sendResponseHeaders(405, -1);
+                    }
+                } finally {
+                    ex.close();
+                }
+            }
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/uploads");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private synchronized void put(HttpExchange ex) throws IOException {
+        byte[] body = read(ex.getRequestBody());
+        String contentRange = ex.getRequestHeaders().getFirst("Content-Range");
+        if (contentRange == null || "ignored".equals(ranges)) {
+            if (contentRange == null)
+                plainPuts++;
+            stored = body;
+            ex.sendResponseHeaders(201, -1);
+            return;
+        }
+        if ("rejected".equals(ranges)) {
+            ex.sendResponseHeaders(501, -1);
+            return;
+        }
+        Matcher m = CONTENT_RANGE.matcher(contentRange);
+        if (!m.matches()) {
+            ex.sendResponseHeaders(400, -1);
+            return;
+        }
+        long offset = Long.parseLong(m.group(1));
+        Integer count = puts.get(offset);
+        puts.put(offset, (count == null) ? 1 : count + 1);
+        String fault = faults.remove(offset);
+        if ("fail".equals(fault)) {
+            ex.sendResponseHeaders(500, -1);
+            return;
+        }
+        int total = Integer.parseInt(m.group(3));
+        if (stored.length != total) {
+            byte[] resized = new byte[total];
+            System.arraycopy(stored, 0, resized, 0, Math.min(stored.length, total));
+            stored = resized;
+        }
+        System.arraycopy(body, 0, stored, (int) offset, body.length);
+        if ("corrupt".equals(fault))
+            stored[(int) offset] ^= 1;
+        ex.sendResponseHeaders(201, -1);
+    }
+
+    private synchronized void get(HttpExchange ex) throws IOException {
+        Matcher m = RANGE.matcher(ex.getRequestHeaders().getFirst("Range"));
+        if (!m.matches()) {
+            ex.sendResponseHeaders(400, -1);
+            return;
+        }
+        int from = Integer.parseInt(m.group(1));
+        int to = Integer.parseInt(m.group(2));
+        if (to >= stored.length) {
+            ex.getResponseHeaders().add("Content-Range", "bytes */" + stored.length);
+            ex.sendResponseHeaders(416, 0);
+            ex.getResponseBody().close();
+            return;
+        }
+        ex.sendResponseHeaders(206, to - from + 1);
+        OutputStream os = ex.getResponseBody();
+        os.write(stored, from, to - from + 1);
+        os.close();
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1)
+            bos.write(buf, 0, n);
+        return bos.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return read(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private File createArchive(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        File file = File.createTempFile("chunked", ".zip");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        return file;
+    }
+
+    @Test
+    public void testChunkedUpload() throws IOException {
+        File file = createArchive(100000);
+        GdcWebDavApiWrapper api = new GdcWebDavApiWrapper("user", "pass", url);
+        api.transferDir(file.getAbsolutePath(), 16384, 3);
+        assertEquals(7, puts.size());
+        for (int count : puts.values())
+            assertEquals(1, count);
+        assertEquals(0, plainPuts);
+        assertArrayEquals(readFile(file), stored);
+        file.delete();
+    }
+
+    @Test
+    public void testChunkedUploadRetriesMissingParts() throws IOException {
+        File file = createArchive(100000);
+        faults.put(16384L, "fail");
+        faults.put(49152L, "corrupt");
+        GdcWebDavApiWrapper api = new GdcWebDavApiWrapper("user", "pass", url);
+        api.transferDir(file.getAbsolutePath(), 16384, 2);
+        // only the failed and the corrupted parts are sent again
+        for (Map.Entry<Long, Integer> e : puts.entrySet()) {
+            long offset = e.getKey();
+            assertEquals("part at " + offset, (offset == 16384L || offset == 49152L) ? 2 : 1, (int) e.getValue());
+        }
+        assertTrue(faults.isEmpty());
+        assertArrayEquals(readFile(file), stored);
+        file.delete();
+    }
+
+    @Test
+    public void testRejectedRangedPut() throws IOException {
+        File file = createArchive(100000);
+        ranges = "rejected";
+        GdcWebDavApiWrapper api = new GdcWebDavApiWrapper("user", "pass", url);
+        api.transferDir(file.getAbsolutePath(), 16384, 3);
+        // the archive is sent once after the rejected probe
+        assertEquals(1, plainPuts);
+        assertArrayEquals(readFile(file), stored);
+        api.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void testIgnoredContentRange() throws IOException {
+        File file = createArchive(100000);
+        ranges = "ignored";
+        GdcWebDavApiWrapper api = new GdcWebDavApiWrapper("user", "pass", url);
+        api.transferDir(file.getAbsolutePath(), 16384, 3);
+        // the probe part overwrote the archive, the server doesn't get any other part
+        assertEquals(1, plainPuts);
+        assertArrayEquals(readFile(file), stored);
+        api.shutdown();
+        file.delete();
+    }
+
+}
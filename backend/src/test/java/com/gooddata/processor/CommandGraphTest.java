@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.gooddata.processor;
+
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.exception.ParallelExecutionException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Script command graph
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class CommandGraphTest {
+
+    private static Command command(String name, String... params) {
+        Properties p = new Properties();
+        for (int i = 0; i < params.length; i += 2) {
+            p.put(params[i], params[i + 1]);
+        }
+        return new Command(name, p);
+    }
+
+    /**
+     * OpenProject, date dimension, two CSV chains (one of them reads a missing config) and a dataset with
+     * an explicit dependency
+     */
+    private static List<Command> script() {
+        List<Command> cmds = new ArrayList<Command>();
+        cmds.add(command("OpenProject", "id", "abc"));
+        cmds.add(command("UseDateDimension", "name", "closed"));
+        cmds.add(command("TransferData"));
+        cmds.add(command("UseCsv", "csvDataFile", "a.csv", "configFile", "missing-a.xml", "step", "a"));
+        cmds.add(command("GenerateMaql", "maqlFile", "a.maql"));
+        cmds.add(command("ExecuteMaql", "maqlFile", "a.maql"));
+        cmds.add(command("TransferData"));
+        cmds.add(command("LoadGoogleAnalytics", "configFile", "missing-b.xml"));
+        cmds.add(command("TransferData"));
+        cmds.add(command("UseCsv", "csvDataFile", "c.csv", "configFile", "missing-a.xml"));
+        cmds.add(command("TransferData", "after", "a"));
+        return cmds;
+    }
+
+    @Test
+    public void testSteps() {
+        CommandGraph g = CommandGraph.build(script());
+        List<CommandGraph.Step> steps = g.getSteps();
+        assertEquals(5, steps.size());
+
+        CommandGraph.Step open = steps.get(0);
+        CommandGraph.Step date = steps.get(1);
+        CommandGraph.Step a = steps.get(2);
+        CommandGraph.Step b = steps.get(3);
+        CommandGraph.Step c = steps.get(4);
+
+        assertTrue(open.isBarrier());
+        assertFalse(date.isBarrier());
+        assertEquals(2, date.getCommands().size());
+        assertEquals("a", a.getName());
+        assertEquals(4, a.getCommands().size());
+        assertEquals("UseCsv(missing-a.xml)", c.getName());
+
+        assertEquals(Collections.singleton(open), date.getDependencies());
+        // unreadable config, waits for the date dimensions
+        assertEquals(2, a.getDependencies().size());
+        assertTrue(a.getDependencies().contains(date));
+        assertTrue(b.getDependencies().contains(date));
+        assertFalse(b.getDependencies().contains(a));
+        // the same dataset
+        assertTrue(c.getDependencies().contains(a));
+        assertFalse(c.getDependencies().contains(b));
+
+        // the step parameters are removed
+        assertFalse(a.getCommands().get(0).getParameters().containsKey(CommandGraph.PARAM_STEP));
+        assertFalse(c.getCommands().get(1).getParameters().containsKey(CommandGraph.PARAM_AFTER));
+    }
+
+    @Test
+    public void testBarrier() {
+        List<Command> cmds = new ArrayList<Command>();
+        cmds.add(command("UseCsv", "configFile", "x.xml"));
+        cmds.add(command("UseCsv", "configFile", "y.xml"));
+        cmds.add(command("OpenProject", "id", "abc"));
+        cmds.add(command("UseCsv", "configFile", "z.xml"));
+        List<CommandGraph.Step> steps = CommandGraph.build(cmds).getSteps();
+        assertEquals(4, steps.size());
+        assertTrue(steps.get(1).getDependencies().isEmpty());
+        assertEquals(2, steps.get(2).getDependencies().size());
+        assertEquals(Collections.singleton(steps.get(2)), steps.get(3).getDependencies());
+    }
+
+    @Test
+    public void testUnknownStep() {
+        List<Command> cmds = new ArrayList<Command>();
+        cmds.add(command("UseCsv", "configFile", "x.xml", "after", "later"));
+        cmds.add(command("UseCsv", "configFile", "y.xml", "step", "later"));
+        try {
+            CommandGraph.build(cmds);
+            fail("The step must be named before it is referenced.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExecute() {
+        CommandGraph g = CommandGraph.build(script());
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        g.execute(4, new CommandGraph.StepRunner() {
+            public void run(CommandGraph.Step step) throws Exception {
+                Thread.sleep(20);
+                order.add(step.getName());
+            }
+        });
+        assertEquals(5, order.size());
+        assertEquals("OpenProject", order.get(0));
+        assertEquals("UseDateDimension(closed)", order.get(1));
+        assertEquals("UseCsv(missing-a.xml)", order.get(4));
+
+        List<CommandGraph.Step> path = g.getCriticalPath();
+        assertEquals(4, path.size());
+        assertEquals("a", path.get(2).getName());
+        assertTrue(g.getReport().contains("Executed 5 of 5 steps"));
+    }
+
+    @Test
+    public void testFailure() {
+        CommandGraph g = CommandGraph.build(script());
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            g.execute(2, new CommandGraph.StepRunner() {
+                public void run(CommandGraph.Step step) throws Exception {
+                    executed.add(step.getName());
+                    if ("a".equals(step.getName()))
+                        throw new IllegalStateException("broken");
+                }
+            });
+            fail("The failed step must be reported.");
+        } catch (ParallelExecutionException e) {
+            assertEquals(Collections.singleton(3), e.getBranchErrors().keySet());
+        }
+        // the independent step runs, the dependent one is skipped
+        assertEquals(4, executed.size());
+        assertTrue(g.getSteps().get(4).isSkipped());
+        assertFalse(g.getSteps().get(3).isSkipped());
+    }
+
+    @Test
+    public void testError() {
+        CommandGraph g = CommandGraph.build(script());
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            g.execute(2, new CommandGraph.StepRunner() {
+                public void run(CommandGraph.Step step) throws Exception {
+                    executed.add(step.getName());
+                    if ("a".equals(step.getName()))
+                        throw new NoClassDefFoundError("broken");
+                }
+            });
+            fail("The failed step must be reported.");
+        } catch (ParallelExecutionException e) {
+            assertTrue(e.getBranchErrors().get(3) instanceof NoClassDefFoundError);
+        }
+        // an error blocks the dependent step the same way as an exception
+        assertEquals(4, executed.size());
+        assertTrue(g.getSteps().get(4).isSkipped());
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.processor;
+
+import com.gooddata.exception.ParallelExecutionException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parallel script block
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class ParallelCommandTest {
+
+    private static ParallelCommand parallel(int branches) {
+        ParallelCommand c = new ParallelCommand("Parallel", new Properties());
+        for (int i = 0; i < branches; i++) {
+            List<Command> branch = new ArrayList<Command>();
+            branch.add(new Command("Branch" + (i + 1), new Properties()));
+            c.addBranch(branch);
+        }
+        return c;
+    }
+
+    @Test
+    public void testExecute() {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        parallel(3).execute(2, new ParallelCommand.BranchRunner() {
+            public void run(int branch, List<Command> commands) {
+                executed.add(commands.get(0).getCommand());
+            }
+        });
+        Collections.sort(executed);
+        assertEquals(3, executed.size());
+        assertEquals("Branch1", executed.get(0));
+        assertEquals("Branch3", executed.get(2));
+    }
+
+    @Test
+    public void testEmpty() {
+        parallel(0).execute(2, new ParallelCommand.BranchRunner() {
+            public void run(int branch, List<Command> commands) {
+                fail("An empty block has no branches to run.");
+            }
+        });
+    }
+
+    @Test
+    public void testThreads() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        parallel(6).execute(2, new ParallelCommand.BranchRunner() {
+            public void run(int branch, List<Command> commands) throws Exception {
+                int r = running.incrementAndGet();
+                synchronized (max) {
+                    if (r > max.get())
+                        max.set(r);
+                }
+                Thread.sleep(20);
+                running.decrementAndGet();
+            }
+        });
+        assertTrue(max.get() <= 2);
+    }
+
+    @Test
+    public void testFailures() {
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            parallel(4).execute(4, new ParallelCommand.BranchRunner() {
+                public void run(int branch, List<Command> commands) {
+                    executed.add(branch);
+                    if (branch == 1)
+                        throw new IllegalStateException("broken two");
+                    if (branch == 3)
+                        throw new IllegalArgumentException("broken four");
+                }
+            });
+            fail("The failed branches must be reported.");
+        } catch (ParallelExecutionException e) {
+            assertEquals(2, e.getBranchErrors().size());
+            assertTrue(e.getBranchErrors().get(2) instanceof IllegalStateException);
+            assertTrue(e.getBranchErrors().get(4) instanceof IllegalArgumentException);
+            assertTrue(e.getMessage().indexOf("Branch 2: broken two") >= 0);
+            assertTrue(e.getMessage().indexOf("Branch 4: broken four") >= 0);
+        }
+        // a failure doesn't stop the other branches
+        assertEquals(4, executed.size());
+    }
+
+}
@@ -4,10 +4,17 @@
 package com.gooddata.transform;
 
 import com.gooddata.Constants;
+import com.gooddata.connector.AbstractConnector;
+import com.gooddata.modeling.model.SourceColumn;
+import com.gooddata.modeling.model.SourceSchema;
 import com.gooddata.util.DateUtil;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.joda.time.DateTime;
+import org.joda.time.Days;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class TransformerTest {
@@ -24,4 +31,84 @@ public class TransformerTest {
         
     }
 
+    @Test
+    public void testCompiledTransformations() {
+        SourceSchema schema = SourceSchema.createSchema("test");
+        schema.addColumn(new SourceColumn("ID", SourceColumn.LDM_TYPE_CONNECTION_POINT, "Id"));
+        schema.addColumn(new SourceColumn("NAME", SourceColumn.LDM_TYPE_ATTRIBUTE, "Name"));
+        SourceColumn len = new SourceColumn("LEN", SourceColumn.LDM_TYPE_ATTRIBUTE, "Length");
+        len.setTransformation("size(name)");
+        schema.addColumn(len);
+        SourceColumn copy = new SourceColumn("COPY", SourceColumn.LDM_TYPE_ATTRIBUTE, "Copy");
+        copy.setTransformation("name");
+        schema.addColumn(copy);
+        SourceColumn date = new SourceColumn("D", SourceColumn.LDM_TYPE_DATE, "Date");
+        date.setFormat(Constants.DEFAULT_DATE_FMT_STRING);
+        schema.addColumn(date);
+        AbstractConnector.expandDates(schema);
+
+        Transformer t = Transformer.create(schema);
+        // the date fact and the copy are compiled, size() is left to JEXL
+        assertEquals(2, t.getCompiledCount());
+
+        String dateFact = new DateArithmetics().computeDateFact("2010-01-01", Constants.DEFAULT_DATE_FMT_STRING);
+        for (int i = 0; i < 2; i++) {
+            String[] row = t.transformRow(new String[]{"1", "abc", "2010-01-01"}, AbstractConnector.DATE_LENGTH_UNRESTRICTED);
+            assertArrayEquals(new String[]{"1", "abc", "3", "abc", "2010-01-01", dateFact}, row);
+        }
+    }
+
+    @Test
+    public void testTransformPlan() {
+        SourceSchema schema = SourceSchema.createSchema("test");
+        schema.addColumn(new SourceColumn("A", SourceColumn.LDM_TYPE_ATTRIBUTE, "A"));
+        schema.addColumn(new SourceColumn("F", SourceColumn.LDM_TYPE_FACT, "F"));
+        schema.addColumn(new SourceColumn("X", SourceColumn.LDM_TYPE_IGNORE, "X"));
+        SourceColumn date = new SourceColumn("D", SourceColumn.LDM_TYPE_DATE, "D");
+        date.setFormat(Constants.DEFAULT_DATE_FMT_STRING);
+        schema.addColumn(date);
+        SourceColumn cp = new SourceColumn("ID", SourceColumn.LDM_TYPE_CONNECTION_POINT, "Id");
+        cp.setTransformation(SourceColumn.LDM_IDENTITY);
+        schema.addColumn(cp);
+
+        TransformPlan plan = new TransformPlan(schema);
+        assertEquals(5, plan.getColumnCount());
+        assertEquals(4, plan.getCoreCount());
+        assertEquals(4, plan.getOutputCount());
+        assertTrue(plan.isComputeIdentity());
+        assertTrue(plan.is(0, TransformPlan.IDENTITY_KEY));
+        assertTrue(plan.is(1, TransformPlan.FACT) && !plan.is(1, TransformPlan.IDENTITY_KEY));
+        assertTrue(plan.is(2, TransformPlan.IGNORE));
+        assertTrue(plan.is(3, TransformPlan.DATE) && plan.is(3, TransformPlan.IDENTITY_KEY));
+        assertTrue(plan.is(4, TransformPlan.COMPUTED));
+
+        Transformer t = Transformer.create(schema);
+        String[] row = t.transformRow(new String[]{"a", "1", "x", "2010-01-02"}, AbstractConnector.DATE_LENGTH_UNRESTRICTED);
+        assertArrayEquals(new String[]{"a", "1", "2010-01-02", DigestUtils.md5Hex("a|2010-01-02|")}, row);
+    }
+
+    @Test
+    public void testFastDateParser() {
+        assertEquals(1, FastDateParser.dayNumber(1900, 1, 1));
+        assertEquals("40178", FastDateParser.dateFact("2010-01-01", Constants.DEFAULT_DATE_FMT_STRING));
+        assertEquals("40178", FastDateParser.dateFact("2010-01-01 12:00:00", Constants.DEFAULT_DATETIME_FMT_STRING));
+        assertEquals(43200, FastDateParser.secondOfDay("2010-01-01 12:00:00", Constants.DEFAULT_DATETIME_FMT_STRING));
+        // not in the default format, Joda parses these
+        assertEquals(null, FastDateParser.dateFact("2010-1-1", Constants.DEFAULT_DATE_FMT_STRING));
+        assertEquals(null, FastDateParser.dateFact("2010-02-30", Constants.DEFAULT_DATE_FMT_STRING));
+        assertEquals(null, FastDateParser.dateFact("2010-01-01", Constants.DEFAULT_DATETIME_FMT_STRING));
+        assertEquals(FastDateParser.INVALID, FastDateParser.secondOfDay("2010-01-01 24:00:00", Constants.DEFAULT_DATETIME_FMT_STRING));
+
+        DateArithmetics da = new DateArithmetics();
+        String[] values = new String[]{"1899-12-31 10:00:00", "1900-01-01 00:00:00", "1904-02-29 23:59:59",
+                "2000-02-29 00:00:01", "2011-12-31 13:13:13"};
+        for (String v : values) {
+            DateTime dt = DateUtil.getDateFormatter(Constants.DEFAULT_DATETIME_FMT_STRING, true).parseDateTime(v);
+            DateTime base = DateUtil.getDateFormatter(Constants.DEFAULT_DATE_FMT_STRING, false).parseDateTime("1900-01-01");
+            assertEquals(Integer.toString(Days.daysBetween(base, dt).getDays() + 1),
+                    da.computeDateFact(v, Constants.DEFAULT_DATETIME_FMT_STRING));
+            assertEquals(Integer.toString(dt.getSecondOfDay()), da.computeTimeFact(v, Constants.DEFAULT_DATETIME_FMT_STRING));
+        }
+    }
+
 }
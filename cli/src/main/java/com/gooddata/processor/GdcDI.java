@@ -45,6 +45,7 @@ import java.io.*;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -78,6 +79,7 @@ public class GdcDI implements Executor {
     public static String[] CLI_PARAM_HTTP_PROXY_PASSWORD = {"proxypassword", "P"};
     public static String[] CLI_PARAM_TIMEZONE = {"timezone", "T"};
     public static String[] CLI_PARAM_AUTHORIZATION_TOKEN = {"authtoken", "a"};
+    public static String[] CLI_PARAM_DAG = {"dag", "g"};
     public static String CLI_PARAM_SCRIPT = "script";
 
     private static String DEFAULT_PROPERTIES = "gdi.properties";
@@ -101,7 +103,8 @@ public class GdcDI implements Executor {
             new Option(CLI_PARAM_VERSION[1], CLI_PARAM_VERSION[0], false, "Prints the tool version."),
             new Option(CLI_PARAM_TIMEZONE[1], CLI_PARAM_TIMEZONE[0], true, "Specify the default timezone (the computer timezone is the default)."),
             new Option(CLI_PARAM_EXECUTE[1], CLI_PARAM_EXECUTE[0], true, "Commands and params to execute before the commands in provided files"),
-            new Option(CLI_PARAM_DEFAULT_DATE_FOREIGN_KEY[1], CLI_PARAM_DEFAULT_DATE_FOREIGN_KEY[0], true, "Foreign key to represent an 'unknown' date")
+            new Option(CLI_PARAM_DEFAULT_DATE_FOREIGN_KEY[1], CLI_PARAM_DEFAULT_DATE_FOREIGN_KEY[0], true, "Foreign key to represent an 'unknown' date"),
+            new Option(CLI_PARAM_DAG[1], CLI_PARAM_DAG[0], true, "Execute the independent script commands concurrently using the specified number of threads (DAG mode).")
     };
 
     private CliParams cliParams = null;
@@ -309,6 +312,12 @@ public class GdcDI implements Executor {
                 c = c.getCause();
             }
             finishedSucessfuly = false;
+        } catch (ParallelExecutionException e) {
+            l.error("Error executing parallel commands: " + e.getMessage());
+            for (Map.Entry<Integer, Throwable> branchError : e.getBranchErrors().entrySet()) {
+                l.debug("Parallel branch " + branchError.getKey() + " failed: ", branchError.getValue());
+            }
+            finishedSucessfuly = false;
         } catch (GdcException e) {
             l.error("Unrecognized error: " + e.getMessage());
             l.debug(e);
@@ -319,6 +328,7 @@ public class GdcDI implements Executor {
             }
             finishedSucessfuly = false;
         } finally {
+            context.close();
             /*
             if (cliParams != null)
                 context.getRestApi(cliParams).logout();
@@ -361,6 +371,14 @@ public class GdcDI implements Executor {
             System.setProperty("http.proxyPassword", cp.get(CLI_PARAM_HTTP_PROXY_PASSWORD[0]));
         }
 
+        // the HTTP connection settings (gdc.http.*) from the gdi.properties, the -D JVM options take precedence
+        for (Object key : defaults.keySet()) {
+            String name = key.toString();
+            if (name.startsWith("gdc.http.") && System.getProperty(name) == null) {
+                System.setProperty(name, defaults.getProperty(name));
+            }
+        }
+
         if (cp.containsKey(CLI_PARAM_VERSION[0])) {
 
             l.info("GoodData CL version 1.3.0" +
@@ -441,14 +459,10 @@ public class GdcDI implements Executor {
     public void execute(final String commandsStr) {
         List<Command> cmds = new ArrayList<Command>();
         cmds.addAll(parseCmd(commandsStr));
-        for (Command command : cmds) {
-            boolean processed = false;
-            for (int i = 0; i < connectors.length && !processed; i++) {
-                processed = connectors[i].processCommand(command, cliParams, context);
-            }
-            if (!processed)
-                this.processCommand(command, cliParams, context);
-        }
+        if (cliParams.containsKey(CLI_PARAM_DAG[0]))
+            executeGraph(cmds, false);
+        else
+            executeCommands(cmds, context, connectors, false);
     }
 
     /**
@@ -460,18 +474,123 @@ public class GdcDI implements Executor {
     public void execute(final File scriptFile) throws IOException {
         List<Command> cmds = new ArrayList<Command>();
         cmds.addAll(parseCmd(FileUtil.readStringFromFile(scriptFile.getAbsolutePath())));
+        if (cliParams.containsKey(CLI_PARAM_DAG[0]))
+            executeGraph(cmds, true);
+        else
+            executeCommands(cmds, context, connectors, true);
+    }
+
+    /**
+     * Executes the commands sequentially in the given context
+     *
+     * @param cmds          commands
+     * @param ctx           processing context
+     * @param cons          connectors that process the commands
+     * @param failOnUnknown throw an exception on a command that no connector processes
+     */
+    private void executeCommands(List<Command> cmds, ProcessingContext ctx, Connector[] cons, boolean failOnUnknown) {
         for (Command command : cmds) {
+            CommandGraph.removeStepParams(command);
+            if (command instanceof ParallelCommand) {
+                executeParallel((ParallelCommand) command, ctx, failOnUnknown);
+                continue;
+            }
             boolean processed = false;
-            for (int i = 0; i < connectors.length && !processed; i++) {
-                processed = connectors[i].processCommand(command, cliParams, context);
+            for (int i = 0; i < cons.length && !processed; i++) {
+                processed = cons[i].processCommand(command, cliParams, ctx);
             }
             if (!processed)
-                processed = this.processCommand(command, cliParams, context);
-            if (!processed)
+                processed = this.processCommand(command, cliParams, ctx);
+            if (!processed && failOnUnknown)
                 throw new InvalidCommandException("Unknown command '" + command.getCommand() + "'");
         }
     }
 
+    /**
+     * Executes the commands in the DAG mode. The independent steps (connector chains) run concurrently, each
+     * with a forked processing context and its own connectors. The project commands run in the main context.
+     *
+     * @param cmds          commands
+     * @param failOnUnknown throw an exception on a command that no connector processes
+     * @throws ParallelExecutionException if any of the steps fails
+     */
+    private void executeGraph(List<Command> cmds, final boolean failOnUnknown) {
+        String threadsStr = cliParams.get(CLI_PARAM_DAG[0]);
+        int threads;
+        try {
+            threads = Integer.parseInt(threadsStr);
+        } catch (NumberFormatException e) {
+            throw new InvalidArgumentException("Invalid '" + CLI_PARAM_DAG[0] + "' value: '" + threadsStr + "'.");
+        }
+        if (threads <= 0)
+            throw new InvalidArgumentException("The '" + CLI_PARAM_DAG[0] + "' value must be a positive integer.");
+
+        CommandGraph graph = CommandGraph.build(cmds);
+        l.info("Executing " + graph.getSteps().size() + " steps using " + threads + " threads.");
+        try {
+            graph.execute(threads, new CommandGraph.StepRunner() {
+                public void run(CommandGraph.Step step) throws Exception {
+                    if (step.isBarrier())
+                        executeCommands(step.getCommands(), context, connectors, failOnUnknown);
+                    else
+                        executeCommands(step.getCommands(), context.fork(), instantiateConnectors(), failOnUnknown);
+                }
+            });
+        } finally {
+            l.info(graph.getReport());
+        }
+    }
+
+    /**
+     * Executes the branches of the Parallel block concurrently. Each branch gets its own processing context
+     * (sharing the GoodData login) and its own connectors. All branches run to the end, the failures are
+     * reported together.
+     *
+     * @param c             the Parallel command
+     * @param ctx           the current processing context
+     * @param failOnUnknown throw an exception on a command that no connector processes
+     * @throws ParallelExecutionException if any of the branches fails
+     */
+    private void executeParallel(ParallelCommand c, ProcessingContext ctx, final boolean failOnUnknown) {
+        final List<List<Command>> branches = c.getBranches();
+        String threadsStr = c.getParam("threads");
+        c.paramsProcessed();
+
+        if (branches.size() <= 0) {
+            l.info("The Parallel block has no branches.");
+            return;
+        }
+        int threads = branches.size();
+        if (threadsStr != null && threadsStr.length() > 0) {
+            try {
+                threads = Integer.parseInt(threadsStr);
+            } catch (NumberFormatException e) {
+                throw new InvalidParameterException("The threads in Parallel must be an integer.");
+            }
+            if (threads <= 0)
+                throw new InvalidParameterException("The threads in Parallel must be a positive integer.");
+        }
+        threads = Math.min(threads, branches.size());
+
+        l.info("Executing " + branches.size() + " branches using " + threads + " threads.");
+        final ProcessingContext[] branchCtx = new ProcessingContext[branches.size()];
+        final Connector[][] branchConnectors = new Connector[branches.size()][];
+        try {
+            for (int i = 0; i < branches.size(); i++) {
+                branchCtx[i] = ctx.fork();
+                branchConnectors[i] = instantiateConnectors();
+            }
+        } catch (IOException e) {
+            throw new InternalErrorException("Can't instantiate connectors for a parallel branch.", e);
+        }
+        c.execute(threads, new ParallelCommand.BranchRunner() {
+            public void run(int branch, List<Command> commands) throws Exception {
+                executeCommands(commands, branchCtx[branch], branchConnectors[branch], failOnUnknown);
+            }
+        });
+        l.info("All " + branches.size() + " parallel branches finished.");
+    }
+
     /**
      * Returns the help for commands
      *
@@ -1079,6 +1198,9 @@ public class GdcDI implements Executor {
             String drv = c.getParamMandatory("driver");
             String url = c.getParamMandatory("url");
             String fl = c.getParamMandatory("dir");
+            int parallelism = getPositiveIntParam(c, "parallelism", 1);
+            int fetchSize = getPositiveIntParam(c, "fetchSize", 256);
+            boolean compress = "true".equalsIgnoreCase(c.getParam("compress"));
             c.paramsProcessed();
 
             File dir = new File(fl);
@@ -1086,6 +1208,10 @@ public class GdcDI implements Executor {
                 throw new InvalidParameterException("The dir parameter in the ExportJdbcToCsv command must be an existing directory.");
             }
             DatabaseToCsv d = new DatabaseToCsv(drv, url, usr, psw);
+            d.setConnectionPool(ctx.getJdbcPool());
+            d.setParallelism(parallelism);
+            d.setFetchSize(fetchSize);
+            d.setCompress(compress);
             d.export(dir.getAbsolutePath());
             l.info("All tables successfully exported to " + dir.getAbsolutePath());
         } catch (SQLException e) {
@@ -1093,6 +1219,28 @@ public class GdcDI implements Executor {
         }
     }
 
+    /**
+     * Parses an optional positive integer command parameter
+     *
+     * @param c            command
+     * @param name         parameter name
+     * @param defaultValue value used when the parameter is missing
+     * @return the parameter value
+     */
+    private static int getPositiveIntParam(Command c, String name, int defaultValue) {
+        String v = c.getParam(name);
+        if (v == null || v.length() <= 0)
+            return defaultValue;
+        try {
+            int i = Integer.parseInt(v.trim());
+            if (i > 0)
+                return i;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new InvalidParameterException("The " + name + " in " + c.getCommand() + " must be a positive integer.");
+    }
+
     /**
      * Checks the project status. Waits till the status is ENABLED or DELETED
      *
@@ -24,9 +24,11 @@
 package com.gooddata.processor.parser;
 
 import com.gooddata.processor.Command;
+import com.gooddata.processor.ParallelCommand;
 import junit.framework.TestCase;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.List;
 
@@ -51,5 +53,65 @@ public class TestDIScriptParser extends TestCase {
         }
     }
 
+    private static List<Command> parse(String script) throws Exception {
+        return new DIScriptParser(new ByteArrayInputStream(script.getBytes("UTF-8"))).parse();
+    }
+
+    public void testParseParallel() throws Exception {
+        List<Command> commands = parse("OpenProject(id=\"abc\");\n" +
+                "Parallel(threads=\"2\") {\n" +
+                "  # the first branch\n" +
+                "  { UseCsv(csvDataFile=\"a.csv\", configFile=\"a.xml\"); TransferData(); }\n" +
+                "  { UseCsv(csvDataFile=\"b.csv\", configFile=\"b.xml\"); TransferData(); }\n" +
+                "  { ExecuteMaql(maqlFile=\"c.maql\"); }\n" +
+                "}\n" +
+                "ExecuteReports(pid=\"abc\");");
+        assertEquals(3, commands.size());
+        assertTrue(commands.get(1) instanceof ParallelCommand);
+        ParallelCommand pc = (ParallelCommand) commands.get(1);
+        assertEquals("2", pc.getParam("threads"));
+        assertEquals(3, pc.getBranches().size());
+        assertEquals(2, pc.getBranches().get(0).size());
+        assertEquals("TransferData", pc.getBranches().get(1).get(1).getCommand());
+        assertEquals("c.maql", pc.getBranches().get(2).get(0).getParam("maqlFile"));
+        assertEquals("ExecuteReports", commands.get(2).getCommand());
+    }
+
+    public void testParseNestedParallel() throws Exception {
+        List<Command> commands = parse("Parallel() {\n" +
+                "  { Parallel(threads=\"1\") { { UseCsv(csvDataFile=\"a.csv\"); } { UseCsv(csvDataFile=\"b.csv\"); } };\n" +
+                "    TransferData(); }\n" +
+                "  { UseCsv(csvDataFile=\"c.csv\"); }\n" +
+                "};");
+        assertEquals(1, commands.size());
+        ParallelCommand pc = (ParallelCommand) commands.get(0);
+        assertNull(pc.getParam("threads"));
+        assertEquals(2, pc.getBranches().size());
+        List<Command> first = pc.getBranches().get(0);
+        assertEquals(2, first.size());
+        assertTrue(first.get(0) instanceof ParallelCommand);
+        ParallelCommand nested = (ParallelCommand) first.get(0);
+        assertEquals("1", nested.getParam("threads"));
+        assertEquals(2, nested.getBranches().size());
+        assertEquals("b.csv", nested.getBranches().get(1).get(0).getParam("csvDataFile"));
+    }
+
+    public void testParseEmptyParallel() throws Exception {
+        List<Command> commands = parse("Parallel() { }\nParallel() { { } }");
+        assertEquals(2, commands.size());
+        assertEquals(0, ((ParallelCommand) commands.get(0)).getBranches().size());
+        ParallelCommand pc = (ParallelCommand) commands.get(1);
+        assertEquals(1, pc.getBranches().size());
+        assertEquals(0, pc.getBranches().get(0).size());
+    }
+
+    public void testParseBlockOnOtherCommand() throws Exception {
+        try {
+            parse("TransferData() { { UseCsv(csvDataFile=\"a.csv\"); } }");
+            fail("Only the Parallel command accepts a block.");
+        } catch (ParseException e) {
+            assertTrue(e.getMessage().indexOf("TransferData") >= 0);
+        }
+    }
 
 }
@@ -53,8 +53,10 @@ public class Constants {
     // Maximum retries
     public final static int MAX_RETRY = 1000;
 
-    // polling interval
+    // polling interval (the maximal interval of the adaptive task polling)
     public final static int POLL_INTERVAL = 10000;
+    // the first interval of the adaptive task polling
+    public final static int POLL_INITIAL_INTERVAL = 250;
     public final static int RETRY_INTERVAL = 1000;
     public final static long LOADING_STATUS_RETRY_TIMEOUT = 3600000;
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.exception;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Failure of one or more concurrently executed branches (or steps) of a script
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class ParallelExecutionException extends GdcException {
+
+    private final Map<Integer, Throwable> branchErrors;
+
+    /**
+     * Constructor
+     *
+     * @param branchErrors errors by the branch number (starting with 1)
+     */
+    public ParallelExecutionException(Map<Integer, Throwable> branchErrors) {
+        this("branch", branchErrors);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param unit         what failed (e.g. branch or step), used in the message
+     * @param branchErrors errors by the branch number (starting with 1)
+     */
+    public ParallelExecutionException(String unit, Map<Integer, Throwable> branchErrors) {
+        super(message(unit, branchErrors));
+        this.branchErrors = Collections.unmodifiableMap(branchErrors);
+    }
+
+    private static String message(String unit, Map<Integer, Throwable> branchErrors) {
+        StringBuilder msg = new StringBuilder();
+        msg.append(branchErrors.size()).append(" parallel ").append(unit).append("(s) failed.");
+        for (Map.Entry<Integer, Throwable> e : branchErrors.entrySet()) {
+            msg.append(" ").append(Character.toUpperCase(unit.charAt(0))).append(unit.substring(1))
+                    .append(" ").append(e.getKey()).append(": ").append(e.getValue().getMessage());
+        }
+        return msg.toString();
+    }
+
+    /**
+     * Returns the branch errors
+     *
+     * @return errors by the branch number (starting with 1)
+     */
+    public Map<Integer, Throwable> getBranchErrors() {
+        return branchErrors;
+    }
+
+}
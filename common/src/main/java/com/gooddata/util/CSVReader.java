@@ -23,7 +23,6 @@
 
 package com.gooddata.util;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
@@ -32,10 +31,16 @@ import java.util.List;
 
 /**
  * A simple CSV reader written from the scratch to replace Bytecode's CSV reader
+ * <p/>
+ * The reader has two tokenizers. The default one processes the input character by character
+ * and builds every field in a buffer. The fast one (see {@link #setFastMode(boolean)}) reuses
+ * a single buffer, scans unquoted fields in a tight loop and hands them out as slices of the buffer,
+ * quoted fields are unescaped in place. The fast tokenizer also supports the cursor-style
+ * {@link #readNext(RowSink)} that doesn't create any strings at all.
  *
  * @author Pavel Kolesnikov
  */
-public class CSVReader implements Closeable {
+public class CSVReader implements CsvRecordSource {
 
     public static char DEFAULT_SEPARATOR = ',';
     public static char DEFAULT_QUOTE_CHARACTER = '"';
@@ -43,6 +48,13 @@ public class CSVReader implements Closeable {
 
     private static int CHUNK_SIZE = 4096;
 
+    private static int FAST_BUFFER_SIZE = 65536;
+
+    // field terminators returned by the fast tokenizer
+    private static final int TERM_SEPARATOR = 0;
+    private static final int TERM_EOL = 1;
+    private static final int TERM_EOF = 2;
+
     private final Reader r;
 
     // configuration
@@ -68,6 +80,46 @@ public class CSVReader implements Closeable {
     private int row = 1;
     private int col = 0;
 
+    // fast tokenizer status variables
+    private boolean fastMode = false;
+    private boolean started = false;
+    private char[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private int fieldStart = 0;
+    private int fieldEnd = 0;
+    private int lineStart = 0;
+    private int quoteRow = 0;
+    private int quoteCol = 0;
+    private boolean afterCr = false;
+    private boolean eofReached = false;
+    private RecordBuilder recordBuilder;
+
+    /**
+     * Receives the fields of a record read by {@link CSVReader#readNext(RowSink)}. The buffer
+     * passed to {@link #field(int, char[], int, int)} is owned by the reader and the content is valid
+     * only during the call.
+     */
+    public interface RowSink {
+
+        /**
+         * Called for each field of the record
+         *
+         * @param index  the field index (0-based)
+         * @param buf    the buffer holding the field value
+         * @param offset the offset of the value in the buffer
+         * @param length the length of the value
+         */
+        public void field(int index, char[] buf, int offset, int length);
+
+        /**
+         * Called after the last field of the record
+         *
+         * @param fieldCount number of fields in the record
+         */
+        public void endRecord(int fieldCount);
+    }
+
     /**
      * Constructs CSVReader using a comma for the separator.
      *
@@ -160,6 +212,13 @@ public class CSVReader implements Closeable {
      * @throws IOException if bad things happen during the read
      */
     public String[] readNext() throws IOException {
+        started = true;
+        if (fastMode) {
+            if (recordBuilder == null) {
+                recordBuilder = new RecordBuilder();
+            }
+            return readNext(recordBuilder) ? recordBuilder.toRecord() : null;
+        }
         while (recordsQueue.isEmpty() && !eof) {
             char[] data = new char[CHUNK_SIZE];
             int size = r.read(data);
@@ -329,6 +388,291 @@ public class CSVReader implements Closeable {
         quotedFieldStartCol = col;
     }
 
+    /**
+     * Reads the next record and passes its fields to the sink. Requires the fast mode.
+     *
+     * @param sink receives the fields of the record
+     * @return false if there are no more records
+     * @throws IOException if bad things happen during the read
+     */
+    public boolean readNext(RowSink sink) throws IOException {
+        if (!fastMode) {
+            throw new IllegalStateException("The cursor-style reading requires the fast mode.");
+        }
+        started = true;
+        if (!startRecord()) {
+            return false;
+        }
+        int index = 0;
+        int term;
+        do {
+            term = readField();
+            sink.field(index++, buf, fieldStart, fieldEnd - fieldStart);
+        } while (term == TERM_SEPARATOR);
+        sink.endRecord(index);
+        return true;
+    }
+
+    /**
+     * Skips the rest of a CR/CRLF line end and the commented lines
+     *
+     * @return false if there are no more data
+     * @throws IOException if bad things happen during the read
+     */
+    private boolean startRecord() throws IOException {
+        for (;;) {
+            fieldStart = pos;
+            if (pos == limit && !fill()) {
+                return false;
+            }
+            final char c = buf[pos];
+            if (afterCr) {
+                // CR is followed by any number of CRs and an optional LF
+                if (c == '\r') {
+                    pos++;
+                    continue;
+                }
+                afterCr = false;
+                if (c == '\n') {
+                    pos++;
+                    lineStart = pos;
+                    continue;
+                }
+            }
+            if (hasCommentSupport && c == commentChar && c != quote && c != escape && c != separator) {
+                skipLine();
+                continue;
+            }
+            return true;
+        }
+    }
+
+    private void skipLine() throws IOException {
+        for (;;) {
+            while (pos < limit) {
+                final char c = buf[pos++];
+                if (c == '\n' || c == '\r') {
+                    endOfLine(c);
+                    return;
+                }
+            }
+            fieldStart = pos;
+            if (!fill()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a field, the value is left in the buffer between fieldStart and fieldEnd.
+     *
+     * @return the field terminator
+     * @throws IOException if bad things happen during the read
+     */
+    private int readField() throws IOException {
+        fieldStart = pos;
+        boolean blank = true;
+        int i = pos;
+        for (;;) {
+            final char[] b = buf;
+            final int lim = limit;
+            while (i < lim) {
+                final char c = b[i];
+                if (c == quote || c == escape) {
+                    fieldEnd = i;
+                    pos = i;
+                    if (i == fieldStart || (skipSpaces && blank)) {
+                        return readQuotedField();
+                    }
+                    return readEscapedField(false);
+                } else if (c == separator) {
+                    fieldEnd = i;
+                    pos = i + 1;
+                    return TERM_SEPARATOR;
+                } else if (c == '\n' || c == '\r') {
+                    fieldEnd = i;
+                    pos = i + 1;
+                    endOfLine(c);
+                    return TERM_EOL;
+                }
+                if (c > ' ') {
+                    blank = false;
+                }
+                i++;
+            }
+            pos = i;
+            if (!fill()) {
+                fieldEnd = limit;
+                return TERM_EOF;
+            }
+            i = pos;
+        }
+    }
+
+    private int readQuotedField() throws IOException {
+        quoteRow = row;
+        quoteCol = pos - lineStart + 1;
+        // the value starts at the opening quote (spaces in front of it are kept)
+        fieldEnd = pos;
+        pos++;
+        return readEscapedField(true);
+    }
+
+    /**
+     * Reads the rest of a quoted field or of an unquoted field containing an escape sequence.
+     * The unescaped value is shifted in place towards fieldStart.
+     *
+     * @param quoted whether the field is quoted
+     * @return the field terminator
+     * @throws IOException if bad things happen during the read
+     */
+    private int readEscapedField(boolean quoted) throws IOException {
+        int w = fieldEnd;
+        int i = pos;
+        for (;;) {
+            if (i == limit) {
+                fieldEnd = w;
+                pos = i;
+                if (!fill()) {
+                    if (quoted) {
+                        throw new IllegalStateException("Missing quote character to close the quote char at ["
+                                + quoteRow + "," + quoteCol + "]");
+                    }
+                    return TERM_EOF;
+                }
+                w = fieldEnd;
+                i = pos;
+            }
+            final char c = buf[i];
+            if (c == quote || c == escape) {
+                if (i + 1 == limit) {
+                    fieldEnd = w;
+                    pos = i;
+                    fill();
+                    w = fieldEnd;
+                    i = pos;
+                }
+                final int next = (i + 1 < limit) ? buf[i + 1] : -1;
+                if (c == escape && (next == quote || next == escape)) {
+                    buf[w++] = (char) next;
+                    i += 2;
+                    continue;
+                }
+                if (c == quote) {
+                    if (!quoted) {
+                        throw new IllegalStateException("odd quote character at " + getPositionString(i));
+                    }
+                    // closing quote should be followed by separator
+                    fieldEnd = w;
+                    if (next == -1) {
+                        pos = i + 1;
+                        return TERM_EOF;
+                    } else if (next == separator) {
+                        pos = i + 2;
+                        return TERM_SEPARATOR;
+                    } else if (next == '\n' || next == '\r') {
+                        pos = i + 2;
+                        endOfLine((char) next);
+                        return TERM_EOL;
+                    }
+                    throw new IllegalStateException(
+                            "separator expected after a closing quote; found " + (char) next + getPositionString(i + 1));
+                }
+                // a lone escape character is taken literally
+            } else if (!quoted) {
+                if (c == separator) {
+                    fieldEnd = w;
+                    pos = i + 1;
+                    return TERM_SEPARATOR;
+                } else if (c == '\n' || c == '\r') {
+                    fieldEnd = w;
+                    pos = i + 1;
+                    endOfLine(c);
+                    return TERM_EOL;
+                }
+            } else if (c == '\r' || (c == '\n' && (w == fieldStart || buf[w - 1] != '\r'))) {
+                row++;
+                lineStart = i + 1;
+            }
+            buf[w++] = c;
+            i++;
+        }
+    }
+
+    private void endOfLine(char c) {
+        afterCr = (c == '\r');
+        row++;
+        lineStart = pos;
+    }
+
+    /**
+     * Refills the buffer. The content of the current field (from fieldStart) is preserved
+     * and moved to the beginning of the buffer, the buffer grows if the field doesn't fit.
+     *
+     * @return false if there are no more data
+     * @throws IOException if bad things happen during the read
+     */
+    private boolean fill() throws IOException {
+        if (eofReached) {
+            return false;
+        }
+        final int shift = fieldStart;
+        if (shift > 0) {
+            System.arraycopy(buf, shift, buf, 0, limit - shift);
+            limit -= shift;
+            pos -= shift;
+            fieldStart = 0;
+            fieldEnd -= shift;
+            lineStart -= shift;
+        }
+        if (limit == buf.length) {
+            final char[] grown = new char[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, limit);
+            buf = grown;
+        }
+        int size;
+        do {
+            size = r.read(buf, limit, buf.length - limit);
+        } while (size == 0);
+        if (size == -1) {
+            eofReached = true;
+            return false;
+        }
+        limit += size;
+        return true;
+    }
+
+    private String getPositionString(int i) {
+        return " [" + row + "," + (i - lineStart + 1) + "]";
+    }
+
+    /**
+     * Collects the fields passed by the fast tokenizer into a string array
+     */
+    private static class RecordBuilder implements RowSink {
+        private String[] fields = new String[16];
+        private int count = 0;
+
+        public void field(int index, char[] buf, int offset, int length) {
+            if (index == fields.length) {
+                final String[] grown = new String[fields.length * 2];
+                System.arraycopy(fields, 0, grown, 0, fields.length);
+                fields = grown;
+            }
+            fields[index] = new String(buf, offset, length);
+        }
+
+        public void endRecord(int fieldCount) {
+            count = fieldCount;
+        }
+
+        String[] toRecord() {
+            final String[] result = new String[count];
+            System.arraycopy(fields, 0, result, 0, count);
+            return result;
+        }
+    }
+
     /**
      * Closes the underlying reader.
      *
@@ -347,6 +691,25 @@ public class CSVReader implements Closeable {
         commentChar = c;
     }
 
+    /**
+     * Switches between the default and the fast tokenizer. Must be called before the first record is read.
+     *
+     * @param fastMode true to use the fast tokenizer
+     */
+    public void setFastMode(boolean fastMode) {
+        if (started) {
+            throw new IllegalStateException("The tokenizer can't be changed after the reading started.");
+        }
+        this.fastMode = fastMode;
+        if (fastMode && buf == null) {
+            buf = new char[FAST_BUFFER_SIZE];
+        }
+    }
+
+    public boolean isFastMode() {
+        return fastMode;
+    }
+
     public int getRow() {
         return row;
     }
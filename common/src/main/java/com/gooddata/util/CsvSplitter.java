@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import com.gooddata.exception.InternalErrorException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a CSV file into byte ranges that start and end at record boundaries, so the ranges can be
+ * processed independently (see {@link MappedCsvSource#MappedCsvSource(File, char, long, long)}).
+ * <p/>
+ * A line feed is a record boundary only if it isn't inside a quoted field. As the quotes are escaped by
+ * doubling, a line feed is outside of quotes exactly when the number of quote characters in front of it is even.
+ * The file is cut into equal ranges that are scanned in parallel. Each scan counts the quotes in its range and
+ * remembers the first line feed preceded by an even and by an odd number of quotes within the range. The parity
+ * of quotes in front of each range then selects the right line feed.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class CsvSplitter {
+
+    /**
+     * Splits the file into ranges of approximately given size
+     *
+     * @param file      the CSV file
+     * @param chunkSize the approximate size of a range in bytes
+     * @param quote     the quote character, the escape character must be the same
+     * @param pool      the executor that scans the file
+     * @return sorted offsets of the range boundaries, the first is 0 and the last is the file size
+     * @throws IOException in case of IO issues
+     */
+    public static long[] split(File file, int chunkSize, char quote, ExecutorService pool) throws IOException {
+        if (quote >= 0x80) {
+            throw new IllegalArgumentException("The quote character must be ASCII.");
+        }
+        final long size = file.length();
+        final List<Future<RangeScan>> scans = new ArrayList<Future<RangeScan>>();
+        for (long start = 0; start < size; start += chunkSize) {
+            scans.add(pool.submit(new RangeScan(file, start, Math.min(start + chunkSize, size), (byte) quote)));
+        }
+        final List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        long last = 0;
+        boolean oddQuotes = false;
+        try {
+            for (Future<RangeScan> f : scans) {
+                final RangeScan scan = f.get();
+                final long boundary = oddQuotes ? scan.firstOdd : scan.firstEven;
+                if (boundary > last && boundary < size) {
+                    boundaries.add(boundary);
+                    last = boundary;
+                }
+                oddQuotes ^= (scan.quotes & 1) == 1;
+            }
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("Interrupted while splitting " + file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new InternalErrorException("Can't split " + file, e.getCause());
+        }
+        if (size > 0) {
+            boundaries.add(size);
+        }
+        final long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Scans a byte range of the file
+     */
+    private static class RangeScan implements Callable<RangeScan> {
+        private final File file;
+        private final long start;
+        private final long end;
+        private final byte quote;
+
+        // number of quotes in the range
+        private long quotes = 0;
+        // offsets behind the first line feed preceded by even / odd number of quotes in the range
+        private long firstEven = -1;
+        private long firstOdd = -1;
+
+        RangeScan(File file, long start, long end, byte quote) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.quote = quote;
+        }
+
+        public RangeScan call() throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final int length = (int) (end - start);
+                final MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+                long q = 0;
+                for (int i = 0; i < length; i++) {
+                    final byte c = b.get(i);
+                    if (c == quote) {
+                        q++;
+                    } else if (c == '\n') {
+                        if ((q & 1) == 0) {
+                            if (firstEven < 0) {
+                                firstEven = start + i + 1;
+                            }
+                        } else if (firstOdd < 0) {
+                            firstOdd = start + i + 1;
+                        }
+                    }
+                }
+                quotes = q;
+                return this;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
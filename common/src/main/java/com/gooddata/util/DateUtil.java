@@ -28,34 +28,95 @@ import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Date Utilities
  */
 public class DateUtil {
 
-    private static Map<String, DateTimeFormatter> formatters = new HashMap<String, DateTimeFormatter>();
+    // formatters by the requested format, one map for dates and one for datetimes
+    private static final ConcurrentMap<String, DateTimeFormatter> dateFormatters = new ConcurrentHashMap<String, DateTimeFormatter>();
+    private static final ConcurrentMap<String, DateTimeFormatter> dateTimeFormatters = new ConcurrentHashMap<String, DateTimeFormatter>();
 
-    public static synchronized DateTimeFormatter getDateFormatter(String fmt, boolean isDateTime) {
+    // the hits are on the hot path of every date value, every thread counts them in its own counter
+    private static final List<long[]> hitCounters = new CopyOnWriteArrayList<long[]>();
+    private static final ThreadLocal<long[]> hits = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            long[] counter = new long[1];
+            hitCounters.add(counter);
+            return counter;
+        }
+    };
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the (cached) formatter of the date format. The formatters are immutable and thread safe.
+     *
+     * @param fmt        the date format (empty for the default format)
+     * @param isDateTime true for datetime values
+     * @return the formatter
+     */
+    public static DateTimeFormatter getDateFormatter(String fmt, boolean isDateTime) {
+        final ConcurrentMap<String, DateTimeFormatter> formatters = (isDateTime) ? (dateTimeFormatters) : (dateFormatters);
+        final String key = (fmt != null) ? (fmt) : ("");
+        DateTimeFormatter frmtr = formatters.get(key);
+        if (frmtr != null) {
+            hits.get()[0]++;
+            return frmtr;
+        }
+        misses.incrementAndGet();
+        frmtr = DateTimeFormat.forPattern(getFormatPattern(fmt, isDateTime));
+        DateTimeFormatter existing = formatters.putIfAbsent(key, frmtr);
+        return (existing != null) ? (existing) : (frmtr);
+    }
+
+    /**
+     * Returns the number of the formatter cache hits. The per-thread counts are summed, the hits of the other
+     * threads that are still running may be counted with a delay.
+     *
+     * @return number of hits
+     */
+    public static long getFormatterCacheHits() {
+        long sum = 0;
+        for (long[] counter : hitCounters) {
+            sum += counter[0];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of the formatter cache misses (created formatters)
+     *
+     * @return number of misses
+     */
+    public static long getFormatterCacheMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the Joda pattern used for the date format
+     *
+     * @param fmt        the date format from the schema (can be empty)
+     * @param isDateTime true for datetime values
+     * @return the pattern
+     */
+    public static String getFormatPattern(String fmt, boolean isDateTime) {
         if (fmt == null || fmt.length() <= 0) {
             if (isDateTime)
-                fmt = Constants.DEFAULT_DATETIME_FMT_STRING;
+                return Constants.DEFAULT_DATETIME_FMT_STRING;
             else
-                fmt = Constants.DEFAULT_DATE_FMT_STRING;
+                return Constants.DEFAULT_DATE_FMT_STRING;
         }
         // in case of UNIX TIME we don't format but create the date from the UNIX time number
         if (Constants.UNIX_DATE_FORMAT.equalsIgnoreCase(fmt) || Constants.GOODDATA_DATE_FORMAT.equalsIgnoreCase(fmt)) {
-            fmt = Constants.DEFAULT_DATETIME_FMT_STRING;
-        }
-
-        DateTimeFormatter frmtr = formatters.get(fmt);
-        if (frmtr == null) {
-            frmtr = DateTimeFormat.forPattern(fmt);
-            formatters.put(fmt, frmtr);
+            return Constants.DEFAULT_DATETIME_FMT_STRING;
         }
-        return frmtr;
+        return fmt;
     }
 
     private static final DateTimeFormatter baseFmt = DateTimeFormat.forPattern(Constants.DEFAULT_DATETIME_FMT_STRING);
@@ -30,8 +30,7 @@ import org.apache.log4j.Logger;
 import java.io.*;
 import java.net.URL;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * File utils
@@ -43,7 +42,7 @@ public class FileUtil {
 
     private static Logger l = Logger.getLogger(FileUtil.class);
 
-    private static final int BUF_SIZE = 2048;
+    private static final int BUF_SIZE = 64 * 1024;
 
     /**
      * Compresses local directory to the archiveName
@@ -53,23 +52,42 @@ public class FileUtil {
      * @throws IOException
      */
     public static void compressDir(String dirPath, String archiveName) throws IOException {
+        compressDir(dirPath, archiveName, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * Compresses local directory to the archiveName
+     *
+     * @param dirPath     path to the directory
+     * @param archiveName the name of the ZIP archive that is going to be created
+     * @param level       compression level (0 stores the data, 1-9 or -1 for the default level)
+     * @param threads     number of compressing threads
+     * @throws IOException
+     */
+    public static void compressDir(String dirPath, String archiveName, int level, int threads) throws IOException {
         l.debug("Compressing " + dirPath + " -> " + archiveName);
         File d = new File(dirPath);
         if (d.isDirectory()) {
             File[] files = d.listFiles();
             byte data[] = new byte[BUF_SIZE];
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveName)));
-            for (File file : files) {
-                BufferedInputStream fi = new BufferedInputStream(new FileInputStream(file), BUF_SIZE);
-                ZipEntry entry = new ZipEntry(file.getName());
-                out.putNextEntry(entry);
-                int count;
-                while ((count = fi.read(data, 0, BUF_SIZE)) != -1) {
-                    out.write(data, 0, count);
+            ParallelZipOutputStream out = new ParallelZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveName), BUF_SIZE),
+                    level, threads);
+            try {
+                for (File file : files) {
+                    InputStream fi = new FileInputStream(file);
+                    try {
+                        out.putNextEntry(file.getName());
+                        int count;
+                        while ((count = fi.read(data, 0, BUF_SIZE)) != -1) {
+                            out.write(data, 0, count);
+                        }
+                    } finally {
+                        fi.close();
+                    }
                 }
-                fi.close();
+            } finally {
+                out.close();
             }
-            out.close();
         } else
             throw new IOException("The referenced directory isn't directory!");
         l.debug("Compressed " + dirPath + " -> " + archiveName);
@@ -99,6 +117,26 @@ public class FileUtil {
         }
     }
 
+    /**
+     * Appends the file content to the stream
+     *
+     * @param file the file
+     * @param os   the target stream, it isn't closed
+     * @throws IOException in case of an IO issue
+     */
+    public static void append(File file, OutputStream os) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
     /**
      * Create a new temporary directory. Use something like
      * {@link #recursiveDelete(File)} to clean this directory up since it isn't
@@ -519,6 +557,24 @@ public class FileUtil {
         return new CSVReader(new InputStreamReader(inputStream, "utf8"));
     }
 
+    /**
+     * Creates the fastest available UTF-8 {@link CsvRecordSource} of the given local <tt>file</tt>.
+     * The file is memory mapped and tokenized on the byte level if the separator allows it.
+     *
+     * @param file
+     * @param separator field separator
+     * @return
+     * @throws IOException
+     */
+    public static CsvRecordSource createUtf8CsvSource(File file, char separator) throws IOException {
+        if (MappedCsvSource.supports(separator, CSVReader.DEFAULT_QUOTE_CHARACTER, CSVReader.DEFAULT_ESCAPE_CHARACTER)) {
+            return new MappedCsvSource(file, separator);
+        }
+        CSVReader cr = createUtf8CsvReader(file, separator);
+        cr.setFastMode(true);
+        return cr;
+    }
+
     /**
      * Creates a UTF-8 {@link CSVWriter} of the given <tt>file</tt>.
      *
@@ -550,7 +606,18 @@ public class FileUtil {
      * @throws IOException
      */
     public static CSVWriter createUtf8CsvEscapingWriter(File file) throws IOException {
-        return new CSVWriter(new OutputStreamWriter(new FileOutputStream(file), "utf8"), ',', '"', '"');
+        return createUtf8CsvEscapingWriter(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a UTF-8 {@link CSVWriter} of the given <tt>outputStream</tt>.
+     *
+     * @param outputStream
+     * @return
+     * @throws IOException
+     */
+    public static CSVWriter createUtf8CsvEscapingWriter(OutputStream outputStream) throws IOException {
+        return new CSVWriter(new OutputStreamWriter(outputStream, "utf8"), ',', '"', '"');
     }
 
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.util;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent hash table of 64-bit fingerprints (key fingerprint to value fingerprint). The table is an open
+ * addressing (linear probing) table in a memory-mapped file, so it lives outside of the Java heap and only
+ * the touched pages are loaded. The table doubles in place when it is half full, 100M keys take 4GB of disk space.
+ * <p/>
+ * The lookups are thread safe, the updates must not run concurrently with anything else.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class FingerprintStore implements Closeable {
+
+    private static Logger l = Logger.getLogger(FingerprintStore.class);
+
+    private static final long MAGIC = 0x4744434650533031L; // GDCFPS01
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    // 1GB mapped segments (a multiple of the slot size)
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private static final long DEFAULT_CAPACITY = 1L << 16;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long size;
+    // the capacity of the table copied behind the new table while the store grows, 0 otherwise
+    private long growing;
+
+    private FingerprintStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the store, an empty store is created if the file doesn't exist
+     *
+     * @param file the store file
+     * @return the store
+     * @throws IOException if the file can't be opened or isn't a fingerprint store
+     */
+    public static FingerprintStore open(File file) throws IOException {
+        FingerprintStore s = new FingerprintStore(file);
+        if (file.exists() && file.length() > 0) {
+            s.map(file);
+        } else {
+            s.create(file, DEFAULT_CAPACITY);
+        }
+        l.debug("Opened the fingerprint store " + file + " with " + s.size + " keys.");
+        return s;
+    }
+
+    /**
+     * Returns the value of the key
+     *
+     * @param key the key fingerprint
+     * @return the value fingerprint, 0 if the key isn't in the store
+     */
+    public long get(long key) {
+        key = nonZero(key);
+        long mask = capacity - 1;
+        for (long i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long k = getLong(i, 0);
+            if (k == 0)
+                return 0;
+            if (k == key)
+                return getLong(i, 8);
+        }
+    }
+
+    /**
+     * Stores the value of the key
+     *
+     * @param key   the key fingerprint
+     * @param value the value fingerprint (0 is stored as 1)
+     * @throws IOException if the store can't grow
+     */
+    public void put(long key, long value) throws IOException {
+        if ((size + 1) * 2 > capacity)
+            grow();
+        if (insert(nonZero(key), nonZero(value)))
+            size++;
+    }
+
+    /**
+     * Returns the number of keys
+     *
+     * @return number of keys
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Writes the changes to the disk
+     */
+    public void flush() {
+        writeHeader();
+        flushSegments();
+    }
+
+    private void flushSegments() {
+        for (MappedByteBuffer b : segments) {
+            b.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the store
+     *
+     * @throws IOException in case of an IO issue
+     */
+    public void close() throws IOException {
+        if (raf != null) {
+            flush();
+            raf.close();
+            raf = null;
+            segments = null;
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a string
+     *
+     * @param s the string
+     * @return 64-bit fingerprint
+     */
+    public static long hash(String s) {
+        return mix(update(FNV_OFFSET, s));
+    }
+
+    /**
+     * Computes the fingerprint of a row, the values are separated so ["ab", "c"] and ["a", "bc"] differ
+     *
+     * @param values the row values
+     * @return 64-bit fingerprint
+     */
+    public static long hash(String[] values) {
+        long h = FNV_OFFSET;
+        for (String v : values) {
+            h = update(h, v);
+            h = (h ^ 0x1f) * FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    private static long update(long h, String s) {
+        if (s == null)
+            return (h ^ 0x00) * FNV_PRIME;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    // the MurmurHash3 finalizer, spreads the bits of the fingerprint for the slot selection
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long nonZero(long v) {
+        return (v != 0) ? (v) : (1);
+    }
+
+    private boolean insert(long key, long value) {
+        long mask = capacity - 1;
+        for (long i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long k = getLong(i, 0);
+            if (k == 0) {
+                putLong(i, 0, key);
+                putLong(i, 8, value);
+                return true;
+            }
+            if (k == key) {
+                putLong(i, 8, value);
+                return false;
+            }
+        }
+    }
+
+    private long getLong(long slot, int offset) {
+        long p = HEADER_SIZE + slot * SLOT_SIZE + offset;
+        return segments[(int) (p >>> SEGMENT_SHIFT)].getLong((int) (p & (SEGMENT_SIZE - 1)));
+    }
+
+    private void putLong(long slot, int offset, long value) {
+        long p = HEADER_SIZE + slot * SLOT_SIZE + offset;
+        segments[(int) (p >>> SEGMENT_SHIFT)].putLong((int) (p & (SEGMENT_SIZE - 1)), value);
+    }
+
+    private void create(File f, long cap) throws IOException {
+        raf = new RandomAccessFile(f, "rw");
+        raf.setLength(HEADER_SIZE + cap * SLOT_SIZE);
+        capacity = cap;
+        size = 0;
+        mapSegments();
+        writeHeader();
+    }
+
+    private void map(File f) throws IOException {
+        raf = new RandomAccessFile(f, "rw");
+        raf.seek(0);
+        if (raf.readLong() != MAGIC) {
+            raf.close();
+            raf = null;
+            throw new IOException("The file " + f + " isn't a fingerprint store.");
+        }
+        capacity = raf.readLong();
+        size = raf.readLong();
+        growing = raf.readLong();
+        if (Long.bitCount(capacity) != 1 || raf.length() < HEADER_SIZE + (capacity + growing) * SLOT_SIZE) {
+            raf.close();
+            raf = null;
+            throw new IOException("The fingerprint store " + f + " is corrupted.");
+        }
+        if (growing > 0) {
+            // the previous process stopped while the store grew, the copy of the old table is complete
+            l.info("Completing the interrupted growth of the fingerprint store " + f + ".");
+            mapSegments(HEADER_SIZE + (capacity + growing) * SLOT_SIZE);
+            rehash();
+        } else {
+            // drops the copy of the old table left behind by the last growth, the file isn't mapped yet
+            if (raf.length() > HEADER_SIZE + capacity * SLOT_SIZE)
+                raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+            mapSegments();
+        }
+    }
+
+    private void mapSegments() throws IOException {
+        mapSegments(HEADER_SIZE + capacity * SLOT_SIZE);
+    }
+
+    private void mapSegments(long length) throws IOException {
+        FileChannel ch = raf.getChannel();
+        int n = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = ch.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, length - start));
+        }
+    }
+
+    private void writeHeader() {
+        ByteBuffer h = segments[0];
+        h.putLong(0, MAGIC);
+        h.putLong(8, capacity);
+        h.putLong(16, size);
+        h.putLong(24, growing);
+    }
+
+    /**
+     * Rehashes the store to a table of the double capacity in the same file. The file is extended, the old
+     * table is copied behind the new table and its keys are inserted to the cleared new table. The copy is
+     * dropped when the store is opened next time (the mapped file can't be truncated on Windows).
+     * <p/>
+     * The store doesn't use a temporary file, because the mapped file can't be replaced on Windows until the
+     * buffers are garbage collected.
+     *
+     * @throws IOException in case of an IO issue
+     */
+    private void grow() throws IOException {
+        long oldCapacity = capacity;
+        long newCapacity = capacity * 2;
+        raf.setLength(HEADER_SIZE + (newCapacity + oldCapacity) * SLOT_SIZE);
+        mapSegments(HEADER_SIZE + (newCapacity + oldCapacity) * SLOT_SIZE);
+        for (long i = 0; i < oldCapacity; i++) {
+            putLong(newCapacity + i, 0, getLong(i, 0));
+            putLong(newCapacity + i, 8, getLong(i, 8));
+        }
+        // the header points to the copy once it is complete, an interrupted growth resumes from it
+        flushSegments();
+        capacity = newCapacity;
+        growing = oldCapacity;
+        flush();
+        rehash();
+        l.debug("The fingerprint store " + file + " grew to " + capacity + " slots.");
+    }
+
+    /**
+     * Inserts the keys of the old table copied behind the table to the cleared table
+     */
+    private void rehash() {
+        for (long i = 0; i < capacity; i++) {
+            putLong(i, 0, 0);
+            putLong(i, 8, 0);
+        }
+        for (long i = capacity; i < capacity + growing; i++) {
+            long k = getLong(i, 0);
+            if (k != 0)
+                insert(k, getLong(i, 8));
+        }
+        growing = 0;
+        flush();
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small pool of JDBC connections keyed by the JDBC url and username. The borrowed connections are
+ * returned to the pool when they are closed. The idle connections are validated before they are borrowed
+ * again. Thread safe.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class JdbcConnectionPool {
+
+    private static Logger l = Logger.getLogger(JdbcConnectionPool.class);
+
+    /**
+     * The default maximal number of idle connections per url and username
+     */
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    // the timeout of the connection validation (seconds)
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    private final int maxIdle;
+    private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+    private boolean closed = false;
+
+    public JdbcConnectionPool() {
+        this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxIdle the maximal number of idle connections per url and username
+     */
+    public JdbcConnectionPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Borrows a valid idle connection or opens a new one. The connection is returned to the pool
+     * when it is closed.
+     *
+     * @param url      JDBC url
+     * @param username JDBC username
+     * @param password JDBC password
+     * @return the connection
+     * @throws SQLException in case of a DB issue
+     */
+    public Connection getConnection(String url, String username, String password) throws SQLException {
+        final String key = url + '\u0000' + ((username != null) ? (username) : (""));
+        Connection con;
+        while ((con = poll(key)) != null) {
+            if (isValid(con)) {
+                l.debug("Reusing a JDBC connection to " + url + ".");
+                return wrap(key, con);
+            }
+            l.debug("Dropping an invalid JDBC connection to " + url + ".");
+            closeQuietly(con);
+        }
+        l.debug("Opening a new JDBC connection to " + url + ".");
+        return wrap(key, open(url, username, password));
+    }
+
+    /**
+     * Opens a new physical connection
+     *
+     * @param url      JDBC url
+     * @param username JDBC username
+     * @param password JDBC password
+     * @return the connection
+     * @throws SQLException in case of a DB issue
+     */
+    protected Connection open(String url, String username, String password) throws SQLException {
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    /**
+     * Returns the number of idle connections
+     *
+     * @return number of idle connections
+     */
+    public synchronized int getIdleCount() {
+        int cnt = 0;
+        for (LinkedList<Connection> cons : idle.values()) {
+            cnt += cons.size();
+        }
+        return cnt;
+    }
+
+    /**
+     * Closes all idle connections, the connections returned later are closed too
+     */
+    public void close() {
+        List<Connection> cons = new ArrayList<Connection>();
+        synchronized (this) {
+            closed = true;
+            for (LinkedList<Connection> c : idle.values()) {
+                cons.addAll(c);
+            }
+            idle.clear();
+        }
+        for (Connection con : cons) {
+            closeQuietly(con);
+        }
+        if (!cons.isEmpty())
+            l.debug("Closed " + cons.size() + " pooled JDBC connections.");
+    }
+
+    private synchronized Connection poll(String key) {
+        LinkedList<Connection> cons = idle.get(key);
+        return (cons != null) ? (cons.poll()) : (null);
+    }
+
+    /**
+     * Returns the connection to the pool
+     *
+     * @param key the pool key
+     * @param con the physical connection
+     */
+    private void release(String key, Connection con) {
+        try {
+            if (con.isClosed())
+                return;
+            // the next borrower gets the connection in the default state
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            l.debug("Can't reset the JDBC connection.", e);
+            closeQuietly(con);
+            return;
+        }
+        synchronized (this) {
+            LinkedList<Connection> cons = idle.get(key);
+            if (cons == null) {
+                cons = new LinkedList<Connection>();
+                idle.put(key, cons);
+            }
+            if (!closed && cons.size() < maxIdle) {
+                cons.addFirst(con);
+                return;
+            }
+        }
+        closeQuietly(con);
+    }
+
+    /**
+     * Validates the connection, uses Connection.isValid on JDBC 4 drivers
+     *
+     * @param con the connection
+     * @return true if the connection can be used
+     */
+    private static boolean isValid(Connection con) {
+        try {
+            if (con.isClosed())
+                return false;
+            Method m = Connection.class.getMethod("isValid", Integer.TYPE);
+            return (Boolean) m.invoke(con, VALIDATION_TIMEOUT);
+        } catch (NoSuchMethodException e) {
+            // JDBC 3
+            return true;
+        } catch (InvocationTargetException e) {
+            // the driver doesn't implement the JDBC 4 validation
+            return !(e.getCause() instanceof SQLException);
+        } catch (IllegalAccessException e) {
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            l.debug("Error closing JDBC connection.", e);
+        }
+    }
+
+    /**
+     * Wraps the physical connection, the close returns it to the pool
+     */
+    private Connection wrap(final String key, final Connection con) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    private boolean released = false;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                            synchronized (this) {
+                                if (released)
+                                    return null;
+                                released = true;
+                            }
+                            release(key, con);
+                            return null;
+                        }
+                        if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                            synchronized (this) {
+                                if (released)
+                                    return Boolean.TRUE;
+                            }
+                        }
+                        if ("equals".equals(name) && method.getParameterTypes().length == 1)
+                            return proxy == args[0];
+                        if ("hashCode".equals(name) && method.getParameterTypes().length == 0)
+                            return System.identityHashCode(proxy);
+                        if ("toString".equals(name) && method.getParameterTypes().length == 0)
+                            return "Pooled " + con;
+                        synchronized (this) {
+                            if (released)
+                                throw new SQLException("The JDBC connection has been closed.");
+                        }
+                        try {
+                            return method.invoke(con, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads UTF-8 CSV records from a local file. The file is memory mapped in segments and tokenized
+ * on the byte level (the separator, quote and line end characters are all ASCII), only the field
+ * values are decoded to strings. The records are identical to the ones returned by the {@link CSVReader}
+ * in the fast mode.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class MappedCsvSource implements CsvRecordSource {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int SCRATCH_SIZE = 1024;
+
+    // field terminators
+    private static final int TERM_SEPARATOR = 0;
+    private static final int TERM_EOL = 1;
+    private static final int TERM_EOF = 2;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    // offset behind the last byte read
+    private long size;
+    private final int segmentSize;
+
+    // configuration
+    private final byte separator;
+    private final byte quote;
+    private final byte escape;
+    private final boolean skipSpaces;
+
+    // the mapped window of the file
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private int windowLimit = 0;
+
+    // status variables
+    private int pos = 0;
+    private int fieldStart = 0;
+    private int lineStart = 0;
+    private int row = 1;
+    private int quoteRow = 0;
+    private int quoteCol = 0;
+    private boolean afterCr = false;
+
+    private byte[] bytes = new byte[SCRATCH_SIZE];
+    private int bytesLength = 0;
+    private char[] chars = new char[SCRATCH_SIZE];
+    private String[] fields = new String[16];
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Constructs the source using a comma for the separator.
+     *
+     * @param file the CSV file
+     * @throws IOException if the file can't be opened
+     */
+    public MappedCsvSource(File file) throws IOException {
+        this(file, CSVReader.DEFAULT_SEPARATOR);
+    }
+
+    /**
+     * Constructs the source with supplied separator.
+     *
+     * @param file      the CSV file
+     * @param separator the delimiter to use for separating entries
+     * @throws IOException if the file can't be opened
+     */
+    public MappedCsvSource(File file, char separator) throws IOException {
+        this(file, separator, CSVReader.DEFAULT_QUOTE_CHARACTER, CSVReader.DEFAULT_ESCAPE_CHARACTER, false);
+    }
+
+    /**
+     * Constructs the source from the CSV configuration.
+     *
+     * @param file      the CSV file
+     * @param csvConfig the CSV configuration
+     * @throws IOException if the file can't be opened
+     */
+    public MappedCsvSource(File file, CsvConfiguration csvConfig) throws IOException {
+        this(file, csvConfig.getSeparator(), csvConfig.getQuotechar(), csvConfig.getEscape(), csvConfig.getSkipSpaces());
+    }
+
+    /**
+     * Constructs the source with supplied separator, quote and escape characters.
+     *
+     * @param file       the CSV file
+     * @param separator  the delimiter to use for separating entries
+     * @param quotechar  the character to use for quoted elements
+     * @param escape     the character to use for escaping a separator or quote
+     * @param skipSpaces whether should spaces in front of quoted columns be skipped or taken as an error
+     * @throws IOException if the file can't be opened
+     */
+    public MappedCsvSource(File file, char separator, char quotechar, char escape, boolean skipSpaces) throws IOException {
+        this(file, separator, quotechar, escape, skipSpaces, SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs the source that reads only the records within the given byte range of the file.
+     * Both range ends must be record boundaries (see {@link CsvSplitter}).
+     *
+     * @param file      the CSV file
+     * @param separator the delimiter to use for separating entries
+     * @param start     offset of the first record
+     * @param end       offset behind the last record
+     * @throws IOException if the file can't be opened
+     */
+    public MappedCsvSource(File file, char separator, long start, long end) throws IOException {
+        this(file, separator, CSVReader.DEFAULT_QUOTE_CHARACTER, CSVReader.DEFAULT_ESCAPE_CHARACTER, false, SEGMENT_SIZE);
+        if (start < 0 || start > end || end > fileSize) {
+            close();
+            throw new IllegalArgumentException("Invalid byte range [" + start + "," + end + ") of a file of size " + fileSize);
+        }
+        this.windowStart = start;
+        this.size = end;
+    }
+
+    MappedCsvSource(File file, char separator, char quotechar, char escape, boolean skipSpaces, int segmentSize)
+            throws IOException {
+        if (!supports(separator, quotechar, escape)) {
+            throw new IllegalArgumentException("The separator, quote and escape characters must be ASCII.");
+        }
+        this.separator = (byte) separator;
+        this.quote = (byte) quotechar;
+        this.escape = (byte) escape;
+        this.skipSpaces = skipSpaces;
+        this.segmentSize = segmentSize;
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.fileSize = channel.size();
+        this.size = fileSize;
+    }
+
+    /**
+     * Checks whether the byte-level tokenizing can be used for given configuration
+     *
+     * @param separator the delimiter to use for separating entries
+     * @param quotechar the character to use for quoted elements
+     * @param escape    the character to use for escaping a separator or quote
+     * @return true if all the characters are ASCII
+     */
+    public static boolean supports(char separator, char quotechar, char escape) {
+        return separator < 0x80 && quotechar < 0x80 && escape < 0x80;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] readNext() throws IOException {
+        if (!startRecord()) {
+            return null;
+        }
+        int count = 0;
+        int term;
+        do {
+            term = readField();
+            if (count == fields.length) {
+                final String[] grown = new String[fields.length * 2];
+                System.arraycopy(fields, 0, grown, 0, fields.length);
+                fields = grown;
+            }
+            fields[count++] = decode();
+        } while (term == TERM_SEPARATOR);
+        final String[] result = new String[count];
+        System.arraycopy(fields, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Closes the underlying file.
+     *
+     * @throws IOException if the close fails
+     */
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        file.close();
+    }
+
+    private boolean startRecord() throws IOException {
+        for (;;) {
+            fieldStart = pos;
+            if (pos == windowLimit && !remap()) {
+                return false;
+            }
+            if (afterCr) {
+                // CR is followed by any number of CRs and an optional LF
+                final byte c = window.get(pos);
+                if (c == '\r') {
+                    pos++;
+                    continue;
+                }
+                afterCr = false;
+                if (c == '\n') {
+                    pos++;
+                    lineStart = pos;
+                    continue;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads a field into the scratch byte buffer
+     *
+     * @return the field terminator
+     * @throws IOException if bad things happen during the read
+     */
+    private int readField() throws IOException {
+        fieldStart = pos;
+        boolean blank = true;
+        int i = pos;
+        for (;;) {
+            final MappedByteBuffer b = window;
+            final int lim = windowLimit;
+            while (i < lim) {
+                final byte c = b.get(i);
+                if (c == quote || c == escape) {
+                    pos = i;
+                    copy(fieldStart, i);
+                    if (i == fieldStart || (skipSpaces && blank)) {
+                        quoteRow = row;
+                        quoteCol = i - lineStart + 1;
+                        pos++;
+                        return readEscapedField(true);
+                    }
+                    return readEscapedField(false);
+                } else if (c == separator) {
+                    copy(fieldStart, i);
+                    pos = i + 1;
+                    return TERM_SEPARATOR;
+                } else if (c == '\n' || c == '\r') {
+                    copy(fieldStart, i);
+                    pos = i + 1;
+                    endOfLine(c);
+                    return TERM_EOL;
+                }
+                // non-ASCII bytes are negative
+                if (c > ' ' || c < 0) {
+                    blank = false;
+                }
+                i++;
+            }
+            pos = i;
+            if (!remap()) {
+                copy(fieldStart, windowLimit);
+                return TERM_EOF;
+            }
+            i = pos;
+        }
+    }
+
+    /**
+     * Reads the rest of a quoted field or of an unquoted field containing an escape sequence.
+     * The unescaped value is appended to the scratch byte buffer.
+     *
+     * @param quoted whether the field is quoted
+     * @return the field terminator
+     * @throws IOException if bad things happen during the read
+     */
+    private int readEscapedField(boolean quoted) throws IOException {
+        for (;;) {
+            fieldStart = pos;
+            if (pos == windowLimit && !remap()) {
+                if (quoted) {
+                    throw new IllegalStateException("Missing quote character to close the quote char at ["
+                            + quoteRow + "," + quoteCol + "]");
+                }
+                return TERM_EOF;
+            }
+            final byte c = window.get(pos);
+            if (c == quote || c == escape) {
+                fieldStart = pos;
+                if (pos + 1 == windowLimit) {
+                    remap();
+                }
+                final int next = (pos + 1 < windowLimit) ? window.get(pos + 1) : -1;
+                if (c == escape && (next == quote || next == escape)) {
+                    append((byte) next);
+                    pos += 2;
+                    continue;
+                }
+                if (c == quote) {
+                    if (!quoted) {
+                        throw new IllegalStateException("odd quote character at " + getPositionString(pos));
+                    }
+                    // closing quote should be followed by separator
+                    if (next == -1) {
+                        pos++;
+                        return TERM_EOF;
+                    } else if (next == separator) {
+                        pos += 2;
+                        return TERM_SEPARATOR;
+                    } else if (next == '\n' || next == '\r') {
+                        pos += 2;
+                        endOfLine((byte) next);
+                        return TERM_EOL;
+                    }
+                    throw new IllegalStateException("separator expected after a closing quote; found "
+                            + (char) next + getPositionString(pos + 1));
+                }
+                // a lone escape character is taken literally
+            } else if (!quoted) {
+                if (c == separator) {
+                    pos++;
+                    return TERM_SEPARATOR;
+                } else if (c == '\n' || c == '\r') {
+                    pos++;
+                    endOfLine(c);
+                    return TERM_EOL;
+                }
+            } else if (c == '\r' || (c == '\n' && (bytesLength == 0 || bytes[bytesLength - 1] != '\r'))) {
+                row++;
+                lineStart = pos + 1;
+            }
+            append(c);
+            pos++;
+        }
+    }
+
+    private void endOfLine(byte c) {
+        afterCr = (c == '\r');
+        row++;
+        lineStart = pos;
+    }
+
+    /**
+     * Maps the next segment of the file. The segment starts at fieldStart, so the current field
+     * stays mapped.
+     *
+     * @return false if there are no more data
+     * @throws IOException if the mapping fails
+     */
+    private boolean remap() throws IOException {
+        final long mapped = windowStart + windowLimit;
+        if (mapped >= size) {
+            return false;
+        }
+        final int shift = fieldStart;
+        final int kept = windowLimit - shift;
+        // a field longer than the segment makes the segment grow
+        final long length = Math.min(Math.max(segmentSize, 2L * kept), size - windowStart - shift);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The CSV field is too long" + getPositionString(pos));
+        }
+        windowStart += shift;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+        windowLimit = (int) length;
+        pos -= shift;
+        fieldStart = 0;
+        lineStart -= shift;
+        return windowLimit > kept;
+    }
+
+    private void copy(int start, int end) {
+        bytesLength = 0;
+        final int length = end - start;
+        if (length > 0) {
+            ensureCapacity(length);
+            window.position(start);
+            window.get(bytes, 0, length);
+            bytesLength = length;
+        }
+    }
+
+    private void append(byte c) {
+        ensureCapacity(bytesLength + 1);
+        bytes[bytesLength++] = c;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            final byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, bytesLength);
+            bytes = grown;
+        }
+    }
+
+    /**
+     * Decodes the scratch byte buffer. ASCII values are copied directly, the rest goes through the UTF-8 decoder.
+     *
+     * @return the field value
+     * @throws IOException in case of a decoding issue
+     */
+    private String decode() throws IOException {
+        final int length = bytesLength;
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        final byte[] b = bytes;
+        final char[] c = chars;
+        for (int i = 0; i < length; i++) {
+            final byte v = b[i];
+            if (v < 0) {
+                return decoder.decode(ByteBuffer.wrap(b, 0, length)).toString();
+            }
+            c[i] = (char) v;
+        }
+        return new String(c, 0, length);
+    }
+
+    private String getPositionString(int i) {
+        return " [" + row + "," + (i - lineStart + 1) + "]";
+    }
+}
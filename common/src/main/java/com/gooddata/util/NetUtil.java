@@ -24,10 +24,13 @@
 package com.gooddata.util;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NTCredentials;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthPolicy;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
@@ -40,6 +43,83 @@ public class NetUtil {
 
     private static Logger l = Logger.getLogger(NetUtil.class);
 
+    /**
+     * System properties that configure the pooled HTTP connections (the timeouts are in milliseconds)
+     */
+    public static final String HTTP_MAX_CONNECTIONS_PER_HOST = "gdc.http.maxConnectionsPerHost";
+    public static final String HTTP_MAX_CONNECTIONS = "gdc.http.maxConnections";
+    public static final String HTTP_CONNECT_TIMEOUT = "gdc.http.connectTimeout";
+    public static final String HTTP_SOCKET_TIMEOUT = "gdc.http.socketTimeout";
+    public static final String HTTP_KEEP_ALIVE = "gdc.http.keepAlive";
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 60000;
+    // some of the API calls take long, but a stalled connection mustn't block a command forever
+    public static final int DEFAULT_SOCKET_TIMEOUT = 10 * 60 * 1000;
+    public static final int DEFAULT_KEEP_ALIVE = 60000;
+
+    // closes the pooled connections that stay idle longer than the keep alive
+    private static IdleConnectionTimeoutThread idleConnectionCloser = null;
+
+    /**
+     * Creates a thread safe pooled HTTP connection manager. The connection limits, timeouts and the keep alive
+     * of idle connections are configured by the gdc.http.* system properties.
+     *
+     * @return the connection manager
+     */
+    public static MultiThreadedHttpConnectionManager createConnectionManager() {
+        MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = manager.getParams();
+        params.setDefaultMaxConnectionsPerHost(getIntProperty(HTTP_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS_PER_HOST));
+        params.setMaxTotalConnections(getIntProperty(HTTP_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+        params.setConnectionTimeout(getIntProperty(HTTP_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT));
+        params.setSoTimeout(getIntProperty(HTTP_SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT));
+        params.setStaleCheckingEnabled(true);
+        params.setTcpNoDelay(true);
+        int keepAlive = getIntProperty(HTTP_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+        if (keepAlive > 0) {
+            synchronized (NetUtil.class) {
+                if (idleConnectionCloser == null) {
+                    idleConnectionCloser = new IdleConnectionTimeoutThread();
+                    idleConnectionCloser.setConnectionTimeout(keepAlive);
+                    idleConnectionCloser.setTimeoutInterval(Math.min(keepAlive, 5000));
+                    idleConnectionCloser.start();
+                }
+                idleConnectionCloser.addConnectionManager(manager);
+            }
+        }
+        l.debug("Created HTTP connection manager maxConnectionsPerHost=" + params.getDefaultMaxConnectionsPerHost() +
+                ", maxConnections=" + params.getMaxTotalConnections() + ", connectTimeout=" +
+                params.getConnectionTimeout() + ", socketTimeout=" + params.getSoTimeout() + ", keepAlive=" + keepAlive);
+        return manager;
+    }
+
+    /**
+     * Stops the pooled connection manager and closes its connections
+     *
+     * @param manager the connection manager created by the {@link #createConnectionManager()}
+     */
+    public static void shutdownConnectionManager(MultiThreadedHttpConnectionManager manager) {
+        synchronized (NetUtil.class) {
+            if (idleConnectionCloser != null)
+                idleConnectionCloser.removeConnectionManager(manager);
+        }
+        manager.shutdown();
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        String v = System.getProperty(name);
+        if (v == null || v.trim().length() <= 0)
+            return defaultValue;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            l.warn("Invalid value of the " + name + " system property '" + v + "', using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
     public static void configureHttpProxy(HttpClient client) {
         final String proxyHost = System.getProperty("http.proxyHost");
         final int proxyPort = System.getProperty("http.proxyPort") == null
@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import com.gooddata.exception.InternalErrorException;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming ZIP writer that can deflate the entries on a thread pool (similar to pigz). The entry data are
+ * split into blocks that are compressed independently (primed with the last 32KB of the previous block)
+ * and concatenated in order, every block but the last ends with a sync flush, so the result is a single
+ * standard deflate stream. The entries are written with data descriptors and ZIP64 records when needed,
+ * the same layout {@link java.util.zip.ZipOutputStream} produces.
+ * <p/>
+ * The parallel mode needs the Deflater flush modes (Java 7), on older runtimes the entries are deflated
+ * sequentially. Compression level 0 stores the data in uncompressed deflate blocks.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class ParallelZipOutputStream extends OutputStream {
+
+    private static Logger l = Logger.getLogger(ParallelZipOutputStream.class);
+
+    /**
+     * Default size of the independently compressed blocks
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final long LOCSIG = 0x04034b50L;
+    private static final long EXTSIG = 0x08074b50L;
+    private static final long CENSIG = 0x02014b50L;
+    private static final long ENDSIG = 0x06054b50L;
+    private static final long ZIP64_ENDSIG = 0x06064b50L;
+    private static final long ZIP64_LOCSIG = 0x07064b50L;
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+    private static final int ZIP64_EXTID = 0x0001;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int DEFLATED = 8;
+
+    // Deflater.SYNC_FLUSH
+    private static final int SYNC_FLUSH = 2;
+    // Deflater.deflate(byte[], int, int, int), not available before Java 7
+    private static final Method DEFLATE_WITH_FLUSH = findDeflateWithFlush();
+
+    private final OutputStream out;
+    private final int level;
+    private final int threads;
+    private final int blockSize;
+    private final ExecutorService pool;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final byte[] header = new byte[128];
+    private long written = 0;
+    private boolean finished = false;
+
+    // current entry
+    private Entry entry;
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private byte[] deflaterOutput;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private int previousBlockLength;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    /**
+     * Creates the ZIP stream
+     *
+     * @param out     the target stream
+     * @param level   deflate level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+     * @param threads number of compressing threads, 1 compresses in the calling thread
+     */
+    public ParallelZipOutputStream(OutputStream out, int level, int threads) {
+        this(out, level, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates the ZIP stream
+     *
+     * @param out       the target stream
+     * @param level     deflate level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+     * @param threads   number of compressing threads, 1 compresses in the calling thread
+     * @param blockSize size of the independently compressed blocks
+     */
+    ParallelZipOutputStream(OutputStream out, int level, int threads, int blockSize) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        this.out = out;
+        this.level = level;
+        this.blockSize = blockSize;
+        if (threads > 1 && !isParallelSupported()) {
+            l.debug("The parallel compression isn't supported by this Java runtime, compressing sequentially.");
+            threads = 1;
+        }
+        this.threads = threads;
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "zip-deflater");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Tests if the Java runtime supports the parallel compression
+     *
+     * @return true if the blocks can be compressed in parallel
+     */
+    public static boolean isParallelSupported() {
+        return DEFLATE_WITH_FLUSH != null;
+    }
+
+    /**
+     * Starts a new entry, the current entry is closed
+     *
+     * @param name the entry name
+     * @throws IOException in case of an IO issue
+     */
+    public void putNextEntry(String name) throws IOException {
+        ensureOpen();
+        if (entry != null) {
+            closeEntry();
+        }
+        entry = new Entry(name, written, System.currentTimeMillis());
+        crc.reset();
+        writeLocalHeader(entry);
+        if (pool == null) {
+            deflater = new Deflater(level, true);
+            if (deflaterOutput == null)
+                deflaterOutput = new byte[OUTPUT_BUFFER_SIZE];
+        } else {
+            block = new byte[blockSize];
+            blockLength = 0;
+            previousBlock = null;
+            previousBlockLength = 0;
+        }
+    }
+
+    /**
+     * Finishes the current entry
+     *
+     * @throws IOException in case of an IO issue
+     */
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (entry == null)
+            return;
+        if (pool == null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflaterOutput, 0, deflaterOutput.length);
+                writeOut(deflaterOutput, 0, n);
+            }
+            entry.size = deflater.getBytesRead();
+            deflater.end();
+            deflater = null;
+        } else {
+            submitBlock(true);
+            while (!pending.isEmpty()) {
+                writeBlock();
+            }
+            block = null;
+            previousBlock = null;
+        }
+        entry.crc = crc.getValue();
+        entry.csize = written - entry.offset - entry.localHeaderLength;
+        writeDataDescriptor(entry);
+        entries.add(entry);
+        entry = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (entry == null)
+            throw new IOException("No current ZIP entry.");
+        if (len == 0)
+            return;
+        crc.update(b, off, len);
+        if (pool == null) {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(deflaterOutput, 0, deflaterOutput.length);
+                writeOut(deflaterOutput, 0, n);
+            }
+        } else {
+            while (len > 0) {
+                int n = Math.min(len, block.length - blockLength);
+                System.arraycopy(b, off, block, blockLength, n);
+                blockLength += n;
+                off += n;
+                len -= n;
+                if (blockLength == block.length) {
+                    submitBlock(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes the ZIP file (writes the central directory) without closing the target stream
+     *
+     * @throws IOException in case of an IO issue
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        try {
+            if (entry != null) {
+                closeEntry();
+            }
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            finished = true;
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finishes the ZIP file and closes the target stream
+     *
+     * @throws IOException in case of an IO issue
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished)
+            throw new IOException("The ZIP stream is finished.");
+    }
+
+    /**
+     * Passes the current block to the pool and writes the compressed blocks when too many are pending
+     *
+     * @param last is it the last block of the entry?
+     * @throws IOException in case of an IO issue
+     */
+    private void submitBlock(boolean last) throws IOException {
+        pending.add(pool.submit(new BlockDeflater(block, blockLength, previousBlock, previousBlockLength, last)));
+        entry.size += blockLength;
+        previousBlock = block;
+        previousBlockLength = blockLength;
+        block = (last) ? (null) : (new byte[blockSize]);
+        blockLength = 0;
+        while (pending.size() > 2 * threads) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            byte[] compressed = pending.removeFirst().get();
+            writeOut(compressed, 0, compressed.length);
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The ZIP compression has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new InternalErrorException(cause);
+        }
+    }
+
+    /**
+     * Compresses a block
+     */
+    private class BlockDeflater implements Callable<byte[]> {
+
+        private final byte[] data;
+        private final int length;
+        private final byte[] dictionary;
+        private final int dictionaryLength;
+        private final boolean last;
+
+        BlockDeflater(byte[] data, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+            this.data = data;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.dictionaryLength = dictionaryLength;
+            this.last = last;
+        }
+
+        public byte[] call() throws IOException {
+            Deflater d = new Deflater(level, true);
+            try {
+                if (dictionary != null && dictionaryLength > 0 && level != Deflater.NO_COMPRESSION) {
+                    int n = Math.min(dictionaryLength, DICTIONARY_SIZE);
+                    d.setDictionary(dictionary, dictionaryLength - n, n);
+                }
+                d.setInput(data, 0, length);
+                byte[] result = new byte[Math.max(length / 2, 1024)];
+                int resultLength = 0;
+                if (last) {
+                    d.finish();
+                }
+                while (true) {
+                    if (result.length - resultLength < 1024) {
+                        byte[] r = new byte[result.length * 2];
+                        System.arraycopy(result, 0, r, 0, resultLength);
+                        result = r;
+                    }
+                    int space = result.length - resultLength;
+                    int n = (last) ? (d.deflate(result, resultLength, space)) : (syncFlush(d, result, resultLength, space));
+                    resultLength += n;
+                    if ((last) ? (d.finished()) : (n < space)) {
+                        break;
+                    }
+                }
+                byte[] r = new byte[resultLength];
+                System.arraycopy(result, 0, r, 0, resultLength);
+                return r;
+            } finally {
+                d.end();
+            }
+        }
+    }
+
+    private static int syncFlush(Deflater d, byte[] b, int off, int len) throws IOException {
+        try {
+            return (Integer) DEFLATE_WITH_FLUSH.invoke(d, b, off, len, SYNC_FLUSH);
+        } catch (IllegalAccessException e) {
+            throw new InternalErrorException(e);
+        } catch (InvocationTargetException e) {
+            throw new InternalErrorException(e.getCause());
+        }
+    }
+
+    private static Method findDeflateWithFlush() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void writeLocalHeader(Entry e) throws IOException {
+        int p = 0;
+        p = putInt(LOCSIG, p);
+        p = putShort(20, p);
+        p = putShort(e.flags, p);
+        p = putShort(DEFLATED, p);
+        p = putInt(e.dosTime, p);
+        // crc and sizes are in the data descriptor
+        p = putInt(0, p);
+        p = putInt(0, p);
+        p = putInt(0, p);
+        p = putShort(e.name.length, p);
+        p = putShort(0, p);
+        writeOut(header, 0, p);
+        writeOut(e.name, 0, e.name.length);
+        e.localHeaderLength = p + e.name.length;
+    }
+
+    private void writeDataDescriptor(Entry e) throws IOException {
+        int p = 0;
+        p = putInt(EXTSIG, p);
+        p = putInt(e.crc, p);
+        if (e.csize >= ZIP64_MAGICVAL || e.size >= ZIP64_MAGICVAL) {
+            p = putLong(e.csize, p);
+            p = putLong(e.size, p);
+        } else {
+            p = putInt(e.csize, p);
+            p = putInt(e.size, p);
+        }
+        writeOut(header, 0, p);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long cenOffset = written;
+        for (Entry e : entries) {
+            boolean zip64Size = e.size >= ZIP64_MAGICVAL;
+            boolean zip64Csize = e.csize >= ZIP64_MAGICVAL;
+            boolean zip64Offset = e.offset >= ZIP64_MAGICVAL;
+            int extraLength = ((zip64Size) ? 8 : 0) + ((zip64Csize) ? 8 : 0) + ((zip64Offset) ? 8 : 0);
+            int version = (extraLength > 0) ? 45 : 20;
+            int p = 0;
+            p = putInt(CENSIG, p);
+            p = putShort(version, p);
+            p = putShort(version, p);
+            p = putShort(e.flags, p);
+            p = putShort(DEFLATED, p);
+            p = putInt(e.dosTime, p);
+            p = putInt(e.crc, p);
+            p = putInt((zip64Csize) ? (ZIP64_MAGICVAL) : (e.csize), p);
+            p = putInt((zip64Size) ? (ZIP64_MAGICVAL) : (e.size), p);
+            p = putShort(e.name.length, p);
+            p = putShort((extraLength > 0) ? (extraLength + 4) : (0), p);
+            // comment, disk number, internal and external attributes
+            p = putShort(0, p);
+            p = putShort(0, p);
+            p = putShort(0, p);
+            p = putInt(0, p);
+            p = putInt((zip64Offset) ? (ZIP64_MAGICVAL) : (e.offset), p);
+            writeOut(header, 0, p);
+            writeOut(e.name, 0, e.name.length);
+            if (extraLength > 0) {
+                p = 0;
+                p = putShort(ZIP64_EXTID, p);
+                p = putShort(extraLength, p);
+                if (zip64Size)
+                    p = putLong(e.size, p);
+                if (zip64Csize)
+                    p = putLong(e.csize, p);
+                if (zip64Offset)
+                    p = putLong(e.offset, p);
+                writeOut(header, 0, p);
+            }
+        }
+        long cenLength = written - cenOffset;
+        int count = entries.size();
+        if (count >= ZIP64_MAGICCOUNT || cenLength >= ZIP64_MAGICVAL || cenOffset >= ZIP64_MAGICVAL) {
+            long zip64EndOffset = written;
+            int p = 0;
+            p = putInt(ZIP64_ENDSIG, p);
+            p = putLong(44, p);
+            p = putShort(45, p);
+            p = putShort(45, p);
+            p = putInt(0, p);
+            p = putInt(0, p);
+            p = putLong(count, p);
+            p = putLong(count, p);
+            p = putLong(cenLength, p);
+            p = putLong(cenOffset, p);
+            p = putInt(ZIP64_LOCSIG, p);
+            p = putInt(0, p);
+            p = putLong(zip64EndOffset, p);
+            p = putInt(1, p);
+            writeOut(header, 0, p);
+        }
+        int p = 0;
+        p = putInt(ENDSIG, p);
+        p = putShort(0, p);
+        p = putShort(0, p);
+        p = putShort(Math.min(count, ZIP64_MAGICCOUNT), p);
+        p = putShort(Math.min(count, ZIP64_MAGICCOUNT), p);
+        p = putInt(Math.min(cenLength, ZIP64_MAGICVAL), p);
+        p = putInt(Math.min(cenOffset, ZIP64_MAGICVAL), p);
+        p = putShort(0, p);
+        writeOut(header, 0, p);
+    }
+
+    private int putShort(int v, int p) {
+        header[p] = (byte) v;
+        header[p + 1] = (byte) (v >>> 8);
+        return p + 2;
+    }
+
+    private int putInt(long v, int p) {
+        header[p] = (byte) v;
+        header[p + 1] = (byte) (v >>> 8);
+        header[p + 2] = (byte) (v >>> 16);
+        header[p + 3] = (byte) (v >>> 24);
+        return p + 4;
+    }
+
+    private int putLong(long v, int p) {
+        p = putInt(v, p);
+        return putInt(v >>> 32, p);
+    }
+
+    /**
+     * ZIP entry record
+     */
+    private static class Entry {
+        private final byte[] name;
+        private final int flags;
+        private final long offset;
+        private final long dosTime;
+        private int localHeaderLength;
+        private long crc;
+        private long size;
+        private long csize;
+
+        Entry(String name, long offset, long time) throws IOException {
+            this.name = name.getBytes("utf8");
+            this.flags = (this.name.length != name.length()) ? (FLAG_DATA_DESCRIPTOR | FLAG_UTF8) : (FLAG_DATA_DESCRIPTOR);
+            this.offset = offset;
+            this.dosTime = toDosTime(time);
+        }
+
+        private static long toDosTime(long time) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(time);
+            int year = c.get(Calendar.YEAR);
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return ((long) (year - 1980) << 25) | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16 |
+                    c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+        }
+    }
+}
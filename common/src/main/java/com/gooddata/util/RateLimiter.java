@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces the requests of concurrent workers evenly so that no more than the given number of requests
+ * starts per second.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class RateLimiter {
+
+    // the nanoseconds between two requests
+    private final long interval;
+    // the earliest start of the next request
+    private long next;
+
+    /**
+     * Constructor
+     *
+     * @param requestsPerSecond the maximal number of requests per second, 0 disables the limit
+     */
+    public RateLimiter(int requestsPerSecond) {
+        this.interval = (requestsPerSecond > 0) ? (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : (0);
+        this.next = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the next request can start
+     *
+     * @throws InterruptedException when the waiting is interrupted
+     */
+    public void acquire() throws InterruptedException {
+        if (interval <= 0)
+            return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (next - now < 0)
+                next = now;
+            wait = next - now;
+            next += interval;
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+}
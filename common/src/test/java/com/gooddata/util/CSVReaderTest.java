@@ -29,6 +29,8 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
 
 public class CSVReaderTest {
 
@@ -152,4 +154,75 @@ public class CSVReaderTest {
             Assert.assertEquals(3, line.length);
         }
     }
+
+    @Test
+    public void testFastModeMatchesDefault() throws IOException {
+        String[] files = new String[]{"/com/gooddata/util/crazy.csv", "/com/gooddata/util/crazy.csv.win",
+                "/com/gooddata/util/escaping.csv", "/com/gooddata/util/escaping.csv.win",
+                "/com/gooddata/util/chunk-boundary.csv", "/com/gooddata/util/chunk-boundary.csv.win",
+                "/com/gooddata/util/long.csv", "/com/gooddata/util/long.csv.win"};
+        for (final String f : files) {
+            CSVReader csv = new CSVReader(new InputStreamReader(CSVReaderTest.class.getResourceAsStream(f), "utf8"));
+            CSVReader fast = new CSVReader(new InputStreamReader(CSVReaderTest.class.getResourceAsStream(f), "utf8"));
+            fast.setFastMode(true);
+            List<String[]> expected = csv.readAll();
+            List<String[]> actual = fast.readAll();
+            Assert.assertEquals(f, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(f + ":" + i, expected.get(i).length, actual.get(i).length);
+                for (int j = 0; j < expected.get(i).length; j++) {
+                    Assert.assertEquals(f + ":" + i + ":" + j, expected.get(i)[j], actual.get(i)[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFastModeRowSink() throws IOException {
+        CSVReader csv = new CSVReader(new StringReader("a,\"b,\"\"c\"\"\",d\r\n\"multi\nline\",e\n"));
+        csv.setFastMode(true);
+        final StringBuilder out = new StringBuilder();
+        CSVReader.RowSink sink = new CSVReader.RowSink() {
+            public void field(int index, char[] buf, int offset, int length) {
+                out.append(index).append('=').append(buf, offset, length).append(';');
+            }
+
+            public void endRecord(int fieldCount) {
+                out.append('|').append(fieldCount).append('|');
+            }
+        };
+        while (csv.readNext(sink)) {
+            ;
+        }
+        Assert.assertEquals("0=a;1=b,\"c\";2=d;|3|0=multi\nline;1=e;|2|", out.toString());
+    }
+
+    @Test
+    public void testFastModeLastRecordWithoutLineEnd() throws IOException {
+        CSVReader csv = new CSVReader(new StringReader("a,b\nc"));
+        csv.setFastMode(true);
+        Assert.assertEquals(2, csv.readNext().length);
+        String[] last = csv.readNext();
+        Assert.assertEquals(1, last.length);
+        Assert.assertEquals("c", last[0]);
+        Assert.assertNull(csv.readNext());
+    }
+
+    @Test
+    public void testFastModeNoClosingQuotes() throws IOException {
+        Reader reader = new InputStreamReader(
+                CSVReaderTest.class.getResourceAsStream("/com/gooddata/util/no-closing-quotes.csv"),
+                "utf8");
+        CSVReader csv = new CSVReader(reader);
+        csv.setFastMode(true);
+        try {
+            while (csv.readNext() != null) {
+                ;
+            }
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().endsWith(" [2,9]")); // location of unclosed quote
+            return; // ok
+        }
+        Assert.assertFalse("IllegalStateException expected", true);
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import com.gooddata.Constants;
+import junit.framework.Assert;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Test;
+
+public class DateUtilTest {
+
+    @Test
+    public void testFormatterCache() {
+        long misses = DateUtil.getFormatterCacheMisses();
+        long hits = DateUtil.getFormatterCacheHits();
+        DateTimeFormatter f = DateUtil.getDateFormatter("dd/MM/yyyy '(test)'", false);
+        Assert.assertEquals(misses + 1, DateUtil.getFormatterCacheMisses());
+        Assert.assertSame(f, DateUtil.getDateFormatter("dd/MM/yyyy '(test)'", false));
+        Assert.assertEquals(misses + 1, DateUtil.getFormatterCacheMisses());
+        Assert.assertEquals(hits + 1, DateUtil.getFormatterCacheHits());
+        Assert.assertEquals("01/02/2010 (test)", f.print(DateUtil.getDateFormatter(null, false).parseDateTime("2010-02-01")));
+    }
+
+    @Test
+    public void testFormatterCacheHitsOfThreads() throws InterruptedException {
+        DateUtil.getDateFormatter("yyyy/MM/dd '(threads)'", false);
+        long hits = DateUtil.getFormatterCacheHits();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        DateUtil.getDateFormatter("yyyy/MM/dd '(threads)'", false);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // the counts of the finished threads are summed
+        Assert.assertEquals(hits + 4000, DateUtil.getFormatterCacheHits());
+    }
+
+    @Test
+    public void testFormatPattern() {
+        Assert.assertEquals(Constants.DEFAULT_DATE_FMT_STRING, DateUtil.getFormatPattern("", false));
+        Assert.assertEquals(Constants.DEFAULT_DATETIME_FMT_STRING, DateUtil.getFormatPattern(null, true));
+        Assert.assertEquals(Constants.DEFAULT_DATETIME_FMT_STRING, DateUtil.getFormatPattern(Constants.UNIX_DATE_FORMAT, false));
+        Assert.assertEquals("dd/MM/yyyy", DateUtil.getFormatPattern("dd/MM/yyyy", false));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class FingerprintStoreTest {
+
+    private static File createStoreFile() throws IOException {
+        File f = File.createTempFile("gdc-fingerprints", ".store");
+        f.delete();
+        return f;
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        File f = createStoreFile();
+        FingerprintStore s = FingerprintStore.open(f);
+        try {
+            Assert.assertEquals(0, s.size());
+            Assert.assertEquals(0, s.get(FingerprintStore.hash("a")));
+            s.put(FingerprintStore.hash("a"), FingerprintStore.hash(new String[]{"a", "1"}));
+            s.put(FingerprintStore.hash("b"), FingerprintStore.hash(new String[]{"b", "2"}));
+            s.put(FingerprintStore.hash("a"), FingerprintStore.hash(new String[]{"a", "3"}));
+            Assert.assertEquals(2, s.size());
+            Assert.assertEquals(FingerprintStore.hash(new String[]{"a", "3"}), s.get(FingerprintStore.hash("a")));
+            Assert.assertEquals(FingerprintStore.hash(new String[]{"b", "2"}), s.get(FingerprintStore.hash("b")));
+            Assert.assertEquals(0, s.get(FingerprintStore.hash("c")));
+        } finally {
+            s.close();
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testHashSeparatesValues() {
+        Assert.assertFalse(FingerprintStore.hash(new String[]{"ab", "c"}) == FingerprintStore.hash(new String[]{"a", "bc"}));
+        Assert.assertFalse(FingerprintStore.hash(new String[]{"a", ""}) == FingerprintStore.hash(new String[]{"a"}));
+    }
+
+    @Test
+    public void testGrowAndReopen() throws IOException {
+        File f = createStoreFile();
+        final int count = 200000;
+        FingerprintStore s = FingerprintStore.open(f);
+        try {
+            for (int i = 0; i < count; i++)
+                s.put(FingerprintStore.hash(String.valueOf(i)), i);
+        } finally {
+            s.close();
+        }
+        s = FingerprintStore.open(f);
+        try {
+            Assert.assertEquals(count, s.size());
+            for (int i = 1; i < count; i++)
+                Assert.assertEquals(i, s.get(FingerprintStore.hash(String.valueOf(i))));
+            Assert.assertEquals(0, s.get(FingerprintStore.hash(String.valueOf(count))));
+        } finally {
+            s.close();
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testGrowInPlace() throws IOException {
+        File f = createStoreFile();
+        final int count = 100000;
+        FingerprintStore s = FingerprintStore.open(f);
+        try {
+            for (int i = 0; i < count; i++) {
+                s.put(FingerprintStore.hash(String.valueOf(i)), i + 1);
+                if (i % 10000 == 0)
+                    Assert.assertEquals(i + 1, s.get(FingerprintStore.hash(String.valueOf(i))));
+            }
+            Assert.assertFalse(new File(f.getAbsolutePath() + ".tmp").exists());
+        } finally {
+            s.close();
+        }
+        s = FingerprintStore.open(f);
+        try {
+            // the copy of the old table is dropped, the file holds the header and the 256K slots
+            Assert.assertEquals(64 + (1L << 18) * 16, f.length());
+            Assert.assertEquals(count, s.size());
+            for (int i = 0; i < count; i++)
+                Assert.assertEquals(i + 1, s.get(FingerprintStore.hash(String.valueOf(i))));
+        } finally {
+            s.close();
+            f.delete();
+        }
+    }
+
+}
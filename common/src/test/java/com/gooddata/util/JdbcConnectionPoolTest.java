@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+public class JdbcConnectionPoolTest {
+
+    /**
+     * The physical connection stub
+     */
+    private static class ConnectionState implements InvocationHandler {
+        private boolean closed = false;
+        private boolean autoCommit = true;
+        private boolean valid = true;
+        private int rollbacks = 0;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String m = method.getName();
+            if ("close".equals(m)) {
+                closed = true;
+                return null;
+            }
+            if ("isClosed".equals(m))
+                return closed;
+            if ("isValid".equals(m))
+                return valid;
+            if ("getAutoCommit".equals(m))
+                return autoCommit;
+            if ("setAutoCommit".equals(m)) {
+                autoCommit = (Boolean) args[0];
+                return null;
+            }
+            if ("rollback".equals(m)) {
+                rollbacks++;
+                return null;
+            }
+            throw new UnsupportedOperationException(m);
+        }
+    }
+
+    private static class TestPool extends JdbcConnectionPool {
+        private int opened = 0;
+        private ConnectionState last;
+
+        TestPool(int maxIdle) {
+            super(maxIdle);
+        }
+
+        @Override
+        protected Connection open(String url, String username, String password) {
+            opened++;
+            last = new ConnectionState();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, last);
+        }
+    }
+
+    @Test
+    public void testReuse() throws SQLException {
+        TestPool pool = new TestPool(2);
+        Connection c = pool.getConnection("jdbc:test:a", "u", "p");
+        ConnectionState state = pool.last;
+        c.setAutoCommit(false);
+        c.close();
+        Assert.assertTrue(c.isClosed());
+        Assert.assertFalse(state.closed);
+        Assert.assertEquals(1, state.rollbacks);
+        Assert.assertTrue(state.autoCommit);
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        // the same url and user get the idle connection
+        Connection c2 = pool.getConnection("jdbc:test:a", "u", "p");
+        Assert.assertEquals(1, pool.opened);
+        // the other user gets a new one
+        Connection c3 = pool.getConnection("jdbc:test:a", "v", "p");
+        Assert.assertEquals(2, pool.opened);
+        c2.close();
+        c3.close();
+        Assert.assertEquals(2, pool.getIdleCount());
+
+        pool.close();
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertTrue(state.closed);
+    }
+
+    @Test
+    public void testValidation() throws SQLException {
+        TestPool pool = new TestPool(2);
+        Connection c = pool.getConnection("jdbc:test:a", null, null);
+        ConnectionState state = pool.last;
+        c.close();
+        state.valid = false;
+        pool.getConnection("jdbc:test:a", null, null).close();
+        Assert.assertEquals(2, pool.opened);
+        Assert.assertTrue(state.closed);
+    }
+
+    @Test
+    public void testMaxIdle() throws SQLException {
+        TestPool pool = new TestPool(1);
+        Connection c1 = pool.getConnection("jdbc:test:a", null, null);
+        Connection c2 = pool.getConnection("jdbc:test:a", null, null);
+        ConnectionState state = pool.last;
+        c1.close();
+        c2.close();
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertTrue(state.closed);
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.util.List;
+
+public class MappedCsvSourceTest {
+
+    @Test
+    public void testMatchesCsvReader() throws IOException, URISyntaxException {
+        String[] files = new String[]{"/com/gooddata/util/crazy.csv", "/com/gooddata/util/crazy.csv.win",
+                "/com/gooddata/util/escaping.csv", "/com/gooddata/util/escaping.csv.win",
+                "/com/gooddata/util/chunk-boundary.csv", "/com/gooddata/util/chunk-boundary.csv.win",
+                "/com/gooddata/util/long.csv", "/com/gooddata/util/long.csv.win"};
+        for (final String f : files) {
+            CSVReader csv = new CSVReader(new InputStreamReader(MappedCsvSourceTest.class.getResourceAsStream(f), "utf8"));
+            List<String[]> expected = csv.readAll();
+            File file = new File(MappedCsvSourceTest.class.getResource(f).toURI());
+            // tiny segments make the fields cross the segment boundaries
+            for (int segmentSize : new int[]{1, 7, 4096}) {
+                MappedCsvSource src = new MappedCsvSource(file, ',', '"', '"', false, segmentSize);
+                for (int i = 0; i < expected.size(); i++) {
+                    String[] line = src.readNext();
+                    Assert.assertNotNull(f + ":" + i, line);
+                    Assert.assertEquals(f + ":" + i, expected.get(i).length, line.length);
+                    for (int j = 0; j < line.length; j++) {
+                        Assert.assertEquals(f + ":" + i + ":" + j, expected.get(i)[j], line[j]);
+                    }
+                }
+                Assert.assertNull(f, src.readNext());
+                src.close();
+            }
+        }
+    }
+
+    @Test
+    public void testNoClosingQuotes() throws IOException, URISyntaxException {
+        File file = new File(MappedCsvSourceTest.class.getResource("/com/gooddata/util/no-closing-quotes.csv").toURI());
+        MappedCsvSource src = new MappedCsvSource(file);
+        try {
+            while (src.readNext() != null) {
+                ;
+            }
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().endsWith(" [2,9]")); // location of unclosed quote
+            return; // ok
+        } finally {
+            src.close();
+        }
+        Assert.assertFalse("IllegalStateException expected", true);
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        File file = File.createTempFile("mapped", ".csv");
+        file.deleteOnExit();
+        new FileOutputStream(file).close();
+        MappedCsvSource src = new MappedCsvSource(file);
+        Assert.assertNull(src.readNext());
+        src.close();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.util;
+
+import junit.framework.Assert;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.junit.Test;
+
+public class NetUtilTest {
+
+    @Test
+    public void testConnectionManagerDefaults() {
+        MultiThreadedHttpConnectionManager m = NetUtil.createConnectionManager();
+        try {
+            HttpConnectionManagerParams params = m.getParams();
+            Assert.assertEquals(NetUtil.DEFAULT_MAX_CONNECTIONS_PER_HOST, params.getDefaultMaxConnectionsPerHost());
+            Assert.assertEquals(NetUtil.DEFAULT_MAX_CONNECTIONS, params.getMaxTotalConnections());
+            Assert.assertEquals(NetUtil.DEFAULT_CONNECT_TIMEOUT, params.getConnectionTimeout());
+            Assert.assertEquals(NetUtil.DEFAULT_SOCKET_TIMEOUT, params.getSoTimeout());
+        } finally {
+            NetUtil.shutdownConnectionManager(m);
+        }
+    }
+
+    @Test
+    public void testConnectionManagerProperties() {
+        System.setProperty(NetUtil.HTTP_MAX_CONNECTIONS_PER_HOST, "4");
+        System.setProperty(NetUtil.HTTP_SOCKET_TIMEOUT, "30000");
+        System.setProperty(NetUtil.HTTP_CONNECT_TIMEOUT, "invalid");
+        MultiThreadedHttpConnectionManager m = NetUtil.createConnectionManager();
+        try {
+            HttpConnectionManagerParams params = m.getParams();
+            Assert.assertEquals(4, params.getDefaultMaxConnectionsPerHost());
+            Assert.assertEquals(30000, params.getSoTimeout());
+            Assert.assertEquals(NetUtil.DEFAULT_CONNECT_TIMEOUT, params.getConnectionTimeout());
+        } finally {
+            NetUtil.shutdownConnectionManager(m);
+            System.clearProperty(NetUtil.HTTP_MAX_CONNECTIONS_PER_HOST);
+            System.clearProperty(NetUtil.HTTP_SOCKET_TIMEOUT);
+            System.clearProperty(NetUtil.HTTP_CONNECT_TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class ParallelZipOutputStreamTest {
+
+    @Test
+    public void testSequential() throws IOException {
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 3);
+        roundTrip(Deflater.BEST_SPEED, 2);
+    }
+
+    @Test
+    public void testStoreOnly() throws IOException {
+        roundTrip(Deflater.NO_COMPRESSION, 3);
+    }
+
+    private void roundTrip(int level, int threads) throws IOException {
+        Random r = new Random(level + 31 * threads);
+        byte[][] data = new byte[][]{new byte[0], new byte[100], new byte[50000]};
+        String[] names = new String[]{"empty", "small", "large"};
+        for (byte[] d : data) {
+            for (int i = 0; i < d.length; i++)
+                d[i] = (byte) ((r.nextInt(4) == 0) ? (r.nextInt(256)) : ('a' + r.nextInt(4)));
+        }
+
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        // small blocks to compress the large entry in many blocks
+        ParallelZipOutputStream zos = new ParallelZipOutputStream(bo, level, threads, 4096);
+        for (int i = 0; i < data.length; i++) {
+            zos.putNextEntry(names[i]);
+            for (int off = 0; off < data[i].length; off += 1000) {
+                zos.write(data[i], off, Math.min(1000, data[i].length - off));
+            }
+        }
+        zos.close();
+        byte[] zip = bo.toByteArray();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        for (int i = 0; i < data.length; i++) {
+            ZipEntry e = zis.getNextEntry();
+            Assert.assertEquals(names[i], e.getName());
+            Assert.assertTrue(Arrays.equals(data[i], read(zis)));
+        }
+        Assert.assertNull(zis.getNextEntry());
+
+        File f = File.createTempFile("pzip", ".zip");
+        f.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(zip);
+        fos.close();
+        ZipFile zf = new ZipFile(f);
+        for (int i = 0; i < data.length; i++) {
+            ZipEntry e = zf.getEntry(names[i]);
+            Assert.assertEquals(data[i].length, e.getSize());
+            InputStream is = zf.getInputStream(e);
+            Assert.assertTrue(Arrays.equals(data[i], read(is)));
+            is.close();
+        }
+        zf.close();
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            bo.write(buf, 0, n);
+        }
+        return bo.toByteArray();
+    }
+}
@@ -105,6 +105,14 @@ public class ChargifyConnector extends AbstractConnector implements Connector {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isChangeDetectionSupported() {
+        return true;
+    }
+
 
     /**
      * @return the domain
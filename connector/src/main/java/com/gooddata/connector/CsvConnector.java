@@ -25,6 +25,7 @@ package com.gooddata.connector;
 
 import com.gooddata.Constants;
 import com.gooddata.csv.DataTypeGuess;
+import com.gooddata.exception.InternalErrorException;
 import com.gooddata.exception.InvalidParameterException;
 import com.gooddata.exception.ProcessingException;
 import com.gooddata.modeling.model.SourceColumn;
@@ -32,6 +33,7 @@ import com.gooddata.modeling.model.SourceSchema;
 import com.gooddata.processor.CliParams;
 import com.gooddata.processor.Command;
 import com.gooddata.processor.ProcessingContext;
+import com.gooddata.transform.Transformer;
 import com.gooddata.util.*;
 import org.apache.log4j.Logger;
 
@@ -39,8 +41,14 @@ import java.io.*;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * GoodData CSV Connector
@@ -52,6 +60,9 @@ public class CsvConnector extends AbstractConnector implements Connector {
 
     private static Logger l = Logger.getLogger(CsvConnector.class);
 
+    // size of the chunks the data file is split into by the parallel extraction
+    private static final int PARALLEL_CHUNK_SIZE = 8 * 1024 * 1024;
+
     // data file
     private File dataFile;
 
@@ -61,6 +72,12 @@ public class CsvConnector extends AbstractConnector implements Connector {
     // field separator
     private boolean hasHeader = true;
 
+    // number of threads extracting the data
+    private int parallelism = 1;
+
+    // size of the chunks used by the parallel extraction
+    private int parallelChunkSize = PARALLEL_CHUNK_SIZE;
+
     /**
      * Creates GoodData CSV connector
      */
@@ -82,14 +99,147 @@ public class CsvConnector extends AbstractConnector implements Connector {
      */
     @Override
     public void extract(String file, final boolean transform) throws IOException {
-        CSVReader cr = FileUtil.createUtf8CsvReader(this.getDataFile(), this.getSeparator());
-        CSVWriter cw = FileUtil.createUtf8CsvWriter(new File(file));
+        extract(new FileOutputStream(file), transform);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isChangeDetectionSupported() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void extract(OutputStream os) throws IOException {
+        extract(os, true);
+    }
+
+    /**
+     * Extracts the data file to a stream
+     *
+     * @param os        target stream, it is closed when the data are extracted
+     * @param transform perform transformations
+     * @throws IOException in case of an IO issue
+     */
+    private void extract(OutputStream os, final boolean transform) throws IOException {
+        if (parallelism > 1 && MappedCsvSource.supports(getSeparator(), CSVReader.DEFAULT_QUOTE_CHARACTER,
+                CSVReader.DEFAULT_ESCAPE_CHARACTER)) {
+            extractParallel(os, transform);
+            return;
+        }
+        CsvRecordSource cr;
+        try {
+            cr = FileUtil.createUtf8CsvSource(this.getDataFile(), this.getSeparator());
+        } catch (IOException e) {
+            os.close();
+            throw e;
+        }
+        CSVWriter cw = FileUtil.createUtf8CsvWriter(os);
         if (hasHeader)
             cr.readNext();
         int rowCnt = copyAndTransform(cr, cw, transform, DATE_LENGTH_UNRESTRICTED);
         l.info("The CSV connector extracted " + rowCnt + " rows.");
     }
 
+    /**
+     * Extracts the data file in parallel. The file is split into chunks at record boundaries, the chunks
+     * are transformed by a thread pool and their outputs are written in the original order. The output is
+     * identical to the sequential extraction.
+     *
+     * @param os        target stream, it is closed when the data are extracted
+     * @param transform perform transformations
+     * @throws IOException in case of an IO issue
+     */
+    private void extractParallel(OutputStream os, final boolean transform) throws IOException {
+        final File dataFile = this.getDataFile();
+        final char sep = this.getSeparator();
+        final ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+            protected Transformer initialValue() {
+                return Transformer.create(schema);
+            }
+        };
+        OutputStream out = os;
+        try {
+            final long[] boundaries = CsvSplitter.split(dataFile, parallelChunkSize, CSVReader.DEFAULT_QUOTE_CHARACTER, pool);
+            l.debug("The CSV connector split the data file into " + (boundaries.length - 1) + " chunks.");
+            out = new BufferedOutputStream(os);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            CSVWriter hw = FileUtil.createUtf8CsvWriter(header);
+            hw.writeNext(Transformer.create(schema).getHeader(transform));
+            hw.close();
+            header.writeTo(out);
+
+            // keeps only a limited number of the transformed chunks in memory
+            final LinkedList<Future<ExtractedChunk>> pending = new LinkedList<Future<ExtractedChunk>>();
+            int next = 0;
+            int rowCnt = 0;
+            while (next < boundaries.length - 1 || !pending.isEmpty()) {
+                while (next < boundaries.length - 1 && pending.size() <= parallelism) {
+                    final long start = boundaries[next];
+                    final long end = boundaries[next + 1];
+                    final boolean skipHeader = hasHeader && next == 0;
+                    pending.add(pool.submit(new Callable<ExtractedChunk>() {
+                        public ExtractedChunk call() throws IOException {
+                            ExtractedChunk chunk = new ExtractedChunk((int) Math.min(2 * (end - start), Integer.MAX_VALUE - 8));
+                            CSVWriter cw = FileUtil.createUtf8CsvWriter(chunk.data);
+                            MappedCsvSource cr = new MappedCsvSource(dataFile, sep, start, end);
+                            try {
+                                if (skipHeader)
+                                    cr.readNext();
+                                chunk.rows = transformRows(cr, cw, transformers.get(), transform, DATE_LENGTH_UNRESTRICTED, watermark,
+                                        (transform) ? (changeDetector) : (null));
+                            } catch (InvalidParameterException e) {
+                                throw new InvalidParameterException(e.getMessage() + " (in the chunk starting at byte " + start + ")");
+                            } finally {
+                                cr.close();
+                            }
+                            cw.close();
+                            return chunk;
+                        }
+                    }));
+                    next++;
+                }
+                ExtractedChunk chunk = pending.removeFirst().get();
+                chunk.data.writeTo(out);
+                rowCnt += chunk.rows;
+            }
+            out.close();
+            out = null;
+            l.info("The CSV connector extracted " + rowCnt + " rows using " + parallelism + " threads.");
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The parallel CSV extraction has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new InternalErrorException(cause);
+        } finally {
+            pool.shutdownNow();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * The transformed data of a chunk
+     */
+    private static class ExtractedChunk {
+        private final ByteArrayOutputStream data;
+        private int rows = 0;
+
+        ExtractedChunk(int expectedSize) {
+            data = new ByteArrayOutputStream(expectedSize);
+        }
+    }
+
     /**
      * Saves a template of the config file
      *
@@ -306,9 +456,23 @@ public class CsvConnector extends AbstractConnector implements Connector {
         if (hasHeaderStr != null) {
             setHasHeader("true".equalsIgnoreCase(hasHeaderStr));
         }
+        final String parallelismStr = c.getParam("parallelism");
+        if (parallelismStr != null) {
+            try {
+                setParallelism(Integer.parseInt(parallelismStr));
+            } catch (NumberFormatException e) {
+                throw new InvalidParameterException("The parallelism must be a positive integer.");
+            }
+            if (getParallelism() < 1)
+                throw new InvalidParameterException("The parallelism must be a positive integer.");
+        } else {
+            setParallelism(1);
+        }
+        String watermarkFile = c.getParam("watermarkFile");
         c.paramsProcessed();
 
         initSchema(conf.getAbsolutePath());
+        initWatermark(conf.getAbsolutePath(), watermarkFile);
         setDataFile(new File(csvf.getAbsolutePath()));
         // sets the current connector
         ctx.setConnector(this);
@@ -377,6 +541,18 @@ public class CsvConnector extends AbstractConnector implements Connector {
         this.hasHeader = hasHeader;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    void setParallelChunkSize(int parallelChunkSize) {
+        this.parallelChunkSize = parallelChunkSize;
+    }
+
     private static String[] splitParam(Command c, String name) {
         String v = c.getParam(name);
 
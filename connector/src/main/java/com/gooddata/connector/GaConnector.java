@@ -29,6 +29,7 @@ import com.gooddata.exception.InvalidCommandException;
 import com.gooddata.exception.ProcessingException;
 import com.gooddata.google.analytics.FeedDumper;
 import com.gooddata.google.analytics.GaQuery;
+import com.gooddata.google.analytics.GaSlicedExtractor;
 import com.gooddata.modeling.model.SourceColumn;
 import com.gooddata.modeling.model.SourceSchema;
 import com.gooddata.processor.CliParams;
@@ -37,16 +38,22 @@ import com.gooddata.processor.ProcessingContext;
 import com.gooddata.transform.Transformer;
 import com.gooddata.util.CSVWriter;
 import com.gooddata.util.FileUtil;
+import com.gooddata.util.RateLimiter;
 import com.google.gdata.client.ClientLoginAccountType;
 import com.google.gdata.client.analytics.AnalyticsService;
 import com.google.gdata.data.analytics.DataFeed;
 import com.google.gdata.util.AuthenticationException;
 import com.google.gdata.util.ServiceException;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.util.List;
 
 /**
  * GoodData Google Analytics Connector
@@ -68,6 +75,17 @@ public class GaConnector extends AbstractConnector implements Connector {
     private String googleAnalyticsToken;
     private GaQuery googleAnalyticsQuery;
 
+    // the date sliced extraction
+    private int sliceDays = DEFAULT_SLICE_DAYS;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+    private String checkpointDir;
+
+    protected static final int DEFAULT_SLICE_DAYS = 30;
+    protected static final int DEFAULT_PARALLELISM = 4;
+    // stays below the GA limit of 10 requests per second
+    protected static final int DEFAULT_REQUESTS_PER_SECOND = 5;
+
     /**
      * Creates a new Google Analytics Connector
      */
@@ -151,8 +169,81 @@ public class GaConnector extends AbstractConnector implements Connector {
      * {@inheritDoc}
      */
     public void extract(String file, final boolean transform) throws IOException {
+        extract(new FileOutputStream(file), transform);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void extract(OutputStream os) throws IOException {
+        extract(os, true);
+    }
+
+    /**
+     * Extracts the GA data to a stream
+     *
+     * @param out       target stream, it is closed when the data are extracted
+     * @param transform perform transformations
+     * @throws IOException in case of an IO issue
+     */
+    private void extract(OutputStream out, final boolean transform) throws IOException {
+        OutputStream os = new BufferedOutputStream(out);
+        CSVWriter cw = FileUtil.createUtf8CsvWriter(os);
+        File dir = null;
+        try {
+            final AnalyticsService as = createService();
+            final GaQuery gaq = getGoogleAnalyticsQuery();
+            dir = (checkpointDir != null) ? (new File(checkpointDir)) : (FileUtil.createTempDir());
+            String[] header = Transformer.create(schema).getHeader(transform);
+            cw.writeNext(header);
+            cw.flush();
+            final RateLimiter limiter = new RateLimiter(requestsPerSecond);
+            GaSlicedExtractor ex = new GaSlicedExtractor(new GaSlicedExtractor.SliceExtractor() {
+                public int extract(String startDate, String endDate, CSVWriter sw) throws IOException {
+                    return extractSlice(as, limiter, gaq, startDate, endDate, sw, transform);
+                }
+            }, parallelism);
+            int days = sliceDays;
+            if (days > 0 && !hasDateDimension(gaq.getDimensions())) {
+                // the slices of an aggregated query would split the rows and miscount the unique metrics
+                l.debug("The GA query has no " + GA_DATE + " dimension, the date range is extracted at once.");
+                days = 0;
+            }
+            List<String[]> slices = GaSlicedExtractor.split(gaq.getStartDate(), gaq.getEndDate(), days);
+            int rowCnt = ex.extract(slices, dir, getExtractionKey(gaq, header), os);
+            l.debug("Retrieved " + rowCnt + " rows of GA data.");
+        } finally {
+            cw.close();
+            if (checkpointDir == null && dir != null)
+                FileUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * Returns true if the GA dimensions contain the date, only such query can be extracted by date slices
+     *
+     * @param dimensions the GA dimensions separated by comma or pipe
+     * @return true if the rows are per date
+     */
+    protected static boolean hasDateDimension(String dimensions) {
+        if (dimensions == null)
+            return false;
+        for (String dim : dimensions.split("[,|]")) {
+            if (GA_DATE.equals(dim.trim()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the authenticated GA service, the service is shared by the slices
+     *
+     * @return the GA service
+     */
+    private AnalyticsService createService() {
+        AnalyticsService as = new AnalyticsService(APP_NAME);
         try {
-            AnalyticsService as = new AnalyticsService(APP_NAME);
             if (googleAnalyticsToken != null && googleAnalyticsToken.length() > 0) {
                 as.setAuthSubToken(googleAnalyticsToken);
             } else if (googleAnalyticsUsername != null && googleAnalyticsUsername.length() > 0 &&
@@ -162,32 +253,66 @@ public class GaConnector extends AbstractConnector implements Connector {
                 throw new InvalidCommandException("The UseGoogleAnalytics command requires either GA token or " +
                         "username and password!");
             }
-            File dataFile = new File(file);
-            GaQuery gaq = getGoogleAnalyticsQuery();
-            gaq.setMaxResults(GOOGLE_ANALYTICS_CHUNK);
-            int cnt = 1;
+        } catch (AuthenticationException e) {
+            throw new InternalErrorException(e);
+        }
+        return as;
+    }
 
-            CSVWriter cw = FileUtil.createUtf8CsvWriter(dataFile);
+    /**
+     * Pages through the GA data of one date slice
+     *
+     * @param as        the GA service
+     * @param limiter   the GA request rate limiter
+     * @param gaq       the GA query
+     * @param startDate the slice start date
+     * @param endDate   the slice end date
+     * @param cw        the slice writer
+     * @param transform perform transformations
+     * @return number of extracted rows
+     * @throws IOException in case of an IO issue
+     */
+    private int extractSlice(AnalyticsService as, RateLimiter limiter, GaQuery gaq, String startDate, String endDate,
+                             CSVWriter cw, boolean transform) throws IOException {
+        try {
+            GaQuery q = gaq.createSlice(startDate, endDate);
+            q.setMaxResults(GOOGLE_ANALYTICS_CHUNK);
             Transformer t = Transformer.create(schema);
-
-            String[] header = t.getHeader(transform);
-            cw.writeNext(header);
-
-            for (int startIndex = 1; cnt > 0; startIndex += cnt + 1) {
-                gaq.setStartIndex(startIndex);
-                DataFeed feed = as.getFeed(gaq.getUrl(), DataFeed.class);
-                l.debug("Retrieving GA data from index=" + startIndex);
-                cnt = FeedDumper.dump(cw, feed, gaq, t, transform);
-                l.debug("Retrieved " + cnt + " entries.");
+            int rowCnt = 0;
+            int cnt = 1;
+            for (int startIndex = 1; cnt > 0; startIndex += cnt) {
+                q.setStartIndex(startIndex);
+                limiter.acquire();
+                l.debug("Retrieving GA data from " + startDate + " to " + endDate + " from index=" + startIndex);
+                DataFeed feed = as.getFeed(q.getUrl(), DataFeed.class);
+                cnt = FeedDumper.dump(cw, feed, q, t, transform);
+                rowCnt += cnt;
             }
-            cw.close();
-        } catch (AuthenticationException e) {
-            throw new InternalErrorException(e);
+            return rowCnt;
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The GA extraction has been interrupted.", e);
         } catch (ServiceException e) {
             throw new InternalErrorException(e);
         }
     }
 
+    /**
+     * Identifies the extraction in the checkpoint directory, the slices of a different query or schema
+     * aren't reused
+     *
+     * @param gaq    the GA query
+     * @param header the output header
+     * @return the extraction key
+     */
+    private static String getExtractionKey(GaQuery gaq, String[] header) {
+        StringBuilder key = new StringBuilder();
+        key.append(gaq.getIds()).append('|').append(gaq.getDimensions()).append('|').append(gaq.getMetrics())
+                .append('|').append(gaq.getFilters());
+        for (String h : header) {
+            key.append('|').append(h);
+        }
+        return DigestUtils.md5Hex(key.toString());
+    }
 
     /**
      * Google Analytics username getter
@@ -304,6 +429,10 @@ public class GaConnector extends AbstractConnector implements Connector {
         gq.setEndDate(c.getParamMandatory("endDate"));
         if (c.checkParam("filters"))
             gq.setFilters(c.getParam("filters"));
+        setSliceDays(getIntParam(c, "sliceDays", DEFAULT_SLICE_DAYS, 0, Integer.MAX_VALUE));
+        setParallelism(getIntParam(c, "parallelism", DEFAULT_PARALLELISM, 1, Integer.MAX_VALUE));
+        setRequestsPerSecond(getIntParam(c, "requestsPerSecond", DEFAULT_REQUESTS_PER_SECOND, 0, Integer.MAX_VALUE));
+        setCheckpointDir(c.getParam("checkpointDir"));
         c.paramsProcessed();
 
         // sets the current connector
@@ -339,6 +468,59 @@ public class GaConnector extends AbstractConnector implements Connector {
         l.info("Google Analytics Connector configuration successfully generated. See config file: " + configFile);
     }
 
+    public int getSliceDays() {
+        return sliceDays;
+    }
+
+    /**
+     * Sets the size of the date slices
+     *
+     * @param sliceDays number of days of a slice, 0 extracts the whole date range at once
+     */
+    public void setSliceDays(int sliceDays) {
+        this.sliceDays = sliceDays;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of the slices extracted at once
+     *
+     * @param parallelism number of the GA connections
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Sets the rate limit of the GA requests
+     *
+     * @param requestsPerSecond maximal number of GA requests per second, 0 disables the limit
+     */
+    public void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public String getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    /**
+     * Sets the directory of the extracted slices
+     *
+     * @param checkpointDir the directory where the completed slices are kept until the extraction finishes,
+     *                      null uses a temporary directory and disables the resuming of failed extractions
+     */
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
     public String getGoogleAnalyticsToken() {
         return googleAnalyticsToken;
     }
@@ -35,19 +35,29 @@ import com.gooddata.processor.ProcessingContext;
 import com.gooddata.transform.Transformer;
 import com.gooddata.util.CSVWriter;
 import com.gooddata.util.FileUtil;
+import com.gooddata.util.JdbcConnectionPool;
 import com.gooddata.util.JdbcUtil;
 import com.gooddata.util.JdbcUtil.ResultSetHandler;
 import com.gooddata.util.StringUtil;
 import org.apache.log4j.Logger;
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.sql.*;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * GoodData JDBC Connector
@@ -64,10 +74,28 @@ public class JdbcConnector extends AbstractConnector implements Connector {
     private String jdbcPassword;
     private String sqlQuery;
     private int fetchSize = FETCH_SIZE;
+    private boolean adaptiveFetchSize = false;
+
+    // the partitioned extraction
+    private String partitionColumn;
+    private String lowerBound;
+    private String upperBound;
+    private int partitions = 1;
+    private int parallelism = 0;
+    private boolean ordered = true;
+
+    // the connections shared by the commands of a script (null means a new connection per extraction)
+    private JdbcConnectionPool connectionPool;
 
 
 	protected static int FETCH_SIZE = 256;
 
+    // the unordered partitions are written to the output in chunks of this size
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    // the adaptive fetch size keeps about this number of chars in a fetched batch
+    private static final int ADAPTIVE_FETCH_CHARS = 4 * 1024 * 1024;
+    private static final int MAX_ADAPTIVE_FETCH_SIZE = 65536;
+
 
     /**
      * Creates a new JDBC connector
@@ -94,6 +122,26 @@ public class JdbcConnector extends AbstractConnector implements Connector {
     public static void saveConfigTemplate(String name, String configFileName, String jdbcUsr, String jdbcPsw,
                                           String jdbcDriver, String jdbcUrl, String query)
             throws IOException, SQLException {
+        saveConfigTemplate(name, configFileName, jdbcUsr, jdbcPsw, jdbcDriver, jdbcUrl, query, null);
+    }
+
+    /**
+     * Saves a template of the config file
+     *
+     * @param name           new schema name
+     * @param configFileName config file name
+     * @param jdbcUsr        JDBC username
+     * @param jdbcPsw        JDBC password
+     * @param jdbcDriver     JDBC driver class name
+     * @param jdbcUrl        JDBC url
+     * @param query          JDBC query
+     * @param pool           the connection pool (null for a new connection)
+     * @throws IOException  if there is a problem with writing the config file
+     * @throws SQLException if there is a problem with the db
+     */
+    public static void saveConfigTemplate(String name, String configFileName, String jdbcUsr, String jdbcPsw,
+                                          String jdbcDriver, String jdbcUrl, String query, JdbcConnectionPool pool)
+            throws IOException, SQLException {
         l.debug("Saving JDBC config template.");
         l.debug("Loading JDBC driver " + jdbcDriver);
         try {
@@ -108,8 +156,9 @@ public class JdbcConnector extends AbstractConnector implements Connector {
         l.debug("JDBC driver " + jdbcDriver + " loaded.");
         final SourceSchema s = SourceSchema.createSchema(name);
         Connection con = null;
+        Statement st = null;
         try {
-            con = connect(jdbcUrl, jdbcUsr, jdbcPsw);
+            con = connect(pool, jdbcUrl, jdbcUsr, jdbcPsw);
             JdbcUtil.ResultSetHandler rh = new JdbcUtil.ResultSetHandler() {
                 public void handle(ResultSet rs) throws SQLException {
                     ResultSetMetaData rsm = rs.getMetaData();
@@ -132,13 +181,15 @@ public class JdbcConnector extends AbstractConnector implements Connector {
                 }
             };
             //JdbcUtil.executeQuery(con, query, rh,1, FETCH_SIZE);
-            Statement st = con.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
+            st = con.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
             l.debug("GenerateJdbcConfig: Executing SQL statement='" + st.toString() + "'");
             ResultSet rs = st.executeQuery(query);
             l.debug("GenerateJdbcConfig: Executed SQL statement='" + st.toString() + "'");
             rh.handle(rs);
             s.writeConfig(new File(configFileName));
         } finally {
+            if (st != null)
+                st.close();
             if (con != null && !con.isClosed())
                 con.close();
         }
@@ -210,92 +261,276 @@ public class JdbcConnector extends AbstractConnector implements Connector {
      * {@inheritDoc}
      */
     public void extract(String file, final boolean transform) throws IOException {
-        Connection con = null;
-        ResultSet rs = null;
-        try {
-            con = connect();
-            File dataFile = new File(file);
-            final DateTimeFormatter dtf = DateTimeFormat.forPattern(Constants.DEFAULT_DATETIME_FMT_STRING);
-            final List<SourceColumn> columns = schema.getColumns();
-            l.debug("Extracting JDBC data to file=" + dataFile.getAbsolutePath());
-            final CSVWriter cw = FileUtil.createUtf8CsvEscapingWriter(dataFile);
-            final Transformer t = Transformer.create(schema);
-            String[] header = t.getHeader(true);
-            cw.writeNext(header);
+        File dataFile = new File(file);
+        l.debug("Extracting JDBC data to file=" + dataFile.getAbsolutePath());
+        extract(new FileOutputStream(dataFile), dataFile.getAbsoluteFile().getParentFile(), transform);
+    }
 
-            class ResultSetCsvWriter implements ResultSetHandler {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isChangeDetectionSupported() {
+        return true;
+    }
 
-                private final CSVWriter cw;
-                protected int rowCnt = 0;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void extract(OutputStream os) throws IOException {
+        extract(os, null, true);
+    }
 
-                public ResultSetCsvWriter(CSVWriter cw) {
-                    this.cw = cw;
-                }
+    /**
+     * Extracts the query result to a stream
+     *
+     * @param out       target stream, it is closed when the data are extracted
+     * @param tmpDir    the directory of the temporary partition files (null for the default temporary directory)
+     * @param transform perform transformations
+     * @throws IOException in case of an IO issue
+     */
+    private void extract(OutputStream out, File tmpDir, final boolean transform) throws IOException {
+        OutputStream os = new BufferedOutputStream(out);
+        CSVWriter cw = FileUtil.createUtf8CsvEscapingWriter(os);
+        try {
+            String query = (watermark != null) ? (watermark.apply(getSqlQuery())) : (getSqlQuery());
+            List<String> queries = JdbcPartitions.split(query, partitionColumn, lowerBound, upperBound, partitions);
+            String[] header = Transformer.create(schema).getHeader(true);
+            cw.writeNext(header);
+            int rowCnt;
+            if (queries.size() > 1) {
+                cw.flush();
+                rowCnt = extractPartitions(queries, cw, os, tmpDir, transform);
+            } else {
+                rowCnt = extractPartition(query, cw, null, transform, null);
+            }
+            l.debug("Finished retrieving JDBC data. Retrieved " + rowCnt + " rows.");
+        } catch (SQLException e) {
+            l.debug("Error retrieving data from the JDBC source.", e);
+            throw new InternalErrorException("Error retrieving data from the JDBC source.", e);
+        } finally {
+            cw.close();
+        }
+    }
 
-                public void handle(ResultSet rs) throws SQLException, IOException {
-                    final int length = rs.getMetaData().getColumnCount();
-                    Object[] row = new Object[length];
-                    for (int i = 1; i <= length; i++) {
-                        final int sqlType = rs.getMetaData().getColumnType(i);
-                        final Object value = rs.getObject(i);
-                        if (value == null || rs.wasNull())
-                            row[i - 1] = "";
-                        else {
-                            switch (sqlType) {
-                                case Types.DATE:
-                                case Types.TIMESTAMP:
-                                    row[i - 1] = new DateTime((Date) value);
-                                    break;
-                                default:
-                                    row[i - 1] = value.toString();
+    /**
+     * Extracts the partitions concurrently, every partition uses its own connection. The ordered output is
+     * the same as the output of the partition queries executed one by one, the partitions that finish early
+     * wait in temporary files. The unordered partitions write their rows to the output in chunks.
+     *
+     * @param queries   the partition queries
+     * @param cw        the output writer with the header written
+     * @param os        the output stream of the writer
+     * @param tmpDir    the directory of the temporary partition files
+     * @param transform perform transformations
+     * @return number of extracted rows
+     * @throws IOException  in case of an IO issue
+     * @throws SQLException in case of a DB issue
+     */
+    private int extractPartitions(List<String> queries, final CSVWriter cw, final OutputStream os, File tmpDir,
+                                  final boolean transform) throws IOException, SQLException {
+        final int threads = (parallelism > 0) ? (Math.min(parallelism, queries.size())) : (queries.size());
+        l.info("Extracting " + queries.size() + " JDBC partitions using " + threads + " connections" +
+                ((ordered) ? (".") : (", the rows are written in any order.")));
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final File[] files = new File[queries.size()];
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        int rowCnt = 0;
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                final String query = queries.get(i);
+                final File partitionFile = (ordered && i > 0) ?
+                        (File.createTempFile("gdc-jdbc-partition", ".csv", tmpDir)) : (null);
+                files[i] = partitionFile;
+                results.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        try {
+                            if (!ordered)
+                                return extractPartition(query, null, os, transform, cancelled);
+                            if (partitionFile == null)
+                                return extractPartition(query, cw, null, transform, cancelled);
+                            CSVWriter pw = FileUtil.createUtf8CsvEscapingWriter(
+                                    new BufferedOutputStream(new FileOutputStream(partitionFile)));
+                            try {
+                                return extractPartition(query, pw, null, transform, cancelled);
+                            } finally {
+                                pw.close();
                             }
+                        } catch (Exception e) {
+                            // the first failure cancels the other partitions
+                            failure.compareAndSet(null, e);
+                            cancelled.set(true);
+                            throw e;
                         }
                     }
-                    String[] nrow = null;
-                    if (transform) {
-                        nrow = t.transformRow(row, DATE_LENGTH_UNRESTRICTED);
-                    } else {
-                        nrow = new String[row.length];
-                        for (int i = 0; i < row.length; i++) {
-                            nrow[i] = row[i].toString();
-                        }
-                    }
-                    cw.writeNext(nrow);
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                rowCnt += results.get(i).get();
+                if (files[i] != null) {
                     cw.flush();
-                    rowCnt++;
+                    FileUtil.append(files[i], os);
+                    files[i].delete();
                 }
             }
+            return rowCnt;
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The partitioned JDBC extraction has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = (failure.get() != null) ? (failure.get()) : (e.getCause());
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new InternalErrorException(cause);
+        } finally {
+            cancelled.set(true);
+            pool.shutdownNow();
+            for (File f : files) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+    }
 
-            ResultSetCsvWriter rw = new ResultSetCsvWriter(cw);
-
-            JdbcUtil.executeQuery(con, getSqlQuery(), rw, fetchSize);
-            l.debug("Finished retrieving JDBC data. Retrieved " + rw.rowCnt + " rows.");
-            cw.close();
-        } catch (SQLException e) {
-            l.debug("Error retrieving data from the JDBC source.", e);
-            throw new InternalErrorException("Error retrieving data from the JDBC source.", e);
+    /**
+     * Extracts the rows of a query using a new connection
+     *
+     * @param query     the SQL query
+     * @param cw        the output writer, null when the rows are written to the shared stream
+     * @param shared    the shared output stream of the unordered partitions
+     * @param transform perform transformations
+     * @param cancelled set when the extraction should stop, can be null
+     * @return number of extracted rows
+     * @throws IOException  in case of an IO issue
+     * @throws SQLException in case of a DB issue
+     */
+    private int extractPartition(String query, CSVWriter cw, OutputStream shared, boolean transform,
+                                 AtomicBoolean cancelled) throws IOException, SQLException {
+        Connection con = connect();
+        try {
+            // e.g. the PostgreSQL driver fetches the rows in batches only outside of the auto-commit mode
+            con.setAutoCommit(false);
+            PartitionWriter w = new PartitionWriter(cw, shared, transform, cancelled);
+            JdbcUtil.executeQuery(con, query, w, (adaptiveFetchSize) ? (FETCH_SIZE) : (fetchSize));
+            w.finish();
+            return w.rowCnt;
         } finally {
             try {
-                if (rs != null)
-                    rs.close();
-                if (con != null && !con.isClosed())
+                if (!con.isClosed()) {
+                    con.rollback();
                     con.close();
+                }
             } catch (SQLException e) {
                 l.error("Error closing JDBC connection.", e);
             }
         }
     }
 
+    /**
+     * Writes the extracted rows of a query to the CSV
+     */
+    private class PartitionWriter implements ResultSetHandler {
+
+        private final CSVWriter cw;
+        // the rows of the unordered partitions are buffered and written to the shared stream in chunks
+        private final ByteArrayOutputStream chunk;
+        private final OutputStream shared;
+        private final AtomicBoolean cancelled;
+        private final Transformer t = Transformer.create(schema);
+        private final boolean transform;
+        // resolved from the metadata of the first row
+        private JdbcExtractionPlan plan = null;
+        protected int rowCnt = 0;
+        // the width of the first fetched rows for the adaptive fetch size
+        private int sampledRows = 0;
+        private long sampledChars = 0;
+
+        PartitionWriter(CSVWriter cw, OutputStream shared, boolean transform, AtomicBoolean cancelled) throws IOException {
+            this.shared = shared;
+            this.transform = transform;
+            this.cancelled = cancelled;
+            if (shared != null) {
+                chunk = new ByteArrayOutputStream(CHUNK_SIZE + CHUNK_SIZE / 4);
+                this.cw = FileUtil.createUtf8CsvEscapingWriter(chunk);
+            } else {
+                chunk = null;
+                this.cw = cw;
+            }
+        }
+
+        public void handle(ResultSet rs) throws SQLException, IOException {
+            if (cancelled != null && cancelled.get())
+                throw new InterruptedIOException("The JDBC extraction has been cancelled.");
+            if (plan == null)
+                plan = JdbcExtractionPlan.create(rs.getMetaData(), t, transform);
+            Object[] row = plan.read(rs);
+            if (adaptiveFetchSize && sampledRows < FETCH_SIZE)
+                sample(rs, row);
+            if (watermark != null && !watermark.accept(row))
+                return;
+            String[] nrow = plan.toRow();
+            if (transform && changeDetector != null && !changeDetector.accept(nrow))
+                return;
+            cw.writeNext(nrow);
+            rowCnt++;
+            if (chunk != null && chunk.size() >= CHUNK_SIZE)
+                writeChunk();
+        }
+
+        /**
+         * Sets the fetch size by the average width of the first fetched rows
+         */
+        private void sample(ResultSet rs, Object[] row) throws SQLException {
+            for (Object v : row) {
+                sampledChars += (v instanceof String) ? (((String) v).length() + 1) : (20);
+            }
+            if (++sampledRows == FETCH_SIZE) {
+                long width = Math.max(1, sampledChars / sampledRows);
+                int size = (int) Math.max(FETCH_SIZE, Math.min(MAX_ADAPTIVE_FETCH_SIZE, ADAPTIVE_FETCH_CHARS / width));
+                l.debug("The average JDBC row width is " + width + " chars, setting the fetch size to " + size + ".");
+                rs.setFetchSize(size);
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            cw.flush();
+            synchronized (shared) {
+                chunk.writeTo(shared);
+            }
+            chunk.reset();
+        }
+
+        /**
+         * Writes the rest of the buffered rows
+         *
+         * @throws IOException in case of an IO issue
+         */
+        void finish() throws IOException {
+            if (chunk != null)
+                writeChunk();
+        }
+    }
+
     /**
      * Connects the DB
      *
+     * @param pool    the connection pool (null for a new connection)
      * @param jdbcUrl JDBC url
      * @param usr     JDBC username
      * @param psw     JDBC password
      * @return JDBC connection
      * @throws SQLException in case of DB issues
      */
-    private static Connection connect(String jdbcUrl, String usr, String psw) throws SQLException {
+    private static Connection connect(JdbcConnectionPool pool, String jdbcUrl, String usr, String psw)
+            throws SQLException {
+        if (pool != null)
+            return pool.getConnection(jdbcUrl, usr, psw);
         return DriverManager.getConnection(jdbcUrl, usr, psw);
     }
 
@@ -303,7 +538,7 @@ public class JdbcConnector extends AbstractConnector implements Connector {
      * {@inheritDoc}
      */
     public Connection connect() throws SQLException {
-        return connect(getJdbcUrl(), getJdbcUsername(), getJdbcPassword());
+        return connect(getConnectionPool(), getJdbcUrl(), getJdbcUsername(), getJdbcPassword());
     }
 
     /**
@@ -386,6 +621,77 @@ public class JdbcConnector extends AbstractConnector implements Connector {
 		this.fetchSize = fetchSize;
 	}
 
+    public boolean isAdaptiveFetchSize() {
+        return adaptiveFetchSize;
+    }
+
+    /**
+     * Adaptive fetch size setter
+     *
+     * @param adaptiveFetchSize when true, the fetch size is set by the width of the first fetched rows
+     */
+    public void setAdaptiveFetchSize(boolean adaptiveFetchSize) {
+        this.adaptiveFetchSize = adaptiveFetchSize;
+    }
+
+    /**
+     * Sets the partitioned extraction
+     *
+     * @param column     the partition column of the query result
+     * @param lowerBound the lower bound (number or date)
+     * @param upperBound the upper bound (number or date)
+     * @param partitions the number of partitions, 1 disables the partitioning
+     */
+    public void setPartitioning(String column, String lowerBound, String upperBound, int partitions) {
+        this.partitionColumn = column;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.partitions = partitions;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Parallelism setter
+     *
+     * @param parallelism the number of partitions extracted at once, 0 extracts all partitions at once
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Ordered output setter
+     *
+     * @param ordered when false, the rows of the partitions are written in any order
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public JdbcConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Connection pool setter
+     *
+     * @param connectionPool the pool that the closed connections return to (null for no pooling)
+     */
+    public void setConnectionPool(JdbcConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -448,6 +754,13 @@ public class JdbcConnector extends AbstractConnector implements Connector {
         String q = c.getParam("query");
         String qf = c.getParam("queryFile");
         String fs = c.getParam("fetchSize");
+        String watermarkFile = c.getParam("watermarkFile");
+        String pc = c.getParam("partitionColumn");
+        String lb = c.getParam("lowerBound");
+        String ub = c.getParam("upperBound");
+        int pcnt = getIntParam(c, "partitions", 1, 1, Integer.MAX_VALUE);
+        int threads = getIntParam(c, "parallelism", 0, 1, Integer.MAX_VALUE);
+        String ord = c.getParam("ordered");
         c.paramsProcessed();
 
         if (q != null && qf != null) {
@@ -462,26 +775,47 @@ public class JdbcConnector extends AbstractConnector implements Connector {
             throw new InvalidParameterException("The UseJdbc command requires either query or queryFIle parameter.");
         }
 
+        if (pcnt > 1 && (pc == null || lb == null || ub == null)) {
+            l.error("The partitioned UseJdbc command requires the partitionColumn, lowerBound and upperBound parameters.");
+            throw new InvalidParameterException("The partitioned UseJdbc command requires the partitionColumn, lowerBound and upperBound parameters.");
+        }
+
         loadDriver(drv);
-        // Fix for the MySQL driver OutOfMemory error
-        if (drv.equals("com.mysql.jdbc.Driver"))
-            FETCH_SIZE = Integer.MIN_VALUE;
 
         File conf = FileUtil.getFile(configFile);
         initSchema(conf.getAbsolutePath());
+        initWatermark(conf.getAbsolutePath(), watermarkFile);
         setJdbcUsername(usr);
         setJdbcPassword(psw);
         setJdbcUrl(url);
         setSqlQuery(q);
-        if (fs != null) {
+        setAdaptiveFetchSize(false);
+        if (fs != null && "auto".equalsIgnoreCase(fs.trim())) {
+            if (drv.equals("com.mysql.jdbc.Driver")) {
+                // the MySQL driver streams the rows one by one, there is no batch to size
+                setFetchSize(Integer.MIN_VALUE);
+            } else {
+                setFetchSize(FETCH_SIZE);
+                setAdaptiveFetchSize(true);
+            }
+        } else if (fs != null) {
         	try {
         		final int fetchSize = Integer.parseInt(fs);
                 setFetchSize(fetchSize);
         	} catch (NumberFormatException e) {
-        		l.error("The fetchSize parameter must be an integer");
-        		throw new InvalidParameterException("The fetchSize parameter must be an integer");
+        		l.error("The fetchSize parameter must be an integer or auto");
+        		throw new InvalidParameterException("The fetchSize parameter must be an integer or auto");
         	}
+        } else if (drv.equals("com.mysql.jdbc.Driver")) {
+            // Fix for the MySQL driver OutOfMemory error
+            setFetchSize(Integer.MIN_VALUE);
+        } else {
+            setFetchSize(FETCH_SIZE);
         }
+        setPartitioning(pc, lb, ub, pcnt);
+        setParallelism(threads);
+        setOrdered(!"false".equalsIgnoreCase(ord));
+        setConnectionPool(ctx.getJdbcPool());
         // sets the current connector
         ctx.setConnector(this);
         setProjectId(ctx);
@@ -513,7 +847,7 @@ public class JdbcConnector extends AbstractConnector implements Connector {
 
         loadDriver(drv);
         File cf = new File(configFile);
-        JdbcConnector.saveConfigTemplate(name, cf.getAbsolutePath(), usr, psw, drv, url, query);
+        JdbcConnector.saveConfigTemplate(name, cf.getAbsolutePath(), usr, psw, drv, url, query, ctx.getJdbcPool());
         l.info("JDBC Connector configuration successfully generated. See config file: " + configFile);
     }
 
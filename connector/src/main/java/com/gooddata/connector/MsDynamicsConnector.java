@@ -124,6 +124,14 @@ public class MsDynamicsConnector extends AbstractConnector implements Connector
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isChangeDetectionSupported() {
+        return true;
+    }
+
 
     /**
      * MsDynamics username getter
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.SfdcException;
+import com.gooddata.integration.rest.TaskPoller;
+import com.gooddata.util.NetUtil;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal client of the SFDC Bulk API query jobs. The query runs asynchronously on the SFDC side and its
+ * results are downloaded as CSV files.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class SfdcBulkApi {
+
+    private static Logger l = Logger.getLogger(SfdcBulkApi.class);
+
+    public static final String NAMESPACE = "http://www.force.com/2009/06/asyncapi/dataload";
+
+    public static final String STATE_COMPLETED = "Completed";
+    public static final String STATE_FAILED = "Failed";
+    public static final String STATE_NOT_PROCESSED = "NotProcessed";
+
+    // the content of the result CSV of a query that hasn't returned any record
+    public static final String NO_RECORDS = "Records not found for this query";
+
+    // the SOAP server URL returned by the login, e.g. https://na1.salesforce.com/services/Soap/u/20.0/00D...
+    private static final Pattern SOAP_URL = Pattern.compile("^(https?://[^/]+)/services/Soap/[a-zA-Z]/([0-9.]+)(/.*)?$");
+    private static final Pattern QUERY_OBJECT = Pattern.compile("\\sfrom\\s+([a-zA-Z0-9_]+)", Pattern.CASE_INSENSITIVE);
+
+    // the error code of an expired session
+    private static final String INVALID_SESSION_ID = "InvalidSessionId";
+
+    private final String baseUrl;
+    private volatile String sessionId;
+    private SfdcSessionRenewer renewer;
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient client;
+
+    /**
+     * Constructor
+     *
+     * @param baseUrl   the Bulk API URL, e.g. https://na1.salesforce.com/services/async/20.0
+     * @param sessionId the SFDC session ID
+     */
+    public SfdcBulkApi(String baseUrl, String sessionId) {
+        this.baseUrl = baseUrl;
+        this.sessionId = sessionId;
+        connectionManager = NetUtil.createConnectionManager();
+        client = new HttpClient(connectionManager);
+        NetUtil.configureHttpProxy(client);
+    }
+
+    /**
+     * Sets the callback that logs in again when the SFDC rejects the session. The rejected request is retried
+     * once with the new session. The job stays on the server of the original session.
+     *
+     * @param renewer the session renewer (null fails on the expired session)
+     */
+    public void setSessionRenewer(SfdcSessionRenewer renewer) {
+        this.renewer = renewer;
+    }
+
+    /**
+     * Derives the Bulk API URL from the SOAP server URL of the session
+     *
+     * @param serverUrl the SOAP server URL
+     * @return the Bulk API URL of the same instance and API version
+     * @throws SfdcException when the URL isn't a SFDC SOAP server URL
+     */
+    public static String getBulkUrl(String serverUrl) {
+        Matcher m = SOAP_URL.matcher((serverUrl != null) ? (serverUrl) : (""));
+        if (!m.matches())
+            throw new SfdcException("Can't derive the SFDC Bulk API URL from the server URL " + serverUrl);
+        return m.group(1) + "/services/async/" + m.group(2);
+    }
+
+    /**
+     * Returns the object queried by the SOQL query
+     *
+     * @param query the SOQL query
+     * @return the SFDC object name
+     * @throws SfdcException when the query doesn't contain the FROM clause
+     */
+    public static String getQueryObject(String query) {
+        Matcher m = QUERY_OBJECT.matcher((query != null) ? (query) : (""));
+        if (!m.find())
+            throw new SfdcException("Can't find the queried SFDC object in the query " + query);
+        return m.group(1);
+    }
+
+    /**
+     * Creates a new query job
+     *
+     * @param object      the queried SFDC object
+     * @param pkChunkSize splits the query to batches of this number of records by the primary key (0 disables the
+     *                    chunking)
+     * @return the job ID
+     */
+    public String createQueryJob(String object, int pkChunkSize) {
+        l.debug("Creating SFDC Bulk API query job of the object " + object);
+        PostMethod m = new PostMethod(baseUrl + "/job");
+        if (pkChunkSize > 0)
+            m.setRequestHeader("Sforce-Enable-PKChunking", "chunkSize=" + pkChunkSize);
+        setXmlEntity(m, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<jobInfo xmlns=\"" + NAMESPACE + "\">" +
+                "<operation>query</operation>" +
+                "<object>" + object + "</object>" +
+                "<concurrencyMode>Parallel</concurrencyMode>" +
+                "<contentType>CSV</contentType>" +
+                "</jobInfo>");
+        String id = getText(execute(m).getDocumentElement(), "id");
+        l.debug("Created SFDC Bulk API query job " + id);
+        return id;
+    }
+
+    /**
+     * Submits the query to the job
+     *
+     * @param jobId the job ID
+     * @param query the SOQL query
+     * @return the batch ID
+     */
+    public String addBatch(String jobId, String query) {
+        PostMethod m = new PostMethod(baseUrl + "/job/" + jobId + "/batch");
+        try {
+            m.setRequestEntity(new StringRequestEntity(query, "text/csv", "UTF-8"));
+        } catch (IOException e) {
+            throw new SfdcException(e);
+        }
+        String id = getText(execute(m).getDocumentElement(), "id");
+        l.debug("Added SFDC Bulk API batch " + id + " to the job " + jobId);
+        return id;
+    }
+
+    /**
+     * Closes the job, no more batches can be added
+     *
+     * @param jobId the job ID
+     */
+    public void closeJob(String jobId) {
+        setJobState(jobId, "Closed");
+    }
+
+    /**
+     * Aborts the job, its unfinished batches aren't processed
+     *
+     * @param jobId the job ID
+     */
+    public void abortJob(String jobId) {
+        setJobState(jobId, "Aborted");
+    }
+
+    private void setJobState(String jobId, String state) {
+        PostMethod m = new PostMethod(baseUrl + "/job/" + jobId);
+        setXmlEntity(m, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<jobInfo xmlns=\"" + NAMESPACE + "\"><state>" + state + "</state></jobInfo>");
+        execute(m);
+        l.debug("SFDC Bulk API job " + jobId + " state set to " + state);
+    }
+
+    /**
+     * Polls the job batches until all of them finish
+     *
+     * @param jobId the job ID
+     * @return IDs of the completed batches that contain the results
+     * @throws SfdcException when any of the batches fails
+     */
+    public List<String> awaitBatches(final String jobId) {
+        return TaskPoller.getDefault().await(new TaskPoller.Task<List<String>>() {
+            public List<String> poll() {
+                return getCompletedBatches(jobId);
+            }
+        });
+    }
+
+    /**
+     * Checks the job batches once
+     *
+     * @param jobId the job ID
+     * @return IDs of the completed batches or null when some batches still run
+     * @throws SfdcException when any of the batches fails
+     */
+    List<String> getCompletedBatches(String jobId) {
+        NodeList batches = execute(new GetMethod(baseUrl + "/job/" + jobId + "/batch"))
+                .getElementsByTagName("batchInfo");
+        List<String> completed = new ArrayList<String>();
+        boolean done = true;
+        for (int i = 0; i < batches.getLength(); i++) {
+            Element batch = (Element) batches.item(i);
+            String id = getText(batch, "id");
+            String state = getText(batch, "state");
+            if (STATE_FAILED.equals(state)) {
+                throw new SfdcException("The SFDC Bulk API batch " + id + " failed: " + getText(batch, "stateMessage"));
+            } else if (STATE_COMPLETED.equals(state)) {
+                completed.add(id);
+            } else if (!STATE_NOT_PROCESSED.equals(state)) {
+                // the original batch of the chunked query isn't processed, its chunks are
+                done = false;
+            }
+        }
+        l.debug("SFDC Bulk API job " + jobId + " completed " + completed.size() + " of " + batches.getLength() +
+                " batches.");
+        return (done) ? (completed) : (null);
+    }
+
+    /**
+     * Lists the result files of the batch
+     *
+     * @param jobId   the job ID
+     * @param batchId the batch ID
+     * @return the result IDs
+     */
+    public List<String> getResultIds(String jobId, String batchId) {
+        NodeList results = execute(new GetMethod(baseUrl + "/job/" + jobId + "/batch/" + batchId + "/result"))
+                .getElementsByTagName("result");
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < results.getLength(); i++) {
+            ids.add(results.item(i).getTextContent().trim());
+        }
+        return ids;
+    }
+
+    /**
+     * Opens the result CSV. The stream must be closed to release the HTTP connection.
+     *
+     * @param jobId    the job ID
+     * @param batchId  the batch ID
+     * @param resultId the result ID
+     * @return the CSV stream
+     */
+    public InputStream getResult(String jobId, String batchId, String resultId) {
+        String url = baseUrl + "/job/" + jobId + "/batch/" + batchId + "/result/" + resultId;
+        GetMethod m = new GetMethod(url);
+        m.setRequestHeader("Accept-Encoding", "gzip");
+        boolean released = true;
+        try {
+            String session = sessionId;
+            int status = executeMethod(m, session);
+            if (isInvalidSession(m, status)) {
+                m.releaseConnection();
+                renew(session);
+                m = new GetMethod(url);
+                m.setRequestHeader("Accept-Encoding", "gzip");
+                status = executeMethod(m, sessionId);
+            }
+            checkStatus(m, status);
+            InputStream is = m.getResponseBodyAsStream();
+            Header enc = m.getResponseHeader("Content-Encoding");
+            if (enc != null && "gzip".equalsIgnoreCase(enc.getValue()))
+                is = new GZIPInputStream(is);
+            released = false;
+            final GetMethod result = m;
+            return new FilterInputStream(is) {
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        result.releaseConnection();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new SfdcException("Failed to download the SFDC Bulk API result " + resultId, e);
+        } finally {
+            if (released)
+                m.releaseConnection();
+        }
+    }
+
+    /**
+     * Closes the HTTP connections
+     */
+    public void shutdown() {
+        NetUtil.shutdownConnectionManager(connectionManager);
+    }
+
+    private static void setXmlEntity(PostMethod m, String xml) {
+        try {
+            m.setRequestEntity(new StringRequestEntity(xml, "application/xml", "UTF-8"));
+        } catch (IOException e) {
+            throw new SfdcException(e);
+        }
+    }
+
+    private Document execute(HttpMethodBase m) {
+        try {
+            String session = sessionId;
+            int status = executeMethod(m, session);
+            if (isInvalidSession(m, status)) {
+                m.releaseConnection();
+                renew(session);
+                m = copy(m);
+                status = executeMethod(m, sessionId);
+            }
+            checkStatus(m, status);
+            DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+            f.setNamespaceAware(true);
+            return f.newDocumentBuilder().parse(m.getResponseBodyAsStream());
+        } catch (IOException e) {
+            throw new SfdcException("SFDC Bulk API request " + m.getPath() + " failed.", e);
+        } catch (SAXException e) {
+            throw new SfdcException("Invalid SFDC Bulk API response of " + m.getPath(), e);
+        } catch (ParserConfigurationException e) {
+            throw new SfdcException(e);
+        } finally {
+            m.releaseConnection();
+        }
+    }
+
+    private int executeMethod(HttpMethodBase m, String session) throws IOException {
+        m.setRequestHeader("X-SFDC-Session", session);
+        return client.executeMethod(m);
+    }
+
+    /**
+     * Returns true if the SFDC rejected the session and it can be renewed
+     */
+    private boolean isInvalidSession(HttpMethodBase m, int status) throws IOException {
+        if (renewer == null || (status != HttpStatus.SC_BAD_REQUEST && status != HttpStatus.SC_UNAUTHORIZED))
+            return false;
+        String body = m.getResponseBodyAsString();
+        return body != null && body.indexOf(INVALID_SESSION_ID) >= 0;
+    }
+
+    /**
+     * Logs in again, the concurrent requests rejected with the same session share the new session
+     *
+     * @param rejected the rejected session ID
+     */
+    private synchronized void renew(String rejected) {
+        if (!rejected.equals(sessionId))
+            return;
+        l.info("The SFDC session has expired, logging in again.");
+        sessionId = renewer.renew(rejected)[1];
+    }
+
+    // a new method with the same request, the executed one can't be sent again
+    private static HttpMethodBase copy(HttpMethodBase m) throws IOException {
+        String url = m.getURI().toString();
+        HttpMethodBase c;
+        if (m instanceof PostMethod) {
+            PostMethod p = new PostMethod(url);
+            p.setRequestEntity(((PostMethod) m).getRequestEntity());
+            c = p;
+        } else {
+            c = new GetMethod(url);
+        }
+        for (Header h : m.getRequestHeaders()) {
+            c.setRequestHeader(h);
+        }
+        return c;
+    }
+
+    private static void checkStatus(HttpMethodBase m, int status) throws IOException {
+        if (status < 200 || status >= 300) {
+            String body = m.getResponseBodyAsString();
+            throw new SfdcException("SFDC Bulk API request " + m.getPath() + " failed with status " + status + ": " +
+                    body);
+        }
+    }
+
+    private static String getText(Element parent, String name) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && name.equals(n.getLocalName()))
+                return n.getTextContent().trim();
+        }
+        return null;
+    }
+
+}
@@ -23,6 +23,7 @@
 
 package com.gooddata.connector;
 
+import com.gooddata.exception.InternalErrorException;
 import com.gooddata.exception.ProcessingException;
 import com.gooddata.exception.SfdcException;
 import com.gooddata.modeling.model.SourceColumn;
@@ -31,6 +32,7 @@ import com.gooddata.processor.CliParams;
 import com.gooddata.processor.Command;
 import com.gooddata.processor.ProcessingContext;
 import com.gooddata.transform.Transformer;
+import com.gooddata.util.CSVReader;
 import com.gooddata.util.CSVWriter;
 import com.gooddata.util.FileUtil;
 import com.gooddata.util.StringUtil;
@@ -38,13 +40,29 @@ import com.sforce.soap.partner.*;
 import com.sforce.soap.partner.fault.*;
 import com.sforce.soap.partner.sobject.SObject;
 import org.apache.axis.message.MessageElement;
+import org.apache.axis.message.SOAPHeaderElement;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
+import javax.xml.rpc.ServiceException;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * GoodData SFDC Connector
@@ -63,6 +81,26 @@ public class SfdcConnector extends AbstractConnector implements Connector {
     private String sfdcHostname = "www.salesforce.com";
     private String clientID;
 
+    // the Bulk API mode
+    private boolean bulk = false;
+    private int pkChunkSize = 0;
+    private int parallelism = DEFAULT_BULK_PARALLELISM;
+
+    protected static final int DEFAULT_BULK_PARALLELISM = 4;
+
+    // the SOAP query page size
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    protected static final int DEFAULT_BATCH_SIZE = 500;
+    protected static final int MAX_BATCH_SIZE = 2000;
+    // number of the query pages fetched ahead of the writing
+    private static final int PREFETCH_PAGES = 2;
+    // the name of the threads that fetch the query pages
+    static final String FETCHER_THREAD_NAME = "gdc-sfdc-fetcher";
+
+    // the login sessions and object metadata shared by the commands of a script (null means no caching)
+    private SfdcSessionCache sessionCache;
+
 
     /**
      * Creates a new SFDC connector
@@ -130,18 +168,18 @@ public class SfdcConnector extends AbstractConnector implements Connector {
      *
      * @param c    SFDC stub
      * @param name SFDC object name
-     * @return Map of fields
+     * @return Map of the field types by the field name
      * @throws RemoteException communication error
      */
-    protected static Map<String, Field> describeObject(SoapBindingStub c, String name) throws RemoteException {
+    protected static Map<String, String> describeObject(SoapBindingStub c, String name) throws RemoteException {
         l.debug("Retrieving SFDC object " + name + " metadata.");
-        Map<String, Field> result = new HashMap<String, Field>();
+        Map<String, String> result = new HashMap<String, String>();
         DescribeSObjectResult describeSObjectResult = c.describeSObject(name);
         if (!(describeSObjectResult == null)) {
             Field[] fields = describeSObjectResult.getFields();
             if (fields != null) {
                 for (Field field : fields) {
-                    result.put(field.getName(), field);
+                    result.put(field.getName(), field.getType().getValue());
                 }
             }
         }
@@ -165,12 +203,44 @@ public class SfdcConnector extends AbstractConnector implements Connector {
     public static void saveConfigTemplate(String name, String configFileName, String sfdcHostname, String sfdcUsr, String sfdcPsw, String sfdcToken, String partnerId,
                                           String query)
             throws IOException {
+        saveConfigTemplate(name, configFileName, sfdcHostname, sfdcUsr, sfdcPsw, sfdcToken, partnerId, query, null);
+    }
+
+    /**
+     * Saves a template of the config file
+     *
+     * @param name           new schema name
+     * @param configFileName config file name
+     * @param sfdcUsr        SFDC username
+     * @param sfdcPsw        SFDC password
+     * @param sfdcToken      SFDC security token
+     * @param query          SFDC query
+     * @param partnerId      SFDC partner ID
+     * @param cache          the session and metadata cache (null logs in and describes the object)
+     * @throws IOException if there is a problem with writing the config file
+     */
+    public static void saveConfigTemplate(String name, String configFileName, String sfdcHostname, String sfdcUsr, String sfdcPsw, String sfdcToken, String partnerId,
+                                          String query, SfdcSessionCache cache)
+            throws IOException {
         l.debug("Saving SFDC config template.");
         SourceSchema s = SourceSchema.createSchema(name);
-        SoapBindingStub c = connect(sfdcHostname, sfdcUsr, sfdcPsw, sfdcToken, partnerId);
-        SObject result = executeQueryFirstRow(c, query, partnerId);
+        SoapBindingStub c = (cache != null) ? (cache.connect(sfdcHostname, sfdcUsr, sfdcPsw, sfdcToken, partnerId)) :
+                (connect(sfdcHostname, sfdcUsr, sfdcPsw, sfdcToken, partnerId));
+        SObject result;
+        try {
+            result = executeQueryFirstRow(c, query, partnerId);
+        } catch (SfdcException e) {
+            // the cached session has expired since its last check
+            if (cache == null || !isInvalidSession(e.getCause()))
+                throw e;
+            l.info("The SFDC session has expired, logging in again.");
+            cache.invalidate(sfdcHostname, sfdcUsr, partnerId, getSessionId(c));
+            c = cache.connect(sfdcHostname, sfdcUsr, sfdcPsw, sfdcToken, partnerId);
+            result = executeQueryFirstRow(c, query, partnerId);
+        }
         if (result != null) {
-            Map<String, Field> fields = describeObject(c, result.getType());
+            Map<String, String> fields = (cache != null) ? (cache.describe(c, sfdcHostname, sfdcUsr, result.getType())) :
+                    (describeObject(c, result.getType()));
             for (MessageElement column : result.get_any()) {
                 String nm = column.getName();
                 String tp = getColumnType(fields, nm);
@@ -194,28 +264,27 @@ public class SfdcConnector extends AbstractConnector implements Connector {
     /**
      * Derives the LDM type from the SFDC type
      *
-     * @param fields    SFDC object metadata
+     * @param fields    SFDC field types by the field name
      * @param fieldName the field name
      * @return LDM type
      */
-    protected static String getColumnType(Map<String, Field> fields, String fieldName) {
+    protected static String getColumnType(Map<String, String> fields, String fieldName) {
         String type = SourceColumn.LDM_TYPE_ATTRIBUTE;
-        Field f = fields.get(fieldName);
-        if (f != null) {
-            FieldType t = f.getType();
-            if (t.getValue().equalsIgnoreCase("id"))
+        String t = fields.get(fieldName);
+        if (t != null) {
+            if (t.equalsIgnoreCase("id"))
                 type = SourceColumn.LDM_TYPE_CONNECTION_POINT;
-            else if (t.getValue().equalsIgnoreCase("string"))
+            else if (t.equalsIgnoreCase("string"))
                 type = SourceColumn.LDM_TYPE_ATTRIBUTE;
-            else if (t.getValue().equalsIgnoreCase("currency"))
+            else if (t.equalsIgnoreCase("currency"))
                 type = SourceColumn.LDM_TYPE_FACT;
-            else if (t.getValue().equalsIgnoreCase("boolean"))
+            else if (t.equalsIgnoreCase("boolean"))
                 type = SourceColumn.LDM_TYPE_ATTRIBUTE;
-            else if (t.getValue().equalsIgnoreCase("reference"))
+            else if (t.equalsIgnoreCase("reference"))
                 type = SourceColumn.LDM_TYPE_REFERENCE;
-            else if (t.getValue().equalsIgnoreCase("date"))
+            else if (t.equalsIgnoreCase("date"))
                 type = SourceColumn.LDM_TYPE_DATE;
-            else if (t.getValue().equalsIgnoreCase("datetime"))
+            else if (t.equalsIgnoreCase("datetime"))
                 type = SourceColumn.LDM_TYPE_DATE;
         }
         return type;
@@ -227,89 +296,460 @@ public class SfdcConnector extends AbstractConnector implements Connector {
     public void extract(String file, boolean transform) throws IOException {
         File dataFile = new File(file);
         l.debug("Extracting SFDC data to file=" + dataFile.getAbsolutePath());
-        CSVWriter cw = FileUtil.createUtf8CsvEscapingWriter(dataFile);
-        Transformer t = Transformer.create(schema);
-        String[] header = t.getHeader(transform);
-        cw.writeNext(header);
-        SoapBindingStub c = connect(getSfdcHostname(), getSfdcUsername(), getSfdcPassword(), getSfdcToken(), getClientID());
+        extract(new FileOutputStream(dataFile), dataFile.getAbsoluteFile().getParentFile(), transform);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void extract(OutputStream os) throws IOException {
+        extract(os, null, true);
+    }
+
+    /**
+     * Extracts the query result to a stream
+     *
+     * @param out       target stream, it is closed when the data are extracted
+     * @param tmpDir    the directory of the temporary Bulk API result files (null for the default temporary
+     *                  directory)
+     * @param transform perform transformations
+     * @throws IOException in case of an IO issue
+     */
+    private void extract(OutputStream out, File tmpDir, boolean transform) throws IOException {
+        OutputStream os = new BufferedOutputStream(out);
+        CSVWriter cw = FileUtil.createUtf8CsvEscapingWriter(os);
+        try {
+            Transformer t = Transformer.create(schema);
+            String[] header = t.getHeader(transform);
+            cw.writeNext(header);
+            SoapBindingStub c = connect();
+            int rowCnt = -1;
+            if (isBulk()) {
+                cw.flush();
+                rowCnt = extractBulk(c, cw, os, tmpDir, transform);
+            }
+            if (rowCnt < 0) {
+                rowCnt = extractSoap(c, cw, t, transform);
+            }
+            l.debug("Retrieved " + rowCnt + " rows of SFDC data.");
+        } finally {
+            cw.close();
+        }
+        l.debug("Finihed SFDC query execution.");
+    }
+
+    /**
+     * Connects the SFDC, reuses the cached session when there is one
+     *
+     * @return SFDC stub
+     * @throws SfdcException in case of connection issues
+     */
+    protected SoapBindingStub connect() throws SfdcException {
+        if (sessionCache != null)
+            return sessionCache.connect(getSfdcHostname(), getSfdcUsername(), getSfdcPassword(), getSfdcToken(),
+                    getClientID());
+        return connect(getSfdcHostname(), getSfdcUsername(), getSfdcPassword(), getSfdcToken(), getClientID());
+    }
+
+    /**
+     * Logs in again after the SFDC rejected the session, drops the rejected session from the cache
+     *
+     * @param sessionId the rejected session ID
+     * @return SFDC stub of the new session
+     * @throws SfdcException in case of connection issues
+     */
+    protected SoapBindingStub reconnect(String sessionId) throws SfdcException {
+        l.info("The SFDC session has expired, logging in again.");
+        if (sessionCache != null)
+            sessionCache.invalidate(getSfdcHostname(), getSfdcUsername(), getClientID(), sessionId);
+        return connect();
+    }
+
+    /**
+     * Returns the session renewer of the SOAP query reader and the Bulk API
+     *
+     * @return the session renewer that logs in again using the connector credentials
+     */
+    private SfdcSessionRenewer createSessionRenewer() {
+        return new SfdcSessionRenewer() {
+            public String[] renew(String sessionId) {
+                SoapBindingStub c = reconnect(sessionId);
+                return new String[]{getServerUrl(c), getSessionId(c)};
+            }
+        };
+    }
+
+    /**
+     * Returns true if the SFDC rejected the session of the call
+     *
+     * @param e the call failure
+     * @return true for the INVALID_SESSION_ID fault
+     */
+    protected static boolean isInvalidSession(Throwable e) {
+        return (e instanceof ApiFault) && ExceptionCode.INVALID_SESSION_ID.equals(((ApiFault) e).getExceptionCode());
+    }
+
+    /**
+     * Retrieves the object's field types, uses the cached metadata when there are some. Logs in again and
+     * retries once when the session has expired.
+     *
+     * @param c    SFDC stub
+     * @param name SFDC object name
+     * @return Map of the field types by the field name
+     * @throws RemoteException communication error
+     */
+    protected Map<String, String> describe(SoapBindingStub c, String name) throws RemoteException {
+        try {
+            return describeOnce(c, name);
+        } catch (RemoteException e) {
+            if (!isInvalidSession(e))
+                throw e;
+            return describeOnce(reconnect(getSessionId(c)), name);
+        }
+    }
+
+    private Map<String, String> describeOnce(SoapBindingStub c, String name) throws RemoteException {
+        if (sessionCache != null)
+            return sessionCache.describe(c, getSfdcHostname(), getSfdcUsername(), name);
+        return describeObject(c, name);
+    }
+
+    /**
+     * Pages through the query results using the SOAP query and queryMore calls. The pages are streamed
+     * to the writer without building the SObject trees.
+     *
+     * @param c         SFDC stub
+     * @param cw        the output writer
+     * @param t         the transformer
+     * @param transform perform transformations
+     * @return number of extracted rows
+     * @throws IOException in case of an IO issue
+     */
+    private int extractSoap(SoapBindingStub c, CSVWriter cw, Transformer t, boolean transform) throws IOException {
         l.debug("Executing SFDC query " + sfdcQuery);
-        QueryOptions qo = new QueryOptions();
-        qo.setBatchSize(500);
-        c.setHeader(new SforceServiceLocator().getServiceName().getNamespaceURI(), "QueryOptions", qo);
-        String[] colTypes = null;
-        boolean firstBatch = true;
-        int rowCnt = 0;
+        SfdcQueryReader reader = new SfdcQueryReader(getServerUrl(c), getSessionId(c), getClientID(), batchSize);
+        reader.setSessionRenewer(createSessionRenewer());
+        RecordWriter w = new RecordWriter(c, cw, t, transform);
+        int pageCnt = streamPages(reader, sfdcQuery, w);
+        l.debug("Fetched " + pageCnt + " pages of SFDC data.");
+        return w.rowCnt;
+    }
+
+    /**
+     * Streams the query result pages to the record handler. A fetch thread retrieves the next pages while
+     * the current page is parsed and handled. The reader is shut down at the end.
+     *
+     * @param reader  the query reader
+     * @param query   SFDC SOQL query
+     * @param handler the handler of the records
+     * @return number of fetched pages
+     * @throws IOException in case of an IO issue
+     */
+    static int streamPages(final SfdcQueryReader reader, final String query, SfdcQueryReader.RecordHandler handler)
+            throws IOException {
+        final BlockingQueue<byte[]> pages = new ArrayBlockingQueue<byte[]>(PREFETCH_PAGES);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        ExecutorService fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, FETCHER_THREAD_NAME);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Future<Integer> fetched = fetcher.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                try {
+                    return fetchPages(reader, query, pages);
+                } finally {
+                    // the end of the pages, the fetch errors are propagated by the future. Nobody takes
+                    // the marker when the writing failed, it is dropped instead of blocking the thread.
+                    while (!pages.offer(END_OF_PAGES, 1, TimeUnit.SECONDS)) {
+                        if (cancelled.get())
+                            break;
+                    }
+                }
+            }
+        });
         try {
-            QueryResult qr = c.query(sfdcQuery);
-            boolean isdone = false;
-            do {
-                SObject[] sObjects = qr.getRecords();
-                if (sObjects != null && sObjects.length > 0) {
-                    l.debug("Started retrieving SFDC data.");
-                    boolean firstRow = true;
-                    for (SObject srow : sObjects) {
-                        if (firstBatch && firstRow) {
-                            SObject hdr = sObjects[0];
-                            Map<String, Field> fields = describeObject(c, hdr.getType());
-                            MessageElement[] frCols = hdr.get_any();
-                            colTypes = new String[frCols.length];
-                            for (int i = 0; i < frCols.length; i++) {
-                                String nm = frCols[i].getName();
-                                colTypes[i] = getColumnType(fields, nm);
-                            }
-                            firstRow = false;
-                        }
-                        MessageElement[] cols = srow.get_any();
-                        Object[] row = new Object[cols.length];
-                        for (int i = 0; i < row.length; i++) {
-                            if (colTypes[i].equalsIgnoreCase(SourceColumn.LDM_TYPE_DATE)) {
-                                row[i] = new DateTime(cols[i].getValue());
-                            } else {
-                                row[i] = cols[i].getValue();
-                            }
-                        }
-                        String[] nrow = null;
-                        if (transform) {
-                            nrow = t.transformRow(row, DATE_LENGTH_UNRESTRICTED);
-                        } else {
-                            nrow = new String[row.length];
-                            for (int i = 0; i < row.length; i++) {
-                                nrow[i] = row[i].toString();
+            byte[] page;
+            while ((page = pages.take()) != END_OF_PAGES) {
+                SfdcQueryReader.readRecords(page, handler);
+            }
+            return fetched.get();
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The SFDC extraction has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new InternalErrorException(cause);
+        } finally {
+            // stops the fetching when the writing fails
+            cancelled.set(true);
+            fetcher.shutdownNow();
+            pages.clear();
+            reader.shutdown();
+        }
+    }
+
+    /**
+     * Retrieves the query result pages to the queue, the queue blocks the fetching when it is full
+     *
+     * @param reader the query reader
+     * @param query  SFDC SOQL query
+     * @param pages  the page queue
+     * @return number of fetched pages
+     * @throws InterruptedException when the fetching is cancelled
+     */
+    private static int fetchPages(SfdcQueryReader reader, String query, BlockingQueue<byte[]> pages)
+            throws InterruptedException {
+        int pageCnt = 0;
+        byte[] page = reader.query(query);
+        l.debug("Started retrieving SFDC data.");
+        while (true) {
+            // the paging information precedes the records, the next page is requested before the records are parsed
+            SfdcQueryReader.PageInfo info = SfdcQueryReader.readPageInfo(page);
+            pages.put(page);
+            pageCnt++;
+            if (info.isDone() || Thread.currentThread().isInterrupted())
+                break;
+            page = reader.queryMore(info.getQueryLocator());
+        }
+        return pageCnt;
+    }
+
+    // marks the end of the pages
+    private static final byte[] END_OF_PAGES = new byte[0];
+
+    /**
+     * Transforms and writes the streamed query records
+     */
+    private class RecordWriter implements SfdcQueryReader.RecordHandler {
+
+        private final SoapBindingStub c;
+        private final CSVWriter cw;
+        private final Transformer t;
+        private final boolean transform;
+
+        private boolean[] dates;
+        private Object[] row;
+        private int rowCnt = 0;
+
+        RecordWriter(SoapBindingStub c, CSVWriter cw, Transformer t, boolean transform) {
+            this.c = c;
+            this.cw = cw;
+            this.t = t;
+            this.transform = transform;
+        }
+
+        public void record(String type, String[] names, String[] values, int count) throws IOException {
+            if (dates == null) {
+                Map<String, String> fields = describe(c, type);
+                dates = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    dates[i] = SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(getColumnType(fields, names[i]));
+                }
+                row = new Object[count];
+            }
+            for (int i = 0; i < row.length; i++) {
+                String value = (i < count) ? (values[i]) : (null);
+                if (value == null) {
+                    row[i] = (transform) ? (null) : ("");
+                } else if (dates[i]) {
+                    row[i] = new DateTime(value);
+                } else {
+                    row[i] = value;
+                }
+            }
+            String[] nrow;
+            if (transform) {
+                nrow = t.transformRow(row, DATE_LENGTH_UNRESTRICTED);
+            } else {
+                nrow = new String[row.length];
+                for (int i = 0; i < row.length; i++) {
+                    nrow[i] = row[i].toString();
+                }
+            }
+            cw.writeNext(nrow);
+            rowCnt++;
+        }
+    }
+
+    /**
+     * Runs the query as a Bulk API job and downloads its result files concurrently. The first result is
+     * written to the output directly, the others wait in temporary files and are appended in order.
+     *
+     * @param c         SFDC stub
+     * @param cw        the output writer with the header written
+     * @param os        the output stream of the writer
+     * @param tmpDir    the directory of the temporary result files
+     * @param transform perform transformations
+     * @return number of extracted rows or -1 when the Bulk API job fails and the SOAP query should be used
+     * @throws IOException in case of an IO issue
+     */
+    private int extractBulk(SoapBindingStub c, final CSVWriter cw, OutputStream os, File tmpDir,
+                            final boolean transform) throws IOException {
+        final SfdcBulkApi api = new SfdcBulkApi(SfdcBulkApi.getBulkUrl(getServerUrl(c)), getSessionId(c));
+        api.setSessionRenewer(createSessionRenewer());
+        try {
+            final String object = SfdcBulkApi.getQueryObject(sfdcQuery);
+            final String jobId;
+            final List<String[]> results = new ArrayList<String[]>();
+            try {
+                l.debug("Executing SFDC Bulk API query " + sfdcQuery);
+                jobId = api.createQueryJob(object, pkChunkSize);
+                try {
+                    api.addBatch(jobId, sfdcQuery);
+                } finally {
+                    api.closeJob(jobId);
+                }
+                for (String batchId : api.awaitBatches(jobId)) {
+                    for (String resultId : api.getResultIds(jobId, batchId)) {
+                        results.add(new String[]{batchId, resultId});
+                    }
+                }
+            } catch (SfdcException e) {
+                // nothing has been written yet
+                l.warn("The SFDC Bulk API query failed, falling back to the SOAP query. " + e.getMessage());
+                l.debug("The SFDC Bulk API query failed.", e);
+                return -1;
+            }
+            final Map<String, String> fields = describe(c, object);
+            final int threads = Math.max(1, Math.min(parallelism, results.size()));
+            l.info("Downloading " + results.size() + " SFDC Bulk API results using " + threads + " connections.");
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            final File[] files = new File[results.size()];
+            List<Future<Integer>> downloads = new ArrayList<Future<Integer>>();
+            int rowCnt = 0;
+            try {
+                for (int i = 0; i < results.size(); i++) {
+                    final String[] result = results.get(i);
+                    final File resultFile = (i > 0) ? (File.createTempFile("gdc-sfdc-result", ".csv", tmpDir)) : (null);
+                    files[i] = resultFile;
+                    downloads.add(pool.submit(new Callable<Integer>() {
+                        public Integer call() throws Exception {
+                            InputStream is = api.getResult(jobId, result[0], result[1]);
+                            try {
+                                if (resultFile == null)
+                                    return extractBulkResult(is, fields, cw, transform);
+                                CSVWriter rw = FileUtil.createUtf8CsvEscapingWriter(
+                                        new BufferedOutputStream(new FileOutputStream(resultFile)));
+                                try {
+                                    return extractBulkResult(is, fields, rw, transform);
+                                } finally {
+                                    rw.close();
+                                }
+                            } finally {
+                                is.close();
                             }
                         }
-                        cw.writeNext(nrow);
+                    }));
+                }
+                for (int i = 0; i < downloads.size(); i++) {
+                    rowCnt += downloads.get(i).get();
+                    if (files[i] != null) {
                         cw.flush();
-                        rowCnt++;
-                    }
-                    isdone = qr.isDone();
-                    if (!isdone) {
-                        qr = c.queryMore(qr.getQueryLocator());
-                        firstBatch = false;
+                        FileUtil.append(files[i], os);
+                        files[i].delete();
                     }
                 }
-            } while (!isdone);
-            l.debug("Retrieved " + rowCnt + " rows of SFDC data.");
-            cw.close();
+                return rowCnt;
+            } catch (InterruptedException e) {
+                throw new InternalErrorException("The SFDC Bulk API extraction has been interrupted.", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new InternalErrorException(cause);
+            } finally {
+                pool.shutdownNow();
+                for (File f : files) {
+                    if (f != null)
+                        f.delete();
+                }
+            }
+        } finally {
+            api.shutdown();
+        }
+    }
 
-        } catch (ApiQueryFault ex) {
-            l.debug("Executing SFDC query failed", ex);
-            throw new SfdcException("Failed to execute SFDC query.", ex);
-        } catch (UnexpectedErrorFault e) {
-            l.debug("Executing SFDC query failed", e);
-            throw new SfdcException("Failed to execute SFDC query.", e);
-        } catch (InvalidIdFault e) {
-            l.debug("Executing SFDC query failed", e);
-            throw new SfdcException("Failed to execute SFDC query.", e);
-        } catch (InvalidQueryLocatorFault e) {
-            l.debug("Executing SFDC query failed", e);
-            throw new SfdcException("Failed to execute SFDC query.", e);
-        } catch (RemoteException e) {
-            l.debug("Executing SFDC query failed", e);
-            throw new SfdcException("Failed to execute SFDC query.", e);
+    /**
+     * Transforms the rows of a Bulk API result CSV
+     *
+     * @param is        the result CSV
+     * @param fields    SFDC field types by the field name
+     * @param cw        the output writer
+     * @param transform perform transformations
+     * @return number of extracted rows
+     * @throws IOException in case of an IO issue
+     */
+    private int extractBulkResult(InputStream is, Map<String, String> fields, CSVWriter cw, boolean transform)
+            throws IOException {
+        CSVReader cr = FileUtil.createUtf8CsvReader(is);
+        String[] header = cr.readNext();
+        if (header == null || (header.length == 1 && SfdcBulkApi.NO_RECORDS.equals(header[0])))
+            return 0;
+        boolean[] dates = new boolean[header.length];
+        for (int i = 0; i < header.length; i++) {
+            dates[i] = SourceColumn.LDM_TYPE_DATE.equalsIgnoreCase(getColumnType(fields, header[i]));
         }
-        l.debug("Finihed SFDC query execution.");
+        Transformer t = Transformer.create(schema);
+        int rowCnt = 0;
+        String[] cols;
+        while ((cols = cr.readNext()) != null) {
+            Object[] row = new Object[cols.length];
+            for (int i = 0; i < row.length; i++) {
+                if (cols[i].length() <= 0) {
+                    row[i] = (transform) ? (null) : ("");
+                } else if (i < dates.length && dates[i]) {
+                    row[i] = new DateTime(cols[i]);
+                } else {
+                    row[i] = cols[i];
+                }
+            }
+            String[] nrow;
+            if (transform) {
+                nrow = t.transformRow(row, DATE_LENGTH_UNRESTRICTED);
+            } else {
+                nrow = new String[row.length];
+                for (int i = 0; i < row.length; i++) {
+                    nrow[i] = row[i].toString();
+                }
+            }
+            cw.writeNext(nrow);
+            rowCnt++;
+        }
+        return rowCnt;
+    }
 
+    /**
+     * Returns the server URL of the logged in SFDC stub
+     *
+     * @param c SFDC stub
+     * @return the server URL
+     */
+    protected static String getServerUrl(SoapBindingStub c) {
+        return (String) c._getProperty(SoapBindingStub.ENDPOINT_ADDRESS_PROPERTY);
+    }
 
+    /**
+     * Returns the session ID of the logged in SFDC stub
+     *
+     * @param c SFDC stub
+     * @return the session ID
+     */
+    protected static String getSessionId(SoapBindingStub c) {
+        SOAPHeaderElement h = c.getHeader(new SforceServiceLocator().getServiceName().getNamespaceURI(), "SessionHeader");
+        if (h == null)
+            throw new SfdcException("The SFDC stub isn't logged in.");
+        try {
+            return ((SessionHeader) h.getObjectValue()).getSessionId();
+        } catch (Exception e) {
+            throw new SfdcException("Can't read the SFDC session ID.", e);
+        }
     }
 
 
@@ -323,24 +763,13 @@ public class SfdcConnector extends AbstractConnector implements Connector {
      * @throws SfdcException in case of connection issues
      */
     protected static SoapBindingStub connect(String host, String usr, String psw, String token, String clientID) throws SfdcException {
-        SoapBindingStub binding;
+        SoapBindingStub binding = createBinding(host, clientID);
         LoginResult loginResult;
         if (token != null) {
             psw += token;
         }
         try {
-            SforceServiceLocator loc = new SforceServiceLocator();
-            loc.setSoapEndpointAddress(loc.getSoapAddress().replaceAll("www.salesforce.com", host).replaceAll("login.salesforce.com", host));
-            binding = (SoapBindingStub) loc.getSoap();
             l.debug("Connecting to SFDC.");
-            // Time out after a minute
-            binding.setTimeout(60000);
-            // Test operation
-            if (clientID != null && clientID.length() > 0) {
-                CallOptions co = new CallOptions();
-                co.setClient(clientID);
-                binding.setHeader(new SforceServiceLocator().getServiceName().getNamespaceURI(), "CallOptions", co);
-            }
             loginResult = binding.login(usr, psw);
         } catch (LoginFault ex) {
             // The LoginFault derives from AxisFault
@@ -388,14 +817,54 @@ public class SfdcConnector extends AbstractConnector implements Connector {
             l.debug("An error has occurred. Your password has expired.");
             throw new SfdcException("An error has occurred. Your password has expired.");
         }
+        setSession(binding, loginResult.getServerUrl(), loginResult.getSessionId());
+        l.debug("Connected to SFDC.");
+        return binding;
+    }
+
+    /**
+     * Creates a SFDC stub that isn't logged in
+     *
+     * @param host     SFDC host
+     * @param clientID SFDC partner client ID
+     * @return SFDC stub
+     * @throws SfdcException in case of the stub configuration issues
+     */
+    protected static SoapBindingStub createBinding(String host, String clientID) throws SfdcException {
+        try {
+            SforceServiceLocator loc = new SforceServiceLocator();
+            loc.setSoapEndpointAddress(loc.getSoapAddress().replaceAll("www.salesforce.com", host).replaceAll("login.salesforce.com", host));
+            SoapBindingStub binding = (SoapBindingStub) loc.getSoap();
+            // Time out after a minute
+            binding.setTimeout(60000);
+            // Test operation
+            if (clientID != null && clientID.length() > 0) {
+                CallOptions co = new CallOptions();
+                co.setClient(clientID);
+                binding.setHeader(new SforceServiceLocator().getServiceName().getNamespaceURI(), "CallOptions", co);
+            }
+            return binding;
+        } catch (ServiceException ex) {
+            l.debug("Error creating the SFDC stub.", ex);
+            throw new SfdcException("Error creating the SFDC stub.", ex);
+        }
+    }
+
+    /**
+     * Points the stub to the server of a logged in session
+     *
+     * @param binding   SFDC stub
+     * @param serverUrl the server URL returned by the login
+     * @param sessionId the session ID returned by the login
+     */
+    protected static void setSession(SoapBindingStub binding, String serverUrl, String sessionId) {
         /** Once the client application has logged in successfully, it will use
          *  the results of the login call to reset the endpoint of the service
          *  to the virtual server instance that is servicing your organization.
          *  To do this, the client application sets the ENDPOINT_ADDRESS_PROPERTY
          *  of the binding object using the URL returned from the LoginResult.
          */
-        binding._setProperty(SoapBindingStub.ENDPOINT_ADDRESS_PROPERTY,
-                loginResult.getServerUrl());
+        binding._setProperty(SoapBindingStub.ENDPOINT_ADDRESS_PROPERTY, serverUrl);
         /** The sample client application now has an instance of the SoapBindingStub
          *  that is pointing to the correct endpoint. Next, the sample client application
          *  sets a persistent SOAP header (to be included on all subsequent calls that
@@ -407,7 +876,7 @@ public class SfdcConnector extends AbstractConnector implements Connector {
         // Create a new session header object and add the session id
         // from the login return object
         SessionHeader sh = new SessionHeader();
-        sh.setSessionId(loginResult.getSessionId());
+        sh.setSessionId(sessionId);
         /** Next, the sample client application calls the setHeader method of the
          *  SoapBindingStub to add the header to all subsequent method calls. This
          *  header will persist until the SoapBindingStub is destroyed until the header
@@ -417,8 +886,6 @@ public class SfdcConnector extends AbstractConnector implements Connector {
         // set the session header for subsequent call authentication
         binding.setHeader(new SforceServiceLocator().getServiceName().getNamespaceURI(),
                 "SessionHeader", sh);
-        l.debug("Connected to SFDC.");
-        return binding;
     }
 
     /**
@@ -515,6 +982,71 @@ public class SfdcConnector extends AbstractConnector implements Connector {
         this.clientID = clientID;
     }
 
+    public SfdcSessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * Session cache setter
+     *
+     * @param sessionCache the cache of the login sessions and object metadata (null for no caching)
+     */
+    public void setSessionCache(SfdcSessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * SOAP query page size setter
+     *
+     * @param batchSize number of records returned by one query or queryMore call (at most 2000)
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * Bulk API mode setter
+     *
+     * @param bulk when true, the query runs as a Bulk API job (the SOAP query is used when the job fails)
+     */
+    public void setBulk(boolean bulk) {
+        this.bulk = bulk;
+    }
+
+    public int getPkChunkSize() {
+        return pkChunkSize;
+    }
+
+    /**
+     * Bulk API primary key chunking setter
+     *
+     * @param pkChunkSize the Bulk API job splits the query to batches of this number of records (0 disables it)
+     */
+    public void setPkChunkSize(int pkChunkSize) {
+        this.pkChunkSize = pkChunkSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of the Bulk API results downloaded at once
+     *
+     * @param parallelism number of download threads
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -552,6 +1084,11 @@ public class SfdcConnector extends AbstractConnector implements Connector {
         String t = c.getParam("token");
         String host = c.getParam("host");
         String partnerId = c.getParam("partnerId");
+        String b = c.getParam("bulk");
+        int chunkSize = getIntParam(c, "pkChunkSize", 0, 1, Integer.MAX_VALUE);
+        int threads = getIntParam(c, "parallelism", DEFAULT_BULK_PARALLELISM, 1, Integer.MAX_VALUE);
+        int pageSize = getIntParam(c, "batchSize", DEFAULT_BATCH_SIZE, 1, MAX_BATCH_SIZE);
+        SfdcSessionCache cache = getSessionCache(c, ctx);
         c.paramsProcessed();
 
         File conf = FileUtil.getFile(configFile);
@@ -561,6 +1098,11 @@ public class SfdcConnector extends AbstractConnector implements Connector {
         setSfdcToken(t);
         setSfdcQuery(q);
         setClientID(partnerId);
+        setBulk("true".equalsIgnoreCase(b));
+        setPkChunkSize(chunkSize);
+        setParallelism(threads);
+        setBatchSize(pageSize);
+        setSessionCache(cache);
         if (host != null && !"".equals(host)) {
             setSfdcHostname(host);
         }
@@ -590,9 +1132,29 @@ public class SfdcConnector extends AbstractConnector implements Connector {
             host = sfdcHostname;
         }
         String partnerId = c.getParam("partnerId");
+        SfdcSessionCache cache = getSessionCache(c, ctx);
         c.paramsProcessed();
 
-        SfdcConnector.saveConfigTemplate(name, configFile, host, usr, psw, token, partnerId, query);
+        SfdcConnector.saveConfigTemplate(name, configFile, host, usr, psw, token, partnerId, query, cache);
         l.info("SFDC Connector configuration successfully generated. See config file: " + configFile);
     }
+
+    /**
+     * Returns the session cache of the script, configures its metadata file
+     *
+     * @param c   command
+     * @param ctx current processing context
+     * @return the session cache
+     * @throws IOException when the metadata file can't be read
+     */
+    private static SfdcSessionCache getSessionCache(Command c, ProcessingContext ctx) throws IOException {
+        String describeCache = c.getParam("describeCacheFile");
+        int ttl = getIntParam(c, "describeCacheTtl", (int) (SfdcSessionCache.DEFAULT_DESCRIBE_TTL / 60000), 0,
+                Integer.MAX_VALUE);
+        SfdcSessionCache cache = ctx.getSharedResource(SfdcSessionCache.class);
+        cache.setDescribeTtl(ttl * 60000L);
+        if (describeCache != null && describeCache.length() > 0)
+            cache.setDescribeFile(FileUtil.getFile(describeCache, true));
+        return cache;
+    }
 }
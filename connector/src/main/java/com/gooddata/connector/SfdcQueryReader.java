@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.SfdcException;
+import com.gooddata.util.NetUtil;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Lightweight client of the SFDC partner API query and queryMore calls. The query result pages are streamed
+ * with SAX straight into a reusable row array instead of being deserialized to SObject trees.
+ * The reader is used by the data extraction only, the metadata calls use the SOAP stub.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class SfdcQueryReader {
+
+    private static Logger l = Logger.getLogger(SfdcQueryReader.class);
+
+    public static final String NAMESPACE = "urn:partner.soap.sforce.com";
+    public static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+    /**
+     * Receives the query result records
+     */
+    public interface RecordHandler {
+
+        /**
+         * Called for every record of the page. The arrays are reused for the following records.
+         *
+         * @param type   the SFDC object name
+         * @param names  the field names in the document order
+         * @param values the field values, null for the empty values and the nested objects
+         * @param count  number of the fields
+         * @throws IOException in case of an IO issue
+         */
+        public void record(String type, String[] names, String[] values, int count) throws IOException;
+    }
+
+    /**
+     * The paging information of the query result page
+     */
+    public static class PageInfo {
+
+        private boolean done = true;
+        private String queryLocator;
+
+        /**
+         * @return true when the page is the last one
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return the locator of the next page
+         */
+        public String getQueryLocator() {
+            return queryLocator;
+        }
+    }
+
+    // the fault of an expired session
+    static final String INVALID_SESSION_ID = "INVALID_SESSION_ID";
+
+    private volatile String serverUrl;
+    private volatile String sessionId;
+    private SfdcSessionRenewer renewer;
+    private final String clientID;
+    private final int batchSize;
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient client;
+
+    /**
+     * Constructor
+     *
+     * @param serverUrl the SOAP server URL of the session
+     * @param sessionId the SFDC session ID
+     * @param clientID  SFDC partner client ID (can be null)
+     * @param batchSize the requested page size
+     */
+    public SfdcQueryReader(String serverUrl, String sessionId, String clientID, int batchSize) {
+        this.serverUrl = serverUrl;
+        this.sessionId = sessionId;
+        this.clientID = clientID;
+        this.batchSize = batchSize;
+        connectionManager = NetUtil.createConnectionManager();
+        client = new HttpClient(connectionManager);
+        NetUtil.configureHttpProxy(client);
+    }
+
+    /**
+     * Sets the callback that logs in again when the SFDC rejects the session. The rejected call is retried once
+     * with the new session.
+     *
+     * @param renewer the session renewer (null fails on the expired session)
+     */
+    public void setSessionRenewer(SfdcSessionRenewer renewer) {
+        this.renewer = renewer;
+    }
+
+    /**
+     * Executes the query
+     *
+     * @param query the SOQL query
+     * @return the first result page, see {@link #readPageInfo(byte[])} and {@link #readRecords(byte[], RecordHandler)}
+     * @throws SfdcException in case of SFDC communication errors
+     */
+    public byte[] query(String query) {
+        return call("<urn:query><urn:queryString>" + escape(query) + "</urn:queryString></urn:query>");
+    }
+
+    /**
+     * Retrieves the next result page
+     *
+     * @param queryLocator the locator returned with the previous page
+     * @return the next result page
+     * @throws SfdcException in case of SFDC communication errors
+     */
+    public byte[] queryMore(String queryLocator) {
+        return call("<urn:queryMore><urn:queryLocator>" + escape(queryLocator) + "</urn:queryLocator></urn:queryMore>");
+    }
+
+    /**
+     * Closes the HTTP connections
+     */
+    public void shutdown() {
+        NetUtil.shutdownConnectionManager(connectionManager);
+    }
+
+    /**
+     * Reads the paging information, the parsing stops before the records
+     *
+     * @param page the result page
+     * @return the paging information
+     * @throws SfdcException when the page isn't a query result
+     */
+    public static PageInfo readPageInfo(byte[] page) {
+        final PageInfo info = new PageInfo();
+        final StringBuilder text = new StringBuilder();
+        try {
+            parse(page, new DefaultHandler() {
+                public void startElement(String uri, String localName, String qName, Attributes attributes)
+                        throws SAXException {
+                    if ("records".equals(localName) || "size".equals(localName))
+                        throw new StopParsing();
+                    text.setLength(0);
+                }
+
+                public void endElement(String uri, String localName, String qName) {
+                    if ("done".equals(localName))
+                        info.done = Boolean.valueOf(text.toString().trim());
+                    else if ("queryLocator".equals(localName))
+                        info.queryLocator = text.toString().trim();
+                }
+
+                public void characters(char[] ch, int start, int length) {
+                    text.append(ch, start, length);
+                }
+            });
+        } catch (IOException e) {
+            throw new SfdcException("Invalid SFDC query response.", e);
+        }
+        return info;
+    }
+
+    /**
+     * Streams the records of the result page to the handler. The record's type and Id properties are skipped,
+     * the queried fields follow in the query order.
+     *
+     * @param page    the result page
+     * @param handler the record handler
+     * @return number of the records
+     * @throws IOException when the handler fails
+     * @throws SfdcException when the page isn't a query result
+     */
+    public static int readRecords(byte[] page, RecordHandler handler) throws IOException {
+        RecordParser p = new RecordParser(handler);
+        parse(page, p);
+        return p.recordCnt;
+    }
+
+    /**
+     * Reads the fault message of a failed call
+     *
+     * @param response the response
+     * @return the fault string or null when the response isn't a SOAP fault
+     */
+    public static String readFault(byte[] response) {
+        final StringBuilder fault = new StringBuilder();
+        try {
+            parse(response, new DefaultHandler() {
+                private boolean inFault = false;
+
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    inFault = "faultstring".equals(localName);
+                }
+
+                public void endElement(String uri, String localName, String qName) throws SAXException {
+                    if ("faultstring".equals(localName))
+                        throw new StopParsing();
+                }
+
+                public void characters(char[] ch, int start, int length) {
+                    if (inFault)
+                        fault.append(ch, start, length);
+                }
+            });
+        } catch (IOException e) {
+            return null;
+        } catch (SfdcException e) {
+            return null;
+        }
+        return (fault.length() > 0) ? (fault.toString().trim()) : (null);
+    }
+
+    private byte[] call(String body) {
+        String rejected = sessionId;
+        byte[] response = call(body, serverUrl, rejected);
+        if (response != null)
+            return response;
+        l.info("The SFDC session has expired, logging in again.");
+        String[] session = renewer.renew(rejected);
+        serverUrl = session[0];
+        sessionId = session[1];
+        response = call(body, serverUrl, sessionId);
+        if (response == null)
+            throw new SfdcException("Failed to execute SFDC query. The SFDC rejected the new session.");
+        return response;
+    }
+
+    /**
+     * Executes the call
+     *
+     * @param body      the SOAP body
+     * @param serverUrl the SOAP server URL
+     * @param sessionId the session ID
+     * @return the response or null when the SFDC rejected the session and there is a renewer
+     * @throws SfdcException in case of SFDC communication errors
+     */
+    private byte[] call(String body, String serverUrl, String sessionId) {
+        PostMethod m = new PostMethod(serverUrl);
+        m.setRequestHeader("SOAPAction", "\"\"");
+        m.setRequestHeader("Accept-Encoding", "gzip");
+        StringBuilder envelope = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        envelope.append("<soapenv:Envelope xmlns:soapenv=\"").append(SOAP_NAMESPACE)
+                .append("\" xmlns:urn=\"").append(NAMESPACE).append("\"><soapenv:Header>");
+        envelope.append("<urn:SessionHeader><urn:sessionId>").append(escape(sessionId))
+                .append("</urn:sessionId></urn:SessionHeader>");
+        envelope.append("<urn:QueryOptions><urn:batchSize>").append(batchSize)
+                .append("</urn:batchSize></urn:QueryOptions>");
+        if (clientID != null)
+            envelope.append("<urn:CallOptions><urn:client>").append(escape(clientID))
+                    .append("</urn:client></urn:CallOptions>");
+        envelope.append("</soapenv:Header><soapenv:Body>").append(body).append("</soapenv:Body></soapenv:Envelope>");
+        try {
+            m.setRequestEntity(new StringRequestEntity(envelope.toString(), "text/xml", "UTF-8"));
+            int status = client.executeMethod(m);
+            byte[] response = readResponse(m);
+            if (status < 200 || status >= 300) {
+                String fault = readFault(response);
+                if (renewer != null && fault != null && fault.startsWith(INVALID_SESSION_ID))
+                    return null;
+                throw new SfdcException("Failed to execute SFDC query. " +
+                        ((fault != null) ? (fault) : ("The server returned status " + status + ".")));
+            }
+            return response;
+        } catch (IOException e) {
+            l.debug("Executing SFDC query failed", e);
+            throw new SfdcException("Failed to execute SFDC query.", e);
+        } finally {
+            m.releaseConnection();
+        }
+    }
+
+    private static byte[] readResponse(PostMethod m) throws IOException {
+        InputStream is = m.getResponseBodyAsStream();
+        if (is == null)
+            return new byte[0];
+        Header enc = m.getResponseHeader("Content-Encoding");
+        if (enc != null && "gzip".equalsIgnoreCase(enc.getValue()))
+            is = new GZIPInputStream(is);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(64 * 1024);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return os.toByteArray();
+    }
+
+    private static void parse(byte[] xml, DefaultHandler handler) throws IOException {
+        try {
+            SAXParserFactory f = SAXParserFactory.newInstance();
+            f.setNamespaceAware(true);
+            f.newSAXParser().parse(new ByteArrayInputStream(xml), handler);
+        } catch (StopParsing e) {
+            // the handler has read all it needs
+        } catch (SAXException e) {
+            if (e.getException() instanceof IOException)
+                throw (IOException) e.getException();
+            if (e.getException() instanceof RuntimeException)
+                throw (RuntimeException) e.getException();
+            throw new SfdcException("Invalid SFDC query response.", e);
+        } catch (ParserConfigurationException e) {
+            throw new SfdcException(e);
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stops the parsing once the handler has read what it needs
+     */
+    private static class StopParsing extends SAXException {
+        StopParsing() {
+            super("stop");
+        }
+    }
+
+    /**
+     * Collects the field values of the records into the reused arrays
+     */
+    private static class RecordParser extends DefaultHandler {
+
+        private final RecordHandler handler;
+        private final StringBuilder text = new StringBuilder();
+
+        private String[] names = new String[64];
+        private String[] values = new String[64];
+        private int count;
+        private String type;
+        private boolean idSkipped;
+        private int recordCnt = 0;
+
+        // the element depth, the depth of the current record (-1 outside of records)
+        private int depth = 0;
+        private int recordDepth = -1;
+        // the current field is nil or a nested object
+        private boolean nil;
+        private boolean nested;
+
+        RecordParser(RecordHandler handler) {
+            this.handler = handler;
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            depth++;
+            if (recordDepth < 0) {
+                if ("records".equals(localName) && NAMESPACE.equals(uri)) {
+                    recordDepth = depth;
+                    count = 0;
+                    type = null;
+                    idSkipped = false;
+                }
+            } else if (depth == recordDepth + 1) {
+                text.setLength(0);
+                nil = "true".equals(attributes.getValue(XSI_NAMESPACE, "nil"));
+                nested = false;
+            } else {
+                nested = true;
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (recordDepth > 0 && depth == recordDepth + 1) {
+                if (type == null && "type".equals(localName)) {
+                    type = text.toString();
+                } else if (!idSkipped && "Id".equals(localName)) {
+                    // the Id property of the sObject precedes the queried fields
+                    idSkipped = true;
+                } else if (!"fieldsToNull".equals(localName)) {
+                    if (count == values.length) {
+                        String[] n = new String[count * 2];
+                        System.arraycopy(names, 0, n, 0, count);
+                        names = n;
+                        String[] v = new String[count * 2];
+                        System.arraycopy(values, 0, v, 0, count);
+                        values = v;
+                    }
+                    names[count] = localName;
+                    values[count] = (nil || nested || text.length() <= 0) ? (null) : (text.toString());
+                    count++;
+                }
+            } else if (depth == recordDepth) {
+                recordDepth = -1;
+                recordCnt++;
+                try {
+                    handler.record(type, names, values, count);
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+            }
+            depth--;
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (recordDepth > 0 && depth == recordDepth + 1)
+                text.append(ch, start, length);
+        }
+    }
+
+}
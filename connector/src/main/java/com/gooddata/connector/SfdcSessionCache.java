@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.connector;
+
+import com.sforce.soap.partner.SoapBindingStub;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Caches the SFDC login sessions and the object metadata for the commands of a script. The sessions are
+ * kept in memory only, the metadata can be saved to a file and reused by the next runs.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class SfdcSessionCache implements Closeable {
+
+    private static Logger l = Logger.getLogger(SfdcSessionCache.class);
+
+    // the session that hasn't been used for this time is checked before it is reused (milliseconds)
+    public static final long VALIDATE_AFTER = 10 * 60 * 1000L;
+    // the default time to live of the object metadata (milliseconds)
+    public static final long DEFAULT_DESCRIBE_TTL = 24 * 60 * 60 * 1000L;
+
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final Map<String, Describe> describes = new HashMap<String, Describe>();
+    private long describeTtl = DEFAULT_DESCRIBE_TTL;
+    private File describeFile;
+    private boolean modified = false;
+
+    /**
+     * A logged in session
+     */
+    private static class Session {
+        private final String serverUrl;
+        private final String sessionId;
+        private volatile long lastUsed;
+
+        Session(String serverUrl, String sessionId) {
+            this.serverUrl = serverUrl;
+            this.sessionId = sessionId;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The field types of an object
+     */
+    private static class Describe {
+        private final long created;
+        private final Map<String, String> fieldTypes;
+
+        Describe(long created, Map<String, String> fieldTypes) {
+            this.created = created;
+            this.fieldTypes = fieldTypes;
+        }
+    }
+
+    /**
+     * Returns a SFDC stub of the cached session, logs in when there is no valid session for the host, user and
+     * client ID. Every call returns a new stub, so the stubs can be used concurrently. The session check and
+     * the login don't block the other callers.
+     *
+     * @param host     SFDC host
+     * @param usr      SFDC username
+     * @param psw      SFDC password
+     * @param token    SFDC security token
+     * @param clientID SFDC partner client ID
+     * @return SFDC stub
+     */
+    public SoapBindingStub connect(String host, String usr, String psw, String token, String clientID) {
+        String key = host + '|' + usr + '|' + clientID;
+        Session s;
+        synchronized (this) {
+            s = sessions.get(key);
+        }
+        if (s != null) {
+            SoapBindingStub binding = SfdcConnector.createBinding(host, clientID);
+            SfdcConnector.setSession(binding, s.serverUrl, s.sessionId);
+            if (System.currentTimeMillis() - s.lastUsed < VALIDATE_AFTER || isValid(binding)) {
+                l.debug("Reusing the SFDC session of " + usr + ".");
+                s.lastUsed = System.currentTimeMillis();
+                return binding;
+            }
+            l.debug("The SFDC session of " + usr + " has expired.");
+            invalidate(host, usr, clientID, s.sessionId);
+        }
+        SoapBindingStub binding = SfdcConnector.connect(host, usr, psw, token, clientID);
+        synchronized (this) {
+            sessions.put(key, new Session(SfdcConnector.getServerUrl(binding), SfdcConnector.getSessionId(binding)));
+        }
+        return binding;
+    }
+
+    /**
+     * Forgets the session rejected by the SFDC, the next connect logs in again. A newer session of the same user
+     * is kept.
+     *
+     * @param host      SFDC host
+     * @param usr       SFDC username
+     * @param clientID  SFDC partner client ID
+     * @param sessionId the rejected session ID
+     */
+    public synchronized void invalidate(String host, String usr, String clientID, String sessionId) {
+        String key = host + '|' + usr + '|' + clientID;
+        Session s = sessions.get(key);
+        if (s != null && s.sessionId.equals(sessionId))
+            sessions.remove(key);
+    }
+
+    private static boolean isValid(SoapBindingStub binding) {
+        try {
+            binding.getServerTimestamp();
+            return true;
+        } catch (RemoteException e) {
+            l.debug("The SFDC session check failed.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the field types of the object, describes the object when its metadata aren't cached or expired
+     *
+     * @param c      SFDC stub
+     * @param host   SFDC host
+     * @param usr    SFDC username
+     * @param object SFDC object name
+     * @return the SFDC field types by the field name
+     * @throws RemoteException communication error
+     */
+    public Map<String, String> describe(SoapBindingStub c, String host, String usr, String object)
+            throws RemoteException {
+        String key = host + '|' + usr + '|' + object;
+        synchronized (this) {
+            Describe d = describes.get(key);
+            if (d != null && System.currentTimeMillis() - d.created < describeTtl) {
+                l.debug("Using the cached SFDC object " + object + " metadata.");
+                return d.fieldTypes;
+            }
+        }
+        Map<String, String> fieldTypes = Collections.unmodifiableMap(SfdcConnector.describeObject(c, object));
+        synchronized (this) {
+            describes.put(key, new Describe(System.currentTimeMillis(), fieldTypes));
+            modified = true;
+        }
+        return fieldTypes;
+    }
+
+    /**
+     * Sets the time to live of the object metadata
+     *
+     * @param ttl the time to live in milliseconds (0 disables the metadata caching)
+     */
+    public synchronized void setDescribeTtl(long ttl) {
+        describeTtl = ttl;
+    }
+
+    /**
+     * Sets the file that keeps the object metadata between the runs. The metadata are loaded from the file
+     * now and saved when the cache is closed.
+     *
+     * @param file the metadata file
+     * @throws IOException when the file can't be read
+     */
+    public synchronized void setDescribeFile(File file) throws IOException {
+        if (file.equals(describeFile))
+            return;
+        save();
+        describeFile = file;
+        if (!file.exists())
+            return;
+        Properties state = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            state.load(is);
+        } finally {
+            is.close();
+        }
+        for (Object k : state.keySet()) {
+            String key = (String) k;
+            Describe d = parse(state.getProperty(key));
+            Describe current = describes.get(key);
+            if (d != null && (current == null || current.created < d.created))
+                describes.put(key, d);
+        }
+        l.debug("Loaded " + state.size() + " SFDC object descriptions from " + file + ".");
+    }
+
+    /**
+     * Saves the object metadata to the metadata file
+     */
+    public synchronized void close() {
+        try {
+            save();
+        } catch (IOException e) {
+            l.warn("Can't save the SFDC object descriptions to " + describeFile + ". " + e.getMessage());
+        }
+        sessions.clear();
+    }
+
+    private void save() throws IOException {
+        if (describeFile == null || !modified)
+            return;
+        Properties state = new Properties();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Describe> e : describes.entrySet()) {
+            if (now - e.getValue().created < describeTtl)
+                state.setProperty(e.getKey(), format(e.getValue()));
+        }
+        OutputStream os = new FileOutputStream(describeFile);
+        try {
+            state.store(os, "GoodData CL SFDC object descriptions");
+        } finally {
+            os.close();
+        }
+        modified = false;
+        l.debug("Saved " + state.size() + " SFDC object descriptions to " + describeFile + ".");
+    }
+
+    // created;field=type,field=type
+    private static String format(Describe d) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(d.created).append(';');
+        boolean first = true;
+        for (Map.Entry<String, String> e : d.fieldTypes.entrySet()) {
+            if (!first)
+                sb.append(',');
+            sb.append(e.getKey()).append('=').append(e.getValue());
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    private static Describe parse(String v) {
+        int i = (v != null) ? (v.indexOf(';')) : (-1);
+        if (i <= 0)
+            return null;
+        try {
+            long created = Long.parseLong(v.substring(0, i));
+            Map<String, String> fieldTypes = new HashMap<String, String>();
+            for (String f : v.substring(i + 1).split(",")) {
+                int j = f.indexOf('=');
+                if (j > 0)
+                    fieldTypes.put(f.substring(0, j), f.substring(j + 1));
+            }
+            return new Describe(created, Collections.unmodifiableMap(fieldTypes));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
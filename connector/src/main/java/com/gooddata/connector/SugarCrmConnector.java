@@ -115,6 +115,14 @@ public class SugarCrmConnector extends AbstractConnector implements Connector {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isChangeDetectionSupported() {
+        return true;
+    }
+
 
     /**
      * SugarCrm username getter
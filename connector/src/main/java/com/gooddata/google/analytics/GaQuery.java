@@ -48,4 +48,24 @@ public class GaQuery extends DataQuery {
         super(new URL(DATA_QUERY_URL));
     }
 
+    /**
+     * Creates a copy of the query restricted to the date range
+     *
+     * @param startDate the start date (yyyy-MM-dd)
+     * @param endDate   the end date (yyyy-MM-dd)
+     * @return the new query
+     * @throws MalformedURLException internal error
+     */
+    public GaQuery createSlice(String startDate, String endDate) throws MalformedURLException {
+        GaQuery q = new GaQuery();
+        q.setIds(getIds());
+        q.setDimensions(getDimensions());
+        q.setMetrics(getMetrics());
+        if (getFilters() != null)
+            q.setFilters(getFilters());
+        q.setStartDate(startDate);
+        q.setEndDate(endDate);
+        return q;
+    }
+
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.gooddata.google.analytics;
+
+import com.gooddata.exception.InternalErrorException;
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.util.CSVWriter;
+import com.gooddata.util.FileUtil;
+import org.apache.log4j.Logger;
+import org.joda.time.LocalDate;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Extracts the Google Analytics data by date slices. The slices are extracted concurrently to files in the
+ * checkpoint directory and merged in the date order. The completed slices of a failed extraction are kept
+ * and reused when the same extraction runs again.
+ *
+ * @author zd <zd@gooddata.com>
+ * @version 1.0
+ */
+public class GaSlicedExtractor {
+
+    private static Logger l = Logger.getLogger(GaSlicedExtractor.class);
+
+    private static final String DATE_FMT = "yyyy-MM-dd";
+
+    private static final String SLICE_SUFFIX = ".csv";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * Extracts one date slice
+     */
+    public interface SliceExtractor {
+
+        /**
+         * Extracts the data of the date range
+         *
+         * @param startDate the first date of the slice (yyyy-MM-dd)
+         * @param endDate   the last date of the slice (yyyy-MM-dd)
+         * @param cw        the slice writer
+         * @return number of extracted rows
+         * @throws IOException in case of an IO issue
+         */
+        public int extract(String startDate, String endDate, CSVWriter cw) throws IOException;
+    }
+
+    private final SliceExtractor extractor;
+    private final int parallelism;
+
+    /**
+     * Constructor
+     *
+     * @param extractor   the slice extractor, called concurrently
+     * @param parallelism number of slices extracted at once
+     */
+    public GaSlicedExtractor(SliceExtractor extractor, int parallelism) {
+        this.extractor = extractor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Splits the date range to slices
+     *
+     * @param startDate the start date (yyyy-MM-dd)
+     * @param endDate   the end date (yyyy-MM-dd), inclusive
+     * @param days      number of days of a slice, 0 returns the whole range as one slice
+     * @return the start and end dates of the slices in the date order
+     * @throws InvalidParameterException if the dates are invalid
+     */
+    public static List<String[]> split(String startDate, String endDate, int days) {
+        List<String[]> slices = new ArrayList<String[]>();
+        DateTimeFormatter fmt = DateTimeFormat.forPattern(DATE_FMT);
+        LocalDate start;
+        LocalDate end;
+        try {
+            start = fmt.parseDateTime(startDate.trim()).toLocalDate();
+            end = fmt.parseDateTime(endDate.trim()).toLocalDate();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException("Invalid Google Analytics date range " + startDate + " - " + endDate +
+                    ", use the " + DATE_FMT + " format.");
+        }
+        if (end.isBefore(start))
+            throw new InvalidParameterException("The Google Analytics end date " + endDate +
+                    " precedes the start date " + startDate + ".");
+        if (days <= 0) {
+            slices.add(new String[]{fmt.print(start), fmt.print(end)});
+            return slices;
+        }
+        for (LocalDate s = start; !s.isAfter(end); s = s.plusDays(days)) {
+            LocalDate e = s.plusDays(days - 1);
+            if (e.isAfter(end))
+                e = end;
+            slices.add(new String[]{fmt.print(s), fmt.print(e)});
+        }
+        return slices;
+    }
+
+    /**
+     * Extracts the slices and appends them to the output in the slice order. The completed slices are reused
+     * and all slice files are deleted once the output is written.
+     *
+     * @param slices        the slices
+     * @param checkpointDir the directory of the slice files
+     * @param key           identifies the extraction, the completed slices are reused by the same key only
+     * @param os            the output stream
+     * @return number of rows extracted by this run, the reused slices aren't counted
+     * @throws IOException in case of an IO issue
+     */
+    public int extract(final List<String[]> slices, File checkpointDir, String key, OutputStream os) throws IOException {
+        if (!checkpointDir.isDirectory() && !checkpointDir.mkdirs())
+            throw new IOException("Can't create the checkpoint directory " + checkpointDir.getAbsolutePath());
+        final File[] files = new File[slices.size()];
+        for (int i = 0; i < slices.size(); i++) {
+            files[i] = new File(checkpointDir, "ga-" + key + "-" + slices.get(i)[0] + "-" + slices.get(i)[1] +
+                    SLICE_SUFFIX);
+        }
+        int threads = Math.min(parallelism, slices.size());
+        l.info("Extracting " + slices.size() + " Google Analytics slices using " + threads + " connections.");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+        // the slices with a complete file and the rows extracted by this run
+        boolean[] completed = new boolean[slices.size()];
+        final int[] rows = new int[slices.size()];
+        int running = 0;
+        int rowCnt = 0;
+        try {
+            for (int i = 0; i < slices.size(); i++) {
+                if (files[i].isFile()) {
+                    completed[i] = true;
+                    continue;
+                }
+                final int slice = i;
+                completion.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        rows[slice] = extractSlice(slices.get(slice), files[slice]);
+                        return slice;
+                    }
+                });
+                running++;
+            }
+            if (running < slices.size())
+                l.info("Reusing " + (slices.size() - running) + " completed Google Analytics slices from " +
+                        checkpointDir.getAbsolutePath());
+            // the slices are appended in order as soon as all preceding slices are complete
+            int appended = append(files, completed, 0, os);
+            for (; running > 0; running--) {
+                int slice = completion.take().get();
+                rowCnt += rows[slice];
+                completed[slice] = true;
+                appended = append(files, completed, appended, os);
+            }
+        } catch (InterruptedException e) {
+            throw new InternalErrorException("The Google Analytics extraction has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new InternalErrorException(cause);
+        } finally {
+            // a failed slice cancels the running and the waiting slices, the completed ones stay for the next run
+            pool.shutdownNow();
+        }
+        for (File f : files) {
+            f.delete();
+        }
+        return rowCnt;
+    }
+
+    /**
+     * Appends the completed slices that follow the already appended ones
+     *
+     * @param files     the slice files
+     * @param completed the completed slices
+     * @param appended  number of the already appended slices
+     * @param os        the output stream
+     * @return number of the appended slices
+     * @throws IOException in case of an IO issue
+     */
+    private static int append(File[] files, boolean[] completed, int appended, OutputStream os) throws IOException {
+        while (appended < files.length && completed[appended]) {
+            FileUtil.append(files[appended], os);
+            appended++;
+        }
+        return appended;
+    }
+
+    /**
+     * Extracts the slice to a partial file that is renamed once the slice is complete
+     *
+     * @param slice     the slice start and end dates
+     * @param sliceFile the slice file
+     * @return number of extracted rows
+     * @throws IOException in case of an IO issue
+     */
+    private int extractSlice(String[] slice, File sliceFile) throws IOException {
+        File partial = new File(sliceFile.getPath() + PARTIAL_SUFFIX);
+        boolean completed = false;
+        try {
+            CSVWriter cw = FileUtil.createUtf8CsvWriter(partial);
+            int cnt;
+            try {
+                cnt = extractor.extract(slice[0], slice[1], cw);
+            } finally {
+                cw.close();
+            }
+            if (!partial.renameTo(sliceFile))
+                throw new IOException("Can't save the Google Analytics slice " + sliceFile.getAbsolutePath());
+            completed = true;
+            l.debug("Extracted " + cnt + " Google Analytics rows from " + slice[0] + " to " + slice[1]);
+            return cnt;
+        } finally {
+            if (!completed)
+                partial.delete();
+        }
+    }
+
+}
@@ -25,10 +25,14 @@ package com.gooddata.connector;
 
 import com.gooddata.modeling.model.SourceColumn;
 import com.gooddata.modeling.model.SourceSchema;
+import com.gooddata.util.FileUtil;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 
 
@@ -77,4 +81,42 @@ public class CsvConnectorTest extends TestCase {
             // }
         }
     }
+
+    public void testParallelExtract() throws IOException, URISyntaxException {
+        final File config = new File(getClass().getResource("/com/gooddata/connector/guess_expectedConfig.xml").toURI());
+        final File csv = new File(getClass().getResource("/com/gooddata/connector/guess_quotes.csv").toURI());
+        final File sequential = File.createTempFile("sequential", ".csv");
+        final File parallel = File.createTempFile("parallel", ".csv");
+        sequential.deleteOnExit();
+        parallel.deleteOnExit();
+
+        CsvConnector cc = CsvConnector.createConnector();
+        cc.initSchema(config.getAbsolutePath());
+        cc.setDataFile(csv);
+        cc.extract(sequential.getAbsolutePath(), true);
+
+        cc.setParallelism(3);
+        // one record per chunk
+        cc.setParallelChunkSize(16);
+        cc.extract(parallel.getAbsolutePath(), true);
+
+        assertEquals(FileUtil.readStringFromFile(sequential.getAbsolutePath()),
+                FileUtil.readStringFromFile(parallel.getAbsolutePath()));
+    }
+
+    public void testExtractToStream() throws IOException, URISyntaxException {
+        final File config = new File(getClass().getResource("/com/gooddata/connector/guess_expectedConfig.xml").toURI());
+        final File csv = new File(getClass().getResource("/com/gooddata/connector/guess_quotes.csv").toURI());
+        final File file = File.createTempFile("extracted", ".csv");
+        file.deleteOnExit();
+
+        CsvConnector cc = CsvConnector.createConnector();
+        cc.initSchema(config.getAbsolutePath());
+        cc.setDataFile(csv);
+        cc.extract(file.getAbsolutePath(), true);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        cc.extract(os);
+        assertEquals(FileUtil.readStringFromFile(file.getAbsolutePath()), os.toString("utf8"));
+    }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.SfdcException;
+import com.gooddata.util.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class SfdcBulkApiTest extends TestCase {
+
+    private static final String BATCH_LIST = "<batchInfoList xmlns=\"" + SfdcBulkApi.NAMESPACE + "\">%s</batchInfoList>";
+    private static final String BATCH = "<batchInfo><id>%s</id><jobId>750J</jobId><state>%s</state>" +
+            "<stateMessage>%s</stateMessage></batchInfo>";
+
+    private BulkStub stub;
+
+    protected void setUp() throws Exception {
+        stub = new BulkStub();
+        stub.start();
+    }
+
+    protected void tearDown() throws Exception {
+        stub.close();
+    }
+
+    public void testGetBulkUrl() {
+        assertEquals("https://na1.salesforce.com/services/async/20.0",
+                SfdcBulkApi.getBulkUrl("https://na1.salesforce.com/services/Soap/u/20.0/00D30000000Xyz"));
+        try {
+            SfdcBulkApi.getBulkUrl("https://na1.salesforce.com/services/data");
+            fail("The URL isn't a SOAP server URL.");
+        } catch (SfdcException e) {
+            // expected
+        }
+    }
+
+    public void testGetQueryObject() {
+        assertEquals("Opportunity", SfdcBulkApi.getQueryObject("SELECT Id, Amount FROM Opportunity WHERE Amount > 0"));
+        assertEquals("Account", SfdcBulkApi.getQueryObject("select Id,Name\nfrom Account"));
+    }
+
+    public void testChunkedQuery() throws IOException {
+        stub.batchStates = new String[]{
+                String.format(BATCH_LIST, String.format(BATCH, "751A", "Queued", "")),
+                String.format(BATCH_LIST, String.format(BATCH, "751A", "NotProcessed", "") +
+                        String.format(BATCH, "751B", "Completed", "") + String.format(BATCH, "751C", "InProgress", "")),
+                String.format(BATCH_LIST, String.format(BATCH, "751A", "NotProcessed", "") +
+                        String.format(BATCH, "751B", "Completed", "") + String.format(BATCH, "751C", "Completed", ""))};
+        SfdcBulkApi api = new SfdcBulkApi(stub.getUrl(), "SESSION");
+        try {
+            String jobId = api.createQueryJob("Opportunity", 100000);
+            assertEquals("750J", jobId);
+            assertEquals("751A", api.addBatch(jobId, "SELECT Id, Amount FROM Opportunity"));
+            api.closeJob(jobId);
+            List<String> batches = api.awaitBatches(jobId);
+            assertEquals(2, batches.size());
+            assertEquals("751B", batches.get(0));
+            assertEquals("751C", batches.get(1));
+            assertEquals(Collections.singletonList("752R"), api.getResultIds(jobId, "751B"));
+            InputStream is = api.getResult(jobId, "751B", "752R");
+            try {
+                assertEquals("\"Id\",\"Amount\"\n\"006A\",\"10.5\"\n", FileUtil.readStringFromStream(is));
+            } finally {
+                is.close();
+            }
+        } finally {
+            api.shutdown();
+        }
+        assertEquals("POST /services/async/20.0/job", stub.requests.get(0));
+        assertTrue(stub.bodies.get(0).contains("<operation>query</operation><object>Opportunity</object>"));
+        assertTrue(stub.bodies.get(0).contains("<contentType>CSV</contentType>"));
+        assertEquals("SELECT Id, Amount FROM Opportunity", stub.bodies.get(1));
+        assertTrue(stub.bodies.get(2).contains("<state>Closed</state>"));
+        for (String session : stub.sessions) {
+            assertEquals("SESSION", session);
+        }
+        assertEquals("chunkSize=100000", stub.chunking);
+    }
+
+    public void testFailedBatch() {
+        stub.batchStates = new String[]{String.format(BATCH_LIST,
+                String.format(BATCH, "751A", "Failed", "InvalidBatch : Aggregate queries are not supported"))};
+        SfdcBulkApi api = new SfdcBulkApi(stub.getUrl(), "SESSION");
+        try {
+            api.awaitBatches("750J");
+            fail("The failed batch must fail the job.");
+        } catch (SfdcException e) {
+            assertTrue(e.getMessage().contains("Aggregate queries are not supported"));
+        } finally {
+            api.shutdown();
+        }
+    }
+
+    public void testRequestError() {
+        SfdcBulkApi api = new SfdcBulkApi(stub.getUrl(), "INVALID");
+        try {
+            api.createQueryJob("Opportunity", 0);
+            fail("The invalid session must fail the request.");
+        } catch (SfdcException e) {
+            assertTrue(e.getMessage().contains("InvalidSessionId"));
+        } finally {
+            api.shutdown();
+        }
+    }
+
+    public void testRenewSession() throws IOException {
+        final List<String> rejected = new ArrayList<String>();
+        SfdcBulkApi api = new SfdcBulkApi(stub.getUrl(), "EXPIRED");
+        api.setSessionRenewer(new SfdcSessionRenewer() {
+            public String[] renew(String sessionId) {
+                rejected.add(sessionId);
+                return new String[]{"https://na1.salesforce.com/services/Soap/u/20.0/00D30000000Xyz", "SESSION"};
+            }
+        });
+        try {
+            assertEquals("750J", api.createQueryJob("Opportunity", 0));
+            InputStream is = api.getResult("750J", "751B", "752R");
+            try {
+                assertEquals("\"Id\",\"Amount\"\n\"006A\",\"10.5\"\n", FileUtil.readStringFromStream(is));
+            } finally {
+                is.close();
+            }
+        } finally {
+            api.shutdown();
+        }
+        // the rejected request is sent again, the next ones use the new session
+        assertEquals(Collections.singletonList("EXPIRED"), rejected);
+        assertEquals(3, stub.requests.size());
+        assertEquals("POST /services/async/20.0/job", stub.requests.get(1));
+        assertTrue(stub.bodies.get(1).contains("<object>Opportunity</object>"));
+        assertEquals("SESSION", stub.sessions.get(2));
+    }
+
+    public void testRenewSessionOnce() {
+        SfdcBulkApi api = new SfdcBulkApi(stub.getUrl(), "EXPIRED");
+        api.setSessionRenewer(new SfdcSessionRenewer() {
+            public String[] renew(String sessionId) {
+                return new String[]{"https://na1.salesforce.com/services/Soap/u/20.0/00D30000000Xyz", "INVALID"};
+            }
+        });
+        try {
+            api.createQueryJob("Opportunity", 0);
+            fail("The rejected new session must fail the request.");
+        } catch (SfdcException e) {
+            assertTrue(e.getMessage().contains("InvalidSessionId"));
+        } finally {
+            api.shutdown();
+        }
+        assertEquals(2, stub.requests.size());
+    }
+
+    /**
+     * Local HTTP server that stands in for the SFDC Bulk API
+     */
+    private static class BulkStub extends Thread {
+
+        private final ServerSocket server;
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> sessions = Collections.synchronizedList(new ArrayList<String>());
+        private volatile String chunking;
+        private volatile String[] batchStates = new String[0];
+        private int batchPolls = 0;
+
+        BulkStub() throws IOException {
+            server = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        String getUrl() {
+            return "http://localhost:" + server.getLocalPort() + "/services/async/20.0";
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    try {
+                        handle(s);
+                    } finally {
+                        s.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void handle(Socket s) throws IOException {
+            InputStream is = s.getInputStream();
+            String request = readLine(is);
+            String[] parts = request.split(" ");
+            String method = parts[0];
+            String path = parts[1];
+            int length = 0;
+            String session = null;
+            boolean gzip = false;
+            String line;
+            while ((line = readLine(is)).length() > 0) {
+                int i = line.indexOf(':');
+                String name = line.substring(0, i).trim();
+                String value = line.substring(i + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name))
+                    length = Integer.parseInt(value);
+                else if ("X-SFDC-Session".equalsIgnoreCase(name))
+                    session = value;
+                else if ("Sforce-Enable-PKChunking".equalsIgnoreCase(name))
+                    chunking = value;
+                else if ("Accept-Encoding".equalsIgnoreCase(name))
+                    gzip = value.contains("gzip");
+            }
+            byte[] body = new byte[length];
+            for (int n = 0; n < length; ) {
+                int r = is.read(body, n, length - n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+            requests.add(method + " " + path);
+            bodies.add(new String(body, "UTF-8"));
+            sessions.add(session);
+
+            OutputStream os = s.getOutputStream();
+            if (!"SESSION".equals(session)) {
+                respond(os, 400, "<error xmlns=\"" + SfdcBulkApi.NAMESPACE + "\"><exceptionCode>InvalidSessionId" +
+                        "</exceptionCode><exceptionMessage>Invalid session id</exceptionMessage></error>", false);
+            } else if (path.endsWith("/job") || path.endsWith("/job/750J")) {
+                respond(os, 201, "<jobInfo xmlns=\"" + SfdcBulkApi.NAMESPACE + "\"><id>750J</id></jobInfo>", false);
+            } else if (path.endsWith("/batch") && "POST".equals(method)) {
+                respond(os, 201, "<batchInfo xmlns=\"" + SfdcBulkApi.NAMESPACE + "\"><id>751A</id>" +
+                        "<state>Queued</state></batchInfo>", false);
+            } else if (path.endsWith("/batch")) {
+                String[] states = batchStates;
+                String state;
+                synchronized (this) {
+                    state = states[Math.min(batchPolls++, states.length - 1)];
+                }
+                respond(os, 200, state, false);
+            } else if (path.endsWith("/result")) {
+                respond(os, 200, "<result-list xmlns=\"" + SfdcBulkApi.NAMESPACE + "\"><result>752R</result>" +
+                        "</result-list>", false);
+            } else if (path.endsWith("/result/752R")) {
+                respond(os, 200, "\"Id\",\"Amount\"\n\"006A\",\"10.5\"\n", gzip);
+            } else {
+                respond(os, 404, "", false);
+            }
+        }
+
+        private static void respond(OutputStream os, int status, String content, boolean gzip) throws IOException {
+            byte[] body = content.getBytes("UTF-8");
+            if (gzip) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                GZIPOutputStream zos = new GZIPOutputStream(bos);
+                zos.write(body);
+                zos.close();
+                body = bos.toByteArray();
+            }
+            String header = "HTTP/1.1 " + status + " Status\r\n" +
+                    "Content-Type: application/xml\r\n" +
+                    "Content-Length: " + body.length + "\r\n" +
+                    ((gzip) ? ("Content-Encoding: gzip\r\n") : ("")) +
+                    "Connection: close\r\n\r\n";
+            os.write(header.getBytes("US-ASCII"));
+            os.write(body);
+            os.flush();
+        }
+
+        private static String readLine(InputStream is) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = is.read()) != -1 && c != '\n') {
+                if (c != '\r')
+                    sb.append((char) c);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.SfdcException;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SfdcConnectorTest extends TestCase {
+
+    private static final String QUERY = "SELECT Id, Name FROM Opportunity";
+
+    // the stream is expected to finish well within the timeout
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Returns the query response page with two records
+     */
+    private static String page(int number, boolean done) {
+        StringBuilder s = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"" +
+                " xmlns=\"urn:partner.soap.sforce.com\" xmlns:sf=\"urn:sobject.partner.soap.sforce.com\"" +
+                " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"><soapenv:Body><queryResponse><result>");
+        s.append("<done>").append(done).append("</done>");
+        if (!done)
+            s.append("<queryLocator>01gA-").append(number + 1).append("</queryLocator>");
+        for (int i = 1; i <= 2; i++) {
+            String id = "P" + number + "R" + i;
+            s.append("<records xsi:type=\"sf:sObject\"><sf:type>Opportunity</sf:type><sf:Id>").append(id)
+                    .append("</sf:Id><sf:Id>").append(id).append("</sf:Id><sf:Name>Name ").append(id)
+                    .append("</sf:Name></records>");
+        }
+        s.append("<size>100</size></result></queryResponse></soapenv:Body></soapenv:Envelope>");
+        return s.toString();
+    }
+
+    private static SfdcQueryReaderTest.SoapStub stub(int pages, int faultPage) throws IOException {
+        int[] statuses = new int[pages];
+        String[] responses = new String[pages];
+        for (int i = 0; i < pages; i++) {
+            statuses[i] = (i == faultPage) ? (500) : (200);
+            responses[i] = (i == faultPage) ? (SfdcQueryReaderTest.FAULT) : (page(i, i == pages - 1));
+        }
+        return new SfdcQueryReaderTest.SoapStub(statuses, responses);
+    }
+
+    /**
+     * Streams the pages on a separate thread, fails when the stream doesn't finish in time
+     *
+     * @return the stream failure, null when the stream succeeded
+     */
+    private static Throwable stream(final SfdcQueryReader reader, final SfdcQueryReader.RecordHandler handler)
+            throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    SfdcConnector.streamPages(reader, QUERY, handler);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        t.start();
+        t.join(TIMEOUT);
+        assertFalse("The SFDC stream hangs.", t.isAlive());
+        return failure[0];
+    }
+
+    private static boolean isFetcherAlive() {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (SfdcConnector.FETCHER_THREAD_NAME.equals(t.getName()) && t.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    private static void assertFetcherEnds() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (isFetcherAlive()) {
+            assertTrue("The SFDC fetch thread hangs.", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    public void testPageOrder() throws Exception {
+        SfdcQueryReaderTest.SoapStub stub = stub(4, -1);
+        SfdcQueryReader reader = new SfdcQueryReader(stub.getUrl(), "SESSION", null, 200);
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            Throwable failure = stream(reader, new SfdcQueryReader.RecordHandler() {
+                public void record(String type, String[] names, String[] values, int count) {
+                    ids.add(values[0]);
+                }
+            });
+            assertNull(failure);
+        } finally {
+            stub.close();
+        }
+        assertEquals("[P0R1, P0R2, P1R1, P1R2, P2R1, P2R2, P3R1, P3R2]", ids.toString());
+        assertEquals(4, stub.requests.size());
+        assertTrue(stub.requests.get(0).contains(QUERY));
+        for (int i = 1; i < 4; i++)
+            assertTrue(stub.requests.get(i).contains("<urn:queryLocator>01gA-" + i + "</urn:queryLocator>"));
+        assertFetcherEnds();
+    }
+
+    public void testFetchFailure() throws Exception {
+        SfdcQueryReaderTest.SoapStub stub = stub(3, 2);
+        SfdcQueryReader reader = new SfdcQueryReader(stub.getUrl(), "SESSION", null, 200);
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            Throwable failure = stream(reader, new SfdcQueryReader.RecordHandler() {
+                public void record(String type, String[] names, String[] values, int count) {
+                    ids.add(values[0]);
+                }
+            });
+            assertTrue("The fetch failure must be a SfdcException.", failure instanceof SfdcException);
+            assertTrue(failure.getMessage().contains("MALFORMED_QUERY"));
+        } finally {
+            stub.close();
+        }
+        // the pages fetched before the failure are written
+        assertEquals("[P0R1, P0R2, P1R1, P1R2]", ids.toString());
+        assertFetcherEnds();
+    }
+
+    public void testWriteFailure() throws Exception {
+        // more pages than the prefetch queue holds, the fetch thread is blocked when the writing fails
+        SfdcQueryReaderTest.SoapStub stub = stub(20, -1);
+        SfdcQueryReader reader = new SfdcQueryReader(stub.getUrl(), "SESSION", null, 200);
+        try {
+            Throwable failure = stream(reader, new SfdcQueryReader.RecordHandler() {
+                public void record(String type, String[] names, String[] values, int count) throws IOException {
+                    throw new IOException("Disk full");
+                }
+            });
+            assertTrue(failure instanceof IOException);
+            assertEquals("Disk full", failure.getMessage());
+        } finally {
+            stub.close();
+        }
+        assertFetcherEnds();
+        assertTrue(stub.requests.size() < 20);
+    }
+
+}
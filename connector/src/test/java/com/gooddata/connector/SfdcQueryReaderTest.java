@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.exception.SfdcException;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SfdcQueryReaderTest extends TestCase {
+
+    private static final String RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"" +
+            " xmlns=\"urn:partner.soap.sforce.com\" xmlns:sf=\"urn:sobject.partner.soap.sforce.com\"" +
+            " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"><soapenv:Body><queryResponse><result>" +
+            "<done>false</done><queryLocator>01gA-500</queryLocator>" +
+            "<records xsi:type=\"sf:sObject\"><sf:type>Opportunity</sf:type><sf:Id>006A</sf:Id>" +
+            "<sf:Id>006A</sf:Id><sf:Name>Big &amp; Small</sf:Name><sf:Amount xsi:nil=\"true\"/>" +
+            "<sf:Account xsi:type=\"sf:sObject\"><sf:type>Account</sf:type><sf:Id xsi:nil=\"true\"/>" +
+            "<sf:Name>Acme</sf:Name></sf:Account><sf:CloseDate>2010-05-01</sf:CloseDate></records>" +
+            "<records xsi:type=\"sf:sObject\"><sf:type>Opportunity</sf:type><sf:Id>006B</sf:Id>" +
+            "<sf:Id>006B</sf:Id><sf:Name>Other</sf:Name><sf:Amount>10.5</sf:Amount>" +
+            "<sf:Account xsi:nil=\"true\"/><sf:CloseDate>2010-06-01</sf:CloseDate></records>" +
+            "<size>1200</size></result></queryResponse></soapenv:Body></soapenv:Envelope>";
+
+    static final String FAULT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>" +
+            "<soapenv:Fault><faultcode>sf:MALFORMED_QUERY</faultcode>" +
+            "<faultstring>MALFORMED_QUERY: unexpected token: FORM</faultstring></soapenv:Fault>" +
+            "</soapenv:Body></soapenv:Envelope>";
+
+    private static final String INVALID_SESSION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>" +
+            "<soapenv:Fault><faultcode>sf:INVALID_SESSION_ID</faultcode>" +
+            "<faultstring>INVALID_SESSION_ID: Invalid Session ID found in SessionHeader</faultstring>" +
+            "</soapenv:Fault></soapenv:Body></soapenv:Envelope>";
+
+    public void testReadPageInfo() throws IOException {
+        SfdcQueryReader.PageInfo info = SfdcQueryReader.readPageInfo(RESPONSE.getBytes("UTF-8"));
+        assertFalse(info.isDone());
+        assertEquals("01gA-500", info.getQueryLocator());
+    }
+
+    public void testReadRecords() throws IOException {
+        final List<String> rows = new ArrayList<String>();
+        int cnt = SfdcQueryReader.readRecords(RESPONSE.getBytes("UTF-8"), new SfdcQueryReader.RecordHandler() {
+            public void record(String type, String[] names, String[] values, int count) {
+                rows.add(type + ":" + Arrays.asList(names).subList(0, count) + "=" +
+                        Arrays.asList(values).subList(0, count));
+            }
+        });
+        assertEquals(2, cnt);
+        assertEquals("Opportunity:[Id, Name, Amount, Account, CloseDate]=[006A, Big & Small, null, null, 2010-05-01]",
+                rows.get(0));
+        assertEquals("Opportunity:[Id, Name, Amount, Account, CloseDate]=[006B, Other, 10.5, null, 2010-06-01]",
+                rows.get(1));
+    }
+
+    public void testReadFault() throws IOException {
+        assertEquals("MALFORMED_QUERY: unexpected token: FORM", SfdcQueryReader.readFault(FAULT.getBytes("UTF-8")));
+        assertNull(SfdcQueryReader.readFault("<html>Service Unavailable</html>".getBytes("UTF-8")));
+    }
+
+    public void testQuery() throws Exception {
+        SoapStub stub = new SoapStub(200, RESPONSE);
+        SfdcQueryReader reader = new SfdcQueryReader(stub.getUrl(), "SESSION", "partner/1.0", 2000);
+        try {
+            byte[] page = reader.query("SELECT Id, Name FROM Opportunity WHERE Amount > 0");
+            assertEquals(RESPONSE, new String(page, "UTF-8"));
+        } finally {
+            reader.shutdown();
+            stub.close();
+        }
+        assertTrue(stub.request.contains("<urn:sessionId>SESSION</urn:sessionId>"));
+        assertTrue(stub.request.contains("<urn:batchSize>2000</urn:batchSize>"));
+        assertTrue(stub.request.contains("<urn:client>partner/1.0</urn:client>"));
+        assertTrue(stub.request.contains("SELECT Id, Name FROM Opportunity WHERE Amount &gt; 0"));
+    }
+
+    public void testQueryFault() throws Exception {
+        SoapStub stub = new SoapStub(500, FAULT);
+        SfdcQueryReader reader = new SfdcQueryReader(stub.getUrl(), "SESSION", null, 500);
+        try {
+            reader.queryMore("01gA-500");
+            fail("The SOAP fault must fail the query.");
+        } catch (SfdcException e) {
+            assertTrue(e.getMessage().contains("MALFORMED_QUERY: unexpected token: FORM"));
+        } finally {
+            reader.shutdown();
+            stub.close();
+        }
+        assertTrue(stub.request.contains("<urn:queryLocator>01gA-500</urn:queryLocator>"));
+        assertFalse(stub.request.contains("CallOptions"));
+    }
+
+    public void testRenewSession() throws Exception {
+        SoapStub expired = new SoapStub(500, INVALID_SESSION);
+        final SoapStub renewed = new SoapStub(200, RESPONSE);
+        SfdcQueryReader reader = new SfdcQueryReader(expired.getUrl(), "EXPIRED", null, 500);
+        reader.setSessionRenewer(new SfdcSessionRenewer() {
+            public String[] renew(String sessionId) {
+                assertEquals("EXPIRED", sessionId);
+                return new String[]{renewed.getUrl(), "SESSION"};
+            }
+        });
+        try {
+            byte[] page = reader.queryMore("01gA-500");
+            assertEquals(RESPONSE, new String(page, "UTF-8"));
+        } finally {
+            reader.shutdown();
+            expired.close();
+            renewed.close();
+        }
+        assertTrue(expired.request.contains("<urn:sessionId>EXPIRED</urn:sessionId>"));
+        assertTrue(renewed.request.contains("<urn:sessionId>SESSION</urn:sessionId>"));
+        assertTrue(renewed.request.contains("<urn:queryLocator>01gA-500</urn:queryLocator>"));
+    }
+
+    public void testInvalidSession() throws Exception {
+        SoapStub stub = new SoapStub(500, INVALID_SESSION);
+        SfdcQueryReader reader = new SfdcQueryReader(stub.getUrl(), "EXPIRED", null, 500);
+        try {
+            reader.query("SELECT Id FROM Opportunity");
+            fail("The expired session must fail the query without a renewer.");
+        } catch (SfdcException e) {
+            assertTrue(e.getMessage().contains("INVALID_SESSION_ID"));
+        } finally {
+            reader.shutdown();
+            stub.close();
+        }
+    }
+
+    /**
+     * Answers the SOAP requests with the canned responses in order, one request per connection
+     */
+    static class SoapStub extends Thread {
+
+        private final ServerSocket server;
+        private final int[] statuses;
+        private final String[] responses;
+        // the last request
+        volatile String request = "";
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        SoapStub(int status, String response) throws IOException {
+            this(new int[]{status}, new String[]{response});
+        }
+
+        SoapStub(int[] statuses, String[] responses) throws IOException {
+            this.server = new ServerSocket(0);
+            this.statuses = statuses;
+            this.responses = responses;
+            setDaemon(true);
+            start();
+        }
+
+        String getUrl() {
+            return "http://localhost:" + server.getLocalPort() + "/services/Soap/u/20.0/00D30000000Xyz";
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < responses.length; i++) {
+                    answer(server.accept(), statuses[i], responses[i]);
+                }
+            } catch (IOException e) {
+                // the test fails on the missing response
+            }
+        }
+
+        private void answer(Socket s, int status, String response) throws IOException {
+            try {
+                InputStream is = s.getInputStream();
+                ByteArrayOutputStream head = new ByteArrayOutputStream();
+                while (!head.toString("UTF-8").endsWith("\r\n\r\n")) {
+                    head.write(is.read());
+                }
+                int length = 0;
+                for (String line : head.toString("UTF-8").split("\r\n")) {
+                    if (line.toLowerCase().startsWith("content-length:"))
+                        length = Integer.parseInt(line.substring(15).trim());
+                }
+                byte[] body = new byte[length];
+                int n = 0;
+                while (n < length) {
+                    n += is.read(body, n, length - n);
+                }
+                request = new String(body, "UTF-8");
+                requests.add(request);
+                byte[] data = response.getBytes("UTF-8");
+                OutputStream os = s.getOutputStream();
+                os.write(("HTTP/1.1 " + status + " Status\r\nContent-Type: text/xml; charset=utf-8\r\n" +
+                        "Content-Length: " + data.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                os.write(data);
+                os.flush();
+            } finally {
+                s.close();
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+    }
+}
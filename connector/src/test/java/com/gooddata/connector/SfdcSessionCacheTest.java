@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.connector;
+
+import com.gooddata.modeling.model.SourceColumn;
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.SoapBindingStub;
+import junit.framework.TestCase;
+import org.apache.axis.AxisFault;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+public class SfdcSessionCacheTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("gdc-sfdc-describe", ".properties");
+        file.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testDescribeCached() throws IOException {
+        DescribeStub c = new DescribeStub();
+        SfdcSessionCache cache = new SfdcSessionCache();
+        Map<String, String> fields = cache.describe(c, "host", "usr", "Opportunity");
+        assertEquals("currency", fields.get("Amount"));
+        assertEquals("date", fields.get("CloseDate"));
+        assertSame(fields, cache.describe(c, "host", "usr", "Opportunity"));
+        assertEquals(1, c.describes);
+        // other user can see different fields
+        cache.describe(c, "host", "other", "Opportunity");
+        assertEquals(2, c.describes);
+    }
+
+    public void testDescribeExpired() throws IOException {
+        DescribeStub c = new DescribeStub();
+        SfdcSessionCache cache = new SfdcSessionCache();
+        cache.setDescribeTtl(0);
+        cache.describe(c, "host", "usr", "Opportunity");
+        cache.describe(c, "host", "usr", "Opportunity");
+        assertEquals(2, c.describes);
+    }
+
+    public void testDescribePersisted() throws IOException {
+        DescribeStub c = new DescribeStub();
+        SfdcSessionCache cache = new SfdcSessionCache();
+        cache.setDescribeFile(file);
+        cache.describe(c, "host", "usr", "Opportunity");
+        cache.close();
+        assertTrue(file.exists());
+
+        SfdcSessionCache next = new SfdcSessionCache();
+        next.setDescribeFile(file);
+        Map<String, String> fields = next.describe(c, "host", "usr", "Opportunity");
+        assertEquals(1, c.describes);
+        assertEquals(3, fields.size());
+        assertEquals("id", fields.get("Id"));
+        assertEquals("currency", fields.get("Amount"));
+        assertEquals(SourceColumn.LDM_TYPE_DATE, SfdcConnector.getColumnType(fields, "CloseDate"));
+        next.close();
+
+        SfdcSessionCache expired = new SfdcSessionCache();
+        expired.setDescribeTtl(0);
+        expired.setDescribeFile(file);
+        expired.describe(c, "host", "usr", "Opportunity");
+        assertEquals(2, c.describes);
+    }
+
+    /**
+     * Counts the describe calls
+     */
+    private static class DescribeStub extends SoapBindingStub {
+
+        private int describes = 0;
+
+        DescribeStub() throws AxisFault {
+            super();
+        }
+
+        public DescribeSObjectResult describeSObject(String name) {
+            describes++;
+            DescribeSObjectResult r = new DescribeSObjectResult();
+            r.setFields(new Field[]{field("Id", "id"), field("Amount", "currency"), field("CloseDate", "date")});
+            return r;
+        }
+
+        private static Field field(String name, String type) {
+            Field f = new Field();
+            f.setName(name);
+            f.setType(FieldType.fromString(type));
+            return f;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2009, GoodData Corporation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice, this list of conditions and
+ *        the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ *        and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the GoodData Corporation nor the names of its contributors may be used to endorse
+ *        or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gooddata.google.analytics;
+
+import com.gooddata.exception.InvalidParameterException;
+import com.gooddata.util.CSVWriter;
+import com.gooddata.util.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class GaSlicedExtractorTest extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws Exception {
+        dir = FileUtil.createTempDir();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(dir);
+    }
+
+    public void testSplit() {
+        List<String[]> slices = GaSlicedExtractor.split("2010-01-01", "2010-03-05", 30);
+        assertEquals(3, slices.size());
+        assertEquals("2010-01-01", slices.get(0)[0]);
+        assertEquals("2010-01-30", slices.get(0)[1]);
+        assertEquals("2010-01-31", slices.get(1)[0]);
+        assertEquals("2010-03-01", slices.get(1)[1]);
+        assertEquals("2010-03-02", slices.get(2)[0]);
+        assertEquals("2010-03-05", slices.get(2)[1]);
+
+        slices = GaSlicedExtractor.split("2010-01-01", "2010-03-05", 0);
+        assertEquals(1, slices.size());
+        assertEquals("2010-03-05", slices.get(0)[1]);
+
+        slices = GaSlicedExtractor.split("2010-01-01", "2010-01-01", 7);
+        assertEquals(1, slices.size());
+        assertEquals("2010-01-01", slices.get(0)[1]);
+    }
+
+    public void testSplitInvalidRange() {
+        try {
+            GaSlicedExtractor.split("2010-02-01", "2010-01-01", 30);
+            fail("The end date precedes the start date.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+        try {
+            GaSlicedExtractor.split("today", "2010-01-01", 30);
+            fail("Invalid date.");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+
+    public void testExtractInDateOrder() throws IOException {
+        List<String[]> slices = GaSlicedExtractor.split("2010-01-01", "2010-12-31", 7);
+        StubExtractor stub = new StubExtractor(null);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int cnt = new GaSlicedExtractor(stub, 4).extract(slices, dir, "key", os);
+        assertEquals(slices.size() * 2, cnt);
+        assertEquals(expected(slices), os.toString("UTF-8"));
+        assertEquals(slices.size(), stub.extracted.size());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testResume() throws IOException {
+        List<String[]> slices = GaSlicedExtractor.split("2010-01-01", "2010-01-31", 10);
+        StubExtractor failing = new StubExtractor("2010-01-11");
+        try {
+            new GaSlicedExtractor(failing, 1).extract(slices, dir, "key", new ByteArrayOutputStream());
+            fail("The failed slice must fail the extraction.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(new File(dir, "ga-key-2010-01-01-2010-01-10.csv").isFile());
+
+        // the completed slices are reused by the same key only
+        StubExtractor other = new StubExtractor(null);
+        new GaSlicedExtractor(other, 1).extract(slices, dir, "other", new ByteArrayOutputStream());
+        assertEquals(slices.size(), other.extracted.size());
+
+        StubExtractor resumed = new StubExtractor(null);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new GaSlicedExtractor(resumed, 1).extract(slices, dir, "key", os);
+        assertFalse(resumed.extracted.contains("2010-01-01"));
+        assertTrue(resumed.extracted.contains("2010-01-11"));
+        assertEquals(expected(slices), os.toString("UTF-8"));
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testFailureCancelsSlices() throws IOException {
+        List<String[]> slices = GaSlicedExtractor.split("2010-01-01", "2010-01-31", 10);
+        final List<String> interrupted = new CopyOnWriteArrayList<String>();
+        GaSlicedExtractor.SliceExtractor slow = new GaSlicedExtractor.SliceExtractor() {
+            public int extract(String startDate, String endDate, CSVWriter cw) throws IOException {
+                if ("2010-01-11".equals(startDate))
+                    throw new IOException("GA request failed.");
+                try {
+                    // the first slice waits until the failure of the second one cancels it
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.add(startDate);
+                    throw new IOException("interrupted");
+                }
+                return 0;
+            }
+        };
+        long start = System.currentTimeMillis();
+        try {
+            new GaSlicedExtractor(slow, 2).extract(slices, dir, "key", new ByteArrayOutputStream());
+            fail("The failed slice must fail the extraction.");
+        } catch (IOException e) {
+            assertEquals("GA request failed.", e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        for (int i = 0; i < 100 && interrupted.isEmpty(); i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        assertEquals("2010-01-01", interrupted.get(0));
+        assertFalse(new File(dir, "ga-key-2010-01-01-2010-01-10.csv").isFile());
+    }
+
+    private static String expected(List<String[]> slices) {
+        StringBuilder sb = new StringBuilder();
+        for (String[] slice : slices) {
+            sb.append("\"").append(slice[0]).append("\",\"1\"\n");
+            sb.append("\"").append(slice[1]).append("\",\"2\"\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes two rows per slice after a random delay, fails the given slice
+     */
+    private static class StubExtractor implements GaSlicedExtractor.SliceExtractor {
+
+        private final String failingSlice;
+        private final List<String> extracted = new CopyOnWriteArrayList<String>();
+        private final Random random = new Random();
+
+        StubExtractor(String failingSlice) {
+            this.failingSlice = failingSlice;
+        }
+
+        public int extract(String startDate, String endDate, CSVWriter cw) throws IOException {
+            extracted.add(startDate);
+            if (startDate.equals(failingSlice))
+                throw new IOException("GA request failed.");
+            try {
+                Thread.sleep(random.nextInt(20));
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            cw.writeNext(new String[]{startDate, "1"});
+            cw.writeNext(new String[]{endDate, "2"});
+            return 2;
+        }
+    }
+}
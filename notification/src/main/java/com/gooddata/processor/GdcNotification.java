@@ -250,8 +250,11 @@ public class GdcNotification {
                         continue;
                     }
                 }
-                rest = new GdcRESTApiWrapper(cliParams.getHttpConfig());
-                rest.login();
+                if (rest == null) {
+                    // one login and connection pool serve all messages
+                    rest = new GdcRESTApiWrapper(cliParams.getHttpConfig());
+                    rest.login();
+                }
                 Expression e = null;
                 JexlEngine jexl = new JexlEngine();
                 e = jexl.createExpression(m.getCondition());
@@ -310,12 +313,16 @@ public class GdcNotification {
                 }
             }
             dupFilter.save();
-            rest.logout();
         } catch (Exception e) {
             throw new IOException(e);
         } finally {
-            if (rest != null)
-                rest.logout();
+            if (rest != null) {
+                try {
+                    rest.logout();
+                } finally {
+                    rest.shutdown();
+                }
+            }
         }
     }
 